@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -403,7 +405,8 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        // INSERT ... SELECT may produce many tuples; Insert bulk loads them if so
+        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId, s.getValues() == null));
         return insertQ;
     }
 
@@ -505,7 +508,38 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * CREATE INDEX name ON table (field), which ZQL does not parse
+     */
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Creates a secondary index on a field of a heap table in its own
+     * transaction. Like other DDL it cannot run inside a user transaction,
+     * since the index is used by other transactions as soon as it commits.
+     */
+    public void handleCreateIndexStatement(String indexName, String tableName, String fieldName) {
+        if (inUserTrans) {
+            System.out.println("CREATE INDEX cannot run inside a transaction");
+            return;
+        }
+        try {
+            Database.getCatalog().createIndex(indexName, tableName, fieldName);
+            System.out.println("Created index " + indexName + " on " + tableName
+                    + "(" + fieldName + ")");
+        } catch (Exception e) {
+            System.out.println("Unable to create index " + indexName + ": " + e.getMessage());
+        }
+    }
+
     public void processNextStatement(String s) {
+        Matcher m = CREATE_INDEX.matcher(s.trim());
+        if (m.matches()) {
+            handleCreateIndexStatement(m.group(1), m.group(2), m.group(3));
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -594,7 +628,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -687,7 +721,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -696,8 +729,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,8 +1,11 @@
 package simpledb.common;
 
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -10,6 +13,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -37,6 +41,10 @@ public class Catalog {
          * 主键
          */
         private String pkeyField;
+        /**
+         * 表上的二级索引
+         */
+        private List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();
 
 
         public Table(DbFile file, String name, String pkeyField){
@@ -68,6 +76,10 @@ public class Catalog {
         public void setPkeyField(String pkeyField) {
             this.pkeyField = pkeyField;
         }
+
+        public List<SecondaryIndex> getIndexes() {
+            return indexes;
+        }
     }
 
     /**
@@ -80,6 +92,17 @@ public class Catalog {
      */
     private ConcurrentHashMap<Integer,Table> integerTableMap;
 
+    /**
+     * 形如 (name,SecondaryIndex) 的索引 map，包括正在创建的索引，用于保证索引名唯一
+     */
+    private ConcurrentHashMap<String,SecondaryIndex> stringIndexMap;
+
+    /**
+     * 形如 (B+ 树文件 id,SecondaryIndex) 的索引 map <br/>
+     * 索引的 B+ 树文件不是表，不能按名字查询、修改或统计，只按文件 id 解析，缓冲池和恢复才能读写它的页面
+     */
+    private ConcurrentHashMap<Integer,SecondaryIndex> integerIndexMap;
+
     /**
      * 构造函数 <br/>
      * 创建一个新的空目录
@@ -87,6 +110,8 @@ public class Catalog {
     public Catalog() {
         stringTableMap = new ConcurrentHashMap<>();
         integerTableMap = new ConcurrentHashMap<>();
+        stringIndexMap = new ConcurrentHashMap<>();
+        integerIndexMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -135,27 +160,29 @@ public class Catalog {
     }
 
     /**
-     * 返回指定表的元组描述(约束)
+     * 返回指定表的元组描述(约束)，tableid 也可以是索引的 B+ 树文件 id
      * @param tableid       表的 id
      * @return
      * @throws NoSuchElementException
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
-        if(integerTableMap.containsKey(tableid)){
-            return integerTableMap.get(tableid).getFile().getTupleDesc();
-        }
-        throw new NoSuchElementException();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
-     * 返回指定表文件 DbFile
+     * 返回指定表文件 DbFile，tableid 也可以是索引的 B+ 树文件 id
      * @param tableid   表的 id
      * @return
      * @throws NoSuchElementException
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-        if(integerTableMap.containsKey(tableid)){
-            return integerTableMap.get(tableid).getFile();
+        Table table = integerTableMap.get(tableid);
+        if(table != null){
+            return table.getFile();
+        }
+        SecondaryIndex index = integerIndexMap.get(tableid);
+        if(index != null){
+            return index.getFile();
         }
         throw new NoSuchElementException();
     }
@@ -172,6 +199,77 @@ public class Catalog {
         throw new NoSuchElementException();
     }
 
+    /**
+     * 返回指定表上的二级索引
+     * @param tableid   表的 id
+     * @return 索引列表，表不存在或没有索引时为空
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        Table table = integerTableMap.get(tableid);
+        return table == null ? Collections.emptyList() : table.getIndexes();
+    }
+
+    /**
+     * 在堆表的一个字段上创建二级索引 (CREATE INDEX)，在自己的事务中完成。 <br/>
+     * 索引的 B+ 树存放在堆文件所在目录的 indexName.idx 文件中，由表中现有的元组批量构建。 <br/>
+     * 构建前在表上获取共享锁，修改这个表的事务要等构建的事务提交，之后它们会看到新索引并维护它的索引项。 <br/>
+     * 只有提交后索引才出现在表的索引列表中；构建失败时事务回滚，索引名、B+ 树文件及其缓存页面都被删除。 <br/>
+     * 索引不会写入目录文件，loadSchema 之后需要重新创建。
+     * @param indexName     索引名，不能与已有的表或索引重名
+     * @param tableName     表名
+     * @param fieldName     被索引的字段名
+     * @return 新索引
+     * @throws DbException 索引名已被使用、表不是堆表或字段不存在
+     */
+    public SecondaryIndex createIndex(String indexName, String tableName, String fieldName)
+            throws DbException, IOException, TransactionAbortedException {
+        Table table = stringTableMap.get(tableName);
+        if (table == null) {
+            throw new DbException("unknown table " + tableName);
+        }
+        if (!(table.getFile() instanceof HeapFile)) {
+            throw new DbException("indexes can only be created on heap tables: " + tableName);
+        }
+        HeapFile heapFile = (HeapFile) table.getFile();
+        int keyField;
+        try {
+            keyField = heapFile.getTupleDesc().fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new DbException("unknown field " + fieldName + " in table " + tableName);
+        }
+        File f = new File(heapFile.getFile().getAbsoluteFile().getParentFile(), indexName + ".idx");
+        SecondaryIndex index;
+        // 检查并占用索引名之后才截断文件，同名的另一个索引可能正在构建
+        synchronized (stringIndexMap) {
+            if (stringTableMap.containsKey(indexName) || stringIndexMap.containsKey(indexName)) {
+                throw new DbException("table or index " + indexName + " already exists");
+            }
+            index = SecondaryIndex.create(indexName, heapFile, keyField, f);
+            stringIndexMap.put(indexName, index);
+            // 批量构建和回滚时缓冲池要按文件 id 读写 B+ 树的页面
+            integerIndexMap.put(index.getFile().getId(), index);
+        }
+        TransactionId tid = new TransactionId();
+        boolean committed = false;
+        try {
+            Database.getBufferPool().lockTable(tid, heapFile.getId(), Permissions.READ_ONLY);
+            index.build(tid);
+            // 提交释放表锁之前加入列表，之后修改表的事务都会维护索引项
+            table.getIndexes().add(index);
+            Database.getBufferPool().transactionComplete(tid, true);
+            committed = true;
+            return index;
+        } finally {
+            if (!committed) {
+                table.getIndexes().remove(index);
+                Database.getBufferPool().transactionComplete(tid, false);
+                integerIndexMap.remove(index.getFile().getId());
+                stringIndexMap.remove(indexName);
+                index.drop();
+            }
+        }
+    }
+
     /**
      * 获取表的迭代器
      * @return
@@ -198,6 +296,8 @@ public class Catalog {
     public void clear() {
         integerTableMap.clear();
         stringTableMap.clear();
+        integerIndexMap.clear();
+        stringIndexMap.clear();
     }
 
     /**
@@ -245,6 +345,8 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // 目录中的表保存空闲空间映射，重新打开时不用从头找有空闲槽位的页面
+                tabHf.getFreeSpaceMap().setPersistent(true);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
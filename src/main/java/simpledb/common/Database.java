@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -82,12 +83,26 @@ public class Database {
      * @return
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * ڲԵķʹָҳûԴһµĻʵ
+     * @param pages     ҳ
+     * @param policy    ҳû
+     * @return
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         // ƴ
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -0,0 +1,193 @@
+package simpledb.common;
+
+import java.util.Arrays;
+
+/**
+ * long 到 int 的开放寻址哈希表 <br/>
+ * 1. 使用线性探测，删除时回移后续元素（backward shift），不需要墓碑标记。 <br/>
+ * 2. 键和值都保存在基本类型数组中，查找不会产生装箱和对象分配。 <br/>
+ * 3. 值必须为非负整数，-1 作为空槽标记，也是查找不到时的返回值。 <br/>
+ * 非线程安全，由调用方负责同步。{@link #get(long)} 可以在乐观读（如 StampedLock.tryOptimisticRead）下调用：
+ * 与写操作并发时它总会结束，但可能返回错误结果或抛出 ArrayIndexOutOfBoundsException，调用方需要在校验失败后重试。
+ */
+public class LongIntHashMap {
+
+    /**
+     * 查找不到时的返回值
+     */
+    public static final int NO_VALUE = -1;
+
+    /**
+     * 最小容量，装载因子超过 1/2 时容量翻倍
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize  预计的元素个数，在此个数以内不会扩容
+     */
+    public LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @param key   键
+     * @return 键对应的值，不存在时返回 {@link #NO_VALUE}
+     */
+    public int get(long key) {
+        long[] keys = this.keys;
+        int[] values = this.values;
+        int mask = this.mask;
+        // 最多探测 mask + 1 次，并发修改时也不会死循环
+        for (int i = slot(key, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            int value = values[i];
+            if (value == NO_VALUE || keys[i] == key) {
+                return value;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @param key   键
+     * @return 是否包含指定的键
+     */
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * 插入或替换
+     * @param key       键
+     * @param value     值，必须为非负整数
+     * @return 原来的值，不存在时返回 {@link #NO_VALUE}
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be non-negative: " + value);
+        }
+        int i = slot(key);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * 键不存在时插入
+     * @param key       键
+     * @param value     值，必须为非负整数
+     * @return 已有的值，不存在时插入并返回 {@link #NO_VALUE}
+     */
+    public int putIfAbsent(long key, int value) {
+        int old = get(key);
+        if (old != NO_VALUE) {
+            return old;
+        }
+        return put(key, value);
+    }
+
+    /**
+     * 删除
+     * @param key   键
+     * @return 原来的值，不存在时返回 {@link #NO_VALUE}
+     */
+    public int remove(long key) {
+        int i = slot(key);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    /**
+     * 删除 hole 位置的元素后，把同一探测链上的后续元素往前移，保证查找时不会在空槽处提前结束
+     */
+    private void shiftBack(int hole) {
+        for (int i = (hole + 1) & mask; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            // home 不在 (hole, i] 区间内时，元素可以移到 hole
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = NO_VALUE;
+    }
+
+    private int slot(long key) {
+        return slot(key, mask);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != NO_VALUE) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        mask = capacity - 1;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.io.*;
 
@@ -33,6 +34,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     },
     /**
      * String ͣ СΪ STRING_LEN + 4 ֽ
@@ -55,6 +61,16 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++) {
+                bs[i] = buf.get(offset + 4 + i);
+            }
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -73,4 +89,13 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     *  buf  offset ȡһ͵ Fieldλöȡı buf  position
+     * ߳̿Թͬһ bufڴӳļ
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
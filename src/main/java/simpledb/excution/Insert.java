@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -11,6 +13,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -39,6 +44,16 @@ public class Insert extends Operator {
      * check if called more than once
      */
     private boolean called;
+    /**
+     * whether a large input is loaded with HeapFile.bulkInsert
+     */
+    private boolean bulk;
+
+    /**
+     * Inputs with more tuples than this are bulk loaded when bulk loading is
+     * enabled.
+     */
+    public static final int BULK_THRESHOLD = 4096;
 
     /**
      * Constructor.
@@ -61,6 +76,25 @@ public class Insert extends Operator {
         this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"number of inserted records"});
     }
 
+    /**
+     * Constructor.
+     *
+     * @param t       The transaction running the insert.
+     * @param child   The child operator from which to read tuples to be inserted.
+     * @param tableId The table in which to insert tuples.
+     * @param bulk    If true and the table is a HeapFile, an input of more than
+     *                BULK_THRESHOLD tuples is appended to new pages with
+     *                {@link HeapFile#bulkInsert} instead of being inserted one
+     *                tuple at a time through the BufferPool.
+     * @throws DbException if TupleDesc of child differs from table into which we are to
+     *                     insert.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulk)
+            throws DbException {
+        this(t, child, tableId);
+        this.bulk = bulk;
+    }
+
     public TupleDesc getTupleDesc() {
         return this.tupleDesc;
     }
@@ -97,14 +131,41 @@ public class Insert extends Operator {
             return null;
         }
         int count = 0;
-        while (child.hasNext()) {
-            Tuple t = child.next();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        List<Tuple> head = new ArrayList<>();
+        // pages written by a bulk load bypass the BufferPool, which keeps the
+        // table's secondary indexes in sync, so indexed tables insert one by one
+        if (bulk && file instanceof HeapFile && Database.getCatalog().getIndexes(tableId).isEmpty()) {
+            // only inputs that turn out to be large are worth new pages
+            while (child.hasNext() && head.size() <= BULK_THRESHOLD) {
+                head.add(child.next());
+            }
+        }
+        if (head.size() > BULK_THRESHOLD) {
             try {
-                Database.getBufferPool().insertTuple(tid, tableId, t);
+                HeapFile.BulkLoader loader = ((HeapFile) file).bulkLoader(tid);
+                for (Tuple t : head) {
+                    loader.add(t);
+                }
+                while (child.hasNext()) {
+                    loader.add(child.next());
+                }
+                loader.finish();
+                count = loader.getCount();
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new DbException("bulk load failed: " + e.getMessage());
+            }
+        } else {
+            Iterator<Tuple> buffered = head.iterator();
+            while (buffered.hasNext() || child.hasNext()) {
+                Tuple t = buffered.hasNext() ? buffered.next() : child.next();
+                try {
+                    Database.getBufferPool().insertTuple(tid, tableId, t);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                count++;
             }
-            count++;
         }
         called = true;
         Tuple res = new Tuple(tupleDesc);
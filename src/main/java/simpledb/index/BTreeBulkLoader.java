@@ -0,0 +1,299 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds an empty BTreeFile bottom-up from tuples in any order, as part of
+ * a transaction that holds an exclusive lock on the file (see {@link BTreeFile#bulkLoader}).
+ * <p>
+ * The tuples are sorted on the key field within a memory budget (see {@link TupleSorter}).
+ * Once the number of tuples is known, {@link #finish()} decides how many pages each level
+ * of the tree gets, so that pages are filled to the fill factor, and numbers the pages in
+ * the order they are written: the leaf pages from left to right, then each level of
+ * internal pages from the bottom up, ending with the root. Pages are built in an extent
+ * buffer of {@link #EXTENT_PAGES} pages, which is written past the end of the file with one
+ * positioned write once it is full. An internal page gets the first key of each of its
+ * children but the first, so the upper levels only need one key per page of the level below.
+ * <p>
+ * The new pages are not reachable until the root pointer page points to the root. That
+ * change goes through the BufferPool like any other, after the pages have been forced to
+ * disk, so an abort or a crash before the commit leaves the tree empty.
+ */
+public class BTreeBulkLoader implements Closeable {
+
+	/**
+	 * the number of pages written with one positioned write
+	 */
+	public static final int EXTENT_PAGES = 64;
+
+	/**
+	 * the fill factor of {@link BTreeFile#bulkLoad(TransactionId, simpledb.excution.OpIterator)}:
+	 * leave some room in each page for inserts that follow the build
+	 */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/**
+	 * the sort memory of {@link BTreeFile#bulkLoad(TransactionId, simpledb.excution.OpIterator)}
+	 */
+	public static final long DEFAULT_SORT_MEMORY = 16 << 20;
+
+	private final BTreeFile file;
+	private final TransactionId tid;
+	private final TupleDesc td;
+	private final double fillFactor;
+	private final TupleSorter sorter;
+
+	private final int keyLen;
+	private final int maxTuples;
+	private final int maxEntries;
+	private final int pageSize;
+	private final byte[] extent;
+	/** the number of the first page in the extent buffer */
+	private int extentFirst;
+	/** the number of pages built in the extent buffer */
+	private int extentPages;
+
+	BTreeBulkLoader(BTreeFile file, TransactionId tid, double fillFactor, long sortMemory) {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		}
+		this.file = file;
+		this.tid = tid;
+		this.td = file.getTupleDesc();
+		this.fillFactor = fillFactor;
+		this.sorter = new TupleSorter(td, file.keyField(), sortMemory);
+		this.keyLen = td.getFieldType(file.keyField()).getLen();
+		try {
+			this.maxTuples = new BTreeLeafPage(new BTreePageId(file.getId(), 0, BTreePageId.LEAF),
+					BTreeLeafPage.createEmptyPageData(), file.keyField()).getMaxTuples();
+			this.maxEntries = new BTreeInternalPage(new BTreePageId(file.getId(), 0, BTreePageId.INTERNAL),
+					BTreeInternalPage.createEmptyPageData(), file.keyField()).getMaxEntries();
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.pageSize = BufferPool.getPageSize();
+		this.extent = new byte[EXTENT_PAGES * pageSize];
+	}
+
+	/**
+	 * Adds a tuple to the sort.
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		if(!t.getTupleDesc().equals(td)) {
+			throw new DbException("tupledesc is mismatch: " + t.getTupleDesc());
+		}
+		sorter.add(t);
+	}
+
+	/**
+	 * @return the number of tuples added so far
+	 */
+	public int getCount() {
+		return (int) sorter.size();
+	}
+
+	/**
+	 * @return the number of sorted runs written to temporary files so far; 0 if the
+	 * tuples fit in the sort memory
+	 */
+	public int getRunFiles() {
+		return sorter.numRunFiles();
+	}
+
+	/**
+	 * Writes the pages of the tree, forces the file, and points the root pointer page
+	 * at the new root. The sort's temporary files are deleted.
+	 *
+	 * @return the number of tuples loaded
+	 */
+	public int finish() throws DbException, IOException, TransactionAbortedException {
+		try {
+			long numTuples = sorter.size();
+			if(numTuples == 0) {
+				return 0;
+			}
+			int tableid = file.getId();
+
+			// the number of pages on each level, leaves first, and the number of their first page
+			List<Integer> levels = new ArrayList<Integer>();
+			levels.add(pageCount(numTuples, maxTuples, maxTuples / 2));
+			while(levels.get(levels.size() - 1) > 1) {
+				levels.add(pageCount(levels.get(levels.size() - 1), maxEntries + 1, maxEntries / 2 + 1));
+			}
+			int[] first = new int[levels.size() + 1];
+			first[0] = file.numPages() + 1;
+			for(int i = 0; i < levels.size(); i++) {
+				first[i + 1] = first[i] + levels.get(i);
+			}
+			extentFirst = first[0];
+			extentPages = 0;
+
+			byte[] keys = writeLeaves(numTuples, levels, first);
+			for(int level = 1; level < levels.size(); level++) {
+				keys = writeInternalLevel(level, keys, levels, first);
+			}
+			flush();
+			file.force();
+
+			int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			file.setRootId(tid, new BTreePageId(tableid, first[levels.size() - 1], rootCategory));
+			return (int) numTuples;
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * Deletes the sort's temporary files, if finish() has not.
+	 */
+	@Override
+	public void close() {
+		sorter.close();
+	}
+
+	/**
+	 * Returns the number of pages to spread items over: as many as it takes to fill them to
+	 * the fill factor, but few enough that every page holds at least min items, unless that
+	 * would not fit.
+	 */
+	private int pageCount(long items, int max, int min) {
+		int target = Math.max(1, (int) (max * fillFactor));
+		long pages = Math.max(1, Math.min((items + target - 1) / target, items / Math.max(1, min)));
+		while((items + pages - 1) / pages > max) {
+			pages++;
+		}
+		return (int) pages;
+	}
+
+	/**
+	 * Returns the index of the page that holds item i of the given number of items
+	 * spread evenly over the given number of pages; page p holds items
+	 * [p * items / pages, (p + 1) * items / pages).
+	 */
+	private static int pageOf(long i, long items, long pages) {
+		return (int) (((i + 1) * pages - 1) / items);
+	}
+
+	/**
+	 * Writes the leaf pages with the sorted tuples.
+	 *
+	 * @return the first key of each leaf page, serialized
+	 */
+	private byte[] writeLeaves(long numTuples, List<Integer> levels, int[] first) throws IOException {
+		int numLeaves = levels.get(0);
+		int recordSize = td.getSize();
+		int headerSize = (maxTuples + 7) / 8;
+		int pointerSize = 3 * BTreePage.INDEX_SIZE;
+		byte[] keys = new byte[numLeaves * keyLen];
+		try(TupleSorter.Records records = sorter.finish()) {
+			long next = 0;
+			for(int leaf = 0; leaf < numLeaves; leaf++) {
+				long end = (leaf + 1) * numTuples / numLeaves;
+				int count = (int) (end - next);
+				ByteBuffer page = nextPage();
+				int parent = levels.size() > 1 ? first[1] + pageOf(leaf, numLeaves, levels.get(1)) : 0;
+				page.putInt(parent);
+				page.putInt(leaf > 0 ? first[0] + leaf - 1 : 0);
+				page.putInt(leaf < numLeaves - 1 ? first[0] + leaf + 1 : 0);
+				setSlots(page, pointerSize, count);
+				page.position(pointerSize + headerSize);
+				for(int i = 0; i < count; i++) {
+					records.next();
+					if(i == 0) {
+						System.arraycopy(records.buffer(), records.offset() + sorter.keyOffset(),
+								keys, leaf * keyLen, keyLen);
+					}
+					page.put(records.buffer(), records.offset(), recordSize);
+				}
+				next = end;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Writes one level of internal pages over the pages of the level below.
+	 *
+	 * @param keys - the first key of each page of the level below
+	 * @return the first key of each page of this level
+	 */
+	private byte[] writeInternalLevel(int level, byte[] keys, List<Integer> levels, int[] first)
+			throws IOException {
+		int numChildren = levels.get(level - 1);
+		int numPages = levels.get(level);
+		int headerSize = (maxEntries + 1 + 7) / 8;
+		int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		int keysStart = BTreePage.INDEX_SIZE + 1 + headerSize;
+		int childrenStart = keysStart + maxEntries * keyLen;
+		byte[] pageKeys = new byte[numPages * keyLen];
+		long next = 0;
+		for(int p = 0; p < numPages; p++) {
+			long end = (p + 1) * (long) numChildren / numPages;
+			int count = (int) (end - next);
+			ByteBuffer page = nextPage();
+			int parent = level < levels.size() - 1 ? first[level + 1] + pageOf(p, numPages, levels.get(level + 1)) : 0;
+			page.putInt(parent);
+			page.put((byte) childCategory);
+			// slot 0 holds the extra child pointer and no key
+			setSlots(page, BTreePage.INDEX_SIZE + 1, count);
+			System.arraycopy(keys, (int) next * keyLen, pageKeys, p * keyLen, keyLen);
+			for(int i = 1; i < count; i++) {
+				page.position(keysStart + (i - 1) * keyLen);
+				page.put(keys, (int) (next + i) * keyLen, keyLen);
+			}
+			page.position(childrenStart);
+			for(int i = 0; i < count; i++) {
+				page.putInt(first[level - 1] + (int) next + i);
+			}
+			next = end;
+		}
+		return pageKeys;
+	}
+
+	/**
+	 * Marks the first count slots used in the header that starts at the given offset.
+	 */
+	private static void setSlots(ByteBuffer page, int headerOffset, int count) {
+		for(int i = 0; i < count / 8; i++) {
+			page.put(headerOffset + i, (byte) 0xff);
+		}
+		if(count % 8 > 0) {
+			page.put(headerOffset + count / 8, (byte) ((1 << (count % 8)) - 1));
+		}
+	}
+
+	/**
+	 * Returns a zeroed page at the end of the extent buffer, writing the buffer out
+	 * first if it is full.
+	 */
+	private ByteBuffer nextPage() throws IOException {
+		if(extentPages == EXTENT_PAGES) {
+			flush();
+		}
+		int offset = extentPages * pageSize;
+		Arrays.fill(extent, offset, offset + pageSize, (byte) 0);
+		extentPages++;
+		return ByteBuffer.wrap(extent, offset, pageSize).slice();
+	}
+
+	private void flush() throws IOException {
+		if(extentPages == 0) {
+			return;
+		}
+		file.writePages(extentFirst, extentPages == EXTENT_PAGES ? extent
+				: Arrays.copyOf(extent, extentPages * pageSize));
+		extentFirst += extentPages;
+		extentPages = 0;
+	}
+}
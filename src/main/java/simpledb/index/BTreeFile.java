@@ -2,6 +2,8 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.excution.Predicate.Op;
 import simpledb.common.Database;
@@ -9,6 +11,7 @@ import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
 import simpledb.excution.IndexPredicate;
+import simpledb.excution.OpIterator;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -20,6 +23,12 @@ import simpledb.transaction.TransactionId;
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
  * 
+ * Descents latch internal pages without locking them, and lock only the leaf page they end
+ * on. Each tree has a structure latch: a descent holds it shared while it descends, and a
+ * split, merge or redistribution holds it while it runs, exclusively if it changes pages
+ * above the parent of its leaf page. The pages it changes stay locked until the transaction
+ * ends, so an abort can restore them from the log.
+ * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
  * @see BTreeHeaderPage#BTreeHeaderPage
@@ -29,9 +38,11 @@ import simpledb.transaction.TransactionId;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final PagedFile pagedFile;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,6 +54,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.pagedFile = new PagedFile(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -88,66 +100,73 @@ public class BTreeFile implements DbFile {
 	@Override
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(0, pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return newPage(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(pageOffset(id.getPageNumber()), pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return newPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Build a page of this file from its contents, without reading the disk.
+	 * Used to redo and undo log records.
+	 *
+	 * @param pid - the id of the page
+	 * @param data - the contents of the page
+	 * @return the page of the category given by pid
+	 */
+	@Override
+	public Page newPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
+	/**
+	 * Read buf.length bytes at the given offset with a single positional read
+	 * on the open channel of this file.
+	 */
+	private void readFully(long offset, byte[] buf) throws IOException {
+		if (offset + buf.length > pagedFile.length() && offset + buf.length > pagedFile.refreshLength()) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		try {
+			pagedFile.read(offset, buf);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Unable to read "
+					+ buf.length + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * Returns the offset of the given non-root-pointer page in the file
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -159,24 +178,85 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			pagedFile.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			pagedFile.write(pageOffset(page.getId().getPageNumber()), data);
 		}
 	}
 	
+	/**
+	 * Write the pages held in data, starting with page firstPage, with one positioned write.
+	 * Used by BTreeBulkLoader, which writes new pages past the end of the file directly.
+	 */
+	void writePages(int firstPage, byte[] data) throws IOException {
+		pagedFile.write(pageOffset(firstPage), data);
+	}
+
+	/**
+	 * Force the pages written to this file to disk.
+	 */
+	void force() throws IOException {
+		pagedFile.force();
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((pagedFile.refreshLength() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a fresh read-ahead for a scan that follows the right sibling pointers of
+	 * leaf pages, or the left sibling pointers if the scan is descending, closing the one
+	 * from a previous open(). Read-ahead stops at the first leaf whose last key (first key,
+	 * if descending) is past the bound in the direction of the scan.
+	 * 
+	 * @param previous - the read-ahead of the previous open(), or null
+	 * @param ipred - the predicate that bounds the scan, or null for a full scan
+	 * @param descending - whether the scan follows the left sibling pointers
+	 */
+	ReadAhead leafReadAhead(ReadAhead previous, IndexPredicate ipred, boolean descending) {
+		if (previous != null) {
+			previous.close();
+		}
+		Op bound = null;
+		if (ipred != null) {
+			switch (ipred.getOp()) {
+			case EQUALS:
+				bound = descending ? Op.GREATER_THAN_OR_EQ : Op.LESS_THAN_OR_EQ;
+				break;
+			case LESS_THAN_OR_EQ:
+			case LESS_THAN:
+				bound = descending ? null : ipred.getOp();
+				break;
+			case GREATER_THAN_OR_EQ:
+			case GREATER_THAN:
+				bound = descending ? ipred.getOp() : null;
+				break;
+			default:
+				break;
+			}
+		}
+		final Op op = bound;
+		return new ReadAhead((pid, page) -> {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			if (op != null) {
+				// the last (or first) key of the leaf, without walking the empty slots of the page
+				BTreeSlotDirectory keys = leaf.getSlotDirectory();
+				if (keys.size() > 0 && !keys.key(descending ? 0 : keys.size() - 1).compare(op, ipred.getField())) {
+					return null;
+				}
+			}
+			return descending ? leaf.getLeftSiblingId() : leaf.getRightSiblingId();
+		});
 	}
 
 	/**
@@ -188,9 +268,10 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * the left-most page possibly containing the key field f. It reads all internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * leaf node with permission perm. Used by an insert that found no root page, with the
+	 * structure latch held exclusively.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -205,26 +286,158 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 									   Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		if (pid.pgcateg() != BTreePageId.INTERNAL) {
+			throw new DbException("findLeafPage: unexpected page category " + pid.pgcateg());
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
+	}
+
+	/**
+	 * Returns the id of the left-most child of an internal page that may hold the key field f.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most child
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		return childFor(page, f, false);
+	}
+
+	/**
+	 * Returns the id of the left-most or right-most child of an internal page that may hold
+	 * the key field f.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most or right-most child
+	 * @param last - whether to return the right-most child instead of the left-most one
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f, boolean last) throws DbException {
+		BTreePageId child = last ? page.findLastChild(f) : page.findChild(f);
+		if (child == null) {
+			throw new DbException("findLeafPage: internal page " + page.getId().getPageNumber() + " has no entries");
+		}
+		return child;
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * Find and lock the left-most leaf page possibly containing the key field f, without
+	 * locking the internal pages on the path. Used by the iterators and to try inserts and
+	 * deletes that change only a leaf page.
+	 * 
+	 * The descent holds the structure latch shared, so no split or merge that changes pages
+	 * above the parent of a leaf page runs meanwhile, and latches the pages on the path one
+	 * after the other, so it never reads a page that is being changed. The latch on the parent
+	 * of the leaf page is held until the leaf page is locked: a split or merge locks the leaf
+	 * pages it changes before it latches their parent to change it, so the descent either
+	 * reads the parent after the change or finds the leaf page locked. If another transaction
+	 * holds a conflicting lock on the leaf page, the descent releases its latches, waits for the
+	 * leaf page and starts over, so it never waits for a lock while holding a latch.
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
-	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root page yet
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, perm, f, false);
+	}
+
+	/**
+	 * Find and lock the left-most or right-most leaf page possibly containing the key field f,
+	 * as {@link #findLeafPage(TransactionId, Permissions, Field)} does. Descending scans start
+	 * from the right-most one.
 	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most or right-most leaf page
+	 * @param last - whether to find the right-most leaf page instead of the left-most one
+	 * @return the leaf page, or null if the tree has no root page yet
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
-					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f, boolean last)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		// a leaf page locked only to wait for it; nothing is read under that lock, so it is
+		// released if the descent after the wait ends on another page
+		BTreePageId waited = null;
+		for (;;) {
+			BTreePageId pid;
+			boolean locked;
+			BTreePageId latched = null;
+			structure.readLock().lock();
+			try {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.latchPageForIndex(rootPtrId);
+				try {
+					pid = rootPtr.getRootId();
+				}
+				finally {
+					bp.unlatchPage(rootPtrId, Permissions.READ_ONLY);
+				}
+				if (pid == null) {
+					releaseWaited(tid, waited, null);
+					return null;
+				}
+				while (pid.pgcateg() == BTreePageId.INTERNAL) {
+					BTreeInternalPage page = (BTreeInternalPage) bp.latchPageForIndex(pid);
+					if (latched != null) {
+						bp.unlatchPage(latched, Permissions.READ_ONLY);
+					}
+					latched = pid;
+					pid = childFor(page, f, last);
+				}
+				if (pid.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("findLeafPage: unexpected page category " + pid.pgcateg());
+				}
+				locked = bp.tryLockPage(tid, pid, perm);
+			}
+			finally {
+				if (latched != null) {
+					bp.unlatchPage(latched, Permissions.READ_ONLY);
+				}
+				structure.readLock().unlock();
+			}
+			releaseWaited(tid, waited, pid);
+			if (locked) {
+				// the leaf page is locked, so its key range cannot change any more
+				return (BTreeLeafPage) bp.getPage(tid, pid, perm);
+			}
+			if (!pid.equals(waited)) {
+				waited = bp.holdsLock(tid, pid) ? null : pid;
+			}
+			// the leaf may be split or merged meanwhile, so look for it again after the wait
+			bp.lockPage(tid, pid, perm);
+		}
+	}
+
+	/**
+	 * Release the lock findLeafPage took on a leaf page only to wait for it, unless the
+	 * descent ended on that page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param waited - the leaf page locked to wait for it, or null
+	 * @param pid - the leaf page the descent ended on, or null
+	 */
+	private void releaseWaited(TransactionId tid, BTreePageId waited, BTreePageId pid) {
+		if (waited != null && !waited.equals(pid)) {
+			Database.getBufferPool().releasePage(tid, waited);
+		}
+	}
+
+	/**
+	 * Returns the structure latch of this tree in exclusive mode. The BufferPool holds it while
+	 * it restores the pages of this tree that an aborted transaction changed, so that no
+	 * descent sees some of them restored and others not.
+	 * 
+	 * @return the exclusive structure latch
+	 * @see #findLeafPage(TransactionId, Permissions, Field)
+	 */
+	public Lock structureLatch() {
+		return structure.writeLock();
 	}
 
 	/**
@@ -250,16 +463,37 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// the new page goes between the page and its right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field middle = moving[0].getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
+		parent.insertEntry(new BTreeEntry(middle, page.getId(), newPage.getId()));
+		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		return field.compare(Op.GREATER_THAN, middle) ? newPage : page;
 	}
 	
 	/**
@@ -287,16 +521,33 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and the entry before them
+		// up into the parent
+		BTreeEntry[] moving = new BTreeEntry[page.getNumEntries() / 2];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry middle = it.next();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			page.deleteKeyAndRightChild(moving[i]);
+		}
+		for(BTreeEntry e : moving) {
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		updateParentPointer(tid, dirtypages, parent.getId(), page.getId());
+		updateParentPointer(tid, dirtypages, parent.getId(), newPage.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -410,6 +661,12 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * If dirtypages is a {@link LatchedPages}, pages fetched with read-write permission are
+	 * also write-latched until {@link #releasePages(TransactionId, HashMap)}. If it is a
+	 * {@link PlannedPages}, they are copies that are never written back. For both, pages
+	 * fetched with read-only permission are only latched while they are fetched, not locked:
+	 * a split or merge never waits for a lock while it holds the structure latch.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -426,7 +683,32 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			BufferPool bp = Database.getBufferPool();
+			boolean changing = dirtypages instanceof LatchedPages || dirtypages instanceof PlannedPages;
+			Page p;
+			if(changing && perm == Permissions.READ_ONLY) {
+				p = bp.latchPageForIndex(pid);
+				bp.unlatchPage(pid, perm);
+				return p;
+			}
+			else if(dirtypages instanceof PlannedPages) {
+				p = bp.latchPageForIndex(pid);
+				try {
+					p = newPage(pid, p.getPageData());
+				}
+				catch(IOException e) {
+					throw new DbException("cannot copy page " + pid + ": " + e.getMessage());
+				}
+				finally {
+					bp.unlatchPage(pid, Permissions.READ_ONLY);
+				}
+			}
+			else if(dirtypages instanceof LatchedPages) {
+				p = bp.latchPage(tid, pid, perm);
+			}
+			else {
+				p = bp.getPage(tid, pid, perm);
+			}
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -434,44 +716,233 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * The pages that a split or merge fetches with read-write permission (see
+	 * {@link #getPage(TransactionId, HashMap, BTreePageId, Permissions)}). They stay pinned and
+	 * write-latched while they change, so the page cleaner never writes a page that is half
+	 * changed and then marks it clean over the rest of the change.
+	 */
+	private static class LatchedPages extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * The pages that a dry run of a split or merge would change, as copies (see
+	 * {@link #changeStructure(TransactionId, BTreePageId, Tuple, StructureChange)}). New pages
+	 * are not appended to the file but get negative page numbers.
+	 */
+	private static class PlannedPages extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+
+		private int lastNewPageNo = 0;
+
+		int newPageNo() {
+			return --lastNewPageNo;
+		}
+	}
+
+	/**
+	 * A split or merge, run once on copies to find the pages it changes and then on the
+	 * pages themselves.
+	 */
+	private interface StructureChange {
+		/**
+		 * @param dirtypages - the pages fetched with read-write permission
+		 * @param t - the tuple to insert or delete
+		 */
+		void apply(HashMap<PageId, Page> dirtypages, Tuple t)
+				throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * Run a split or merge that starts from a leaf page locked by tid, under the structure
+	 * latch. A dry run on copies finds the pages it changes. If they are only leaf pages and
+	 * the parent of the leaf page, the structure latch is held shared, so descents and changes
+	 * under other parents go on; otherwise the change runs again with the latch held
+	 * exclusively. The change itself runs only once tid holds the locks on all of these pages,
+	 * so it never waits for a lock while holding the latch: if one of them is taken, the
+	 * latch is released, tid waits for the lock and the dry run starts over.
+	 * <p>
+	 * The latch is released when the change is done. The changed pages stay locked until tid
+	 * ends, so no other transaction changes them before an abort restores them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leafId - the leaf page the change starts from, or null if the tree has no root
+	 * page yet
+	 * @param t - the tuple to insert or delete
+	 * @param change - the split or merge
+	 * @return the pages the change dirtied
+	 */
+	private ArrayList<Page> changeStructure(TransactionId tid, BTreePageId leafId, Tuple t, StructureChange change)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId parentId = null;
+		if(leafId != null) {
+			// the leaf page is locked, so its parent cannot change
+			BTreePage leaf = (BTreePage) bp.latchPageForIndex(leafId);
+			try {
+				parentId = leaf.getParentId();
+			}
+			finally {
+				bp.unlatchPage(leafId, Permissions.READ_ONLY);
+			}
+		}
+		boolean exclusive = parentId == null || parentId.pgcateg() != BTreePageId.INTERNAL;
+		Set<PageId> locked = new HashSet<PageId>();
+		if(leafId != null) {
+			locked.add(leafId);
+		}
+		for(;;) {
+			PageId waitFor = null;
+			Lock latch = exclusive ? structure.writeLock() : structure.readLock();
+			latch.lock();
+			try {
+				PlannedPages planned = new PlannedPages();
+				change.apply(planned, copyOf(t));
+				boolean local = true;
+				boolean planLocked = true;
+				for(PageId pid : planned.keySet()) {
+					local &= ((BTreePageId) pid).pgcateg() == BTreePageId.LEAF || pid.equals(parentId);
+					planLocked &= pid.getPageNumber() < 0 || locked.contains(pid);
+				}
+				if(!exclusive && !local) {
+					exclusive = true;
+					continue;
+				}
+				if(planLocked) {
+					HashMap<PageId, Page> dirtypages = new LatchedPages();
+					try {
+						change.apply(dirtypages, t);
+					}
+					catch(TransactionAbortedException e) {
+						// the pages already changed must be rolled back with the transaction
+						bp.markDirtied(tid, dirtypages.values());
+						throw e;
+					}
+					finally {
+						releasePages(tid, dirtypages);
+					}
+					return new ArrayList<Page>(dirtypages.values());
+				}
+				for(PageId pid : planned.keySet()) {
+					if(pid.getPageNumber() < 0 || locked.contains(pid)) {
+						continue;
+					}
+					if(!bp.tryLockPage(tid, pid, Permissions.READ_WRITE)) {
+						waitFor = pid;
+						break;
+					}
+					locked.add(pid);
+				}
+			}
+			finally {
+				latch.unlock();
+			}
+			// plan again once the locks are held: the pages may have changed before they were
+			if(waitFor != null) {
+				bp.lockPage(tid, waitFor, Permissions.READ_WRITE);
+				locked.add(waitFor);
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of a tuple for a dry run, which sets the record id of the tuples it
+	 * inserts and deletes.
+	 */
+	private static Tuple copyOf(Tuple t) {
+		Tuple copy = new Tuple(t.getTupleDesc());
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			copy.setField(i, t.getField(i));
+		}
+		copy.setRecordId(t.getRecordId());
+		return copy;
+	}
+
+	/**
+	 * Mark the pages of a split or merge dirty and release their latches.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages fetched with read-write permission
+	 */
+	private void releasePages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		BufferPool bp = Database.getBufferPool();
+		for(Map.Entry<PageId, Page> e : dirtypages.entrySet()) {
+			e.getValue().markDirty(true, tid);
+			bp.unlatchPage(e.getKey(), Permissions.READ_WRITE);
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
 	 * 
+	 * The insert first finds and latches the leaf page without locking internal pages. If the
+	 * leaf page has an empty slot, only the leaf page changes. Otherwise it splits pages as
+	 * needed under the structure latch.
+	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node splits.
 	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 * @see #changeStructure(TransactionId, BTreePageId, Tuple, StructureChange)
 	 */
 	@Override
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		createRootPtrPage();
+		BTreeLeafPage leaf = findLeafPage(tid, Permissions.READ_WRITE, t.getField(keyField));
+		BTreePageId leafId = null;
+		if(leaf != null) {
+			BufferPool bp = Database.getBufferPool();
+			leafId = leaf.getId();
+			leaf = (BTreeLeafPage) bp.latchPage(tid, leafId, Permissions.READ_WRITE);
+			try {
+				if(leaf.getNumEmptySlots() > 0) {
+					leaf.insertTuple(t);
+					leaf.markDirty(true, tid);
+					ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+					dirtyPagesArr.add(leaf);
+					return dirtyPagesArr;
+				}
+			}
+			finally {
+				bp.unlatchPage(leafId, Permissions.READ_WRITE);
+			}
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
-		}
+		// the leaf page must be split, or the tree has no root page yet
+		BTreePageId lockedLeafId = leafId;
+		return changeStructure(tid, leafId, t, (dirtypages, tuple) -> {
+			BTreeLeafPage leafPage;
+			if(lockedLeafId != null) {
+				// the leaf page is still locked, so it still holds the key field
+				leafPage = (BTreeLeafPage) getPage(tid, dirtypages, lockedLeafId, Permissions.READ_WRITE);
+			}
+			else {
+				// get a read lock on the root pointer page and use it to locate the root page
+				BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+				BTreePageId rootId = rootPtr.getRootId();
+
+				if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+					rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+					rootPtr.setRootId(rootId);
+				}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+				// find and lock the left-most leaf page corresponding to the key field
+				leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, tuple.getField(keyField));
+			}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+			// split the leaf page if there are no more slots available
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, tuple.getField(keyField));
+			}
+
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(tuple);
+		});
 	}
 	
 	/**
@@ -588,11 +1059,20 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		Tuple[] moving = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key of the entry is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -668,11 +1148,23 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[(leftSibling.getNumEntries() - page.getNumEntries()) / 2];
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// rotate the keys through the parent entry: its key comes down in front of the
+		// page, and the key of the moving entry goes up in its place
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), firstChild));
+			parentEntry.setKey(e.getKey());
+			firstChild = e.getRightChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -696,11 +1188,23 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[(rightSibling.getNumEntries() - page.getNumEntries()) / 2];
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// rotate the keys through the parent entry: its key comes down at the end of
+		// the page, and the key of the moving entry goes up in its place
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, e.getLeftChild()));
+			parentEntry.setKey(e.getKey());
+			lastChild = e.getLeftChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -725,12 +1229,26 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		Tuple[] moving = new Tuple[rightPage.getNumTuples()];
+		Iterator<Tuple> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// take the right page out of the sibling list
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -757,13 +1275,23 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		BTreeEntry[] moving = new BTreeEntry[rightPage.getNumEntries()];
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// pull the key of the parent entry down between the two halves
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(),
+				leftPage.reverseIterator().next().getRightChild(), moving[0].getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -818,32 +1346,145 @@ public class BTreeFile implements DbFile {
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
 	 * become less than half full.
 	 * 
+	 * If the leaf page stays at least half full (or is the root), only the leaf page changes
+	 * and it is changed under its latch. Otherwise pages are merged or redistributed under the
+	 * structure latch.
+	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node merges.
 	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 * @see #changeStructure(TransactionId, BTreePageId, Tuple, StructureChange)
 	 */
 	@Override
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		BufferPool bp = Database.getBufferPool();
+		BTreeLeafPage page = (BTreeLeafPage) bp.latchPage(tid, pageId, Permissions.READ_WRITE);
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		try {
+			if(page.getNumEmptySlots() < maxEmptySlots || page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+				page.deleteTuple(t);
+				page.markDirty(true, tid);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(page);
+				return dirtyPagesArr;
+			}
 		}
+		finally {
+			bp.unlatchPage(pageId, Permissions.READ_WRITE);
+		}
+
+		// the page falls below minimum occupancy
+		return changeStructure(tid, pageId, t, (dirtypages, tuple) -> {
+			BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			leafPage.deleteTuple(tuple);
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			if(leafPage.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, leafPage);
+			}
+		});
+	}
+
+	/**
+	 * Build this B+ tree from the tuples of source, as part of transaction tid, with the
+	 * default fill factor and sort memory of {@link BTreeBulkLoader}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param source - an open iterator; it is read to the end
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tree is not empty
+	 * @see #bulkLoader(TransactionId, double, long)
+	 */
+	public int bulkLoad(TransactionId tid, OpIterator source)
+			throws DbException, IOException, TransactionAbortedException {
+		try(BTreeBulkLoader loader = bulkLoader(tid, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+				BTreeBulkLoader.DEFAULT_SORT_MEMORY)) {
+			while(source.hasNext()) {
+				loader.add(source.next());
+			}
+			return loader.finish();
+		}
+	}
+
+	/**
+	 * Build this B+ tree from all the tuples of another file, such as the heap file of the
+	 * table being indexed, as part of transaction tid.
+	 * 
+	 * @param tid - the transaction id
+	 * @param source - the file to read
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tree is not empty
+	 * @see #bulkLoad(TransactionId, OpIterator)
+	 */
+	public int bulkLoad(TransactionId tid, DbFile source)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = source.iterator(tid);
+		try(BTreeBulkLoader loader = bulkLoader(tid, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+				BTreeBulkLoader.DEFAULT_SORT_MEMORY)) {
+			it.open();
+			while(it.hasNext()) {
+				loader.add(it.next());
+			}
+			return loader.finish();
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Returns a loader that builds this B+ tree bottom-up from tuples in any order, as part
+	 * of transaction tid. The tree must be empty; tid locks the whole tree, so no other
+	 * transaction uses the tree until tid commits or aborts.
+	 * 
+	 * @param tid - the transaction id
+	 * @param fillFactor - how full to make each page, between 0.5 and 1
+	 * @param sortMemory - the number of bytes the sort may hold in memory
+	 * @return the loader
+	 * @throws DbException if the tree is not empty
+	 * @see BTreeBulkLoader
+	 */
+	public BTreeBulkLoader bulkLoader(TransactionId tid, double fillFactor, long sortMemory)
+			throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPage();
+		Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_WRITE);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		if(rootPtr.getRootId() != null) {
+			throw new DbException("cannot bulk load a B+ tree that is not empty");
+		}
+		return new BTreeBulkLoader(this, tid, fillFactor, sortMemory);
+	}
+
+	/**
+	 * Point the root pointer page at the root page built by a {@link BTreeBulkLoader}. The
+	 * root pointer page changes under the structure latch, like in a split that adds a root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param rootId - the id of the new root page
+	 */
+	void setRootId(TransactionId tid, BTreePageId rootId)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		bp.lockPage(tid, rootPtrId, Permissions.READ_WRITE);
+		HashMap<PageId, Page> dirtypages = new LatchedPages();
+		structure.writeLock().lock();
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			rootPtr.setRootId(rootId);
+			bp.markDirtied(tid, dirtypages.values());
+		}
+		finally {
+			releasePages(tid, dirtypages);
+			structure.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -858,23 +1499,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	public BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if this file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void createRootPtrPage() throws IOException {
+		if(pagedFile.refreshLength() == 0) {
+			// create the root pointer page and the root page
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			byte[] data = Arrays.copyOf(emptyRootPtrData, emptyRootPtrData.length + emptyLeafData.length);
+			System.arraycopy(emptyLeafData, 0, data, emptyRootPtrData.length, emptyLeafData.length);
+			pagedFile.append(data);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -920,15 +1566,15 @@ public class BTreeFile implements DbFile {
 
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
-		if(headerId == null) {		
+		if(headerId == null && dirtypages instanceof PlannedPages) {
+			emptyPageNo = ((PlannedPages) dirtypages).newPageNo();
+		}
+		else if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				long offset = pagedFile.append(emptyData);
+				emptyPageNo = (int) ((offset - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize()) + 1;
 			}
 		}
 
@@ -956,16 +1602,20 @@ public class BTreeFile implements DbFile {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
+		if(dirtypages instanceof PlannedPages) {
+			Page p = newPage(newPageId, BTreePage.createEmptyPageData());
+			dirtypages.put(newPageId, p);
+			return p;
+		}
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		pagedFile.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
+		if(dirtypages.remove(newPageId) != null && dirtypages instanceof LatchedPages) {
+			Database.getBufferPool().unlatchPage(newPageId, Permissions.READ_WRITE);
+		}
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1070,6 +1720,34 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get an iterator for the tuples with keys between a lower and an upper bound, in
+	 * ascending or descending key order. The scan starts with a descent to the first key
+	 * in the range, and stops at the first key past the other end, so it reads only the
+	 * leaf pages that hold the range. A descending scan follows the left sibling pointers,
+	 * so a scan for the n largest keys reads only the last leaf pages. Locks are taken on
+	 * the leaf pages as they are read, and may block until they can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, a GREATER_THAN or GREATER_THAN_OR_EQ predicate,
+	 * or null if the range has no lower bound
+	 * @param upper - the upper bound, a LESS_THAN or LESS_THAN_OR_EQ predicate,
+	 * or null if the range has no upper bound
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples in the range
+	 * @throws IllegalArgumentException if a bound has the wrong operator
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		if(lower != null && lower.getOp() != Op.GREATER_THAN && lower.getOp() != Op.GREATER_THAN_OR_EQ) {
+			throw new IllegalArgumentException("lower bound must use > or >=, not " + lower.getOp());
+		}
+		if(upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ) {
+			throw new IllegalArgumentException("upper bound must use < or <=, not " + upper.getOp());
+		}
+		return new BTreeRangeIterator(this, tid, lower, upper, descending);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1092,6 +1770,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1110,11 +1789,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		readAhead = f.leafReadAhead(readAhead, null, false);
+		if (curp != null) {
+			readAhead.accessed(curp.getId(), curp);
+			it = curp.iterator();
+		}
 	}
 
 	/**
@@ -1136,6 +1816,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.accessed(nextp, curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1162,6 +1843,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
 
@@ -1173,6 +1858,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1192,20 +1878,29 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * for the given predicate operation, starting at the first tuple that may match
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		}
+		readAhead = f.leafReadAhead(readAhead, ipred, false);
+		if (curp != null) {
+			readAhead.accessed(curp.getId(), curp);
+			if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+				it = curp.iterator(ipred.getField(), true);
+			}
+			else if (ipred.getOp() == Op.GREATER_THAN) {
+				it = curp.iterator(ipred.getField(), false);
+			}
+			else {
+				it = curp.iterator();
+			}
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1245,6 +1940,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.accessed(nextp, curp);
 				it = curp.iterator();
 			}
 		}
@@ -1266,5 +1962,137 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
+	}
+}
+
+/**
+ * Helper class that implements the Java Iterator for the tuples of a BTreeFile with keys
+ * between a lower and an upper bound, in ascending or descending key order
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	ReadAhead readAhead = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate lower;
+	IndexPredicate upper;
+	boolean descending;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lower - the lower bound, or null
+	 * @param upper - the upper bound, or null
+	 * @param descending - whether to return the tuples in descending key order
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+			boolean descending) {
+		this.f = f;
+		this.tid = tid;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
+	}
+
+	/**
+	 * The bound the scan starts from: the lower bound, or the upper bound if descending
+	 */
+	private IndexPredicate start() {
+		return descending ? upper : lower;
+	}
+
+	/**
+	 * The bound the scan stops at: the upper bound, or the lower bound if descending
+	 */
+	private IndexPredicate end() {
+		return descending ? lower : upper;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the leaf page that holds the first
+	 * tuple of the range in the order of the scan
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		IndexPredicate start = start();
+		boolean inclusive = start != null && 
+				(start.getOp() == Op.GREATER_THAN_OR_EQ || start.getOp() == Op.LESS_THAN_OR_EQ);
+		// keys equal to the start key may be on several leaf pages; an inclusive ascending
+		// scan starts from the left-most of them and an exclusive one from the right-most,
+		// and the other way round for a descending scan, so only the first page holds keys
+		// outside the start bound
+		boolean last = start == null ? descending : descending == inclusive;
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, start == null ? null : start.getField(), last);
+		readAhead = f.leafReadAhead(readAhead, end(), descending);
+		if (curp != null) {
+			readAhead.accessed(curp.getId(), curp);
+			if (start == null) {
+				it = descending ? curp.reverseIterator() : curp.iterator();
+			}
+			else {
+				it = descending ? curp.reverseIterator(start.getField(), inclusive) 
+						: curp.iterator(start.getField(), inclusive);
+			}
+		}
+	}
+
+	/**
+	 * Read the next tuple either from the current page or from the next page in the order
+	 * of the scan, by following the right or left sibling pointer.
+	 * 
+	 * @return the next tuple in the range, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		IndexPredicate end = end();
+		while (it != null) {
+			if (it.hasNext()) {
+				Tuple t = it.next();
+				if (end != null && !t.getField(f.keyField()).compare(end.getOp(), end.getField())) {
+					// the keys are sorted, so no later tuple is in the range either
+					it = null;
+					return null;
+				}
+				return t;
+			}
+
+			BTreePageId nextp = descending ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+			if (nextp == null) {
+				it = null;
+				return null;
+			}
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+			readAhead.accessed(nextp, curp);
+			it = descending ? curp.reverseIterator() : curp.iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the range
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
@@ -22,6 +22,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -97,6 +98,15 @@ public class BTreeHeaderPage implements Page {
 		return getHeaderSize() * 8;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public synchronized void setLSN(long lsn) {
+		if (lsn > this.lsn)
+			this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
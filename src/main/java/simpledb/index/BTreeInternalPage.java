@@ -25,6 +25,8 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+	/** the used entry slots in key order, built on demand and dropped on every change */
+	private volatile BTreeSlotDirectory directory;
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -436,6 +438,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		directory = null;
 	}
 
 	/**
@@ -604,6 +607,72 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		directory = null;
+	}
+
+	/**
+	 * Returns the used entry slots of this page (not counting slot 0, which has no key) in
+	 * key order with their keys, for binary search. The directory is built the first time
+	 * it is needed and kept until an entry is inserted, deleted, moved or updated.
+	 */
+	BTreeSlotDirectory getSlotDirectory() {
+		BTreeSlotDirectory d = directory;
+		if(d == null) {
+			int n = getNumEntries();
+			int[] slots = new int[n];
+			Field[] slotKeys = new Field[n];
+			int j = 0;
+			for(int i = 1; i < numSlots && j < n; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					slotKeys[j++] = keys[i];
+				}
+			}
+			d = new BTreeSlotDirectory(slots, slotKeys);
+			directory = d;
+		}
+		return d;
+	}
+
+	/**
+	 * Find the left-most child page that may hold the key f, by binary search on the keys
+	 * of this page: the left child of the first entry with a key greater than or equal to
+	 * f, or the right child of the last entry if all keys are less than f.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		BTreeSlotDirectory d = getSlotDirectory();
+		if(d.size() == 0) {
+			return null;
+		}
+		return childBefore(d, f == null ? 0 : d.lowerBound(f));
+	}
+
+	/**
+	 * Find the right-most child page that may hold the key f, by binary search on the keys
+	 * of this page: the left child of the first entry with a key greater than f, or the
+	 * right child of the last entry if no key is greater than f.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findLastChild(Field f) {
+		BTreeSlotDirectory d = getSlotDirectory();
+		if(d.size() == 0) {
+			return null;
+		}
+		return childBefore(d, f == null ? d.size() : d.upperBound(f));
+	}
+
+	/**
+	 * @return the left child of the i-th entry of the directory, or the right child of
+	 * the last entry if i is the size of the directory
+	 */
+	private BTreePageId childBefore(BTreeSlotDirectory d, int i) {
+		// the left child of an entry is the right child of the entry before it,
+		// or the extra child pointer in slot 0
+		int slot = i == 0 ? 0 : d.slot(i - 1);
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
 	}
 
 	/**
@@ -766,8 +835,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous used slot, which need not be entry - 1
+					// if entries were deleted from the page
+					while(!p.isSlotUsed(curEntry)) {
+						curEntry--;
+					}
+					BTreePageId childId = p.getChildId(curEntry);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -22,6 +22,8 @@ public class BTreeLeafPage extends BTreePage {
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	/** the used slots in key order, built on demand and dropped on every change */
+	private volatile BTreeSlotDirectory directory;
 
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
@@ -477,6 +479,44 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		directory = null;
+	}
+
+	/**
+	 * Returns the used slots of this page in key order with their keys, for binary search.
+	 * The directory is built the first time it is needed and kept until a tuple is inserted,
+	 * deleted or moved.
+	 */
+	BTreeSlotDirectory getSlotDirectory() {
+		BTreeSlotDirectory d = directory;
+		if(d == null) {
+			int n = getNumTuples();
+			int[] slots = new int[n];
+			Field[] keys = new Field[n];
+			int j = 0;
+			for(int i = 0; i < numSlots && j < n; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					keys[j++] = tuples[i].getField(keyField);
+				}
+			}
+			d = new BTreeSlotDirectory(slots, keys);
+			directory = d;
+		}
+		return d;
+	}
+
+	/**
+	 * @param f - the key to start from
+	 * @param inclusive - whether to start from the first key equal to f, or after the last
+	 * @return an iterator over the tuples on this page with keys greater than or equal to f
+	 * (greater than f if inclusive is false), starting at a slot found by binary search
+	 * (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f, boolean inclusive) {
+		BTreeSlotDirectory d = getSlotDirectory();
+		int i = inclusive ? d.lowerBound(f) : d.upperBound(f);
+		return new BTreeLeafPageIterator(this, i < d.size() ? d.slot(i) : numSlots);
 	}
 
 	/**
@@ -495,6 +535,19 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key to start from
+	 * @param inclusive - whether to start from the last key equal to f, or before the first
+	 * @return a reverse iterator over the tuples on this page with keys less than or equal to f
+	 * (less than f if inclusive is false), starting at a slot found by binary search
+	 * (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		BTreeSlotDirectory d = getSlotDirectory();
+		int i = inclusive ? d.upperBound(f) : d.lowerBound(f);
+		return new BTreeLeafPageReverseIterator(this, i > 0 ? d.slot(i - 1) : -1);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -533,6 +586,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -582,6 +640,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		this.curTuple = p.getMaxTuples() - 1;
 	}
 
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int lastSlot) {
+		this.p = p;
+		this.curTuple = lastSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
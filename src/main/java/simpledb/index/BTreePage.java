@@ -22,6 +22,7 @@ import java.io.*;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = 0;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -137,6 +138,15 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public synchronized void setLSN(long lsn) {
+		if (lsn > this.lsn)
+			this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
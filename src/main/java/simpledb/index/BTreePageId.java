@@ -67,6 +67,15 @@ public class BTreePageId implements PageId {
 		return pgcateg;
 	}
 
+	/**
+	 * @return the category of this page, used to build the page key
+	 * @see PageId#pageKey()
+	 */
+	@Override
+	public int getCategory() {
+		return pgcateg;
+	}
+
 	/**
 	 * @return a hash code for this page, represented by the concatenation of
 	 *   the table number, page number, and pgcateg (needed if a PageId is used as a
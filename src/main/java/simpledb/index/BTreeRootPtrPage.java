@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = 0;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -143,6 +144,15 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public synchronized void setLSN(long lsn) {
+		if (lsn > this.lsn)
+			this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
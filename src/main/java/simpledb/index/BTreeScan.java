@@ -25,6 +25,10 @@ public class BTreeScan implements OpIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private boolean range = false;
+	private IndexPredicate lower = null;
+	private IndexPredicate upper = null;
+	private boolean descending = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -54,6 +58,39 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over the tuples of the specified table with keys in a range,
+	 * in ascending or descending key order, as a part of the specified transaction. The
+	 * scan reads only the leaf pages that hold the range, and a descending scan reads
+	 * them from the last one, so a scan that is stopped after n tuples reads only the
+	 * pages that hold the n largest keys.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param lower
+	 *            the lower bound, a GREATER_THAN or GREATER_THAN_OR_EQ predicate, or
+	 *            null if the range has no lower bound
+	 * @param upper
+	 *            the upper bound, a LESS_THAN or LESS_THAN_OR_EQ predicate, or null
+	 *            if the range has no upper bound
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 * @see BTreeFile#rangeIterator(TransactionId, IndexPredicate, IndexPredicate, boolean)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate lower,
+			IndexPredicate upper, boolean descending) {
+		this.tid = tid;
+		this.range = true;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
+		reset(tableid,tableAlias);
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -87,7 +124,10 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(range) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).rangeIterator(tid, lower, upper, descending);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
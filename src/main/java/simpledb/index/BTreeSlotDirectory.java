@@ -0,0 +1,114 @@
+package simpledb.index;
+
+import simpledb.excution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+/**
+ * BTreeSlotDirectory is a dense, sorted view of the used slots of a B+ tree page and
+ * their keys, for binary search. The slots of a page are kept in key order but may have
+ * empty slots between them, so a page builds its directory the first time it is searched
+ * and drops it when a slot or key changes (see {@link BTreeLeafPage#getSlotDirectory()}
+ * and {@link BTreeInternalPage#getSlotDirectory()}).
+ * <p>
+ * Integer keys, the common case, are held as an int[] and compared as primitives. Other
+ * key types are compared with {@link Field#compare}.
+ * <p>
+ * A directory never changes after it is built, so searches that share a page under shared
+ * locks or latches may share its directory too.
+ */
+final class BTreeSlotDirectory {
+
+	private final int[] slots;
+	private final Field[] keys;
+	/** the keys as ints if they are all IntFields, otherwise null */
+	private final int[] intKeys;
+
+	/**
+	 * @param slots - the used slots in key order
+	 * @param keys - the key of each slot, in the same order
+	 */
+	BTreeSlotDirectory(int[] slots, Field[] keys) {
+		this.slots = slots;
+		this.keys = keys;
+		int[] ints = new int[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			if(!(keys[i] instanceof IntField)) {
+				ints = null;
+				break;
+			}
+			ints[i] = ((IntField) keys[i]).getValue();
+		}
+		this.intKeys = ints;
+	}
+
+	/**
+	 * @return the number of used slots
+	 */
+	int size() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the slot number of the i-th used slot in key order
+	 */
+	int slot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * @return the key of the i-th used slot in key order
+	 */
+	Field key(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Returns the position of the first key that is greater than or equal to f, or
+	 * size() if there is none.
+	 */
+	int lowerBound(Field f) {
+		return search(f, false);
+	}
+
+	/**
+	 * Returns the position of the first key that is greater than f, or size() if
+	 * there is none.
+	 */
+	int upperBound(Field f) {
+		return search(f, true);
+	}
+
+	/**
+	 * Binary search for the first key that is greater than f, or greater than or equal
+	 * to f if orEqual is false.
+	 */
+	private int search(Field f, boolean orEqual) {
+		int lo = 0;
+		int hi = slots.length;
+		if(intKeys != null && f instanceof IntField) {
+			int v = ((IntField) f).getValue();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(intKeys[mid] < v || (orEqual && intKeys[mid] == v)) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+		Op below = orEqual ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid].compare(below, f)) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
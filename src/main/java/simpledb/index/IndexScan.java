@@ -0,0 +1,131 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.excution.IndexOpIterator;
+import simpledb.excution.IndexPredicate;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a heap table whose indexed field
+ * satisfies a predicate through a secondary index, in key order. Unlike a SeqScan, it reads
+ * only the index pages that hold matching entries and the heap pages that hold matching
+ * tuples.
+ *
+ * @see SecondaryIndex
+ */
+public class IndexScan implements IndexOpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private TransactionId tid;
+	private SecondaryIndex index;
+	private String alias;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates an index scan over the table of the specified index as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to read.
+	 * @param tableAlias
+	 *            the alias of the table (needed by the parser)
+	 * @param ipred
+	 *            The predicate on the indexed field that the tuples must match; it can
+	 *            be replaced with {@link #open(IndexPredicate)} or
+	 *            {@link #rewind(IndexPredicate)}.
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.alias = tableAlias;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * @return the table name of the table the operator scans, as it is named in the
+	 *         catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the table this operator scans.
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index this operator reads
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate on the indexed field
+	 */
+	public IndexPredicate getPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if(it != null)
+			throw new DbException("double open on one OpIterator.");
+		it = index.iterator(tid, ipred);
+		it.open();
+	}
+
+	public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		open();
+	}
+
+	/**
+	 * Returns the TupleDesc of the table, as SeqScan does.
+	 */
+	public TupleDesc getTupleDesc() {
+		return Database.getCatalog().getTupleDesc(index.getTableId());
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if(it == null)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+		if(it == null)
+			throw new IllegalStateException("iterator is closed");
+		return it.next();
+	}
+
+	public void close() {
+		if(it != null) {
+			it.close();
+			it = null;
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+}
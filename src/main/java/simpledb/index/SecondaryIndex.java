@@ -0,0 +1,262 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree index on one field of a heap table. Unlike a BTreeFile used
+ * as a table, which stores whole tuples in key order, the tree of a secondary index stores
+ * one (key, page, slot) entry per tuple of the table, where page and slot are the record id
+ * of the tuple in the heap file. Lookups read the matching entries from the tree and then
+ * fetch each tuple from the heap file.
+ *
+ * The BufferPool inserts and deletes the entries of every index of a table when it inserts
+ * and deletes tuples of the table (see {@link simpledb.common.Catalog#getIndexes(int)}), as
+ * part of the same transaction, so the entries commit and abort with the tuples.
+ *
+ * @see simpledb.common.Catalog#createIndex
+ * @see IndexScan
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final HeapFile table;
+	private final int keyField;
+	private final BTreeFile file;
+
+	/**
+	 * Constructs a secondary index over an existing B+ tree of entries.
+	 *
+	 * @param name - the name of the index
+	 * @param table - the heap file of the indexed table
+	 * @param keyField - the indexed field of the table
+	 * @param file - the B+ tree of entries, with tuple descriptor
+	 *            {@link #entryDesc(Type)} and keyed on field 0
+	 */
+	public SecondaryIndex(String name, HeapFile table, int keyField, BTreeFile file) {
+		if(!file.getTupleDesc().equals(entryDesc(table.getTupleDesc().getFieldType(keyField)))
+				|| file.keyField() != 0) {
+			throw new IllegalArgumentException("not a B+ tree of index entries: " + file.getTupleDesc());
+		}
+		this.name = name;
+		this.table = table;
+		this.keyField = keyField;
+		this.file = file;
+	}
+
+	/**
+	 * Creates a secondary index backed by a new, empty B+ tree in file f. Any existing
+	 * contents of f are discarded. Call {@link #build(TransactionId)} to fill the index.
+	 *
+	 * @param name - the name of the index
+	 * @param table - the heap file of the indexed table
+	 * @param keyField - the indexed field of the table
+	 * @param f - the file to store the B+ tree in
+	 * @return the empty index
+	 * @throws IOException if f cannot be truncated
+	 */
+	public static SecondaryIndex create(String name, HeapFile table, int keyField, File f)
+			throws IOException {
+		new FileOutputStream(f).close();
+		TupleDesc td = entryDesc(table.getTupleDesc().getFieldType(keyField));
+		return new SecondaryIndex(name, table, keyField, new BTreeFile(f, 0, td));
+	}
+
+	/**
+	 * @param keyType - the type of the indexed field
+	 * @return the tuple descriptor of the entries of an index on a field of type keyType
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { "key", "page", "slot" });
+	}
+
+	/**
+	 * @return the name of this index
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return table.getId();
+	}
+
+	/**
+	 * @return the indexed field of the table
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the B+ tree of entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Fills the empty index with an entry for every tuple of the table, as part of
+	 * transaction tid. The entries are bulk loaded bottom-up.
+	 *
+	 * @param tid - the transaction id
+	 * @return the number of entries loaded
+	 * @throws DbException if the index is not empty
+	 */
+	public int build(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = table.iterator(tid);
+		try(BTreeBulkLoader loader = file.bulkLoader(tid, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+				BTreeBulkLoader.DEFAULT_SORT_MEMORY)) {
+			it.open();
+			while(it.hasNext()) {
+				loader.add(entry(it.next()));
+			}
+			return loader.finish();
+		}
+		finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Discards the cached pages of the B+ tree and deletes its file. Only call this on an
+	 * index that no transaction uses any more, such as one whose build was aborted.
+	 */
+	public void drop() {
+		BufferPool bp = Database.getBufferPool();
+		int tableid = file.getId();
+		bp.discardPage(BTreeRootPtrPage.getId(tableid));
+		int numPages = file.numPages();
+		for(int i = 1; i <= numPages; i++) {
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.INTERNAL));
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.LEAF));
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.HEADER));
+		}
+		file.getFile().delete();
+	}
+
+	/**
+	 * Inserts the entry of a tuple that was just inserted into the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple, with its record id set
+	 */
+	public void insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+	}
+
+	/**
+	 * Deletes the entry of a tuple that was just deleted from the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple, with the record id it was stored under
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple target = entry(t);
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, target.getField(0)));
+		Tuple found = null;
+		it.open();
+		try {
+			while(found == null && it.hasNext()) {
+				Tuple e = it.next();
+				if(e.getField(1).equals(target.getField(1)) && e.getField(2).equals(target.getField(2))) {
+					found = e;
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		if(found == null) {
+			throw new DbException("index " + name + " has no entry for " + t.getRecordId());
+		}
+		Database.getBufferPool().deleteTuple(tid, found);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed field satisfies the given
+	 * predicate, in key order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed field
+	 * @return an iterator over the matching tuples of the table
+	 */
+	public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+		return new SecondaryIndexIterator(tid, file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * @return the index entry of a tuple of the table
+	 */
+	private Tuple entry(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null) {
+			throw new DbException("tuple has no record id: " + t);
+		}
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(keyField));
+		e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(2, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	/**
+	 * Fetches the tuple of each entry returned by an iterator over the tree.
+	 */
+	private class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		SecondaryIndexIterator(TransactionId tid, DbFileIterator entries) {
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!entries.hasNext()) {
+				return null;
+			}
+			Tuple e = entries.next();
+			RecordId rid = new RecordId(new HeapPageId(table.getId(),
+					((IntField) e.getField(1)).getValue()), ((IntField) e.getField(2)).getValue());
+			Tuple t = table.getTuple(tid, rid);
+			if(t == null) {
+				throw new DbException("index " + name + " has an entry for the empty slot " + rid);
+			}
+			return t;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import simpledb.common.Type;
+import simpledb.excution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * TupleSorter sorts tuples on a key field within a memory budget. Tuples are kept in their
+ * serialized form: a run holds as many tuples as fit in the budget, is sorted in memory and,
+ * if more tuples follow, written to a temporary file. {@link #finish()} merges the runs, in
+ * more than one pass if there are more runs than read buffers fit in the budget. Tuples with
+ * equal keys come out in the order they were added.
+ */
+class TupleSorter implements Closeable {
+
+	/** the bytes read or written at a time from one run file */
+	private static final int RUN_BUFFER = 64 * 1024;
+
+	private final Type keyType;
+	private final int keyOffset;
+	private final int recordSize;
+	/** the number of run files merged at once */
+	private final int fanIn;
+	/** the serialized tuples of the current run */
+	private final byte[] run;
+	private final int runCapacity;
+	private final BufferOutput output;
+	private final DataOutputStream dos;
+	private int runSize;
+	private long size;
+	private final List<File> runFiles = new ArrayList<File>();
+
+	/**
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the field to sort on
+	 * @param memory - the number of bytes the sort may hold in memory
+	 */
+	TupleSorter(TupleDesc td, int keyField, long memory) {
+		this.keyType = td.getFieldType(keyField);
+		int offset = 0;
+		for(int i = 0; i < keyField; i++) {
+			offset += td.getFieldType(i).getLen();
+		}
+		this.keyOffset = offset;
+		this.recordSize = td.getSize();
+		this.fanIn = (int) Math.max(2, Math.min(memory / RUN_BUFFER, 1024));
+		// each tuple of a run also takes a long in the array that is sorted
+		long capacity = memory / (recordSize + 8);
+		this.runCapacity = (int) Math.max(1, Math.min(capacity, (Integer.MAX_VALUE - 8) / recordSize));
+		this.run = new byte[runCapacity * recordSize];
+		this.output = new BufferOutput(run);
+		this.dos = new DataOutputStream(output);
+	}
+
+	/**
+	 * Adds a tuple, writing out the current run first if it is full.
+	 */
+	void add(Tuple t) throws IOException {
+		if(runSize == runCapacity) {
+			writeRun();
+		}
+		output.position = runSize * recordSize;
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			t.getField(i).serialize(dos);
+		}
+		runSize++;
+		size++;
+	}
+
+	/**
+	 * @return the number of tuples added
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of run files written so far
+	 */
+	int numRunFiles() {
+		return runFiles.size();
+	}
+
+	/**
+	 * Writes out the last run if there are run files, and merges groups of fanIn
+	 * consecutive run files until one merge is left.
+	 *
+	 * @return the tuples in key order
+	 */
+	Records finish() throws IOException {
+		if(runFiles.isEmpty()) {
+			return new RunRecords(sortRun());
+		}
+		if(runSize > 0) {
+			writeRun();
+		}
+		while(runFiles.size() > fanIn) {
+			List<File> merged = new ArrayList<File>();
+			for(int i = 0; i < runFiles.size(); i += fanIn) {
+				List<File> inputs = runFiles.subList(i, Math.min(i + fanIn, runFiles.size()));
+				if(inputs.size() == 1) {
+					merged.add(inputs.get(0));
+					continue;
+				}
+				File f = newRunFile();
+				try(MergedRecords records = new MergedRecords(inputs);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER)) {
+					while(records.next()) {
+						out.write(records.buffer(), records.offset(), recordSize);
+					}
+				}
+				for(File input : inputs) {
+					input.delete();
+				}
+				merged.add(f);
+			}
+			runFiles.clear();
+			runFiles.addAll(merged);
+		}
+		return new MergedRecords(runFiles);
+	}
+
+	/**
+	 * Deletes the run files.
+	 */
+	@Override
+	public void close() {
+		for(File f : runFiles) {
+			f.delete();
+		}
+		runFiles.clear();
+	}
+
+	/**
+	 * Returns the key of the tuple serialized at the given offset.
+	 */
+	Field key(byte[] buf, int offset) {
+		return keyType.parse(ByteBuffer.wrap(buf), offset + keyOffset);
+	}
+
+	/**
+	 * Returns the byte offset of the key in a serialized tuple.
+	 */
+	int keyOffset() {
+		return keyOffset;
+	}
+
+	/**
+	 * Sorts the current run, and returns the positions of its tuples in key order.
+	 */
+	private int[] sortRun() {
+		int[] order = new int[runSize];
+		if(keyType == Type.INT_TYPE) {
+			// sort the keys with the positions in their low bits, so equal keys keep their order
+			long[] keys = new long[runSize];
+			for(int i = 0; i < runSize; i++) {
+				keys[i] = ((long) readInt(run, i * recordSize + keyOffset) << 32) | i;
+			}
+			Arrays.sort(keys);
+			for(int i = 0; i < runSize; i++) {
+				order[i] = (int) keys[i];
+			}
+		}
+		else {
+			Integer[] positions = new Integer[runSize];
+			for(int i = 0; i < runSize; i++) {
+				positions[i] = i;
+			}
+			Arrays.sort(positions, (a, b) -> compare(run, a * recordSize, run, b * recordSize));
+			for(int i = 0; i < runSize; i++) {
+				order[i] = positions[i];
+			}
+		}
+		return order;
+	}
+
+	private void writeRun() throws IOException {
+		int[] order = sortRun();
+		File f = newRunFile();
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER)) {
+			for(int i : order) {
+				out.write(run, i * recordSize, recordSize);
+			}
+		}
+		runFiles.add(f);
+		runSize = 0;
+	}
+
+	private static File newRunFile() throws IOException {
+		File f = File.createTempFile("sort", ".run");
+		f.deleteOnExit();
+		return f;
+	}
+
+	private int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+		if(keyType == Type.INT_TYPE) {
+			return Integer.compare(readInt(a, aOffset + keyOffset), readInt(b, bOffset + keyOffset));
+		}
+		Field x = key(a, aOffset);
+		Field y = key(b, bOffset);
+		if(x.compare(Op.LESS_THAN, y)) {
+			return -1;
+		}
+		return x.compare(Op.GREATER_THAN, y) ? 1 : 0;
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Sorted serialized tuples. After next() returns true, the tuple is at offset()
+	 * in buffer() until the following call to next().
+	 */
+	interface Records extends Closeable {
+		boolean next() throws IOException;
+
+		byte[] buffer();
+
+		int offset();
+
+		@Override
+		default void close() throws IOException {
+		}
+	}
+
+	/**
+	 * The tuples of the only run, which never left memory.
+	 */
+	private class RunRecords implements Records {
+		private final int[] order;
+		private int next;
+		private int offset;
+
+		RunRecords(int[] order) {
+			this.order = order;
+		}
+
+		@Override
+		public boolean next() {
+			if(next == order.length) {
+				return false;
+			}
+			offset = order[next++] * recordSize;
+			return true;
+		}
+
+		@Override
+		public byte[] buffer() {
+			return run;
+		}
+
+		@Override
+		public int offset() {
+			return offset;
+		}
+	}
+
+	/**
+	 * A merge of run files, with a priority queue holding the next tuple of each.
+	 */
+	private class MergedRecords implements Records {
+		private final PriorityQueue<RunReader> queue;
+		private final List<RunReader> readers = new ArrayList<RunReader>();
+		private RunReader current;
+
+		MergedRecords(List<File> files) throws IOException {
+			// ties go to the earlier run, which holds the tuples added first
+			queue = new PriorityQueue<RunReader>(Math.max(1, files.size()), (a, b) -> {
+				int cmp = compare(a.record, 0, b.record, 0);
+				return cmp != 0 ? cmp : Integer.compare(a.number, b.number);
+			});
+			try {
+				for(File f : files) {
+					RunReader reader = new RunReader(f, readers.size());
+					readers.add(reader);
+					if(reader.advance()) {
+						queue.add(reader);
+					}
+				}
+			}
+			catch(IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if(current != null && current.advance()) {
+				queue.add(current);
+			}
+			current = queue.poll();
+			return current != null;
+		}
+
+		@Override
+		public byte[] buffer() {
+			return current.record;
+		}
+
+		@Override
+		public int offset() {
+			return 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for(RunReader reader : readers) {
+				reader.in.close();
+			}
+		}
+	}
+
+	private class RunReader {
+		final DataInputStream in;
+		final int number;
+		final byte[] record = new byte[recordSize];
+
+		RunReader(File f, int number) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), RUN_BUFFER));
+			this.number = number;
+		}
+
+		/**
+		 * Reads the next tuple of the run into record.
+		 * @return false at the end of the run
+		 */
+		boolean advance() throws IOException {
+			try {
+				in.readFully(record);
+				return true;
+			}
+			catch(EOFException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Writes into a byte array at a movable position.
+	 */
+	private static class BufferOutput extends OutputStream {
+		private final byte[] buf;
+		int position;
+
+		BufferOutput(byte[] buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf[position++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			System.arraycopy(b, off, buf, position, len);
+			position += len;
+		}
+	}
+}
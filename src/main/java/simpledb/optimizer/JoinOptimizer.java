@@ -17,6 +17,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** costs set with setAccessCost, by table alias */
+    Map<String, Double> accessCosts = new HashMap<String, Double>();
 
     /**
      * Constructor
@@ -31,6 +33,31 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Sets the estimated cost of the access method chosen for a base table
+     * when it is not a sequential scan, such as an index scan. Joins use it in
+     * place of {@link TableStats#estimateScanCost()} for that table, e.g. as
+     * the cost of each rescan of the inner relation.
+     *
+     * @param alias
+     *            the alias of the table
+     * @param cost
+     *            the estimated cost of reading the table through the access
+     *            method
+     */
+    public void setAccessCost(String alias, double cost) {
+        accessCosts.put(alias, cost);
+    }
+
+    /**
+     * @return the estimated cost of reading a base table through its access
+     *         method
+     */
+    private double scanCost(Map<String, TableStats> stats, String tableName, String alias) {
+        Double cost = accessCosts.get(alias);
+        return cost != null ? cost : stats.get(tableName).estimateScanCost();
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -278,7 +305,8 @@ public class JoinOptimizer {
                 pc.addPlan(nodeSet,optCosts,optCards,optJoins);
             }
         }
-        Vector<LogicalJoinNode> res = null;
+        // a query over one table has no joins to order
+        Vector<LogicalJoinNode> res = joins.isEmpty() ? new Vector<LogicalJoinNode>() : null;
         for(Set<LogicalJoinNode> nodes:nodeSets){
             res = pc.getOrder(nodes);
         }
@@ -358,13 +386,12 @@ public class JoinOptimizer {
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = scanCost(stats, table1Name, j.t1Alias);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : scanCost(stats, table2Name, table2Alias);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -391,8 +418,7 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats, table2Name, j.t2Alias);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -406,7 +432,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = scanCost(stats, table1Name, j.t1Alias);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -546,7 +572,7 @@ public class JoinOptimizer {
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(stats, table1Name, j.t1Alias)
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -565,8 +591,7 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + scanCost(stats, table2Name, j.t2Alias)
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
@@ -4,13 +4,17 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.excution.*;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -279,6 +283,80 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Returns the constant of a filter as a field of the type of the field
+     * it filters.
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /**
+     * For each table of the plan that has a secondary index on a field with
+     * a filter that an index can evaluate (=, <, <=, >, >=), replaces its
+     * sequential scan in subplanMap with a scan of the index for the most
+     * selective such filter, if {@link TableStats#estimateIndexScanCost} is
+     * below {@link TableStats#estimateScanCost}. Snapshot transactions always
+     * scan, since an index does not keep old versions of its entries.
+     *
+     * @param t the transaction the plan runs in
+     * @param statsMap the statistics of the tables, by table name
+     * @param accessCosts the estimated cost of each index scan chosen is
+     *        put in this map, by table alias
+     * @return the filters the chosen index scans evaluate
+     */
+    private Set<LogicalFilterNode> chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap,
+            Map<String,Double> accessCosts) throws ParsingException {
+        Set<LogicalFilterNode> chosen = new HashSet<LogicalFilterNode>();
+        if (Database.getBufferPool().isSnapshot(t)) {
+            return chosen;
+        }
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null || Database.getCatalog().getIndexes(table.t).isEmpty()) {
+                continue;
+            }
+            TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+            double bestCost = s.estimateScanCost();
+            LogicalFilterNode bestFilter = null;
+            IndexScan best = null;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS
+                        || lf.p == Predicate.Op.LIKE) {
+                    continue;
+                }
+                Field f = filterConstant(lf, td);
+                int field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                    if (index.getKeyField() != field) {
+                        continue;
+                    }
+                    double cost = s.estimateIndexScanCost(index, s.estimateSelectivity(field, lf.p, f));
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestFilter = lf;
+                        best = new IndexScan(t, index, table.alias, new IndexPredicate(lf.p, f));
+                    }
+                }
+            }
+            if (best != null) {
+                subplanMap.put(table.alias, best);
+                accessCosts.put(table.alias, bestCost);
+                chosen.add(bestFilter);
+            }
+        }
+        return chosen;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -314,6 +392,11 @@ public class LogicalPlan {
 
         }
 
+        // read a table through a secondary index instead when a filter on an
+        // indexed field makes that cheaper; the index applies that filter
+        HashMap<String,Double> accessCosts = new HashMap<String,Double>();
+        Set<LogicalFilterNode> indexedFilters = chooseIndexScans(t, statsMap, accessCosts);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -322,19 +405,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
             Predicate p = null;
             try {
@@ -342,7 +413,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexedFilters.contains(lf)) {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -353,6 +426,9 @@ public class LogicalPlan {
         }
 
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        for (Map.Entry<String,Double> e : accessCosts.entrySet()) {
+            jo.setAccessCost(e.getKey(), e.getValue());
+        }
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
@@ -3,6 +3,7 @@ package simpledb.optimizer;
 //import java.util.HashMap;
 import simpledb.common.Database;
 import simpledb.excution.*;
+import simpledb.index.IndexScan;
 
 import java.util.Map;
 
@@ -48,6 +49,8 @@ public class OperatorCardinality {
                     childC = tableStats.get(
                             ((SeqScan) children[0]).getTableName())
                             .estimateTableCardinality(1.0);
+                } else if (children[0] instanceof IndexScan) {
+                    childC = indexScanCardinality((IndexScan) children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -85,6 +88,10 @@ public class OperatorCardinality {
                         ((SeqScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
+            } else if (child instanceof IndexScan) {
+                f.setEstimatedCardinality((int) (indexScanCardinality(
+                        (IndexScan) child, tableStats) * selectivity) + 1);
+                return false;
             }
         }
         f.setEstimatedCardinality(1);
@@ -126,6 +133,8 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof IndexScan) {
+            child1Card = indexScanCardinality((IndexScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -138,6 +147,8 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof IndexScan) {
+            child2Card = indexScanCardinality((IndexScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -183,6 +194,8 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof IndexScan) {
+            child1Card = indexScanCardinality((IndexScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -195,6 +208,8 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof IndexScan) {
+            child2Card = indexScanCardinality((IndexScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -225,6 +240,8 @@ public class OperatorCardinality {
         if (child instanceof SeqScan) {
             childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
                     .estimateTableCardinality(1.0));
+        } else if (child instanceof IndexScan) {
+            childCard = indexScanCardinality((IndexScan) child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -247,4 +264,16 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    /**
+     * The cardinality of an index scan: the tuples of its table that satisfy
+     * its predicate on the indexed field.
+     */
+    private static int indexScanCardinality(IndexScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        IndexPredicate ipred = s.getPredicate();
+        return stats.estimateTableCardinality(stats.estimateSelectivity(
+                s.getIndex().getKeyField(), ipred.getOp(), ipred.getField()));
+    }
 }
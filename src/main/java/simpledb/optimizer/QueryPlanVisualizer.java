@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 import simpledb.excution.*;
+import simpledb.index.IndexScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -16,6 +17,7 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "";
     static final String RENAME = "";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -68,24 +70,35 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String scan, tableName, alias, index;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                index = "";
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                index = ", " + s.getIndex().getName();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias + index);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -4,6 +4,7 @@ import simpledb.excution.Predicate;
 import simpledb.excution.SeqScan;
 import simpledb.common.Database;
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -201,6 +202,26 @@ public class TableStats {
         }
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * selectivity selectivityFactor through a secondary index on this table.
+     * The index reads one page per level above its leaves, approximated as
+     * one, and the fraction of its pages that hold matching entries. The
+     * index is not clustered, so each matching tuple is assumed to cost one
+     * heap page read.
+     *
+     * @param index
+     *            a secondary index on this table
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the indexed field
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(SecondaryIndex index, double selectivityFactor) {
+        double indexPages = 1 + Math.ceil(index.getFile().numPages() * selectivityFactor);
+        double heapPages = Math.ceil(totalTuples() * selectivityFactor);
+        return (indexPages + heapPages) * this.ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
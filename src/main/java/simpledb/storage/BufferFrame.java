@@ -0,0 +1,177 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 缓冲池页框 <br/>
+ * 1. pin 计数：大于 0 时页框正在被使用，不能被逐出；为 -1 时页框空闲，或已被逐出方独占。 <br/>
+ * 2. 读写闩（latch）：短期保护页面内容，读页面时持有共享闩，修改页面时持有排他闩，持有闩之前必须先 pin。 <br/>
+ * 3. 页面从磁盘读入期间处于 loading 状态，其他线程等待读入完成，而不是重复读。 <br/>
+ * 闩与事务锁相互独立：事务锁由 LockManager 管理，保持到事务结束；闩只在一次页面操作期间持有。
+ */
+class BufferFrame {
+
+    /**
+     * 页框编号
+     */
+    final int index;
+    /**
+     * 页框中页面的键，页框空闲时无意义
+     */
+    volatile long pageKey;
+    /**
+     * 页框中的页面，读入期间为 null
+     */
+    volatile Page page;
+    /**
+     * 是否正在从磁盘读入
+     */
+    private boolean loading;
+    /**
+     * 读入是否失败
+     */
+    private boolean failed;
+
+    private final AtomicInteger pins = new AtomicInteger(-1);
+    /**
+     * 页面由预读读入，且还没有被访问过
+     */
+    private final AtomicBoolean prefetched = new AtomicBoolean();
+    final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+    BufferFrame(int index) {
+        this.index = index;
+    }
+
+    /**
+     * pin 页框，页框正在被逐出时失败
+     * @return 是否成功
+     */
+    boolean tryPin() {
+        for (;;) {
+            int p = pins.get();
+            if (p < 0) {
+                return false;
+            }
+            if (pins.compareAndSet(p, p + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void unpin() {
+        pins.decrementAndGet();
+    }
+
+    /**
+     * 没有被 pin 时独占页框，用于逐出或丢弃页面
+     * @return 是否成功
+     */
+    boolean tryClaim() {
+        return pins.compareAndSet(0, -1);
+    }
+
+    /**
+     * 放弃独占，页框中的页面保持不变
+     */
+    void unclaim() {
+        if (!pins.compareAndSet(-1, 0)) {
+            throw new IllegalStateException("frame " + index + " is not claimed");
+        }
+    }
+
+    /**
+     * 把独占的空闲页框交给新页面使用，并 pin 一次 <br/>
+     * 页框被独占时 tryPin 总是失败，所以 pin 计数只能从 -1 变为 1，不会覆盖其他线程的 pin
+     */
+    void reuse(long pageKey) {
+        this.pageKey = pageKey;
+        this.page = null;
+        this.prefetched.set(false);
+        synchronized (this) {
+            loading = true;
+            failed = false;
+        }
+        if (!pins.compareAndSet(-1, 1)) {
+            throw new IllegalStateException("frame " + index + " is not claimed");
+        }
+    }
+
+    /**
+     * 标记页面由预读读入
+     */
+    void markPrefetched() {
+        prefetched.set(true);
+    }
+
+    /**
+     * 第一次访问预读的页面时清除预读标记
+     * @return 页面是否由预读读入且之前没有被访问过
+     */
+    boolean clearPrefetched() {
+        return prefetched.get() && prefetched.compareAndSet(true, false);
+    }
+
+    /**
+     * 清空独占的页框，页框变为空闲 <br/>
+     * 调用方必须先用 {@link #tryClaim()} 独占页框：持有过期页表项的线程可能刚 pin 了页框，
+     * 直接把 pin 计数置为 -1 会覆盖它们的 pin
+     */
+    void free() {
+        if (pins.get() != -1) {
+            throw new IllegalStateException("frame " + index + " is not claimed");
+        }
+        page = null;
+    }
+
+    /**
+     * 页框中是否为脏页
+     */
+    boolean isDirty() {
+        Page p = page;
+        return p != null && p.isDirty() != null;
+    }
+
+    boolean isEvictable() {
+        return pins.get() == 0 && page != null;
+    }
+
+    /**
+     * 页面读入完成
+     * @param page  读入的页面，读入失败时为 null
+     */
+    synchronized void loaded(Page page) {
+        this.page = page;
+        this.failed = page == null;
+        this.loading = false;
+        notifyAll();
+    }
+
+    /**
+     * 等待页面读入完成
+     * @return 读入是否成功
+     */
+    synchronized boolean awaitLoaded() {
+        boolean interrupted = false;
+        while (loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return !failed;
+    }
+
+    /**
+     * 是否可以不加锁直接读取页面（常见的命中路径）
+     */
+    boolean isReady() {
+        return page != null;
+    }
+}
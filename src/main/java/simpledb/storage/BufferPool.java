@@ -2,7 +2,11 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.LongIntHashMap;
 import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -10,6 +14,10 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 
 /**
  * @author zhou
@@ -18,6 +26,18 @@ import java.util.concurrent.ConcurrentHashMap;
  * 1. ҳӴ̶ȡдڴ档      <br/>
  * 2. ҳ棬ʵλûȡҳ档<br/>
  * 3. Ƶʵ֣ һȡһҳʱBufferPool Ƿкʵ/дҳ档<br/>
+ * ƣ<br/>
+ * 1. LockManagerҳţ{@link BufferFrame}룬ֵֻһҳڼС <br/>
+ * 2. ·ȫҳʹֹ۶ֻ֮ҳһ pin/unpin <br/>
+ * 3. δʱҳз loading ״̬ҳ̣ҳķʲӰ졣 <br/>
+ * ԣSTEAL / NO-FORCE<br/>
+ * 1. ύʱ޸Ĺġڻеҳǰ޸д־ {@link PageChange}дύ¼ǿˢ־ҳڻадء <br/>
+ * 2. δ޸ĵҳҲԱˢ̣дǰȰ޸д־дǰ־ <br/>
+ * 3. д־Ѽ¼ LSN ҳ棨pageLSNдҳǰֻ־ˢ pageLSN {@link LogFile#flushTo(long)}ⲿ־ʱǿˢ־ <br/>
+ * 4. ֹʱ޸ģ {@link LogFile#rollback}ļָ޸ĵļ¼ҳҳָΪ޸ǰľ񣬳ĽΪ¼д־ <br/>
+ * 5. д־ʱļλϵ޸ļ޸δ£ָ {@link LogFile#recover()}ֻʧԼ޸ġ <br/>
+ * 6. ҳ¼д־ûдش̵ҳ棬¼дҳ棨ģ㣬 {@link LogFile#logCheckpoint()}
+ *    ־ʱ̨ˢ߳д recLSN һҳ棬дһ㣬ƽָ㡣 <br/>
  */
 public class BufferPool {
 
@@ -33,27 +53,128 @@ public class BufferPool {
      * Ĭҳ
      */
     public static final int DEFAULT_PAGES = 50;
+    /**
+     * Ĭɺ̨ˢָ̱߳ɾҳ
+     */
+    public static final double DEFAULT_CLEAN_TARGET = 0.1;
     /**
      * еҳ
      */
     private int numPages;
     /**
-     * еҳ棬ͨҳŻȡӦҳ
+     * ҳ򣬻еҳ frames[0] ~ frames[numPages-1] 
+     */
+    private final BufferFrame[] frames;
+    /**
+     * ҳҳҳŵӳ <br/>
+     *  {@link PageId#pageKey()} ΪͬҳļͻʱҲװ
+     */
+    private final PageTable pageTable;
+    /**
+     * ҳջfreeFrames[0] ~ freeFrames[freeCount-1] Ϊҳţ freeFrames ļ
+     */
+    private final int[] freeFrames;
+    private int freeCount;
+    /**
+     * ҳʱУ֤ͬһʱֻһ߳ѡҳ
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /**
+     * ҳû
+     */
+    private final ReplacementPolicy replacementPolicy;
+    /**
+     * д
+     */
+    private final LongAdder hitCount = new LongAdder();
+    /**
+     * δд
+     */
+    private final LongAdder missCount = new LongAdder();
+    /**
+     * ̨ˢ߳
+     */
+    private final PageCleaner pageCleaner = new PageCleaner();
+    /**
+     * ̨ˢ߳ϣָɾҳ̭ⲿҳеҳᱻǰдأ0 ʾر
+     */
+    private volatile double cleanTarget = DEFAULT_CLEAN_TARGET;
+    /**
+     * ̨ˢ߳дصҳ
+     */
+    private final LongAdder cleanerPagesWritten = new LongAdder();
+    /**
+     * ̨ˢ̵߳дҳϲΪһд
+     */
+    private final LongAdder cleanerWrites = new LongAdder();
+    /**
+     * ǰ̨߳ҳʱͬд̵Ĵ
+     */
+    private final LongAdder foregroundWrites = new LongAdder();
+    /**
+     * ǰ̨߳ͬд̻ѵʱ䣨룩
+     */
+    private final LongAdder foregroundWriteNanos = new LongAdder();
+    /**
+     * Ԥҳ
+     */
+    private final LongAdder prefetchCount = new LongAdder();
+    /**
+     * ԤҳڱǰʵĴ
+     */
+    private final LongAdder prefetchHits = new LongAdder();
+    /**
+     * ԤҳûбʾͱĴ
      */
-    private ConcurrentHashMap<Integer, Page> pages;
+    private final LongAdder prefetchWasted = new LongAdder();
     /**
      * 
      */
-    private LockManager lockManager;
+    private final LockManager lockManager;
+    /**
+     * ļ¼ľɰ汾ֻĿնʹ
+     */
+    private final VersionStore versions;
+    /**
+     * δд  ޸Ĺҳ棬ʱƳֻԼ̷߳
+     */
+    private final Map<TransactionId, Set<PageId>> dirtiedPages = new ConcurrentHashMap<>();
+    /**
+     * ҳд־ûдش̵ҳ  ڵһ־¼ LSNrecLSN <br/>
+     * ҳšд־֮ǰ루 {@link #noteLogged(PageId)}дػƳʱƳڻеҳ治ڱ
+     */
+    private final Map<PageId, Long> dirtyPageTable = new ConcurrentHashMap<>();
+    /**
+     * ̨ˢ߳Ϊƽдصҳ
+     */
+    private final LongAdder checkpointPagesWritten = new LongAdder();
 
     /**
-     * һΪ numPages ҳ BufferPool
+     * һΪ numPages ҳ BufferPoolĬʹ CLOCK û
      * @param numPages  еҳ
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.clock(numPages));
+    }
+
+    /**
+     * һΪ numPages ҳ BufferPool
+     * @param numPages  еҳ
+     * @param policy    ҳûԣҪܸ numPages ҳ
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         this.numPages = numPages;
-        pages = new ConcurrentHashMap<>();
+        this.frames = new BufferFrame[numPages];
+        this.pageTable = new PageTable(numPages);
+        this.freeFrames = new int[numPages];
+        for (int i = 0; i < numPages; i++) {
+            frames[i] = new BufferFrame(i);
+            freeFrames[i] = numPages - 1 - i;
+        }
+        this.freeCount = numPages;
+        this.replacementPolicy = policy;
         lockManager = new LockManager();
+        versions = new VersionStore();
     }
     
     public static int getPageSize() {
@@ -70,8 +191,8 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
-    private Integer getKey(PageId pageId){
-        return pageId.hashCode(); // ʹhashcodeΪkey
+    private long getKey(PageId pageId){
+        return pageId.pageKey();
     }
 
     /**
@@ -89,41 +210,567 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        Object lock = lockManager.getTxLock(pid);
-        synchronized (lock){
-            LockType lockType;
-            if(perm == Permissions.READ_ONLY){
-                lockType = LockType.SHARED_LOCK;
-            }else{
-                lockType = LockType.EXCLUSIVE_LOCK;
-            }
-            boolean lockStatus = lockManager.acquireLock(pid, new Lock(tid, lockType));
-            if(!lockStatus){
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * йȨ޵ָҳ棬ͬ {@link #getPage(TransactionId, PageId, Permissions)} <br/>
+     * useOnce Ϊ true ʱʾҳֻᱻһΣ˳ɨ裩ûԻ̭ҳ棬
+     * ɨȵҳ漷ء
+     * @param tid       ҳ ID
+     * @param pid       ҳ ID
+     * @param perm      ҳȨ (READ_ONLY /READ_WRITE)
+     * @param useOnce   ҳǷֻᱻһ
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean useOnce)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid, pid, perm);
+        BufferFrame frame = pinFrame(pid, useOnce);
+        try {
+            return frame.page;
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * ҳ沢ҳţͬ {@link #getPage(TransactionId, PageId, Permissions)} <br/>
+     * READ_ONLY йţREAD_WRITE šڼҳ治ᱻˢ̣
+     * ÷дҳݺ {@link #unlatchPage(PageId, Permissions)}
+     * @param tid       ҳ ID
+     * @param pid       ҳ ID
+     * @param perm      ҳȨ (READ_ONLY /READ_WRITE)
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page latchPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return latchPage(tid, pid, perm, false);
+    }
+
+    /**
+     * ҳ沢ҳţͬ {@link #latchPage(TransactionId, PageId, Permissions)}
+     * @param useOnce   ҳǷֻᱻһ
+     */
+    public Page latchPage(TransactionId tid, PageId pid, Permissions perm, boolean useOnce)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid, pid, perm);
+        BufferFrame frame = pinFrame(pid, useOnce);
+        if (perm == Permissions.READ_ONLY) {
+            frame.latch.readLock().lock();
+        } else {
+            frame.latch.writeLock().lock();
+        }
+        return frame.page;
+    }
+
+    /**
+     * նҳ沢йţȡԲ޸ҳҲᱻ <br/>
+     * ҳϿпտ޸ģ÷ͷ֮ǰ {@link VersionStore#visibleTuples} еԪ飬
+     * ֮ {@link #unlatchPage(PageId, Permissions)}perm  READ_ONLY
+     * @param tid        {@link #beginSnapshot(TransactionId)} ʼֻ
+     * @param pid       ҳ ID
+     * @param useOnce   ҳǷֻᱻһ
+     * @return
+     * @throws DbException
+     */
+    public Page latchPageForSnapshot(TransactionId tid, PageId pid, boolean useOnce) throws DbException {
+        if (!versions.isSnapshot(tid)) {
+            throw new DbException("transaction " + tid.getId() + " is not a snapshot reader");
+        }
+        BufferFrame frame = pinFrame(pid, useOnce);
+        frame.latch.readLock().lock();
+        return frame.page;
+    }
+
+    /**
+     * ҳ沢ҳţֻڱҳϻȡڰ¼޸ <br/>
+     * ÷޸ҳϵļ¼ǰЩ¼{@link #lockRecord}
+     *  {@link #unlatchPage(PageId, Permissions)}perm  READ_WRITE
+     * @param tid       ҳ ID
+     * @param pid       ҳ ID
+     * @return
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page latchPageForRecords(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        lockManager.acquireIntention(tid, pid, LockManager.LockType.EXCLUSIVE_LOCK);
+        BufferFrame frame = pinFrame(pid, false);
+        frame.latch.writeLock().lock();
+        return frame.page;
+    }
+
+    /**
+     * ҳ沢йҳţȡ B+ ½ʱڲҳ <br/>
+     * ڲҳĽṹű {@link simpledb.index.BTreeFile}꺢ӵҳżɵ
+     * {@link #unlatchPage(PageId, Permissions)} ͷţperm  READ_ONLY
+     * @param pid       ҳ ID
+     * @return
+     * @throws DbException
+     */
+    public Page latchPageForIndex(PageId pid) throws DbException {
+        BufferFrame frame = pinFrame(pid, false);
+        frame.latch.readLock().lock();
+        return frame.page;
+    }
+
+    /**
+     * ͷ {@link #latchPage(TransactionId, PageId, Permissions)} еҳţͷ
+     * @param pid       ҳ ID
+     * @param perm      latchPage ʱȨ
+     */
+    public void unlatchPage(PageId pid, Permissions perm) {
+        // ҳԱ pinӳ䲻ı
+        BufferFrame frame = frames[pageTable.get(getKey(pid))];
+        if (perm == Permissions.READ_ONLY) {
+            frame.latch.readLock().unlock();
+        } else {
+            frame.latch.writeLock().unlock();
+        }
+        frame.unpin();
+    }
+
+    /**
+     * ȡҳϵҳ뻺أֱӴļڴӳ䣩ȡҳɨ <br/>
+     * ҳڻΪҳʱļеѾڣػеҳ沢йţ
+     * ÷ {@link #unlatchPage(PageId, Permissions)}<br/>
+     * 򷵻 nullļеݾҳݣڼ޸
+     * @param tid       ҳ ID
+     * @param pid       ҳ ID
+     * @param perm      ҳȨ
+     * @return йŵҳ null
+     * @throws TransactionAbortedException
+     * @throws DbException
+     */
+    public Page latchPageIfDirty(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid, pid, perm);
+        long key = getKey(pid);
+        for (;;) {
+            int index = pageTable.get(key);
+            if (index == LongIntHashMap.NO_VALUE) {
+                return null;
+            }
+            BufferFrame frame = frames[index];
+            if (!frame.tryPin()) {
+                // ҳڱҳдأ뿪ҳ
+                Thread.yield();
+                continue;
+            }
+            if (frame.pageKey == key && (frame.isReady() || frame.awaitLoaded())) {
+                frame.latch.readLock().lock();
+                if (frame.isDirty()) {
+                    hitCount.increment();
+                    return frame.page;
                 }
+                frame.latch.readLock().unlock();
+                frame.unpin();
+                return null;
+            }
+            frame.unpin();
+        }
+    }
+
+    /**
+     * ֻȡҳϵҳ뻺أʱֱдļҳ
+     * @param tid        ID
+     * @param pid       ҳ ID
+     * @param perm      ҳȨ
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        acquireLock(tid, pid, perm);
+    }
+
+    /**
+     * ͬ {@link #lockPage(TransactionId, PageId, Permissions)}ʱȴ
+     * ڳҳʱȡʱȴȴŵγ⿴Ļ
+     * @return Ƿȡɹ
+     * @throws TransactionAbortedException ѱѡΪ
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        return lockManager.tryAcquirePage(tid, pid, lockType(perm));
+    }
+
+    /**
+     * ȡϵ <br/>
+     * ҳͼ¼ϵԻȴеͷţ֮Ҳٸеҳͼ¼ӳͻ
+     * @param tid        ID
+     * @param tableId    ID
+     * @param perm      READ_ONLY ȡREAD_WRITE ȡ
+     * @throws TransactionAbortedException ѡΪ
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireTable(tid, tableId, lockType(perm));
+    }
+
+    /**
+     * ȡ
+     * @param tid        ID
+     * @param pid       ҳ ID
+     * @param perm      ҳȨ
+     * @throws TransactionAbortedException ѡΪ
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquirePage(tid, pid, lockType(perm));
+    }
+
+    private static LockManager.LockType lockType(Permissions perm) {
+        return perm == Permissions.READ_ONLY
+                ? LockManager.LockType.SHARED_LOCK : LockManager.LockType.EXCLUSIVE_LOCK;
+    }
+
+    /**
+     * ȡ¼֮ǰȻȡҳϵʱ <br/>
+     * ͬһҳϵļ¼̫ʱ᳢Ϊҳ {@link LockManager}
+     * @param tid        ID
+     * @param rid       ¼ ID
+     * @param perm      READ_ONLY ȡREAD_WRITE ȡ
+     * @throws TransactionAbortedException ѡΪ
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireRecord(tid, rid, lockType(perm));
+    }
+
+    /**
+     * ͬ {@link #lockRecord(TransactionId, RecordId, Permissions)}ʱȴ
+     * @return Ƿȡɹ
+     * @throws TransactionAbortedException ѱѡΪ
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        return lockManager.tryAcquireRecord(tid, rid, lockType(perm));
+    }
+
+    /**
+     * ҵҳڵҳ pin סδʱӴ̶ȡҪʱһҳ棩 <br/>
+     * ʱֻһֹ۶һ CAS
+     * @param pid       ҳ ID
+     * @param useOnce   ҳǷֻᱻһ
+     * @return  pin ҳ򣬵÷ unpin
+     * @throws DbException
+     */
+    private BufferFrame pinFrame(PageId pid, boolean useOnce) throws DbException {
+        long key = getKey(pid);
+        for (;;) {
+            int index = pageTable.get(key);
+            if (index == LongIntHashMap.NO_VALUE) {
+                BufferFrame frame = loadFrame(pid, null, useOnce);
+                if (frame != null) {
+                    return frame;
+                }
+                // ߳ͬʱҳ
+                continue;
+            }
+            BufferFrame frame = frames[index];
+            if (!frame.tryPin()) {
+                // ҳڱ
+                Thread.yield();
+                continue;
+            }
+            if (frame.pageKey == key && (frame.isReady() || frame.awaitLoaded())) {
+                hitCount.increment();
+                if (frame.clearPrefetched()) {
+                    prefetchHits.increment();
+                }
+                replacementPolicy.accessed(index, useOnce);
+                return frame;
+            }
+            frame.unpin();
+        }
+    }
+
+    /**
+     * Ϊҳҳ򲢷ҳpage Ϊ null ʱӴ̶ȡ
+     * @param pid       ҳ ID
+     * @param page      еҳ棬Ϊ null ʱӴ̶ȡ
+     * @param useOnce   ҳǷֻᱻһ
+     * @return  pin ҳҳѱ̷߳ҳʱ null
+     * @throws DbException
+     */
+    private BufferFrame loadFrame(PageId pid, Page page, boolean useOnce) throws DbException {
+        return loadFrame(pid, page, useOnce, allocateFrame(), false);
+    }
+
+    /**
+     * ҳѶռҳ indexͬ {@link #loadFrame(PageId, Page, boolean)}
+     * @param index     ѶռĿҳ
+     * @param prefetch  ǷΪԤԤδд
+     */
+    private BufferFrame loadFrame(PageId pid, Page page, boolean useOnce, int index, boolean prefetch) {
+        long key = getKey(pid);
+        BufferFrame frame = frames[index];
+        frame.reuse(key);
+        if (prefetch) {
+            frame.markPrefetched();
+        }
+        if (pageTable.putIfAbsent(key, index) != LongIntHashMap.NO_VALUE) {
+            // ߳Ѷҳ棺йҳܸ߳̿ pin ҳ򣬵 unpin ٻ
+            frame.unpin();
+            while (!frame.tryClaim()) {
+                Thread.yield();
             }
-            Integer key = getKey(pid);
-            if(!pages.containsKey(key)){
+            frame.free();
+            releaseFrame(index);
+            return null;
+        }
+        if (page == null) {
+            (prefetch ? prefetchCount : missCount).increment();
+            try {
                 DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                while (pages.size() >= numPages){
-                    evictPage();
+                page = dbFile.readPage(pid);
+            } catch (RuntimeException e) {
+                // ʧܣƳҳѵȴߣ unpin ҳ
+                pageTable.remove(key, index);
+                frame.loaded(null);
+                frame.unpin();
+                while (!frame.tryClaim()) {
+                    Thread.yield();
                 }
-                pages.put(key, dbFile.readPage(pid));
+                frame.free();
+                releaseFrame(index);
+                throw e;
             }
-            return pages.get(key);
+        }
+        frame.loaded(page);
+        replacementPolicy.loaded(index, useOnce);
+        return frame;
+    }
+
+    /**
+     * ȡһҳûпҳʱһҳ
+     * @return ռҳ
+     * @throws DbException
+     */
+    private int allocateFrame() throws DbException {
+        synchronized (freeFrames) {
+            if (freeCount > 0) {
+                return freeFrames[--freeCount];
+            }
+        }
+        return evictPage(false);
+    }
+
+    /**
+     * Ԥҳ棺ҳ治ڻʱӴ̶룬ȡҲ pin <br/>
+     * Ԥֻʹÿҳɾҳ棬ΪԤдҳûҳʱԤ
+     * Ԥҳ水 "use once" ûԣûбʾͱʱ˷Ѵ
+     * @param pid       ҳ ID
+     * @return еҳ棻Ԥʧʱ null
+     */
+    public Page prefetchPage(PageId pid) {
+        long key = getKey(pid);
+        int index = pageTable.get(key);
+        if (index != LongIntHashMap.NO_VALUE) {
+            BufferFrame frame = frames[index];
+            if (!frame.tryPin()) {
+                return null;
+            }
+            try {
+                return frame.pageKey == key && (frame.isReady() || frame.awaitLoaded()) ? frame.page : null;
+            } finally {
+                frame.unpin();
+            }
+        }
+        synchronized (freeFrames) {
+            index = freeCount > 0 ? freeFrames[--freeCount] : -1;
+        }
+        try {
+            if (index < 0) {
+                index = evictPage(true);
+            }
+            if (index < 0) {
+                return null;
+            }
+            BufferFrame frame = loadFrame(pid, null, true, index, true);
+            if (frame == null) {
+                return null;
+            }
+            Page page = frame.page;
+            frame.unpin();
+            return page;
+        } catch (DbException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 黹ҳ
+     * @param index     ҳ
+     */
+    private void releaseFrame(int index) {
+        synchronized (freeFrames) {
+            freeFrames[freeCount++] = index;
         }
     }
 
+    /**
+     * Ԥҳ
+     * @return
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    /**
+     * ԤҳڱǰʵĴ
+     * @return
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    /**
+     * ԤҳûбʾͱĴԤڹ򻺳ѹʱ
+     * @return
+     */
+    public long getPrefetchWasted() {
+        return prefetchWasted.sum();
+    }
+
+    /**
+     * صҳ
+     * @return
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * д
+     * @return
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * δд
+     * @return
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * ų́ˢָ̱߳ɾҳ
+     * @param fraction  0 ~ 10 ʾرպ̨ˢ
+     */
+    public void setCleanTarget(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("clean target must be in [0, 1]: " + fraction);
+        }
+        this.cleanTarget = fraction;
+    }
+
+    /**
+     * ̨ˢ߳дصҳ
+     * @return
+     */
+    public long getCleanerPagesWritten() {
+        return cleanerPagesWritten.sum();
+    }
+
+    /**
+     * ̨ˢ̵߳дҳϲΪһд
+     * @return
+     */
+    public long getCleanerWrites() {
+        return cleanerWrites.sum();
+    }
+
+    /**
+     * ̨ˢ߳ڼ֮ǰΪƽдصҳ
+     * @return
+     */
+    public long getCheckpointPagesWritten() {
+        return checkpointPagesWritten.sum();
+    }
+
+    /**
+     * ҳĸ {@link LogFile#logCheckpoint()} ڳ־ļʱ
+     * @return ҳ ID  recLSN
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
+    }
+
+    /**
+     * ǰ̨߳ҳʱͬд̵Ĵǰ̨д̶ͣٵĴ
+     * @return
+     */
+    public long getForegroundWrites() {
+        return foregroundWrites.sum();
+    }
+
+    /**
+     * ǰ̨߳ͬд̻ѵʱ䣨룩
+     * @return
+     */
+    public long getForegroundWriteNanos() {
+        return foregroundWriteNanos.sum();
+    }
+
+    /**
+     * ⵽ֹͨ
+     * @return
+     */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /**
+     * ¼ΪҳĴ
+     * @return
+     */
+    public long getLockEscalationCount() {
+        return lockManager.getEscalationCount();
+    }
+
+    /**
+     * 汾洢еľɰ汾пնҪİ汾ᱻ
+     * @return
+     */
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    VersionStore versions() {
+        return versions;
+    }
+
+    /**
+     * ʼһֻ֮ɨļʱǿʼʱύ <br/>
+     * ޸ݣ {@link #transactionComplete(TransactionId)} 
+     * @param tid        IDûʹκҳ
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return tid Ƿ {@link #beginSnapshot(TransactionId)} ʼûнֻ
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
     /**
      * ͷҳ
      * @param tid       ID
      * @param pid      ҳ ID
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        lockManager.releaseLock(pid,tid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -138,31 +785,188 @@ public class BufferPool {
     }
 
     /**
-     * ָָҳǷ
+     * ָָҳǷ޸ҳϵļ¼ʱе
      * @param tid        ID
      * @param p         ҳ ID
      * @return
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return lockManager.holdsLock(p,tid);
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
-     * ύֹ ͷ
+     * ύֹ ͷ <br/>
+     * 1. ύ޸Ĺҳǰύ¼д־ǿˢ־дҳ <br/>
+     * 2. ֹͨ {@link LogFile#logAbort(TransactionId)} ޸Ĳдֹ¼ <br/>
+     * û޸Ҳûд־ֻ񣩲д־
      * @param tid        ID
      * @param commit    Ƿύ
      * @throws IOException
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-        if(commit){
-            flushPages(tid);
-        }else{
-            // abort page
+        LogFile log = Database.getLogFile();
+        boolean logged = dirtiedPages.containsKey(tid) || log.isActive(tid);
+        if (logged) {
+            if (commit) {
+                logPages(tid);
+                log.logCommit(tid);
+                if (log.isCheckpointDue()) {
+                    pageCleaner.wakeForCheckpoint();
+                }
+            } else {
+                log.logAbort(tid);
+            }
+        }
+        // ύ¼̺Ųٰ tid δ񣬴ǰд޸ĵҳ涼Ҫд־
+        dirtiedPages.remove(tid);
+        // ͷ֮ǰ tid ޸ģһ޸ͬһ¼İ汾֮
+        versions.complete(tid, commit);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     *  tid ޸Ĺġڻеҳǰ޸д־ԵǰΪҳµǰ񣬲Ѽ¼ LSN ҳ <br/>
+     * ڹȡãͬʱҳҳд־ʱšѱҳдʱѾд־
+     * @param tid        ID
+     * @throws IOException
+     */
+    private void logPages(TransactionId tid) throws IOException {
+        Set<PageId> pages = dirtiedPages.get(tid);
+        if (pages == null) {
+            return;
+        }
+        LogFile log = Database.getLogFile();
+        for (PageId pid : pages) {
+            BufferFrame frame = pinIfResident(pid);
+            if (frame == null) {
+                continue;
+            }
+            Page page;
+            Page before;
+            Page after;
+            try {
+                frame.latch.readLock().lock();
+                try {
+                    page = frame.page;
+                    before = page.getBeforeImage();
+                    page.setBeforeImage();
+                    after = page.getBeforeImage();
+                    noteLogged(pid);
+                } finally {
+                    frame.latch.readLock().unlock();
+                }
+            } finally {
+                frame.unpin();
+            }
+            page.setLSN(log.logWrite(tid.getId(), before, after, owners(tid)));
+        }
+    }
+
+    /**
+     * ҳ޸ļд־ҳ治ҳʱ־ĩβ LSN Ϊ recLSN ҳ <br/>
+     * ÷ҳŻ pin סҳ򣬲֮д־ʱд־ҳһҳУ
+     * ҳ汻дػʱһҳƳ
+     * @param pid       ҳ ID
+     */
+    private void noteLogged(PageId pid) {
+        if (!dirtyPageTable.containsKey(pid)) {
+            dirtyPageTable.putIfAbsent(pid, Database.getLogFile().getEndLSN());
+        }
+    }
+
+    /**
+     * д־ʱÿ¼񣺶ļλϵ޸޸λһûн
+     * ͬһҳϿмδύ޸ģָʱÿ¼޸ tid
+     * @param tid       Ϊҳд־
+     * @return
+     */
+    private ToLongFunction<PageChange> owners(TransactionId tid) {
+        return change -> {
+            TransactionId writer = change.slot() < 0 ? null : versions.runningWriter(change.getPageId(), change.slot());
+            return (writer == null ? tid : writer).getId();
+        };
+    }
+
+    /**
+     * ڻг tid ޸ģ {@link LogFile#rollback(TransactionId)} ãtid Գ޸Ĺļ¼ҳϵ <br/>
+     * 1. ļҳ棺汾ָ tid ޸Ĺļ¼ͬһҳ޸ıֲ䡣 <br/>
+     * 2. ҳ棨ҳȻָΪһд־ʱݣҳǰ񣬳ûд־޸ģٰ෴˳־ tid ļ¼ <br/>
+     * ָĽҳǰ޸Ϊ¼д־ֹ¼֮ǰָʱǣ
+     * ָҳΪҳҳڴ tid ޸ĺݡ<br/>
+     * ָ B+ ҳʱ ID ˳ÿĽṹţ {@link BTreeFile#structureLatch()}½ῴָһ
+     * @param tid        ID
+     * @param logged    ־ tid ÿҳϵļ¼־˳
+     * @throws IOException
+     */
+    void rollback(TransactionId tid, Map<PageId, List<PageChange>> logged) throws IOException {
+        Set<PageId> pages = new HashSet<>(logged.keySet());
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        if (dirtied != null) {
+            pages.addAll(dirtied);
+        }
+        SortedSet<Integer> trees = new TreeSet<>();
+        for (PageId pid : pages) {
+            if (pid instanceof BTreePageId) {
+                trees.add(pid.getTableId());
+            }
+        }
+        List<Lock> latches = new ArrayList<>();
+        try {
+            for (int tableId : trees) {
+                Lock latch = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).structureLatch();
+                latch.lock();
+                latches.add(latch);
+            }
+            restorePages(tid, pages, logged);
+        } finally {
+            for (Lock latch : latches) {
+                latch.unlock();
+            }
+        }
+        dirtiedPages.remove(tid);
+    }
+
+    /**
+     *  pages ָΪ tid ޸֮ǰݣ {@link #rollback(TransactionId, Map)}
+     * @param tid        ID
+     * @param pages     tid ޸Ĺҳ
+     * @param logged    ־ tid ÿҳϵļ¼־˳
+     * @throws IOException
+     */
+    private void restorePages(TransactionId tid, Set<PageId> pages, Map<PageId, List<PageChange>> logged)
+        throws IOException {
+        for (PageId pid : pages) {
+            BufferFrame frame;
+            try {
+                frame = pinFrame(pid, false);
+            } catch (DbException e) {
+                throw new IOException("cannot roll back page " + pid + ": " + e.getMessage());
+            }
+            frame.latch.writeLock().lock();
+            try {
+                Page page = frame.page;
+                Page before = page.getBeforeImage();
+                long lsn = page.getLSN();
+                if (!(page instanceof HeapPage && versions.undo(tid, (HeapPage) page))) {
+                    page = before;
+                    List<PageChange> changes = logged.getOrDefault(pid, Collections.emptyList());
+                    for (int i = changes.size() - 1; i >= 0; i--) {
+                        page = changes.get(i).undo(page);
+                    }
+                    frame.page = page;
+                }
+                noteLogged(pid);
+                page.setLSN(Math.max(lsn, Database.getLogFile().logWrite(tid.getId(), before, page, owners(tid))));
+                page.setBeforeImage();
+                page.markDirty(true, tid);
+            } catch (DbException e) {
+                throw new IOException("cannot roll back page " + pid + ": " + e.getMessage());
+            } finally {
+                frame.latch.writeLock().unlock();
+                frame.unpin();
+            }
         }
-        lockManager.releaseLock(tid);
     }
 
     /**
@@ -180,11 +984,16 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         ArrayList<Page> pages =  Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
 //        for(Page page:pages){
 //            page.markDirty(true,tid);
 //        }
         updateBufferPool(tid,pages);
+        // Ԫм¼ IDÿ
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insertEntry(tid, t);
+        }
     }
 
     /**
@@ -201,11 +1010,35 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        ArrayList<Page> pages =  Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        checkWritable(tid);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        ArrayList<Page> pages =  Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
 //        for(Page page:pages){
 //            page.markDirty(true,tid);
 //        }
         updateBufferPool(tid, pages);
+        // ɾԪ飬ļ¼֮ɾÿ
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.deleteEntry(tid, t);
+        }
+    }
+
+    /**
+     *  DbFile  insertTuple / deleteTuple ֮޸ĵҳΪ tid ҳtid ύʱд־ֹʱ.<br/>
+     * 1. ޸ĵһʧܵĲ B+ ʱѱѡΪߣ
+     *    Ѿԭ޸ĵҳظ insertTuple / deleteTuple <br/>
+     * 2.  insertTuple ޸ģ B+ ޸ĵĸָҳ档 <br/>
+     * @param tid        ID
+     * @param pages     ҳ漯
+     */
+    public void markDirtied(TransactionId tid, Collection<? extends Page> pages) {
+        updateBufferPool(tid, new ArrayList<>(pages));
+    }
+
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (versions.isSnapshot(tid)) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
     }
 
     /**
@@ -215,20 +1048,33 @@ public class BufferPool {
      * @param pages     ҳ漯
      */
     private void updateBufferPool(TransactionId tid, List<Page> pages){
+        Set<PageId> dirtied = dirtiedPages.computeIfAbsent(tid, k -> new HashSet<>());
         for (Page page : pages){
             // make dirty
             page.markDirty(true, tid);
-            int key = getKey(page.getId());
-            if(!this.pages.containsKey(key)) {
-                while (this.pages.size() >= numPages) {
-                    try {
-                        evictPage();
-                    } catch (DbException e) {
-                        e.printStackTrace();
+            dirtied.add(page.getId());
+            long key = getKey(page.getId());
+            try {
+                BufferFrame frame = null;
+                while (frame == null) {
+                    int index = pageTable.get(key);
+                    if (index == LongIntHashMap.NO_VALUE) {
+                        frame = loadFrame(page.getId(), page, false);
+                    } else if (frames[index].tryPin()) {
+                        frame = frames[index];
+                        if (frame.pageKey == key && (frame.isReady() || frame.awaitLoaded())) {
+                            frame.page = page;
+                            replacementPolicy.accessed(index, false);
+                        } else {
+                            frame.unpin();
+                            frame = null;
+                        }
                     }
                 }
+                frame.unpin();
+            } catch (DbException e) {
+                e.printStackTrace();
             }
-            this.pages.put(key, page);
         }
     }
 
@@ -237,204 +1083,372 @@ public class BufferPool {
      * @throws IOException
      */
     public synchronized void flushAllPages() throws IOException {
-        for(Page page : pages.values()){
-            flushPage(page.getId());
+        for(BufferFrame frame : frames){
+            Page page = frame.page;
+            if (page != null) {
+                flushPage(page.getId());
+            }
         }
     }
 
     /**
-     * ӻɾָҳ
+     * ӻɾָҳ棬ҳڱʹʱȴ unpin
      * @param pid
      */
-    public synchronized void discardPage(PageId pid) {
-        int key = getKey(pid);
-        pages.remove(key);
+    public void discardPage(PageId pid) {
+        long key = getKey(pid);
+        for (;;) {
+            int index = pageTable.get(key);
+            if (index == LongIntHashMap.NO_VALUE) {
+                return;
+            }
+            BufferFrame frame = frames[index];
+            if (!frame.tryClaim()) {
+                Thread.yield();
+                continue;
+            }
+            if (frame.pageKey == key && pageTable.remove(key, index)) {
+                dirtyPageTable.remove(pid);
+                replacementPolicy.removed(index);
+                frame.free();
+                releaseFrame(index);
+                return;
+            }
+            frame.unclaim();
+        }
     }
 
     /**
-     * ָҳˢµ̣дҳΪҳͬʱ䱣 BufferPool 
+     * ָҳˢµ̣дҳΪҳͬʱ䱣 BufferPool  <br/>
+     * ˢڼйţд޸һҳ
      * @param pid
      * @throws IOException
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Page page = pages.get(getKey(pid));
+    private void flushPage(PageId pid) throws IOException {
+        BufferFrame frame = pinIfResident(pid);
+        if (frame == null) {
+            return;
+        }
+        try {
+            frame.latch.readLock().lock();
+            try {
+                writeIfDirty(frame.page);
+            } finally {
+                frame.latch.readLock().unlock();
+            }
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * ҳڻѶʱ pin סҳ
+     * @param pid
+     * @return  pin ҳҳ治ڻлڱʱˢ̣ʱ null
+     */
+    private BufferFrame pinIfResident(PageId pid) {
+        long key = getKey(pid);
+        int index = pageTable.get(key);
+        if (index == LongIntHashMap.NO_VALUE) {
+            return null;
+        }
+        BufferFrame frame = frames[index];
+        if (!frame.tryPin()) {
+            return null;
+        }
+        if (frame.pageKey != key || !frame.isReady()) {
+            frame.unpin();
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * ҳдش̲Ϊҳҳδ޸ʱд־дǰ־ˢҳ pageLSN <br/>
+     * дغ󣨻ҳ汾ǸɾģҳƳҳ÷йŻѶռҳڼҳ治ᱻ޸
+     * @param page
+     * @throws IOException
+     */
+    private void writeIfDirty(Page page) throws IOException {
         if(page.isDirty() != null){
+            logBeforeWrite(page);
+            Database.getLogFile().flushTo(page.getLSN());
             DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             dbFile.writePage(page);
             page.markDirty(false,null);
         }
+        dirtyPageTable.remove(page.getId());
+    }
+
+    /**
+     * дǰ־޸ҳûнʱҳǰ޸д־ҳ pageLSN
+     * ԵǰΪǰ´ֻ¼֮޸ģ÷дҳǰ־ˢ pageLSN <br/>
+     * ύҳύʱѾд־
+     * @param page      йŻѶռҳҳ
+     * @throws IOException
+     */
+    private void logBeforeWrite(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null || !dirtiedPages.containsKey(dirtier)) {
+            return;
+        }
+        noteLogged(page.getId());
+        page.setLSN(Database.getLogFile().logWrite(dirtier.getId(), page.getBeforeImage(), page, owners(dirtier)));
+        page.setBeforeImage();
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * ָ޸Ĺҳдش̣ҳδ޸ʱд־ <br/>
+     * ύٵNO-FORCEҪ޸ľ䵽ļʱʹ
+     * @param tid        ID
+     * @throws IOException
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        Set<PageId> pages = dirtiedPages.get(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
+            flushPage(pid);
+        }
     }
 
     /**
-     * ӻһҳ档 ҳˢµȷҳڴϸ
+     * ӻһҳ档 ҳˢµȷҳڴϸ <br/>
+     * ҳûѡ pin ҳ治ᱻ
+     * @param cleanOnly Ƿֻɾҳ棨Ԥʱʹã
+     * @return ҳҳţҳɵ÷ռcleanOnly ûиɾҳʱ -1
      * @throws DbException
      */
-    private synchronized void evictPage() throws DbException {
-        // 򵥵̭
-        List<Integer> keys = new ArrayList<>(pages.keySet());
-        int randomKey = keys.get(new Random().nextInt(keys.size()));
-        PageId evictPid = pages.get(randomKey).getId();
+    private int evictPage(boolean cleanOnly) throws DbException {
+        evictionLock.lock();
         try {
-            flushPage(evictPid);
-        } catch (IOException e) {
-            e.printStackTrace();
+            for (;;) {
+                int index = replacementPolicy.victim(f -> frames[f].isEvictable() && !(cleanOnly && frames[f].isDirty()));
+                if (index < 0) {
+                    if (cleanOnly) {
+                        return -1;
+                    }
+                    throw new DbException("no page can be evicted from buffer pool: all pages are pinned");
+                }
+                BufferFrame frame = frames[index];
+                if (!frame.tryClaim()) {
+                    // ձ߳ pin ס
+                    continue;
+                }
+                if (cleanOnly && frame.isDirty()) {
+                    frame.unclaim();
+                    continue;
+                }
+                // ҳѱռû̳߳ţֱˢ̨̣ˢ߳ʱҳ
+                if (frame.isDirty()) {
+                    long start = System.nanoTime();
+                    try {
+                        writeIfDirty(frame.page);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    foregroundWrites.increment();
+                    foregroundWriteNanos.add(System.nanoTime() - start);
+                }
+                if (frame.page != null) {
+                    dirtyPageTable.remove(frame.page.getId());
+                }
+                if (frame.clearPrefetched()) {
+                    prefetchWasted.increment();
+                }
+                pageTable.remove(frame.pageKey, index);
+                replacementPolicy.removed(index);
+                frame.free();
+                if (cleanTarget > 0) {
+                    pageCleaner.wake();
+                }
+                return index;
+            }
+        } finally {
+            evictionLock.unlock();
         }
-        discardPage(evictPid);
     }
 
 
     /**
-     * ö࣬Ϊ <br/>
-     * 1. SHARED_LOCK               <br/>
-     * 2. EXCLUSIVE_LOCK            <br/>
+     * ̨ˢ̣Ѽ̭ҳǰдش <br/>
+     * ûԵ̭˳鿴ǰ cleanTarget * numPages ҳ򣨿ҳҲɾҳ򣩣ҳеҳ
+     * ͨ {@link #writePages(List)} дء
+     * @throws IOException
      */
-    enum LockType {
-        SHARED_LOCK, EXCLUSIVE_LOCK;
+    private void cleanPages() throws IOException {
+        int target = (int) Math.ceil(cleanTarget * numPages);
+        synchronized (freeFrames) {
+            target -= freeCount;
+        }
+        if (target <= 0) {
+            return;
+        }
+        final int candidates = target;
+        List<BufferFrame> dirty = new ArrayList<>();
+        int[] seen = {0};
+        replacementPolicy.scanCandidates(f -> {
+            BufferFrame frame = frames[f];
+            if (frame.isEvictable() && frame.isDirty()) {
+                dirty.add(frame);
+            }
+            return ++seen[0] < candidates;
+        });
+        cleanerPagesWritten.add(writePages(dirty));
     }
 
     /**
-     * Ϣ࣬ڼ¼Ϣ
+     * ƽ㣺д recLSN һҳдһ㣨 {@link LogFile#logCheckpoint()} <br/>
+     * ָ֮һ㸽ʼ־αɾֻдⲿҳ棬
+     * ͬһдҳдڼճС
+     * @throws IOException
      */
-    private class Lock {
-
-        /**
-         *  ID
-         */
-        TransactionId tid;
-        /**
-         * ͣ0 ʾ1 ʾ
-         */
-        LockType lockType;
-
-        public Lock(TransactionId tid, LockType lockType){
-            this.tid = tid;
-            this.lockType = lockType;
+    private void checkpoint() throws IOException {
+        LogFile log = Database.getLogFile();
+        long redoTarget = log.getCheckpointLSN();
+        List<BufferFrame> old = new ArrayList<>();
+        for (Map.Entry<PageId, Long> e : dirtyPageTable.entrySet()) {
+            if (e.getValue() < redoTarget) {
+                int index = pageTable.get(getKey(e.getKey()));
+                if (index != LongIntHashMap.NO_VALUE) {
+                    old.add(frames[index]);
+                }
+            }
         }
+        checkpointPagesWritten.add(writePages(old));
+        log.logCheckpoint();
     }
 
     /**
-     * 
+     * дҳеҳ <br/>
+     * ļ顢ҳͨ {@link DbFile#writePages(List)} дأҳϲΪһд
+     * дڼҳĹţдΪҳƳҳδ޸ĵҳд־
+     * ֻ־ˢҳ pageLSN һΡڱòŵҳ
+     * @param dirty     ҳ
+     * @return дصҳ
+     * @throws IOException
      */
-    private class LockManager {
-
-        /**
-         * ҳ
-         */
-        ConcurrentHashMap<PageId, Vector<Lock>> pageLocks = new ConcurrentHashMap<>();
-        /**
-         * 
-         */
-        ConcurrentHashMap<PageId, Object> txLocks = new ConcurrentHashMap<>();
-
-        /**
-         * ȡ <br/>
-         * ѳԻȡԻȡдд <br/>
-         * ע⣺µǰ޷ȡ֮Ҫеȴ֪ͨ    <br/>
-         * @return Ƿȡɹ
-         */
-        public synchronized boolean acquireLock(PageId pageId,Lock lock){
-            if(pageLocks.get(pageId) == null){ // ûɹ
-                Vector<Lock> locks = new Vector<>();
-                locks.add(lock);
-                pageLocks.put(pageId, locks);
-                return true;
-            }
-            Vector<Lock> locks = pageLocks.get(pageId);
-            for(Lock l : locks) {
-                if(l.tid.equals(lock.tid)) {
-                    if(l.lockType == lock.lockType) {
-                        return true;  // ѳ
-                    }
-                    else {
-                        if(l.lockType == LockType.EXCLUSIVE_LOCK){
-                            return true; // й
-                        }
-                        else if(l.lockType == LockType.SHARED_LOCK){
-                            if(locks.size() == 1){
-                                // д
-                                l.lockType = LockType.EXCLUSIVE_LOCK;
-                                return true;
-                            }
-                            else {
-                                return false;
-                            }
-                        }
-
-                    }
-                }
+    private int writePages(List<BufferFrame> dirty) throws IOException {
+        // ļ飬pin סй
+        Map<Integer, List<BufferFrame>> byTable = new HashMap<>();
+        int written = 0;
+        for (BufferFrame frame : dirty) {
+            if (!frame.tryPin()) {
+                continue;
             }
-            // ûйǹԼ
-            if(lock.lockType == LockType.SHARED_LOCK && locks.get(0).lockType== LockType.SHARED_LOCK){
-                locks.add(lock);
-                return true;
+            Page page = frame.page;
+            if (page == null || page.getId().pageKey() != frame.pageKey || !frame.latch.readLock().tryLock()) {
+                frame.unpin();
+                continue;
             }
-            return false;
+            byTable.computeIfAbsent(page.getId().getTableId(), k -> new ArrayList<>()).add(frame);
         }
-
-        /**
-         * ͷ
-         * @return true: ɹ false: û
-         */
-        public synchronized boolean releaseLock(TransactionId tid){
-            for(PageId pageId : pageLocks.keySet()){
-                if(holdsLock(pageId, tid)){
-                    boolean res = releaseLock(pageId, tid);
-                    if(!res){
-                        return false;
+        for (Map.Entry<Integer, List<BufferFrame>> entry : byTable.entrySet()) {
+            List<BufferFrame> latched = entry.getValue();
+            try {
+                latched.sort(Comparator.comparingInt(f -> f.page.getId().getPageNumber()));
+                List<Page> pages = new ArrayList<>(latched.size());
+                int lastPgNo = -2;
+                long maxLsn = 0;
+                for (BufferFrame frame : latched) {
+                    Page page = frame.page;
+                    if (page.isDirty() == null) {
+                        dirtyPageTable.remove(page.getId());
+                        continue;
                     }
-                    // TODOȫѣŻ
-                    Object object = getTxLock(pageId);
-                    object.notifyAll();
+                    logBeforeWrite(page);
+                    maxLsn = Math.max(maxLsn, page.getLSN());
+                    pages.add(page);
+                    int pgNo = page.getId().getPageNumber();
+                    if (pgNo != lastPgNo + 1) {
+                        cleanerWrites.increment();
+                    }
+                    lastPgNo = pgNo;
+                }
+                // һҳֻˢһ־
+                Database.getLogFile().flushTo(maxLsn);
+                Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(pages);
+                for (Page page : pages) {
+                    page.markDirty(false, null);
+                    dirtyPageTable.remove(page.getId());
+                }
+                written += pages.size();
+            } finally {
+                for (BufferFrame frame : latched) {
+                    frame.latch.readLock().unlock();
+                    frame.unpin();
                 }
             }
-            return true;
         }
+        return written;
+    }
+
+    /**
+     * ̨ˢ߳ <br/>
+     * ҳʱѣ־ʱύд㣻̰߳һʱԶ˳Ϊر滻
+     */
+    private class PageCleaner implements Runnable {
 
         /**
-         * ͷ
-         * @return true: ɹ false: û
+         * жú߳˳룩
          */
-        public synchronized boolean releaseLock(PageId pageId, TransactionId tid){
-            assert pageLocks.get(pageId) != null : "page not locked!";
-            Vector<Lock> locks = pageLocks.get(pageId);
-            for(Lock l : locks){
-                if(l.tid.equals(tid)){
-                    locks.remove(l);
-                    if(locks.size() == 0){
-                        pageLocks.remove(pageId);
-                    }
-                    return true;
-                }
-            }
-            return false;
-        }
+        private static final long IDLE_MILLIS = 1000;
+
+        private Thread thread;
+        private boolean requested;
+        private boolean checkpointRequested;
 
         /**
-         * жtixǷ
+         * ߳ƽ㲢д
          */
-        public synchronized boolean holdsLock(PageId pageId, TransactionId tid){
-            Vector<Lock> locks = pageLocks.get(pageId);
-            if(locks==null){
-                return false;
-            }
-            for(Lock l : locks){
-                if(l.tid.equals(tid)){
-                    return true;
-                }
+        synchronized void wakeForCheckpoint() {
+            checkpointRequested = true;
+            wake();
+        }
+
+        synchronized void wake() {
+            requested = true;
+            if (thread == null) {
+                thread = new Thread(this, "BufferPool-cleaner");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                notifyAll();
             }
-            return false;
         }
 
-        public Object getTxLock(PageId pageId){
-            txLocks.computeIfAbsent(pageId, k -> new Object());
-            return txLocks.get(pageId);
+        @Override
+        public void run() {
+            for (;;) {
+                boolean checkpoint;
+                synchronized (this) {
+                    if (!requested) {
+                        try {
+                            wait(IDLE_MILLIS);
+                        } catch (InterruptedException e) {
+                            thread = null;
+                            return;
+                        }
+                    }
+                    if (!requested) {
+                        thread = null;
+                        return;
+                    }
+                    requested = false;
+                    checkpoint = checkpointRequested;
+                    checkpointRequested = false;
+                }
+                try {
+                    cleanPages();
+                    // һǰύظ
+                    if (checkpoint && Database.getLogFile().isCheckpointDue()) {
+                        checkpoint();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
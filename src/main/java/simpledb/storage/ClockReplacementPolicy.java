@@ -0,0 +1,120 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK 置换策略 <br/>
+ * 每个页框有一个引用位，页面被访问时置位；时钟指针循环扫过页框，遇到引用位为 1 的页框时清零并跳过，
+ * 遇到引用位为 0 的页框时将其淘汰。<br/>
+ * "use once" 的页面载入时不置引用位，并按载入顺序记录在单独的队列中，淘汰时优先从队列中选取，
+ * 这样大表扫描只会反复复用少数几个页框，而不会让时钟指针清掉热点页面的引用位。<br/>
+ * 指针最多扫过两圈，每次淘汰的均摊开销为 O(1)。
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    /**
+     * 页框是否有页面
+     */
+    private final boolean[] resident;
+    /**
+     * 引用位
+     */
+    private final boolean[] referenced;
+    /**
+     * 页框中是否为 "use once" 的页面
+     */
+    private final boolean[] useOnce;
+    /**
+     * "use once" 页框队列，按载入顺序排列，可能包含已失效的页框，淘汰时清理
+     */
+    private final ArrayDeque<Integer> useOnceFrames;
+    /**
+     * 时钟指针
+     */
+    private int hand;
+
+    public ClockReplacementPolicy(int capacity) {
+        this.resident = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.useOnce = new boolean[capacity];
+        this.useOnceFrames = new ArrayDeque<>();
+        this.hand = 0;
+    }
+
+    @Override
+    public synchronized void loaded(int frame, boolean useOnce) {
+        resident[frame] = true;
+        referenced[frame] = !useOnce;
+        this.useOnce[frame] = useOnce;
+        if (useOnce) {
+            useOnceFrames.addLast(frame);
+        }
+    }
+
+    /**
+     * 命中路径上调用，不加锁：只写本页框的标志位，与 victim 并发时最多让页面多或少得到一次机会
+     */
+    @Override
+    public void accessed(int frame, boolean useOnce) {
+        if (!useOnce && !referenced[frame]) {
+            // 被非扫描访问命中后按普通页面处理；已置位时不再写，避免多核间来回传递缓存行
+            referenced[frame] = true;
+            this.useOnce[frame] = false;
+        }
+    }
+
+    @Override
+    public synchronized void removed(int frame) {
+        resident[frame] = false;
+        referenced[frame] = false;
+        useOnce[frame] = false;
+    }
+
+    @Override
+    public synchronized int victim(IntPredicate evictable) {
+        // 优先淘汰 "use once" 的页面
+        Iterator<Integer> it = useOnceFrames.iterator();
+        while (it.hasNext()) {
+            int frame = it.next();
+            if (!resident[frame] || !useOnce[frame]) {
+                it.remove();
+            } else if (evictable.test(frame)) {
+                it.remove();
+                return frame;
+            }
+        }
+        int capacity = resident.length;
+        // 第一圈清除引用位，第二圈一定能遇到引用位为 0 的可淘汰页框
+        for (int i = 0; i < 2 * capacity; i++) {
+            int frame = hand;
+            hand = (hand + 1) % capacity;
+            if (!resident[frame] || !evictable.test(frame)) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void scanCandidates(IntPredicate visitor) {
+        for (int frame : useOnceFrames) {
+            if (resident[frame] && useOnce[frame] && !visitor.test(frame)) {
+                return;
+            }
+        }
+        int capacity = resident.length;
+        for (int i = 0; i < capacity; i++) {
+            int frame = (hand + i) % capacity;
+            if (resident[frame] && !useOnce[frame] && !visitor.test(frame)) {
+                return;
+            }
+        }
+    }
+}
@@ -34,6 +34,29 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * ҳݹļһҳ棬־¼ʱʹãʱ̡
+     * @param id        ҳ ID
+     * @param data      ҳݣҳֱ
+     * @return
+     * @throws IOException
+     */
+    default Page newPage(PageId id, byte[] data) throws IOException {
+        throw new UnsupportedOperationException("cannot build pages of " + getClass().getSimpleName());
+    }
+
+    /**
+     * һҳ͵̨̣ˢ߳ʹá <br/>
+     * Ĭҳ {@link #writePage(Page)}ʵ԰ҳ򲢺ϲҳд롣
+     * @param pages     ͬһļеҳ
+     * @throws IOException
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,329 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * 堆文件的空闲空间映射（FSM） <br/>
+ * 每个页面记录一个字节的填充级别：0 表示已满，1~255 表示空闲槽位占比（向上取整），插入时不再从第 0 页开始逐页查找。<br/>
+ * 1. 内存中的级别反映缓冲池中页面的最新状态，插入、删除后由 HeapFile 更新；
+ *    另用一个位图记录有空闲槽位的页面，查找时从游标处向后找下一个置位的页面。 <br/>
+ * 2. 打开持久化（{@link #setPersistent(boolean)}，目录中的表才打开）时保存在数据文件旁的 .fsm 文件中：
+ *    文件头是写出时数据文件的页数，之后第 i 个字节是第 i 页写入磁盘时的已用比例（255 - 级别），
+ *    这样文件中没写过的位置读出来是 0，和未知的页面一样当作有空闲槽位。
+ *    页面写盘时只在内存中记下级别，HeapFile 写完一批页面后调用 {@link #flush(int)} 一次写出，数据页的每次写入不会再多一次写。
+ *    文件头的页数多于数据文件时（数据文件被删除后重建）整个文件被忽略，少于数据文件时之后的页面当作有空闲槽位。 <br/>
+ * 3. FSM 只是提示，页面本身才是准确的：按提示找到的页面已满时，HeapFile 把它标记为满后再找下一个。 <br/>
+ * 4. 每个插入事务认领一个页面，之后的插入都放在这个页面上直到它满；其他事务跳过仍被认领者锁住的页面，
+ *    没有可用页面时追加新页，所以并发插入的事务分散在不同页面上，不会都等同一个页面的排它锁。 <br/>
+ * 5. .fsm 文件由 FSM 自己管理：不持久化时从不创建，数据文件被删除后 {@link #flush(int)} 把它一起删除而不是重建。
+ */
+public class FreeSpaceMap {
+
+    /**
+     * 认领记录超过这个数量时清理已经结束的事务
+     */
+    private static final int MAX_CLAIMS = 1024;
+    /**
+     * .fsm 文件头的长度，文件头是写出时数据文件的页数
+     */
+    private static final int HEADER_SIZE = 4;
+
+    private final File file;
+    private final File dataFile;
+    private PagedFile pagedFile;
+    /**
+     * 是否把级别保存在 .fsm 文件中
+     */
+    private volatile boolean persistent;
+
+    /**
+     * 每页的填充级别，下标是页号
+     */
+    private byte[] levels = new byte[0];
+    /**
+     * 有空闲槽位（或级别未知）的页面
+     */
+    private final BitSet room = new BitSet();
+    /**
+     * 级别已知的页面数，之后的页面当作有空闲槽位
+     */
+    private int known = -1;
+    /**
+     * 下一次从哪个页面开始查找
+     */
+    private int cursor;
+    /**
+     * 每页最近一次写盘时的已用比例（255 - 级别），下标是页号；[dirtyFrom, dirtyTo) 还没有写出到 .fsm 文件
+     */
+    private byte[] used = new byte[0];
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo;
+    /**
+     * 保证写出 .fsm 文件的线程依次写完
+     */
+    private final Object flushLock = new Object();
+
+    private final Map<TransactionId, Integer> claimedPage = new HashMap<>();
+    private final Map<Integer, TransactionId> claimedBy = new HashMap<>();
+
+    /**
+     * @param dataFile  堆文件的数据文件，FSM 保存在同目录的 &lt;文件名&gt;.fsm 中
+     */
+    public FreeSpaceMap(File dataFile) {
+        this.dataFile = dataFile;
+        this.file = new File(dataFile.getPath() + ".fsm");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 打开或关闭持久化，要在第一次使用之前设置；关闭时不读也不写 .fsm 文件
+     */
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * 空闲槽位数对应的级别
+     * @param freeSlots 页面的空闲槽位数
+     * @param numSlots  页面的槽位数
+     * @return 0 表示已满，否则为 1~255
+     */
+    public static int level(int freeSlots, int numSlots) {
+        if (freeSlots <= 0) {
+            return 0;
+        }
+        return Math.max(1, Math.min(255, (freeSlots * 255 + numSlots - 1) / numSlots));
+    }
+
+    /**
+     * 为事务 tid 找一个有空闲槽位的页面并记为由它认领
+     * @param tid       插入的事务
+     * @param numPages  数据文件当前的页数
+     * @param active    认领者是否还在使用该页面（仍持有页面锁），不在使用的认领会被忽略
+     * @return 页号，没有可用页面时返回 -1，调用方应追加新页并调用 {@link #claim(TransactionId, int, int, int)}
+     */
+    public synchronized int findPage(TransactionId tid, int numPages, BiPredicate<TransactionId, Integer> active) {
+        load(numPages);
+        Integer own = claimedPage.get(tid);
+        if (own != null) {
+            if (room.get(own)) {
+                return own;
+            }
+            unclaim(own);
+        }
+        if (claimedBy.size() > MAX_CLAIMS) {
+            sweep(active);
+        }
+        int start = cursor < numPages ? cursor : 0;
+        int pgNo = findUnclaimed(start, numPages, active);
+        if (pgNo < 0 && start > 0) {
+            pgNo = findUnclaimed(0, start, active);
+        }
+        if (pgNo >= 0) {
+            unclaim(pgNo);
+            claimedBy.put(pgNo, tid);
+            claimedPage.put(tid, pgNo);
+            cursor = pgNo + 1;
+        }
+        return pgNo;
+    }
+
+    /**
+     * [from, to) 中第一个有空闲槽位、且没有被仍在使用的事务认领的页面
+     */
+    private int findUnclaimed(int from, int to, BiPredicate<TransactionId, Integer> active) {
+        for (int pgNo = room.nextSetBit(from); pgNo >= 0 && pgNo < to; pgNo = room.nextSetBit(pgNo + 1)) {
+            TransactionId owner = claimedBy.get(pgNo);
+            if (owner == null || !active.test(owner, pgNo)) {
+                return pgNo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 记录新追加的页面，并由 tid 认领
+     */
+    public synchronized void claim(TransactionId tid, int pgNo, int freeSlots, int numSlots) {
+        update(pgNo, freeSlots, numSlots);
+        Integer own = claimedPage.remove(tid);
+        if (own != null) {
+            claimedBy.remove(own);
+        }
+        claimedBy.put(pgNo, tid);
+        claimedPage.put(tid, pgNo);
+    }
+
+    /**
+     * 更新缓冲池中页面的空闲槽位数
+     */
+    public synchronized void update(int pgNo, int freeSlots, int numSlots) {
+        load(pgNo + 1);
+        int level = level(freeSlots, numSlots);
+        levels[pgNo] = (byte) level;
+        room.set(pgNo, level > 0);
+        if (level == 0) {
+            unclaim(pgNo);
+        } else if (pgNo < cursor && !claimedBy.containsKey(pgNo)) {
+            // 删除腾出的空间优先使用
+            cursor = pgNo;
+        }
+    }
+
+    /**
+     * 内存中记录的页面级别，未知时返回 -1
+     */
+    public synchronized int getLevel(int pgNo) {
+        if (known < 0 || pgNo >= known) {
+            return -1;
+        }
+        return levels[pgNo] & 0xff;
+    }
+
+    /**
+     * 记录从 firstPgNo 开始的页面写盘时的级别，只改内存，由之后的 {@link #flush(int)} 写出
+     * @param firstPgNo 第一个页面的页号
+     * @param diskLevels 连续页面的级别
+     */
+    public synchronized void persist(int firstPgNo, byte[] diskLevels) {
+        if (!persistent) {
+            return;
+        }
+        int end = firstPgNo + diskLevels.length;
+        load(end);
+        for (int i = 0; i < diskLevels.length; i++) {
+            used[firstPgNo + i] = (byte) (255 - (diskLevels[i] & 0xff));
+        }
+        dirtyFrom = Math.min(dirtyFrom, firstPgNo);
+        dirtyTo = Math.max(dirtyTo, end);
+    }
+
+    /**
+     * 把 {@link #persist(int, byte[])} 记下、还没写出的级别写入 .fsm 文件，并在文件头记下数据文件的页数 <br/>
+     * 数据文件已被删除时删除 .fsm 文件。
+     * @param numPages  数据文件当前的页数
+     */
+    public void flush(int numPages) throws IOException {
+        synchronized (flushLock) {
+            int from;
+            byte[] range;
+            synchronized (this) {
+                if (dirtyFrom >= dirtyTo) {
+                    return;
+                }
+                from = dirtyFrom;
+                range = Arrays.copyOfRange(used, dirtyFrom, dirtyTo);
+                dirtyFrom = Integer.MAX_VALUE;
+                dirtyTo = 0;
+            }
+            if (!dataFile.exists()) {
+                // 例如退出时删除的临时表：不再重建 .fsm 文件
+                close();
+                file.delete();
+                return;
+            }
+            pagedFile().write(HEADER_SIZE + from, range);
+            pagedFile().write(0, ByteBuffer.allocate(HEADER_SIZE).putInt(numPages).array());
+        }
+    }
+
+    /**
+     * 关闭 .fsm 文件
+     */
+    public synchronized void close() throws IOException {
+        if (pagedFile != null) {
+            pagedFile.close();
+        }
+    }
+
+    private synchronized PagedFile pagedFile() {
+        if (pagedFile == null) {
+            pagedFile = new PagedFile(file);
+        }
+        return pagedFile;
+    }
+
+    /**
+     * 第一次使用时读取 .fsm 文件，读取失败或文件头的页数多于数据文件时所有页面的级别都未知；
+     * 之后数据文件变长时把新增的页面当作有空闲槽位
+     */
+    private void load(int numPages) {
+        if (known < 0) {
+            known = 0;
+            if (persistent && file.length() > HEADER_SIZE) {
+                try {
+                    byte[] buf = new byte[(int) file.length()];
+                    pagedFile().read(0, buf);
+                    int stamp = ByteBuffer.wrap(buf).getInt();
+                    long dataPages = (dataFile.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize();
+                    if (stamp <= dataPages) {
+                        int count = Math.min(stamp, buf.length - HEADER_SIZE);
+                        ensureCapacity(count);
+                        for (int i = 0; i < count; i++) {
+                            used[i] = buf[HEADER_SIZE + i];
+                            levels[i] = (byte) (255 - (used[i] & 0xff));
+                            room.set(i, levels[i] != 0);
+                        }
+                        known = count;
+                    }
+                } catch (IOException e) {
+                    room.clear();
+                }
+            }
+        }
+        if (numPages > known) {
+            ensureCapacity(numPages);
+            room.set(known, numPages);
+            for (int i = known; i < numPages; i++) {
+                levels[i] = (byte) 255;
+            }
+            known = numPages;
+        }
+    }
+
+    private void ensureCapacity(int numPages) {
+        if (levels.length < numPages) {
+            int capacity = Math.max(numPages, levels.length * 2);
+            levels = Arrays.copyOf(levels, capacity);
+            used = Arrays.copyOf(used, capacity);
+        }
+    }
+
+    private void unclaim(int pgNo) {
+        TransactionId owner = claimedBy.remove(pgNo);
+        if (owner != null) {
+            claimedPage.remove(owner);
+        }
+    }
+
+    /**
+     * 清理已经不再使用所认领页面的事务
+     */
+    private void sweep(BiPredicate<TransactionId, Integer> active) {
+        Iterator<Map.Entry<Integer, TransactionId>> it = claimedBy.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, TransactionId> e = it.next();
+            if (!active.test(e.getValue(), e.getKey())) {
+                claimedPage.remove(e.getValue());
+                it.remove();
+            }
+        }
+    }
+}
@@ -3,10 +3,13 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.excution.OpIterator;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -25,8 +28,28 @@ public class HeapFile implements DbFile {
      */
     private File file;
 
+    /**
+     * the open channel pages of this file are read and written through.
+     */
+    private final PagedFile pagedFile;
+
     private TupleDesc tupleDesc;
 
+    /**
+     * which pages have empty slots, so inserts do not have to search the file.
+     */
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * whether iterators decode pages straight from a read-only mapping of the file.
+     */
+    private volatile boolean memoryMappedScan;
+
+    /**
+     * the current mapping used by memory-mapped scans, replaced when the file grows.
+     */
+    private MappedPages mappedPages;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -36,7 +59,9 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         this.file = f;
+        this.pagedFile = new PagedFile(f);
         this.tupleDesc = td;
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -80,72 +105,221 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         int tableId = pid.getTableId();
         int pgNo = pid.getPageNumber();
-        RandomAccessFile f = null;
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pgNo * pageSize;
         try {
-            f = new RandomAccessFile(file,"r");
-            if((pgNo+1)* BufferPool.getPageSize()>f.length()){
+            // the cached length only grows through this file; re-check before
+            // rejecting in case the page was appended some other way
+            if (pgNo < 0 || (offset + pageSize > pagedFile.length() && offset + pageSize > pagedFile.refreshLength())) {
                 throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
             }
-            byte[] bytes = new byte[BufferPool.getPageSize()];
-            f.seek(pgNo*BufferPool.getPageSize());
-            int read = f.read(bytes,0,BufferPool.getPageSize());
-            if(read!=BufferPool.getPageSize()){
-                throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
-            }
-            return new HeapPage((HeapPageId) pid,bytes);
+            byte[] bytes = new byte[pageSize];
+            pagedFile.read(offset, bytes);
+            return newPage(pid, bytes);
         } catch (IOException e) {
             e.printStackTrace();
-        }finally {
-            try {
-                f.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
         throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableId, pgNo));
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public Page newPage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     @Override
     public void writePage(Page page) throws IOException {
-        RandomAccessFile f = new RandomAccessFile(file,"rw");
         int pgNo = page.getId().getPageNumber();
-        f.seek(pgNo*BufferPool.getPageSize());
-        f.write(page.getPageData());
-        f.close();
+        pagedFile.write((long) pgNo * BufferPool.getPageSize(), page.getPageData());
+        HeapPage heapPage = (HeapPage) page;
+        freeSpace.update(pgNo, heapPage.getNumEmptySlots(), heapPage.numSlots);
+        freeSpace.persist(pgNo, new byte[]{(byte) freeSpaceLevel(heapPage)});
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Writes the pages in page number order; runs of adjacent pages are
+     * written with a single positioned write.
+     * @see DbFile#writePages
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        List<Page> sorted = new ArrayList<>(pages);
+        sorted.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+        int pageSize = BufferPool.getPageSize();
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start + 1;
+            while (end < sorted.size() && sorted.get(end).getId().getPageNumber()
+                    == sorted.get(end - 1).getId().getPageNumber() + 1) {
+                end++;
+            }
+            byte[] run = new byte[(end - start) * pageSize];
+            byte[] levels = new byte[end - start];
+            for (int i = start; i < end; i++) {
+                System.arraycopy(sorted.get(i).getPageData(), 0, run, (i - start) * pageSize, pageSize);
+                HeapPage page = (HeapPage) sorted.get(i);
+                freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots(), page.numSlots);
+                levels[i - start] = (byte) freeSpaceLevel(page);
+            }
+            int firstPgNo = sorted.get(start).getId().getPageNumber();
+            pagedFile.write((long) firstPgNo * pageSize, run);
+            freeSpace.persist(firstPgNo, levels);
+            start = end;
+        }
+        // one write of the side file for the whole batch, including the
+        // levels of pages written one at a time since the last batch
+        freeSpace.flush(cachedNumPages());
+    }
+
+    private static int freeSpaceLevel(HeapPage page) {
+        return FreeSpaceMap.level(page.getNumEmptySlots(), page.numSlots);
+    }
+
+    /**
+     * Returns the number of pages from the cached length of the file; pages
+     * are only appended through pagedFile, so it is current.
+     */
+    private int cachedNumPages() throws IOException {
+        return (int) Math.ceil(pagedFile.length() * 1.0 / BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the free space map of this file. For tables of the catalog its
+     * levels are also kept in a side file next to the heap file, written
+     * once per batch of page writes.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * Turns memory-mapped scans on or off. With it on, iterators decode tuples
+     * directly from a read-only mapping of the file instead of reading each
+     * page into the buffer pool. Page locks are still taken through the
+     * BufferPool, and a page that is dirty in the pool is read from the pool,
+     * since the file does not hold its latest contents yet. Meant for large
+     * tables that are scanned far more often than they are modified.
+     */
+    public void setMemoryMappedScan(boolean enabled) {
+        this.memoryMappedScan = enabled;
+    }
+
+    public boolean isMemoryMappedScan() {
+        return memoryMappedScan;
+    }
+
+    /**
+     * Returns a mapping that covers at least the given number of pages,
+     * remapping the file if it has grown or the page size has changed.
+     */
+    private synchronized MappedPages mappedPages(int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        // a read-only mapping cannot extend the file, so leave out a partial last page
+        numPages = (int) Math.min(numPages, pagedFile.length() / pageSize);
+        if (mappedPages == null || mappedPages.pageSize != pageSize || mappedPages.numPages < numPages) {
+            mappedPages = new MappedPages(pagedFile, pageSize, numPages);
+        }
+        return mappedPages;
+    }
+
+    /**
+     * A read-only mapping of the first numPages pages of a file. The file is
+     * mapped in segments of whole pages, since a single MappedByteBuffer
+     * cannot be larger than 2GB.
+     */
+    private static class MappedPages {
+        private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+        final int pageSize;
+        final int numPages;
+        final int pagesPerSegment;
+        final MappedByteBuffer[] segments;
+
+        MappedPages(PagedFile file, int pageSize, int numPages) throws IOException {
+            this.pageSize = pageSize;
+            this.numPages = numPages;
+            this.pagesPerSegment = Math.max(1, MAX_SEGMENT_BYTES / pageSize);
+            this.segments = new MappedByteBuffer[(numPages + pagesPerSegment - 1) / pagesPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int pages = Math.min(pagesPerSegment, numPages - i * pagesPerSegment);
+                segments[i] = file.map((long) i * pagesPerSegment * pageSize, (long) pages * pageSize);
+            }
+        }
+
+        Iterator<Tuple> iterator(HeapPageId pid) {
+            int pgNo = pid.getPageNumber();
+            ByteBuffer segment = segments[pgNo / pagesPerSegment];
+            return HeapPage.iterator(pid, segment, (pgNo % pagesPerSegment) * pageSize);
+        }
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. This asks the open channel
+     * for the current size, so pages appended by other writers are counted;
+     * callers looping over pages should read it once rather than per page.
      */
     public int numPages() {
-        return (int) Math.ceil(file.length()*1.0/BufferPool.getPageSize());
+        try {
+            return (int) Math.ceil(pagedFile.refreshLength()*1.0/BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
     @Override
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        //TODO: add and release lock?
+        // tuples are locked one record at a time, so several transactions may
+        // modify the same page; the page itself is changed under an exclusive
+        // latch so concurrent writers, readers and the buffer pool never see a
+        // half-written page. The free space map picks the page; it is only a
+        // hint, so a page it offers may turn out to be full, in which case it
+        // is corrected and the next one is tried.
+        BufferPool bufferPool = Database.getBufferPool();
         ArrayList<Page> modifyPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i), Permissions.READ_WRITE);
-            if(page.getNumEmptySlots()>0){
-                page.insertTuple(t);
-                modifyPages.add(page);
-                break;
-            }
-        }
-        if(modifyPages.isEmpty()){
-            int newPgNo = numPages();
-            RandomAccessFile f = new RandomAccessFile(file,"rw");
-            f.seek(f.length());
-            byte[] data = HeapPage.createEmptyPageData();
-            f.write(data);
-            f.close();
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),newPgNo),Permissions.READ_WRITE);
-            page.insertTuple(t);
-            modifyPages.add(page);
+        int tableId = getId();
+        // asking the channel for its size here would serialize inserters
+        int numPages = cachedNumPages();
+        while (modifyPages.isEmpty()) {
+            int pgNo = freeSpace.findPage(tid, numPages,
+                    (owner, p) -> bufferPool.holdsLock(owner, new HeapPageId(tableId, p)));
+            boolean appended = pgNo < 0;
+            if (appended) {
+                long offset = pagedFile.append(HeapPage.createEmptyPageData());
+                pgNo = (int) (offset / BufferPool.getPageSize());
+            }
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            HeapPage page = (HeapPage) bufferPool.latchPageForRecords(tid, pid);
+            try {
+                for (int slot = 0; slot < page.numSlots && modifyPages.isEmpty(); slot++) {
+                    // a slot emptied by a delete that has not committed yet is
+                    // still locked by the deleter, which may have to restore it
+                    RecordId rid = new RecordId(pid, slot);
+                    if (!page.isSlotUsed(slot) && bufferPool.tryLockRecord(tid, rid, Permissions.READ_WRITE)) {
+                        // snapshot readers keep seeing the slot empty until tid commits
+                        bufferPool.versions().recordWrite(tid, rid, null);
+                        page.insertTuple(t, slot);
+                        page.markDirty(true, tid);
+                        modifyPages.add(page);
+                    }
+                }
+                if (appended) {
+                    freeSpace.claim(tid, pgNo, page.getNumEmptySlots(), page.numSlots);
+                } else if (modifyPages.isEmpty()) {
+                    // only locked slots are left; treat the page as full until it is written
+                    freeSpace.update(pgNo, 0, page.numSlots);
+                } else {
+                    freeSpace.update(pgNo, page.getNumEmptySlots(), page.numSlots);
+                }
+            } finally {
+                bufferPool.unlatchPage(pid, Permissions.READ_WRITE);
+            }
         }
         return modifyPages;
     }
@@ -155,12 +329,245 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         ArrayList<Page> modifyPages = new ArrayList<Page>();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),Permissions.READ_WRITE);
-        page.deleteTuple(t);
-        modifyPages.add(page);
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("tuple has no record id");
+        }
+        PageId pid = rid.getPageId();
+        BufferPool bufferPool = Database.getBufferPool();
+        // lock the record before latching: lockRecord may block
+        bufferPool.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) bufferPool.latchPageForRecords(tid, pid);
+        try {
+            Tuple before = page.getTuple(rid.getTupleNumber());
+            if (before == null) {
+                throw new DbException("tuple slot is already empty: " + t);
+            }
+            bufferPool.versions().recordWrite(tid, rid, before);
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+            modifyPages.add(page);
+            freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots(), page.numSlots);
+        } finally {
+            bufferPool.unlatchPage(pid, Permissions.READ_WRITE);
+        }
         return modifyPages;
     }
 
+    /**
+     * Returns the tuple stored under a record id, as part of transaction tid,
+     * for index lookups that find tuples by record id. The page is read under
+     * a shared lock, as a scan reads it.
+     *
+     * @return the tuple, or null if the slot is empty
+     * @throws DbException if the record id is not in this file, or tid is a
+     *         snapshot reader, whose snapshot an index does not keep
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException,
+            TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        long end = (long) (pid.getPageNumber() + 1) * BufferPool.getPageSize();
+        try {
+            // index lookups call this once per tuple, so only ask the channel
+            // for the file size when the cached length is too short, as readPage does
+            if (pid.getTableId() != getId() || pid.getPageNumber() < 0
+                    || (end > pagedFile.length() && end > pagedFile.refreshLength())) {
+                throw new DbException("record id is not in this file: " + rid);
+            }
+        } catch (IOException e) {
+            throw new DbException("unable to read the length of " + file + ": " + e.getMessage());
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        if (bufferPool.isSnapshot(tid)) {
+            throw new DbException("snapshot readers cannot read tuples by record id");
+        }
+        HeapPage page = (HeapPage) bufferPool.latchPage(tid, pid, Permissions.READ_ONLY);
+        try {
+            return page.getTuple(rid.getTupleNumber());
+        } finally {
+            bufferPool.unlatchPage(pid, Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * the number of pages a BulkLoader fills before appending them to the file.
+     */
+    public static final int EXTENT_PAGES = 64;
+
+    /**
+     * Appends every tuple of source to new pages at the end of this file as
+     * part of transaction tid. Unlike insertTuple, the tuples do not go
+     * through the BufferPool; see {@link BulkLoader}.
+     *
+     * @param source an open iterator; it is read to the end
+     * @return the number of tuples appended
+     */
+    public int bulkInsert(TransactionId tid, OpIterator source)
+            throws DbException, IOException, TransactionAbortedException {
+        BulkLoader loader = bulkLoader(tid);
+        while (source.hasNext()) {
+            loader.add(source.next());
+        }
+        loader.finish();
+        return loader.getCount();
+    }
+
+    /**
+     * Returns a loader that appends tuples to new pages at the end of this
+     * file as part of transaction tid.
+     */
+    public BulkLoader bulkLoader(TransactionId tid) {
+        return new BulkLoader(tid);
+    }
+
+    /**
+     * Loads tuples into new pages appended to the end of the file. Pages are
+     * filled in an extent buffer of {@link #EXTENT_PAGES} pages that is
+     * written with one positioned write once it is full. For each extent the
+     * loader takes exclusive locks on the new pages, so other transactions do
+     * not see them before tid commits, and logs a single BULK_APPEND record
+     * instead of page images; aborting tid through its Transaction empties
+     * the pages again. {@link #finish()} forces the file, so the tuples are
+     * durable before the commit record is written.
+     * <p>
+     * The loaded tuples are not assigned RecordIds, and the pages are never
+     * in the BufferPool, so tid has no dirty pages to flush for them.
+     */
+    public class BulkLoader {
+        private final TransactionId tid;
+        private final int pageSize;
+        private final int numSlots;
+        private final int headerSize;
+        private final int tupleSize;
+        private final byte[] extent;
+        private final ExtentOutput output;
+        private final DataOutputStream dos;
+        /** the page of the extent being filled */
+        private int page;
+        /** the next free slot on that page */
+        private int slot;
+        private int count;
+
+        private BulkLoader(TransactionId tid) {
+            this.tid = tid;
+            this.pageSize = BufferPool.getPageSize();
+            this.numSlots = HeapPage.numSlots(tupleDesc);
+            this.headerSize = (numSlots + 7) / 8;
+            this.tupleSize = tupleDesc.getSize();
+            this.extent = new byte[EXTENT_PAGES * pageSize];
+            this.output = new ExtentOutput(extent);
+            this.dos = new DataOutputStream(output);
+        }
+
+        /**
+         * Adds t to the page being filled, appending the extent to the file
+         * first if it is full.
+         */
+        public void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+            if (!t.getTupleDesc().equals(tupleDesc)) {
+                throw new DbException("tupledesc is mismatch: " + t.getTupleDesc());
+            }
+            if (slot == numSlots) {
+                page++;
+                slot = 0;
+                if (page == EXTENT_PAGES) {
+                    flush();
+                }
+            }
+            int pageOffset = page * pageSize;
+            output.position = pageOffset + headerSize + slot * tupleSize;
+            for (int i = 0; i < tupleDesc.numFields(); i++) {
+                t.getField(i).serialize(dos);
+            }
+            if (output.position != pageOffset + headerSize + (slot + 1) * tupleSize) {
+                throw new DbException("tuple does not match the size of its TupleDesc: " + t);
+            }
+            extent[pageOffset + slot / 8] |= 1 << (slot % 8);
+            slot++;
+            count++;
+        }
+
+        /**
+         * Appends the pages still in the buffer and forces the file to disk.
+         */
+        public void finish() throws IOException, TransactionAbortedException, DbException {
+            flush();
+            pagedFile.force();
+            freeSpace.flush(cachedNumPages());
+        }
+
+        /**
+         * @return the number of tuples added so far
+         */
+        public int getCount() {
+            return count;
+        }
+
+        private void flush() throws IOException, TransactionAbortedException, DbException {
+            int numPages = slot > 0 ? page + 1 : page;
+            if (numPages > 0) {
+                appendExtent(tid, numPages == EXTENT_PAGES ? extent : Arrays.copyOf(extent, numPages * pageSize),
+                        numPages, slot > 0 ? numSlots - slot : 0, numSlots);
+                Arrays.fill(extent, 0, numPages * pageSize, (byte) 0);
+            }
+            page = 0;
+            slot = 0;
+        }
+    }
+
+    /**
+     * Appends numPages full pages held in data to the end of the file for
+     * tid; the last page has lastFree empty slots.
+     */
+    private void appendExtent(TransactionId tid, byte[] data, int numPages, int lastFree, int numSlots)
+            throws IOException, TransactionAbortedException, DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        int pageSize = BufferPool.getPageSize();
+        int first;
+        // PagedFile.append synchronizes on the PagedFile too, so no other
+        // page can be appended between reading the length and writing
+        synchronized (pagedFile) {
+            first = (int) ((pagedFile.refreshLength() + pageSize - 1) / pageSize);
+            for (int i = 0; i < numPages; i++) {
+                HeapPageId pid = new HeapPageId(getId(), first + i);
+                bufferPool.lockPage(tid, pid, Permissions.READ_WRITE);
+                bufferPool.versions().recordNewPage(tid, pid);
+            }
+            Database.getLogFile().logBulkAppend(tid, getId(), first, numPages);
+            pagedFile.write((long) first * pageSize, data);
+        }
+        byte[] levels = new byte[numPages];
+        for (int i = 0; i < numPages; i++) {
+            int free = i == numPages - 1 ? lastFree : 0;
+            freeSpace.update(first + i, free, numSlots);
+            levels[i] = (byte) FreeSpaceMap.level(free, numSlots);
+        }
+        freeSpace.persist(first, levels);
+    }
+
+    /**
+     * Writes into a byte array at a movable position.
+     */
+    private static class ExtentOutput extends OutputStream {
+        private final byte[] buf;
+        int position;
+
+        ExtentOutput(byte[] buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public void write(int b) {
+            buf[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buf, position, len);
+            position += len;
+        }
+    }
+
     // see DbFile.java for javadocs
     @Override
     public DbFileIterator iterator(TransactionId tid) {
@@ -172,6 +579,20 @@ public class HeapFile implements DbFile {
         private TransactionId transactionId;
         private Iterator<Tuple> iterator;
         private int currPage;
+        private int numPages;
+        /**
+         * the mapping pages are decoded from, null unless the scan is memory-mapped
+         */
+        private MappedPages mapped;
+        /**
+         * prefetches the pages ahead of a buffered scan
+         */
+        private ReadAhead readAhead;
+        /**
+         * whether the scan belongs to a read-only transaction that reads its
+         * snapshot without taking locks
+         */
+        private boolean snapshot;
 
         public HeapFileIterator(HeapFile heapFile,TransactionId tid){
             this.heapFile = heapFile;
@@ -179,18 +600,71 @@ public class HeapFile implements DbFile {
         }
 
         private Iterator<Tuple> getIterator(int pageNumber) throws TransactionAbortedException, DbException {
-            if(pageNumber>=0&&pageNumber<heapFile.numPages()){
+            if(pageNumber>=0&&pageNumber<numPages){
                 HeapPageId pageId = new HeapPageId(heapFile.getId(),pageNumber);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(transactionId,pageId,Permissions.READ_ONLY);
-                return page.iterator();
+                // sequential scan touches each page once; hint the buffer pool so it is not kept over hot pages
+                BufferPool bufferPool = Database.getBufferPool();
+                if (snapshot) {
+                    HeapPage page = (HeapPage) bufferPool.latchPageForSnapshot(transactionId, pageId, true);
+                    try {
+                        return bufferPool.versions().visibleTuples(transactionId, page);
+                    } finally {
+                        bufferPool.unlatchPage(pageId, Permissions.READ_ONLY);
+                        readAhead.accessed(pageId, page);
+                    }
+                }
+                if (mapped != null && pageNumber < mapped.numPages) {
+                    return getMappedIterator(pageId);
+                }
+                HeapPage page = (HeapPage) bufferPool.latchPage(transactionId,pageId,Permissions.READ_ONLY,true);
+                try {
+                    return page.iterator();
+                } finally {
+                    bufferPool.unlatchPage(pageId, Permissions.READ_ONLY);
+                    readAhead.accessed(pageId, page);
+                }
             }else{
                 throw new DbException(String.format("problems opening/accessing the database pageNo %d ", pageNumber));
             }
         }
 
+        /**
+         * Decodes a page from the mapping, unless the buffer pool holds a newer
+         * dirty copy of it.
+         */
+        private Iterator<Tuple> getMappedIterator(HeapPageId pageId) throws TransactionAbortedException, DbException {
+            BufferPool bufferPool = Database.getBufferPool();
+            HeapPage dirty = (HeapPage) bufferPool.latchPageIfDirty(transactionId, pageId, Permissions.READ_ONLY);
+            if (dirty == null) {
+                return mapped.iterator(pageId);
+            }
+            try {
+                return dirty.iterator();
+            } finally {
+                bufferPool.unlatchPage(pageId, Permissions.READ_ONLY);
+            }
+        }
+
         @Override
         public void open() throws DbException, TransactionAbortedException {
             currPage = 0;
+            numPages = heapFile.numPages();
+            mapped = null;
+            snapshot = Database.getBufferPool().isSnapshot(transactionId);
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            readAhead = new ReadAhead((pid, page) -> pid.getPageNumber() + 1 < numPages
+                    ? new HeapPageId(pid.getTableId(), pid.getPageNumber() + 1) : null);
+            // snapshot scans go through the buffer pool, where the page and
+            // its versions are read under the same latch
+            if (heapFile.isMemoryMappedScan() && numPages > 0 && !snapshot) {
+                try {
+                    mapped = heapFile.mappedPages(numPages);
+                } catch (IOException e) {
+                    throw new DbException("unable to map " + heapFile.getFile() + ": " + e.getMessage());
+                }
+            }
             iterator = getIterator(currPage);
         }
 
@@ -203,7 +677,8 @@ public class HeapFile implements DbFile {
             }else{
                 // get next iterator
                 currPage++;
-                if(currPage>=heapFile.numPages()){
+                // only ask for the file size again once the pages seen at open are used up
+                if(currPage>=numPages && currPage>=(numPages = heapFile.numPages())){
                     return false;
                 }else{
                     iterator = getIterator(currPage);
@@ -229,6 +704,10 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             iterator = null;
+            if (readAhead != null) {
+                readAhead.close();
+                readAhead = null;
+            }
         }
     }
 }
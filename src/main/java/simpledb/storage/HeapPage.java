@@ -4,7 +4,9 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -20,15 +22,20 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
+    final int numSlots;
+    final int headerSize;
     /**
-     * bitmap
+     * the raw page image: the header bitmap followed by the tuple slots. Tuples
+     * are decoded from it only when they are accessed, and inserts and deletes
+     * update it in place.
      */
-    final byte header[];
+    private byte[] data;
     /**
-     * page tuples
+     * true while data is also referenced from outside this page (the array
+     * passed to the constructor, the before-image, or an array returned by
+     * getPageData); the next modification copies data first.
      */
-    final Tuple tuples[];
-    final int numSlots;
+    private volatile boolean shared;
     byte[] oldData;
     /*
      * the transaction id which changed the page to dirty
@@ -38,6 +45,10 @@ public class HeapPage implements Page {
      * if the page is dirty
      */
     private boolean dirty;
+    /**
+     * the LSN of the last log record that describes this page
+     */
+    private volatile long lsn;
 
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -53,6 +64,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data as its backing array rather than decoding it; data
+     * is copied only if the page is modified, so the caller may keep using it.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -61,22 +75,11 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page " + id + " has " + data.length + " bytes");
+        this.data = data;
+        this.shared = true;
 
         setBeforeImage();
     }
@@ -85,8 +88,14 @@ public class HeapPage implements Page {
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
-        return (int)Math.floor((BufferPool.getPageSize()*8.0) / (td.getSize()* 8 + 1));
+        return numSlots(td);
+    }
 
+    /**
+     * @return the number of tuple slots on a page of a table with the given TupleDesc
+     */
+    static int numSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -94,8 +103,14 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        return (int)Math.ceil(getNumTuples()/8.0);
-                 
+        return headerSize(td);
+    }
+
+    /**
+     * @return the number of header bytes on a page of a table with the given TupleDesc
+     */
+    static int headerSize(TupleDesc td) {
+        return (int)Math.ceil(numSlots(td)/8.0);
     }
     
     /** Return a view of this page before it was modified
@@ -116,10 +131,14 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Makes the current contents of the page its before-image. The image
+     * shares the page's array until the page is next modified.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
         }
     }
 
@@ -131,36 +150,79 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns an iterator that decodes the tuples in the used slots of a page
+     * image as it reaches them. Fields are read in place from buf, so the page
+     * is neither copied into a byte array nor re-serialized for a before-image.
+     *
+     * @param pid the id of the page the image belongs to
+     * @param buf holds the page image; only absolute gets are used, so buf may
+     *            be shared between threads. It must not change while the
+     *            iterator is in use.
+     * @param offset where the page image starts in buf
+     * @return the tuples of the page, in slot order
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    public static Iterator<Tuple> iterator(HeapPageId pid, ByteBuffer buf, int offset) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        int numSlots = numSlots(td);
+        return new SlotIterator(pid, td, buf, offset, numSlots, (numSlots + 7) / 8);
+    }
+
+    /**
+     * Walks the used slots of a page image, decoding each tuple on next().
+     */
+    private static class SlotIterator implements Iterator<Tuple> {
+        private final HeapPageId pid;
+        private final TupleDesc td;
+        private final ByteBuffer buf;
+        private final int offset;
+        private final int numSlots;
+        private final int headerSize;
+        private int slot;
+
+        SlotIterator(HeapPageId pid, TupleDesc td, ByteBuffer buf, int offset, int numSlots, int headerSize) {
+            this.pid = pid;
+            this.td = td;
+            this.buf = buf;
+            this.offset = offset;
+            this.numSlots = numSlots;
+            this.headerSize = headerSize;
+            this.slot = nextUsed(0);
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        private int nextUsed(int from) {
+            for (int i = from; i < numSlots; i++) {
+                if ((buf.get(offset + i / 8) & (1 << (i % 8))) != 0)
+                    return i;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return numSlots;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot < numSlots;
         }
 
+        @Override
+        public Tuple next() {
+            if (slot >= numSlots)
+                throw new NoSuchElementException();
+            Tuple t = decodeTuple(pid, td, buf, offset + headerSize + slot * td.getSize(), slot);
+            slot = nextUsed(slot + 1);
+            return t;
+        }
+    }
+
+    /**
+     * Decodes the tuple stored at fieldOffset in buf.
+     */
+    private static Tuple decodeTuple(HeapPageId pid, TupleDesc td, ByteBuffer buf, int fieldOffset, int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(buf, fieldOffset));
+            fieldOffset += type.getLen();
+        }
         return t;
     }
 
@@ -171,69 +233,28 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page's backing array is returned without copying; later changes to
+     * the page go to a new array, so the returned one keeps this content.
+     * Callers must not modify it.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        shared = true;
+        return data;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Copies the backing array if anything else references it, so it can be
+     * modified in place.
+     */
+    private void makeWritable() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -263,7 +284,12 @@ public class HeapPage implements Page {
         }else if(!isSlotUsed(t.getRecordId().getTupleNumber())){
             throw new DbException("tuple slot is already empty.: "+t);
         }else{
-            markSlotUsed(t.getRecordId().getTupleNumber(),false);
+            int slot = t.getRecordId().getTupleNumber();
+            makeWritable();
+            markSlotUsed(slot,false);
+            // empty slots are all zeroes on disk
+            int slotOffset = headerSize + slot * td.getSize();
+            Arrays.fill(data, slotOffset, slotOffset + td.getSize(), (byte) 0);
         }
     }
 
@@ -282,15 +308,51 @@ public class HeapPage implements Page {
         }else{
             for (int i = 0; i <numSlots; i++) {
                 if(!isSlotUsed(i)){
-                    tuples[i] = t;
-                    markSlotUsed(i,true);
-                    t.setRecordId(new RecordId(getId(),i));
+                    insertTuple(t, i);
                     break;
                 }
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the given empty slot of this page, for
+     * callers that choose the slot themselves (e.g. one they hold a record
+     * lock on).
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The empty slot to store it in.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if(!t.getTupleDesc().equals(td)){
+            throw new DbException("tupledesc is mismatch: "+t.getTupleDesc());
+        }else if(isSlotUsed(slot)){
+            throw new DbException("slot " + slot + " is in use.");
+        }
+        byte[] image = serializeTuple(t);
+        makeWritable();
+        System.arraycopy(image, 0, data, headerSize + slot * td.getSize(), image.length);
+        markSlotUsed(slot,true);
+        t.setRecordId(new RecordId(getId(),slot));
+    }
+
+    private byte[] serializeTuple(Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("unable to serialize tuple: " + e.getMessage());
+        }
+        if (baos.size() != td.getSize()) {
+            throw new DbException("tuple serializes to " + baos.size() + " bytes, expected " + td.getSize());
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -311,17 +373,30 @@ public class HeapPage implements Page {
         }
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public synchronized void setLSN(long lsn) {
+        if (lsn > this.lsn) {
+            this.lsn = lsn;
+        }
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int res = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if(!isSlotUsed(i)){
-                res++;
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++) {
+            used += Integer.bitCount(data[i] & 0xff);
+        }
+        for (int i = numSlots / 8 * 8; i < numSlots; i++) {
+            if(isSlotUsed(i)){
+                used++;
             }
         }
-        return res;
+        return numSlots - used;
     }
 
     /**
@@ -330,39 +405,44 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         int quot = i/8;
         int remain = i%8;
-        return (header[quot]&(1<<remain))!=0;
+        return (data[quot]&(1<<remain))!=0;
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Decodes the tuple in slot i.
+     * @return the tuple, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        return decodeTuple(pid, td, ByteBuffer.wrap(data), headerSize + i * td.getSize(), i);
+    }
+
+    /**
+     * Abstraction to fill or clear a slot on this page. The caller makes the
+     * backing array writable first.
      */
     private void markSlotUsed(int i, boolean value) {
         int quot = i/8;
         int remain = i%8;
         if(value){
-            header[quot]|=(1<<remain);
+            data[quot]|=(1<<remain);
         }else {
-            // make false
-            if(isSlotUsed(i)){
-                header[quot]^=(1<<remain); // 异或
-            }
+            data[quot]&=~(1<<remain);
         }
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator decodes tuples as it reaches them from the page's current
+     * contents; changes made to the page afterwards are not seen by it.
      */
     public Iterator<Tuple> iterator() {
-        // this iterator shouldn't return tuples in empty slots!!!
-        List<Tuple> tupleList = new ArrayList<>();
-        for (int i = 0; i < numSlots; i++) {
-            if(isSlotUsed(i)){
-                tupleList.add(tuples[i]);
-            }
-        }
-        return tupleList.iterator();
+        byte[] snapshot = getPageData();
+        return new SlotIterator(pid, td, ByteBuffer.wrap(snapshot), 0, numSlots, headerSize);
     }
 
 }
-
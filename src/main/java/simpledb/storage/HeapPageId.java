@@ -40,8 +40,7 @@ public class HeapPageId implements PageId {
      */
     @Override
     public int hashCode() {
-        String s = tableId+"#"+pageNo;
-        return s.hashCode();
+        return Long.hashCode(pageKey());
     }
 
     /**
@@ -0,0 +1,780 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 事务锁管理器 <br/>
+ * 1. 每个加锁对象一个 LockEntry，记录持有者（事务 → 锁类型）和 FIFO 等待队列。请求与其他持有者兼容、且前面没有等待者时立即授予，
+ *    否则排到队尾等待；锁升级（如持有共享锁再请求排他锁）排在其他等待者前面。 <br/>
+ * 2. 同一对象上的加锁、释放和等待都在它的 LockEntry 监视器上同步，不同对象互不阻塞。 <br/>
+ * 3. 等待图：每个等待中的请求记录它在等待哪些事务（不兼容的持有者，以及排在它前面的不兼容等待者），
+ *    对象的持有者或等待队列变化时重新计算该对象上等待者的边。某个等待者的边增加时从它出发检测环，
+ *    发现死锁时中止环上最年轻（ID 最大）的事务：它的等待线程抛出 TransactionAbortedException，
+ *    调用方随后应以中止结束事务（{@link BufferPool#transactionComplete(TransactionId, boolean)}），释放它持有的锁。 <br/>
+ * 4. 每个事务持有的锁记录在 txLocks 中，事务结束时只释放这些锁；等待线程各自 park，
+ *    释放时只唤醒被授予的请求和被中止的事务，其他等待者不会被无谓地唤醒。 <br/>
+ * 5. 多粒度锁：锁的对象分为表、页面和记录（RecordId）三层。给页面加 S/X 锁前先给表加 IS/IX 意向锁，
+ *    给记录加 S/X 锁前先给表和页面加意向锁，所以修改同一页面上不同记录的事务可以并发，
+ *    而读整个页面的事务（页面 S 锁）仍然和修改其中记录的事务（页面 IX 锁）互斥。
+ *    一个事务在同一页面上持有的记录锁超过 ESCALATION_THRESHOLD 个时，尝试把它们升级为一个页面锁，
+ *    页面上有其他事务的锁时不等待，继续使用记录锁。 <br/>
+ * 6. 表上通常只有意向锁，它们互相兼容，所以没有事务请求 S/SIX/X 表锁时意向锁走快速路径，只记在事务自己的锁集合中；
+ *    请求 S/SIX/X 表锁的事务先把其他事务在该表上的快速路径锁转移到 LockEntry 中，再按普通方式排队。
+ */
+class LockManager {
+
+    /**
+     * 锁类型枚举类，分为共享锁、排他锁以及多粒度锁使用的意向锁 <br/>
+     * 1. INTENTION_SHARED_LOCK                 IS：准备给下层对象加 S 锁     <br/>
+     * 2. INTENTION_EXCLUSIVE_LOCK              IX：准备给下层对象加 X 锁     <br/>
+     * 3. SHARED_LOCK                           S                           <br/>
+     * 4. SHARED_INTENTION_EXCLUSIVE_LOCK       SIX：S 加 IX                 <br/>
+     * 5. EXCLUSIVE_LOCK                        X                           <br/>
+     */
+    enum LockType {
+        INTENTION_SHARED_LOCK, INTENTION_EXCLUSIVE_LOCK, SHARED_LOCK, SHARED_INTENTION_EXCLUSIVE_LOCK, EXCLUSIVE_LOCK;
+
+        private static final boolean[][] COMPATIBLE = {
+                //         IS     IX     S      SIX    X
+                /* IS  */ {true,  true,  true,  true,  false},
+                /* IX  */ {true,  true,  false, false, false},
+                /* S   */ {true,  false, true,  false, false},
+                /* SIX */ {true,  false, false, false, false},
+                /* X   */ {false, false, false, false, false},
+        };
+
+        boolean compatible(LockType other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return 持有这个锁是否已经包含了 other 的权限
+         */
+        boolean covers(LockType other) {
+            switch (this) {
+                case EXCLUSIVE_LOCK:
+                    return true;
+                case SHARED_INTENTION_EXCLUSIVE_LOCK:
+                    return other != EXCLUSIVE_LOCK;
+                case SHARED_LOCK:
+                case INTENTION_EXCLUSIVE_LOCK:
+                    return other == this || other == INTENTION_SHARED_LOCK;
+                default:
+                    return other == this;
+            }
+        }
+
+        /**
+         * @return 同时包含这两个锁的权限的最弱的锁，用于锁升级
+         */
+        LockType combine(LockType other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // 剩下的只有 S 和 IX 的组合
+            return SHARED_INTENTION_EXCLUSIVE_LOCK;
+        }
+
+        /**
+         * @return 给下层对象加这个锁前，上层对象需要的意向锁
+         */
+        LockType intention() {
+            return this == SHARED_LOCK || this == INTENTION_SHARED_LOCK
+                    ? INTENTION_SHARED_LOCK : INTENTION_EXCLUSIVE_LOCK;
+        }
+
+        /**
+         * @return 上层对象持有这个锁时，下层对象是否不需要再加 child 锁
+         */
+        boolean coversChildren(LockType child) {
+            if (child == SHARED_LOCK || child == INTENTION_SHARED_LOCK) {
+                return this == SHARED_LOCK || this == SHARED_INTENTION_EXCLUSIVE_LOCK || this == EXCLUSIVE_LOCK;
+            }
+            return this == EXCLUSIVE_LOCK;
+        }
+
+        /**
+         * @return 是否是 IS 或 IX 锁，两者互相兼容
+         */
+        boolean isIntention() {
+            return this == INTENTION_SHARED_LOCK || this == INTENTION_EXCLUSIVE_LOCK;
+        }
+    }
+
+    private static final LockType[] LOCK_TYPES = LockType.values();
+
+    /**
+     * 事务在同一页面上持有的记录锁超过这个数量时尝试升级为页面锁
+     */
+    static final int ESCALATION_THRESHOLD = 64;
+
+    /**
+     * 一次加锁请求
+     */
+    private static class Request {
+        final TransactionId tid;
+        final LockType lockType;
+        final LockEntry entry;
+        /**
+         * 等待的线程，授予或中止时 unpark
+         */
+        final Thread thread = Thread.currentThread();
+        /**
+         * 是否已授予，在 entry 的监视器内修改
+         */
+        volatile boolean granted;
+        /**
+         * 请求在等待的事务，每次整体替换
+         */
+        volatile Set<TransactionId> blockers = Collections.emptySet();
+
+        Request(TransactionId tid, LockType lockType, LockEntry entry) {
+            this.tid = tid;
+            this.lockType = lockType;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 表锁的对象
+     */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /**
+     * 一个事务持有的锁
+     */
+    private static class TxLocks {
+        /**
+         * 加锁对象 → 锁类型，与 LockEntry.holders 一致，查询时不需要进入 LockEntry 的监视器
+         */
+        final ConcurrentHashMap<Object, LockType> held = new ConcurrentHashMap<>();
+        /**
+         * 每个页面上持有的记录锁，用于锁升级
+         */
+        final ConcurrentHashMap<PageId, Set<RecordId>> rows = new ConcurrentHashMap<>();
+        /**
+         * 通过快速路径持有的表意向锁，不在 LockEntry.holders 中；在 TxLocks 的监视器内访问
+         */
+        final Map<TableKey, LockType> fast = new HashMap<>(4);
+    }
+
+    /**
+     * 一个对象（表、页面或记录）上的锁
+     */
+    private static class LockEntry {
+        final Object key;
+        final Map<TransactionId, LockType> holders = new HashMap<>(4);
+        /**
+         * 每种锁类型的持有者数，判断能否授予时不用遍历 holders（热点页面上可能有很多意向锁持有者）
+         */
+        final int[] granted = new int[LOCK_TYPES.length];
+        final ArrayDeque<Request> waiters = new ArrayDeque<>();
+        /**
+         * 已从 entries 中移除，持有旧引用的线程需要重新获取
+         */
+        boolean removed;
+
+        LockEntry(Object key) {
+            this.key = key;
+        }
+
+        void hold(TransactionId tid, LockType lockType) {
+            LockType old = holders.put(tid, lockType);
+            if (old != null) {
+                granted[old.ordinal()]--;
+            }
+            granted[lockType.ordinal()]++;
+        }
+
+        LockType drop(TransactionId tid) {
+            LockType old = holders.remove(tid);
+            if (old != null) {
+                granted[old.ordinal()]--;
+            }
+            return old;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, LockEntry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, TxLocks> txLocks = new ConcurrentHashMap<>();
+    /**
+     * 每个事务正在等待的请求
+     */
+    private final ConcurrentHashMap<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+    /**
+     * 因死锁被选为牺牲者、还没有结束的事务
+     */
+    private final Set<TransactionId> aborted = ConcurrentHashMap.newKeySet();
+    /**
+     * 死锁检测在这个监视器上串行执行；持有它时不再获取页面的监视器
+     */
+    private final Object graphLock = new Object();
+    /**
+     * 每个表上请求或持有的 S/SIX/X 表锁数量。为 0 时表上只有互相兼容的意向锁，
+     * 意向锁只记在事务的 TxLocks.fast 中，不进入表的 LockEntry，否则每个事务都要进出同一个监视器
+     */
+    private final ConcurrentHashMap<Integer, AtomicInteger> strongTableLocks = new ConcurrentHashMap<>();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+
+    /**
+     * 获取整个表上的锁，不能立即授予时阻塞等待
+     * @param lockType  SHARED_LOCK 或 EXCLUSIVE_LOCK
+     * @throws TransactionAbortedException 事务因死锁被中止
+     */
+    void acquireTable(TransactionId tid, int tableId, LockType lockType) throws TransactionAbortedException {
+        checkAborted(tid);
+        lock(tid, new TableKey(tableId), lockType, true);
+    }
+
+    /**
+     * 获取页面锁（先获取表上的意向锁），不能立即授予时阻塞等待
+     * @param lockType  SHARED_LOCK 或 EXCLUSIVE_LOCK
+     * @throws TransactionAbortedException 事务因死锁被中止
+     */
+    void acquirePage(TransactionId tid, PageId pid, LockType lockType) throws TransactionAbortedException {
+        checkAborted(tid);
+        lock(tid, new TableKey(pid.getTableId()), lockType.intention(), true);
+        lock(tid, pid, lockType, true);
+    }
+
+    /**
+     * 获取页面锁（先获取表上的意向锁），不能立即授予时不等待
+     * @return 是否获取成功
+     * @throws TransactionAbortedException 事务已因死锁被中止
+     */
+    boolean tryAcquirePage(TransactionId tid, PageId pid, LockType lockType) throws TransactionAbortedException {
+        checkAborted(tid);
+        return lock(tid, new TableKey(pid.getTableId()), lockType.intention(), false)
+                && lock(tid, pid, lockType, false);
+    }
+
+    /**
+     * 获取表和页面上的意向锁，之后再给页面上的记录加 lockType 锁
+     * @throws TransactionAbortedException 事务因死锁被中止
+     */
+    void acquireIntention(TransactionId tid, PageId pid, LockType lockType) throws TransactionAbortedException {
+        checkAborted(tid);
+        LockType intention = lockType.intention();
+        lock(tid, new TableKey(pid.getTableId()), intention, true);
+        lock(tid, pid, intention, true);
+    }
+
+    /**
+     * 获取记录锁（先获取表和页面上的意向锁），不能立即授予时阻塞等待
+     * @throws TransactionAbortedException 事务因死锁被中止
+     */
+    void acquireRecord(TransactionId tid, RecordId rid, LockType lockType) throws TransactionAbortedException {
+        lockRecord(tid, rid, lockType, true);
+    }
+
+    /**
+     * 获取记录锁，不能立即授予时不等待
+     * @return 是否获取成功
+     * @throws TransactionAbortedException 事务已因死锁被中止
+     */
+    boolean tryAcquireRecord(TransactionId tid, RecordId rid, LockType lockType) throws TransactionAbortedException {
+        return lockRecord(tid, rid, lockType, false);
+    }
+
+    private boolean lockRecord(TransactionId tid, RecordId rid, LockType lockType, boolean wait)
+            throws TransactionAbortedException {
+        checkAborted(tid);
+        PageId pid = rid.getPageId();
+        TableKey table = new TableKey(pid.getTableId());
+        TxLocks tx = txLocks.get(tid);
+        if (tx != null && (coversChildren(tx.held.get(table), lockType) || coversChildren(tx.held.get(pid), lockType))) {
+            return true;
+        }
+        LockType intention = lockType.intention();
+        if (!lock(tid, table, intention, wait) || !lock(tid, pid, intention, wait) || !lock(tid, rid, lockType, wait)) {
+            return false;
+        }
+        tx = txLocks.get(tid);
+        Set<RecordId> rows = tx.rows.computeIfAbsent(pid, k -> ConcurrentHashMap.newKeySet());
+        if (rows.add(rid) && rows.size() > ESCALATION_THRESHOLD) {
+            escalate(tid, tx, pid, rows);
+        }
+        return true;
+    }
+
+    private static boolean coversChildren(LockType parent, LockType child) {
+        return parent != null && parent.coversChildren(child);
+    }
+
+    /**
+     * 尝试把 tid 在页面 pid 上的记录锁升级为页面锁，成功后释放这些记录锁
+     */
+    private void escalate(TransactionId tid, TxLocks tx, PageId pid, Set<RecordId> rows)
+            throws TransactionAbortedException {
+        LockType lockType = LockType.SHARED_LOCK;
+        for (RecordId rid : rows) {
+            if (tx.held.get(rid) == LockType.EXCLUSIVE_LOCK) {
+                lockType = LockType.EXCLUSIVE_LOCK;
+                break;
+            }
+        }
+        if (!lock(tid, pid, lockType, false)) {
+            return;
+        }
+        tx.rows.remove(pid);
+        for (RecordId rid : rows) {
+            release(tid, rid);
+        }
+        escalations.increment();
+    }
+
+    private void checkAborted(TransactionId tid) throws TransactionAbortedException {
+        if (aborted.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * 给一个对象加锁；已持有的锁不包含 lockType 时升级为两者的组合
+     * @param wait  不能立即授予时是否等待
+     * @return 是否获取成功，wait 为 true 时总是成功
+     */
+    private boolean lock(TransactionId tid, Object key, LockType lockType, boolean wait)
+            throws TransactionAbortedException {
+        TxLocks tx = txLocks.get(tid);
+        LockType cached = tx == null ? null : tx.held.get(key);
+        if (cached != null && cached.covers(lockType)) {
+            return true;
+        }
+        if (!(key instanceof TableKey)) {
+            return lockEntry(tid, key, lockType, wait);
+        }
+        TableKey table = (TableKey) key;
+        if (lockType.isIntention()) {
+            return lockTableFast(tid, table, lockType) || lockEntry(tid, key, lockType, wait);
+        }
+        // 已持有强表锁的事务升级时不重复计数，release 只减一次
+        boolean counted = cached != null && !cached.isIntention();
+        if (!counted) {
+            strongTableLocks(table).incrementAndGet();
+            transferFast(table);
+        }
+        boolean granted = false;
+        try {
+            granted = lockEntry(tid, key, lockType, wait);
+            return granted;
+        } finally {
+            if (!granted && !counted) {
+                strongTableLocks(table).decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 表上没有强表锁时，把 IS/IX 锁只记在 tid 的 TxLocks 中
+     * @return 是否已授予，false 时应通过 LockEntry 加锁
+     */
+    private boolean lockTableFast(TransactionId tid, TableKey table, LockType lockType) {
+        AtomicInteger strong = strongTableLocks(table);
+        TxLocks tx = txLocks.computeIfAbsent(tid, k -> new TxLocks());
+        // 与 transferFast 在 tx 的监视器上互斥：要么在转移前记下并被转移，要么在转移后看到计数
+        synchronized (tx) {
+            LockType held = tx.fast.get(table);
+            if (strong.get() != 0 || (held == null && tx.held.containsKey(table))) {
+                return false;
+            }
+            LockType target = held == null ? lockType : held.combine(lockType);
+            tx.fast.put(table, target);
+            tx.held.put(table, target);
+            return true;
+        }
+    }
+
+    /**
+     * 把所有事务在表上的快速路径锁转移到表的 LockEntry 中，调用前已增加该表的强表锁计数
+     */
+    private void transferFast(TableKey table) {
+        for (Map.Entry<TransactionId, TxLocks> e : txLocks.entrySet()) {
+            TxLocks tx = e.getValue();
+            synchronized (tx) {
+                LockType held = tx.fast.remove(table);
+                if (held == null) {
+                    continue;
+                }
+                for (;;) {
+                    LockEntry entry = entries.computeIfAbsent(table, LockEntry::new);
+                    synchronized (entry) {
+                        if (!entry.removed) {
+                            entry.hold(e.getKey(), held);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private AtomicInteger strongTableLocks(TableKey table) {
+        return strongTableLocks.computeIfAbsent(table.tableId, k -> new AtomicInteger());
+    }
+
+    /**
+     * 通过对象的 LockEntry 加锁，参数和返回值同 {@link #lock(TransactionId, Object, LockType, boolean)}
+     */
+    private boolean lockEntry(TransactionId tid, Object key, LockType lockType, boolean wait)
+            throws TransactionAbortedException {
+        for (;;) {
+            LockEntry entry = entries.computeIfAbsent(key, LockEntry::new);
+            Request request = null;
+            List<TransactionId> victims;
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue;
+                }
+                LockType held = entry.holders.get(tid);
+                LockType target = held == null ? lockType : held.combine(lockType);
+                if (target == held) {
+                    return true;
+                }
+                if (grantable(entry, tid, target) && (held != null || entry.waiters.isEmpty())) {
+                    grant(entry, tid, target);
+                    victims = null;
+                    if (held != null) {
+                        // 立即完成的升级可能让排队的请求开始等待 tid
+                        victims = detect(updateBlockers(entry));
+                    }
+                } else if (!wait) {
+                    removeIfUnused(key, entry);
+                    return false;
+                } else {
+                    request = new Request(tid, target, entry);
+                    if (held != null) {
+                        // 升级排在其他等待者前面，否则它们都在等它释放已持有的锁
+                        entry.waiters.addFirst(request);
+                    } else {
+                        entry.waiters.addLast(request);
+                    }
+                    waiting.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(request);
+                    victims = detect(updateBlockers(entry));
+                }
+            }
+            wakeVictims(victims);
+            if (request != null) {
+                await(request);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 释放 tid 在对象 key 上的锁
+     * @return tid 是否持有该锁
+     */
+    boolean release(TransactionId tid, Object key) {
+        LockEntry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        List<TransactionId> victims;
+        synchronized (entry) {
+            LockType held = entry.drop(tid);
+            if (held == null) {
+                return false;
+            }
+            if (key instanceof TableKey && !held.isIntention()) {
+                strongTableLocks((TableKey) key).decrementAndGet();
+            }
+            TxLocks tx = txLocks.get(tid);
+            if (tx != null) {
+                tx.held.remove(key);
+            }
+            victims = changed(entry);
+            removeIfUnused(key, entry);
+        }
+        wakeVictims(victims);
+        return true;
+    }
+
+    /**
+     * 释放 tid 持有的所有锁，事务结束时调用，代价与 tid 持有的锁数成正比
+     */
+    void releaseAll(TransactionId tid) {
+        TxLocks tx;
+        while ((tx = txLocks.get(tid)) != null) {
+            // 在从 txLocks 中移除前释放快速路径锁，否则 transferFast 可能漏掉它们
+            synchronized (tx) {
+                for (TableKey table : tx.fast.keySet()) {
+                    tx.held.remove(table);
+                }
+                tx.fast.clear();
+            }
+            txLocks.remove(tid, tx);
+            for (Object key : tx.held.keySet()) {
+                release(tid, key);
+            }
+        }
+        aborted.remove(tid);
+    }
+
+    /**
+     * @return tid 是否持有对象 key（页面或记录）上的锁，包括意向锁
+     */
+    boolean holdsLock(TransactionId tid, Object key) {
+        TxLocks tx = txLocks.get(tid);
+        return tx != null && tx.held.containsKey(key);
+    }
+
+    /**
+     * @return 检测到的死锁数
+     */
+    long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    /**
+     * @return 记录锁升级为页面锁的次数
+     */
+    long getEscalationCount() {
+        return escalations.sum();
+    }
+
+    /**
+     * 等待 request 被授予，事务被中止或线程被终止时撤回请求
+     */
+    private void await(Request request) throws TransactionAbortedException {
+        boolean done = false;
+        try {
+            // 和之前一样不响应中断，只在授予或中止时返回
+            while (!request.granted && !aborted.contains(request.tid)) {
+                LockSupport.park(this);
+            }
+            done = true;
+        } finally {
+            if (!request.granted) {
+                withdraw(request);
+            }
+        }
+        if (done && !request.granted) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * 撤回没有被授予的请求；与授予竞争时以授予为准
+     */
+    private void withdraw(Request request) {
+        LockEntry entry = request.entry;
+        List<TransactionId> victims = null;
+        synchronized (entry) {
+            removeWaiting(request);
+            if (!request.granted) {
+                entry.waiters.remove(request);
+                victims = changed(entry);
+            }
+        }
+        wakeVictims(victims);
+    }
+
+    /**
+     * 页面的持有者或等待队列变化后，按 FIFO 顺序授予可以授予的请求并更新等待图
+     */
+    private List<TransactionId> changed(LockEntry entry) {
+        Iterator<Request> it = entry.waiters.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!grantable(entry, r.tid, r.lockType)) {
+                break;
+            }
+            grant(entry, r.tid, r.lockType);
+            r.granted = true;
+            it.remove();
+            // 立即从等待图中移除，不等被唤醒的线程来清理，否则检测会看到过期的边
+            removeWaiting(r);
+            LockSupport.unpark(r.thread);
+        }
+        return detect(updateBlockers(entry));
+    }
+
+    /**
+     * 与 tid 以外的持有者是否兼容
+     */
+    private static boolean grantable(LockEntry entry, TransactionId tid, LockType lockType) {
+        LockType own = entry.holders.get(tid);
+        for (LockType held : LOCK_TYPES) {
+            int others = entry.granted[held.ordinal()] - (held == own ? 1 : 0);
+            if (others > 0 && !held.compatible(lockType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param lockType  授予后 tid 在这个对象上持有的锁
+     */
+    private void grant(LockEntry entry, TransactionId tid, LockType lockType) {
+        entry.hold(tid, lockType);
+        txLocks.computeIfAbsent(tid, k -> new TxLocks()).held.put(entry.key, lockType);
+    }
+
+    /**
+     * 重新计算页面上每个等待者在等待的事务
+     * @return 等待的事务增加了的等待者
+     */
+    private static List<TransactionId> updateBlockers(LockEntry entry) {
+        List<TransactionId> grown = new ArrayList<>();
+        List<Request> ahead = new ArrayList<>();
+        for (Request r : entry.waiters) {
+            Set<TransactionId> blockers = new HashSet<>();
+            for (Map.Entry<TransactionId, LockType> h : entry.holders.entrySet()) {
+                if (!h.getKey().equals(r.tid) && !h.getValue().compatible(r.lockType)) {
+                    blockers.add(h.getKey());
+                }
+            }
+            for (Request a : ahead) {
+                if (!a.tid.equals(r.tid) && !a.lockType.compatible(r.lockType)) {
+                    blockers.add(a.tid);
+                }
+            }
+            if (!r.blockers.containsAll(blockers)) {
+                grown.add(r.tid);
+            }
+            r.blockers = blockers;
+            ahead.add(r);
+        }
+        return grown;
+    }
+
+    /**
+     * 从每个 start 出发沿等待图查找经过它的环，为每个环选出最年轻的事务作为牺牲者
+     * @return 新选出的牺牲者
+     */
+    private List<TransactionId> detect(List<TransactionId> starts) {
+        if (starts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<TransactionId> victims = new ArrayList<>();
+        synchronized (graphLock) {
+            for (TransactionId start : starts) {
+                // 新增的边可能同时构成多个环，逐个中止直到没有环或 start 本身被中止
+                List<TransactionId> cycle;
+                while (!aborted.contains(start) && (cycle = findCycle(start)) != null) {
+                    TransactionId victim = start;
+                    for (TransactionId t : cycle) {
+                        if (t.getId() > victim.getId()) {
+                            victim = t;
+                        }
+                    }
+                    aborted.add(victim);
+                    deadlocks.increment();
+                    victims.add(victim);
+                }
+            }
+        }
+        return victims;
+    }
+
+    /**
+     * 深度优先查找从 start 出发回到 start 的路径，忽略已被中止的事务
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Map<TransactionId, TransactionId> parent = new HashMap<>();
+        ArrayDeque<TransactionId> stack = new ArrayDeque<>();
+        stack.push(start);
+        parent.put(start, null);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            for (TransactionId next : waitsFor(t)) {
+                if (aborted.contains(next)) {
+                    continue;
+                }
+                if (next.equals(start)) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for (TransactionId p = t; p != null; p = parent.get(p)) {
+                        cycle.add(p);
+                    }
+                    return cycle;
+                }
+                if (!parent.containsKey(next)) {
+                    parent.put(next, t);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<Request> requests = waiting.get(tid);
+        if (requests == null) {
+            return Collections.emptySet();
+        }
+        Set<TransactionId> result = new HashSet<>();
+        for (Request r : requests) {
+            result.addAll(r.blockers);
+        }
+        return result;
+    }
+
+    /**
+     * 唤醒牺牲者正在等待的线程
+     */
+    private void wakeVictims(List<TransactionId> victims) {
+        if (victims == null) {
+            return;
+        }
+        for (TransactionId victim : victims) {
+            Set<Request> requests = waiting.get(victim);
+            if (requests == null) {
+                continue;
+            }
+            for (Request r : requests) {
+                LockSupport.unpark(r.thread);
+            }
+        }
+    }
+
+    private void removeWaiting(Request request) {
+        waiting.computeIfPresent(request.tid, (k, requests) -> {
+            requests.remove(request);
+            return requests.isEmpty() ? null : requests;
+        });
+    }
+
+    private void removeIfUnused(Object key, LockEntry entry) {
+        if (entry.holders.isEmpty() && entry.waiters.isEmpty()) {
+            entry.removed = true;
+            entries.remove(key, entry);
+        }
+    }
+}
@@ -6,8 +6,14 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Database;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -19,66 +25,111 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening).  The BufferPool writes log records while it
+holds page latches (before it writes a page that has uncommitted
+changes to disk, and when a transaction commits), and the log file
+rolls back BufferPool pages (on aborts and recovery.)  This can lead
+to deadlock.  For that reason, any LogFile
+operation that needs to access the BufferPool must not be declared
+synchronized, and must not hold the monitor of this LogFile while it
+accesses the BufferPool: it reads or writes the log inside a
+synchronized (this) block and works on pages outside of it.  The
+only exception is the copy of the BufferPool's dirty page table a
+checkpoint takes, which needs no page latches.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a byte stream of log records, stored in segment files
+next to the log file (see LogSegments.)  The position of a record in
+the stream is its LSN, so the stream starts at LSN 8 and 0 names no
+record.
+
+<li> The log file itself holds one long integer: the LSN of the last
+written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are nine record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, BULK_APPEND, INSERT_SLOT, DELETE_SLOT and UPDATE_RANGE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> UPDATE, INSERT_SLOT, DELETE_SLOT and UPDATE_RANGE records describe
+a change to one page (see PageChange), and start with the page id: an
+integer count followed by the integers of PageId#serialize.
+
+<li> UPDATE records then hold an integer page length and the full before
+and after images of the page.  The first time a page is logged after a
+checkpoint it gets an UPDATE record whose images are both the page as it
+was before the change, followed by the compact records below for the
+change itself.  Recovery redoes the page starting from that image, and
+never undoes it.
+
+<li> Each compact record carries the transaction that made its change,
+which is not always the transaction whose write logged the page: a heap
+page can hold uncommitted tuples of several transactions.
+
+<li> INSERT_SLOT and DELETE_SLOT records describe a tuple inserted into
+or deleted from a heap page: an integer slot number, an integer length,
+and the bytes of the tuple.
+
+<li> UPDATE_RANGE records describe a run of changed bytes: an integer
+offset in the page, an integer length, and the bytes before and after
+the change.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record, and of the dirty
+page table of the BufferPool: the pages with logged changes that are
+not on disk yet, each with an LSN at or before its first such record
+(its recLSN.)  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record LSN for each active transaction, followed by
+an integer count of the number of dirty pages, as well as a page id
+(like the page id of a page record) and a long integer recLSN for each
+dirty page.  Checkpoints are fuzzy: they write no pages, and recovery
+redoes from the smallest recLSN of the checkpoint.
+
+<li> BULK_APPEND records describe a run of new pages a transaction wrote
+directly to the end of a heap file: an integer table id, the integer
+number of the first page, and the integer number of pages.  The pages
+did not exist before, so undoing the record empties them.
 
 </ul>
 
+<p> Records are not written to the file one field at a time: each record
+is appended to an in-memory log buffer, which is written to the file with
+a single write when it fills up, when the log is flushed or forced, and
+before the log is read (rollback.)  <p>
+
+The stream is never rewritten: logTruncate deletes whole segments that
+hold only records recovery no longer needs, so records keep their LSNs
+for the lifetime of the log.  Pages remember the LSN of the last record
+that described them (see Page#getLSN), and the BufferPool calls
+flushTo(pageLSN) before it writes a page: the log is forced only when
+that record is not yet durable (write-ahead logging.)  <p>
+
+The BufferPool's page cleaner takes a checkpoint whenever
+the log has grown by the checkpoint interval since the last one (see
+isCheckpointDue.)  Before that it writes the pages whose recLSN is older
+than the last checkpoint, so the redo point moves forward with every
+checkpoint and the segments before it can be deleted.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,16 +137,63 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULK_APPEND_RECORD = 6;
+    static final int INSERT_SLOT_RECORD = 7;
+    static final int DELETE_SLOT_RECORD = 8;
+    static final int UPDATE_RANGE_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
+    /** By default the commit flusher forces the log as soon as a commit
+        is waiting; commits that arrive during a force join the next one */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+    /** By default recovery redoes pages on one thread per processor,
+        up to four */
+    public static final int DEFAULT_RECOVERY_THREADS =
+        Math.min(4, Runtime.getRuntime().availableProcessors());
+    /** Size of the in-memory log buffer in bytes */
+    public static final int LOG_BUFFER_SIZE = 1 << 20;
+    /** By default a new segment file is started after 16 MB of log */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    /** By default the page cleaner takes a checkpoint after 64 MB of
+        log */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 64L << 20;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** LSN just after the last appended record, including the
+        records still in the log buffer //protected by this */
     long currentOffset = -1;//protected by this
+    /** records appended after the end of the segments //protected by this */
+    private final ByteBuffer logBuffer = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+    /** LSN of the last checkpoint record */
+    private volatile long checkpointLSN = LogSegments.FIRST_LSN;
+    /** the oldest record the last checkpoint needs for recovery and
+        rollback; segments before it can be deleted //protected by this */
+    private long truncationLSN = LogSegments.FIRST_LSN;
+    /** the log is durable up to (not including) this LSN; only grows */
+    private volatile long flushedLSN = LONG_SIZE;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** pages with an UPDATE record (full images) since the last
+        checkpoint //protected by this */
+    private final Set<PageId> imagedPages = new HashSet<>();
+
+    /** COMMIT records waiting for the commit flusher, in log order
+        //protected by this */
+    private final ArrayDeque<PendingCommit> pendingCommits = new ArrayDeque<>();
+    private final CommitFlusher commitFlusher = new CommitFlusher();
+    /** threads recovery redoes pages with */
+    private volatile int recoveryThreads = DEFAULT_RECOVERY_THREADS;
+    /** how long the commit flusher waits for more commits before it
+        forces the log */
+    private volatile long groupCommitWindowNanos = DEFAULT_GROUP_COMMIT_WINDOW_MICROS * 1000;
+    /** forces done by the commit flusher */
+    private final LongAdder commitForces = new LongAdder();
+    /** log bytes after which the page cleaner takes a checkpoint, 0 for
+        never */
+    private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,11 +204,11 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log file's name; the segments are stored next to it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, DEFAULT_SEGMENT_SIZE);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -131,11 +229,10 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset();
+            currentOffset = segments.end();
+            checkpointLSN = currentOffset;
+            truncationLSN = currentOffset;
         }
     }
 
@@ -143,160 +240,276 @@ public class LogFile {
         return totalRecords;
     }
     
+    /**
+     * @return whether the specified tid has written log records and has
+     *         not yet committed or aborted
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            append(ABORT_RECORD, tid.getId(), null, 0);
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The record is appended to the log buffer, and the caller waits
+        until the commit flusher has forced the log past it.  One force makes all the commits appended before it durable,
+        so concurrent commits share forces (group commit.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        PendingCommit commit;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            append(COMMIT_RECORD, tid.getId(), null, 0);
+            tidToFirstLogRecord.remove(tid.getId());
+            commit = new PendingCommit(currentOffset);
+            pendingCommits.add(commit);
+        }
+        commitFlusher.wake();
+        try {
+            commit.durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for commit of " + tid.getId());
+        } catch (ExecutionException e) {
+            throw new IOException("forcing commit of " + tid.getId() + " failed", e.getCause());
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
-        @param tid The transaction performing the write
-        @param before The before image of the page
-        @param after The after image of the page
-
-        @see Page#getBeforeImage
+    /** Set how long the commit flusher waits for more commits to arrive
+        before it forces the log.  Waiting longer makes batches larger
+        and each commit slower.
+        @param micros The batching window in microseconds; 0 forces as
+                      soon as a commit is waiting
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
-        throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    public void setGroupCommitWindow(long micros) {
+        groupCommitWindowNanos = micros * 1000;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** @return the number of times the commit flusher forced the log */
+    public long getCommitForces() {
+        return commitForces.sum();
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** A COMMIT record whose committer waits for it to be durable. */
+    private static class PendingCommit {
+        /** LSN just after the record */
+        final long end;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        PendingCommit(long end) {
+            this.end = end;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Forces the log once for the COMMIT records appended so far, then
+        releases their committers.  The force runs outside the monitor of
+        this LogFile, so other records can be appended meanwhile. */
+    private void forceCommits() {
+        long target;
+        synchronized (this) {
+            if (pendingCommits.isEmpty()) {
+                return;
+            }
+            target = currentOffset;
+        }
+        IOException failure = null;
+        try {
+            if (forceUpTo(target)) {
+                commitForces.increment();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        List<PendingCommit> done = new ArrayList<>();
+        synchronized (this) {
+            long durable = failure == null ? flushedLSN : target;
+            while (!pendingCommits.isEmpty() && pendingCommits.peek().end <= durable) {
+                done.add(pendingCommits.poll());
+            }
+        }
+        for (PendingCommit commit : done) {
+            if (failure == null) {
+                commit.durable.complete(null);
+            } else {
+                commit.durable.completeExceptionally(failure);
+            }
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** The commit flusher thread.  It starts when a commit waits and
+        exits after being idle for a while, like the BufferPool's page
+        cleaner. */
+    private class CommitFlusher implements Runnable {
+
+        /** how long the thread stays idle before it exits (milliseconds) */
+        private static final long IDLE_MILLIS = 1000;
+
+        private Thread thread;
+        private boolean requested;
+
+        synchronized void wake() {
+            requested = true;
+            if (thread == null) {
+                thread = new Thread(this, "LogFile-commit-flusher");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                notifyAll();
+            }
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        @Override
+        public void run() {
+            for (;;) {
+                synchronized (this) {
+                    if (!requested) {
+                        try {
+                            wait(IDLE_MILLIS);
+                        } catch (InterruptedException e) {
+                            thread = null;
+                            return;
+                        }
+                    }
+                    if (!requested) {
+                        thread = null;
+                        return;
+                    }
+                    requested = false;
+                }
+                long window = groupCommitWindowNanos;
+                if (window > 0) {
+                    LockSupport.parkNanos(window);
+                }
+                forceCommits();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write the records that describe a change to a page for the
+        specified tid: the compact INSERT_SLOT, DELETE_SLOT and
+        UPDATE_RANGE records that turn the before image into the after
+        image (see PageChange#diff), or nothing if the images are the
+        same.  The first time a page is logged after a checkpoint the
+        records are preceded by an UPDATE record whose before and after
+        images are both the before image: recovery starts redoing the page
+        from it, without reading the page from disk.
+        @param tid The transaction performing the write
+        @param before The before image of the page
+        @param after The after image of the page
+        @return the LSN of the last record written, or 0 if none was
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        @see Page#getBeforeImage
+    */
+    public long logWrite(TransactionId tid, Page before, Page after)
+        throws IOException  {
+        return logWrite(tid.getId(), before, after, null);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Write the records that describe a change to a page, like
+        logWrite(TransactionId, Page, Page), giving each record the
+        transaction that owns the change.  On a heap page several
+        transactions can hold changes to different tuples when it is
+        logged, and each record must be undone with its own transaction.
+        @param tid The transaction logging the page
+        @param owners The id of the transaction that made each change, or
+                      null if tid made all of them
+        @return the LSN of the last record written, or 0 if none was
+    */
+    long logWrite(long tid, Page before, Page after, ToLongFunction<PageChange> owners)
+        throws IOException {
+        // compute and serialize the compact records before taking the
+        // monitor
+        List<PageChange> changes = PageChange.diff(before, after);
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        List<byte[]> payloads = new ArrayList<>(changes.size());
+        long[] tids = new long[changes.size()];
+        for (int i = 0; i < changes.size(); i++) {
+            payloads.add(payload(changes.get(i)));
+            tids[i] = owners == null ? tid : owners.applyAsLong(changes.get(i));
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        synchronized (this) {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            // transactions that did not log a BEGIN record start with
+            // their first update
+            tidToFirstLogRecord.putIfAbsent(tid, currentOffset);
+            if (imagedPages.add(after.getId())) {
+                // the image describes no change, so it is not counted as
+                // a record of its own
+                byte[] image = before.getPageData();
+                byte[] payload = payload(new PageChange.PageImage(after.getId(), image, image));
+                append(UPDATE_RECORD, tid, payload, payload.length);
+            }
+            long lsn = 0;
+            for (int i = 0; i < changes.size(); i++) {
+                if (i > 0) {
+                    preAppend();
+                }
+                tidToFirstLogRecord.putIfAbsent(tids[i], currentOffset);
+                byte[] payload = payloads.get(i);
+                lsn = append(changes.get(i).type(), tids[i], payload, payload.length);
+            }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return lsn;
         }
-        return newPage;
+    }
+
+    private static byte[] payload(PageChange change) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        change.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
 
+    /** Write a BULK_APPEND record for pages the specified tid is about
+        to write directly to the end of a heap file, and force the log
+        to disk.  The pages must not reach the file before this returns.
+
+        @param tid The transaction appending the pages
+        @param tableId The table the pages belong to
+        @param firstPage The number of the first appended page
+        @param numPages The number of appended pages
+    */
+    public synchronized void logBulkAppend(TransactionId tid, int tableId,
+                                           int firstPage, int numPages)
+        throws IOException {
+        preAppend();
+        Debug.log("BULK APPEND " + tableId + " " + firstPage + "+" + numPages);
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+        ByteBuffer pages = ByteBuffer.allocate(3 * INT_SIZE);
+        pages.putInt(tableId);
+        pages.putInt(firstPage);
+        pages.putInt(numPages);
+        append(BULK_APPEND_RECORD, tid.getId(), pages.array(), pages.capacity());
+        force();
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -311,150 +524,119 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        append(BEGIN_RECORD, tid.getId(), null, 0);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: it records the active transactions and
+        the dirty page table of the BufferPool without writing any page,
+        so transactions keep running while it is taken.  The BufferPool
+        adds a page to its dirty page table before it logs the page, and
+        removes it only after writing it while no change can be made to
+        it, so every change logged before the checkpoint is either on
+        disk or after the recLSN of its page in the record.  The log is
+        then truncated up to the oldest record recovery still needs.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        BufferPool bufferPool = Database.getBufferPool();
+        synchronized (this) {
+            preAppend();
+            Map<PageId, Long> dirtyPages = bufferPool.dirtyPageTable();
+            long checkpoint = currentOffset;
+            long oldest = checkpoint;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            //list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+                oldest = Math.min(oldest, e.getValue());
+            }
+            //dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                PageChange.writePageId(e.getKey(), out);
+                out.writeLong(e.getValue());
+                oldest = Math.min(oldest, e.getValue());
             }
+            out.flush();
+            // the next change to each page after the checkpoint is
+            // logged with full images
+            imagedPages.clear();
+            //no tid , but leave space for convenience
+            append(CHECKPOINT_RECORD, -1, bytes.toByteArray(), bytes.size());
+            force();
+
+            //once the CP is written, make sure the CP location in the
+            // log file is updated
+            segments.writeCheckpoint(checkpoint);
+            checkpointLSN = checkpoint;
+            truncationLSN = oldest;
+            Debug.log("CHECKPOINT AT " + checkpoint + ", " + dirtyPages.size() + " DIRTY PAGES, REDO FROM " + oldest);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: delete the segments that hold only records before
+        the oldest one the last checkpoint needs (the first record of an
+        active transaction, or the smallest recLSN of a dirty page.)  No
+        record is copied, so truncation takes no longer for a larger log.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        writeBuffer();
+        int deleted = segments.reclaim(truncationLSN);
+        if (deleted > 0) {
+            Debug.log("TRUNCATED LOG: DELETED " + deleted + " SEGMENTS, NEW START: " + segments.start());
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** @return whether the log has grown by the checkpoint interval since
+        the last checkpoint, so the page cleaner should take one */
+    public boolean isCheckpointDue() {
+        long interval = checkpointInterval;
+        return interval > 0 && flushedLSN - checkpointLSN >= interval;
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** Set how much log the page cleaner lets accumulate before it takes
+        a checkpoint.  Recovery reads about the log of the last two
+        intervals, unless a transaction stays active longer.
+        @param bytes The checkpoint interval in bytes; 0 takes no
+                     checkpoints in the background
+    */
+    public void setCheckpointInterval(long bytes) {
+        checkpointInterval = bytes;
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
-        }
+    /** @return the LSN of the last checkpoint record */
+    public long getCheckpointLSN() {
+        return checkpointLSN;
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Set the size after which a new segment file is started.  Smaller
+        segments let logTruncate delete the log in finer steps.
+        @param bytes The segment size in bytes
+    */
+    public synchronized void setSegmentSize(long bytes) {
+        segments.setSegmentSize(bytes);
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the segment files of the log, oldest first */
+    public synchronized List<File> getSegmentFiles() {
+        return segments.files();
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the LSN of the oldest byte still in the log */
+    public synchronized long getFirstLSN() {
+        return segments.start();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -462,17 +644,89 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The changes are undone in the BufferPool (see
+        BufferPool#rollback): tuples the transaction inserted or deleted
+        are restored one by one, so changes other transactions made to
+        the same pages are kept, and the page records of the transaction
+        are undone in reverse order on the other pages (see
+        PageChange#undo).  Pages the transaction appended with
+        BULK_APPEND records are emptied on disk.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        // copy the records from the first one of tid out of the log, and
+        // parse them outside the monitor
+        byte[] records;
+        synchronized(this) {
+            preAppend();
+            Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+            if (firstRecord == null) {
+                records = new byte[0];
+            } else {
+                writeBuffer();
+                records = new byte[(int) (currentOffset - firstRecord)];
+                segments.readFully(ByteBuffer.wrap(records), firstRecord);
             }
         }
+
+        // the page records of tid, in log order
+        Map<PageId, List<PageChange>> changes = new HashMap<>();
+        List<Page> appended = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        while (in.available() > 0) {
+            int type = in.readInt();
+            long recordTid = in.readLong();
+            switch (type) {
+            case UPDATE_RECORD:
+            case INSERT_SLOT_RECORD:
+            case DELETE_SLOT_RECORD:
+            case UPDATE_RANGE_RECORD:
+                PageChange change = PageChange.read(type, in);
+                // an UPDATE record is the page before a change, so there
+                // is nothing to undo
+                if (recordTid == tid.getId() && type != UPDATE_RECORD) {
+                    changes.computeIfAbsent(change.getPageId(), k -> new ArrayList<>()).add(change);
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                skipCheckpoint(in);
+                break;
+            case BULK_APPEND_RECORD:
+                int tableId = in.readInt();
+                int firstPage = in.readInt();
+                int numPages = in.readInt();
+                if (recordTid == tid.getId()) {
+                    // pages never modify the array they are built from
+                    byte[] empty = HeapPage.createEmptyPageData();
+                    for (int i = 0; i < numPages; i++) {
+                        appended.add(new HeapPage(new HeapPageId(tableId, firstPage + i), empty));
+                    }
+                }
+                break;
+            }
+            in.readLong();
+        }
+
+        BufferPool bufferPool = Database.getBufferPool();
+        bufferPool.rollback(tid, changes);
+        for (Page page : appended) {
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            bufferPool.discardPage(page.getId());
+        }
+    }
+
+    /** Skip the body of a CHECKPOINT record */
+    static void skipCheckpoint(DataInput in) throws IOException {
+        int numXactions = in.readInt();
+        in.skipBytes(numXactions * 2 * LONG_SIZE);
+        int numPages = in.readInt();
+        for (int i = 0; i < numPages; i++) {
+            PageChange.readPageId(in);
+            in.skipBytes(LONG_SIZE);
+        }
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -482,7 +736,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -492,14 +746,56 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery has three passes (see RecoveryManager): analysis reads
+        the log from the last checkpoint and finds the transactions that
+        did not finish and the pages that may be newer in the log than on
+        disk, redo repeats their page records from the smallest recLSN on
+        worker threads
+        partitioned by page id, and undo rolls back the unfinished
+        transactions in reverse log order, logging the result and an
+        ABORT record for each of them.  The pages are then written to
+        their files and a checkpoint is taken, so the next recovery
+        starts after this one.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                RecoveryManager recovery = new RecoveryManager(segments, recoveryThreads);
+                long end = recovery.analyze();
+                // drop the record the crash interrupted, if any
+                segments.truncate(end);
+                currentOffset = end;
+                flushedLSN = end;
+                recovery.redo();
+                recovery.undo(this);
+                recovery.writePages();
+                Debug.log("RECOVERED " + recovery.getPageCount() + " PAGES, "
+                          + recovery.getLoserCount() + " LOSERS");
             }
-         }
+            // the next recovery starts here
+            logCheckpoint();
+        }
+    }
+
+    /** Write an ABORT record for a transaction recovery rolled back.
+        The caller holds the monitor of this LogFile and forces the log.
+        @param tid The id of the transaction
+    */
+    void logRecoveredAbort(long tid) throws IOException {
+        preAppend();
+        append(ABORT_RECORD, tid, null, 0);
+        tidToFirstLogRecord.remove(tid);
+    }
+
+    /** Set the number of threads recovery redoes pages with.  Pages are
+        partitioned among them by page id.
+        @param threads The number of redo threads; 1 redoes in the
+                       thread reading the log
+    */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
     }
 
     /** Print out a human readable represenation of the log */
@@ -507,8 +803,112 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Append a record to the log buffer: the record type, the
+        transaction id, the payload and the offset where the record
+        starts.  A record larger than the buffer is written directly.
+        The caller holds the monitor of this LogFile and has called
+        preAppend().
+
+        @return the LSN of the record
+    */
+    private long append(int type, long tid, byte[] payload, int length) throws IOException {
+        long start = currentOffset;
+        int size = INT_SIZE + 2 * LONG_SIZE + length;
+        if (logBuffer.remaining() < size) {
+            writeBuffer();
+        }
+        ByteBuffer buf = logBuffer.remaining() < size ? ByteBuffer.allocate(size) : logBuffer;
+        buf.putInt(type);
+        buf.putLong(tid);
+        if (length > 0) {
+            buf.put(payload, 0, length);
+        }
+        buf.putLong(start);
+        if (buf != logBuffer) {
+            buf.flip();
+            segments.write(buf);
+        }
+        currentOffset += size;
+        return start;
+    }
+
+    /** Write the log buffer to the end of the segments, without forcing
+        it */
+    private void writeBuffer() throws IOException {
+        if (logBuffer.position() > 0) {
+            logBuffer.flip();
+            segments.write(logBuffer);
+            logBuffer.clear();
+        }
+    }
+
+    /** @return the LSN the next record will get */
+    public synchronized long getEndLSN() {
+        return Math.max(currentOffset, LogSegments.FIRST_LSN);
+    }
+
+    /** @return the LSN up to which (not including) the log is durable */
+    public long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    /** Make the log durable up to and including the record with the
+        specified LSN, forcing it only if that record is not durable yet.
+        The BufferPool calls this with the pageLSN of a page before it
+        writes the page.  The force runs outside the monitor of this
+        LogFile.
+
+        @param lsn The LSN of a record, or 0 for none
+    */
+    public void flushTo(long lsn) throws IOException {
+        forceUpTo(lsn + 1);
+    }
+
+    /** Force the log if it is not durable up to the specified LSN.
+        @return whether the log was forced
+    */
+    private boolean forceUpTo(long lsn) throws IOException {
+        if (lsn <= flushedLSN) {
+            return false;
+        }
+        List<FileChannel> channels;
+        long target;
+        synchronized (this) {
+            if (lsn <= flushedLSN) {
+                return false;
+            }
+            writeBuffer();
+            channels = segments.channels(flushedLSN);
+            target = currentOffset;
+        }
+        IOException failure = null;
+        try {
+            for (FileChannel channel : channels) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            // a failed force is fine if a checkpoint forced the log and
+            // logTruncate deleted the segment meanwhile
+            if (failure != null && flushedLSN < target) {
+                throw failure;
+            }
+            flushedLSN = Math.max(flushedLSN, target);
+        }
+        return true;
+    }
+
+    /** Write the log buffer to the file and force the file to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        for (FileChannel channel : segments.channels(flushedLSN)) {
+            channel.force(true);
+        }
+        if (currentOffset > 0) {
+            flushedLSN = Math.max(flushedLSN, currentOffset);
+        }
     }
 
 }
@@ -0,0 +1,338 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 分段的日志文件：日志是只追加的字节流，字节在流中的位置就是它的 LSN，流按 LSN 切成若干段文件 <br/>
+ * 1. 控制文件（{@link LogFile} 打开的文件）只保存最近的检查点记录的 LSN；段文件与它在同一目录下，
+ *    文件名是控制文件名加上段的起始 LSN（16 位十六进制），如 log.0000000000000008。 <br/>
+ * 2. 追加写入最后一段，最后一段达到段大小后新建一段。段只在一次写入的边界上切换，
+ *    {@link LogFile} 每次写入的都是完整的记录，所以记录不会跨段。 <br/>
+ * 3. 回收日志空间时整段删除不再需要的段（见 {@link #reclaim(long)}），不复制日志，记录的 LSN 不变。 <br/>
+ * 4. 按 LSN 读日志时定位到段，读到段尾接着读下一段。 <br/>
+ * 段文件的通道在第一次读写时打开。这个类不是线程安全的，由 {@link LogFile} 的监视器保护；
+ * {@link #channels(long)} 返回的通道可以在监视器外 force。
+ */
+class LogSegments {
+
+    /**
+     * 第一个字节的 LSN，0 不表示任何记录
+     */
+    static final long FIRST_LSN = LogFile.LONG_SIZE;
+
+    private final File dir;
+    private final String prefix;
+    private final FileChannel control;
+    /**
+     * 段的起始 LSN → 段
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /**
+     * 最后一个字节之后的 LSN
+     */
+    private long end;
+    /**
+     * 最后一段达到这个大小后新建一段
+     */
+    private long segmentSize;
+
+    /**
+     * 一个段文件
+     */
+    private static class Segment {
+        final long start;
+        final File file;
+        long size;
+        private FileChannel channel;
+
+        Segment(long start, File file, long size) {
+            this.start = start;
+            this.file = file;
+            this.size = size;
+        }
+
+        FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        void delete() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            if (!file.delete() && file.exists()) {
+                throw new IOException("cannot delete log segment " + file);
+            }
+        }
+    }
+
+    /**
+     * 打开控制文件和已有的段文件
+     * @param controlFile   控制文件
+     * @param segmentSize   段大小（字节）
+     * @throws IOException
+     */
+    LogSegments(File controlFile, long segmentSize) throws IOException {
+        File file = controlFile.getAbsoluteFile();
+        this.dir = file.getParentFile();
+        this.prefix = file.getName() + ".";
+        this.segmentSize = segmentSize;
+        this.control = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long start = parseStart(f.getName());
+                if (start >= 0) {
+                    segments.put(start, new Segment(start, f, f.length()));
+                }
+            }
+        }
+        end = segments.isEmpty() ? FIRST_LSN : segments.lastEntry().getValue().start + segments.lastEntry().getValue().size;
+    }
+
+    /**
+     * @return 段文件名中的起始 LSN，不是段文件时返回 -1
+     */
+    private long parseStart(String name) {
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) {
+            return -1;
+        }
+        try {
+            return Long.parseUnsignedLong(name.substring(prefix.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @return 最早保留的字节的 LSN
+     */
+    long start() {
+        return segments.isEmpty() ? end : segments.firstKey();
+    }
+
+    /**
+     * @return 最后一个字节之后的 LSN
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * @return 段文件，按 LSN 排序
+     */
+    List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            files.add(segment.file);
+        }
+        return files;
+    }
+
+    /**
+     * 读控制文件中最近的检查点记录的 LSN
+     * @return 检查点的 LSN，没有检查点时为 {@link LogFile#NO_CHECKPOINT_ID}
+     * @throws IOException
+     */
+    long readCheckpoint() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LogFile.LONG_SIZE);
+        while (buf.hasRemaining()) {
+            if (control.read(buf, buf.position()) < 0) {
+                return LogFile.NO_CHECKPOINT_ID;
+            }
+        }
+        buf.flip();
+        return buf.getLong();
+    }
+
+    /**
+     * 把检查点记录的 LSN 写入控制文件并刷盘
+     * @param lsn       检查点记录的 LSN，或 {@link LogFile#NO_CHECKPOINT_ID}
+     * @throws IOException
+     */
+    void writeCheckpoint(long lsn) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LogFile.LONG_SIZE);
+        buf.putLong(lsn);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            control.write(buf, buf.position());
+        }
+        control.truncate(LogFile.LONG_SIZE);
+        control.force(true);
+    }
+
+    /**
+     * 在日志末尾追加 src 中剩下的字节，最后一段已满时先新建一段，不刷盘
+     * @param src
+     * @throws IOException
+     */
+    void write(ByteBuffer src) throws IOException {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        Segment segment = last == null ? null : last.getValue();
+        if (segment == null || segment.size >= segmentSize) {
+            segment = new Segment(end, new File(dir, String.format("%s%016x", prefix, end)), 0);
+            segment.channel().truncate(0);
+            segments.put(end, segment);
+            forceDirectory();
+        }
+        FileChannel channel = segment.channel();
+        while (src.hasRemaining()) {
+            int n = channel.write(src, segment.size);
+            segment.size += n;
+            end += n;
+        }
+    }
+
+    /**
+     * 把新建的段文件的目录项刷盘，不支持打开目录的平台上跳过
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // 目录项随段文件的内容一起落盘
+        }
+    }
+
+    /**
+     * 从 lsn 开始读日志，读到 dst 满或日志末尾，跨段时接着读下一段
+     * @param dst
+     * @param lsn       开始读的位置
+     * @return 读到的字节数，lsn 已在日志末尾时返回 -1
+     * @throws IOException lsn 所在的段已被回收
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        if (lsn >= end) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && lsn < end) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(lsn);
+            if (e == null) {
+                throw new IOException("log before LSN " + start() + " was reclaimed, cannot read " + lsn);
+            }
+            Segment segment = e.getValue();
+            long offset = lsn - segment.start;
+            if (offset >= segment.size) {
+                throw new IOException("log is missing bytes at LSN " + lsn);
+            }
+            int limit = dst.limit();
+            dst.limit((int) Math.min(limit, dst.position() + segment.size - offset));
+            int n;
+            try {
+                n = segment.channel().read(dst, offset);
+            } finally {
+                dst.limit(limit);
+            }
+            if (n < 0) {
+                throw new EOFException("log segment " + segment.file + " is shorter than " + segment.size);
+            }
+            read += n;
+            lsn += n;
+        }
+        return read;
+    }
+
+    /**
+     * 从 lsn 开始读满 dst
+     * @throws EOFException 日志在读满之前结束
+     */
+    void readFully(ByteBuffer dst, long lsn) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = read(dst, lsn);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            lsn += n;
+        }
+    }
+
+    /**
+     * @param lsn
+     * @return 含有 lsn 及之后字节的段的通道，force 它们使日志在 lsn 之后的部分落盘
+     * @throws IOException
+     */
+    List<FileChannel> channels(long lsn) throws IOException {
+        List<FileChannel> channels = new ArrayList<>();
+        Long from = segments.floorKey(lsn);
+        for (Segment segment : (from == null ? segments : segments.tailMap(from, true)).values()) {
+            channels.add(segment.channel());
+        }
+        return channels;
+    }
+
+    /**
+     * 丢弃 lsn 及之后的字节（崩溃时没写完的记录），之后从 lsn 开始追加
+     * @param lsn
+     * @throws IOException
+     */
+    void truncate(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.lastKey() >= lsn) {
+            segments.pollLastEntry().getValue().delete();
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            if (last.start + last.size > lsn) {
+                last.size = lsn - last.start;
+                last.channel().truncate(last.size);
+            }
+            lsn = last.start + last.size;
+        }
+        end = lsn;
+    }
+
+    /**
+     * 删除所有段文件，清除控制文件中的检查点，日志从 {@link #FIRST_LSN} 重新开始
+     * @throws IOException
+     */
+    void reset() throws IOException {
+        truncate(Long.MIN_VALUE);
+        end = FIRST_LSN;
+        writeCheckpoint(LogFile.NO_CHECKPOINT_ID);
+    }
+
+    /**
+     * 回收日志空间：删除只含有 lsn 之前的字节的段，最后一段总是保留
+     * @param lsn       最早仍需要的记录的 LSN
+     * @return 删除的段数
+     * @throws IOException
+     */
+    int reclaim(long lsn) throws IOException {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= lsn) {
+            segments.pollFirstEntry().getValue().delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * 关闭控制文件和段文件的通道
+     * @throws IOException
+     */
+    void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (segment.channel != null) {
+                segment.channel.close();
+            }
+        }
+        control.close();
+    }
+}
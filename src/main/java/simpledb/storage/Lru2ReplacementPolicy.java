@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * LRU-2 置换策略（O(1) 近似实现） <br/>
+ * LRU-2 淘汰倒数第二次访问时间最早的页面，只被访问过一次的页面倒数第二次访问时间视为无穷远，最先被淘汰。<br/>
+ * 这里用两个链表近似：<br/>
+ * 1. cold 链表：只被访问过一次的页面，按载入顺序（FIFO）淘汰。 <br/>
+ * 2. hot 链表：被访问过两次及以上的页面，按最近一次访问排序（LRU），用最近一次访问近似倒数第二次访问。 <br/>
+ * 淘汰时先从 cold 链表头部找，再从 hot 链表头部找。<br/>
+ * "use once" 的页面放在 cold 链表头部，扫描命中也不会被提升到 hot 链表，因此大扫描不会挤出热点页面。<br/>
+ * 链表用数组实现，载入、命中、移出均为 O(1)。
+ */
+public class Lru2ReplacementPolicy implements ReplacementPolicy {
+
+    private static final int NONE = -1;
+
+    private static final byte FREE = 0;
+    private static final byte COLD = 1;
+    private static final byte HOT = 2;
+
+    /**
+     * 页框所在的链表
+     */
+    private final byte[] list;
+    private final int[] prev;
+    private final int[] next;
+
+    /**
+     * 链表头为最先淘汰的一端，链表尾为最近访问的一端
+     */
+    private final int[] head = {NONE, NONE, NONE};
+    private final int[] tail = {NONE, NONE, NONE};
+
+    public Lru2ReplacementPolicy(int capacity) {
+        this.list = new byte[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+    }
+
+    @Override
+    public synchronized void loaded(int frame, boolean useOnce) {
+        unlink(frame);
+        if (useOnce) {
+            linkFirst(COLD, frame);
+        } else {
+            linkLast(COLD, frame);
+        }
+    }
+
+    @Override
+    public synchronized void accessed(int frame, boolean useOnce) {
+        if (useOnce || list[frame] == FREE) {
+            return;
+        }
+        // 第二次及以后的访问：移到 hot 链表尾部
+        unlink(frame);
+        linkLast(HOT, frame);
+    }
+
+    @Override
+    public synchronized void removed(int frame) {
+        unlink(frame);
+    }
+
+    @Override
+    public synchronized int victim(IntPredicate evictable) {
+        int frame = firstEvictable(COLD, evictable);
+        if (frame == NONE) {
+            frame = firstEvictable(HOT, evictable);
+        }
+        return frame;
+    }
+
+    @Override
+    public synchronized void scanCandidates(IntPredicate visitor) {
+        for (byte which = COLD; which <= HOT; which++) {
+            for (int frame = head[which]; frame != NONE; frame = next[frame]) {
+                if (!visitor.test(frame)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private int firstEvictable(byte which, IntPredicate evictable) {
+        for (int frame = head[which]; frame != NONE; frame = next[frame]) {
+            if (evictable.test(frame)) {
+                return frame;
+            }
+        }
+        return NONE;
+    }
+
+    private void linkFirst(byte which, int frame) {
+        list[frame] = which;
+        prev[frame] = NONE;
+        next[frame] = head[which];
+        if (head[which] != NONE) {
+            prev[head[which]] = frame;
+        } else {
+            tail[which] = frame;
+        }
+        head[which] = frame;
+    }
+
+    private void linkLast(byte which, int frame) {
+        list[frame] = which;
+        next[frame] = NONE;
+        prev[frame] = tail[which];
+        if (tail[which] != NONE) {
+            next[tail[which]] = frame;
+        } else {
+            head[which] = frame;
+        }
+        tail[which] = frame;
+    }
+
+    private void unlink(int frame) {
+        byte which = list[frame];
+        if (which == FREE) {
+            return;
+        }
+        if (prev[frame] != NONE) {
+            next[prev[frame]] = next[frame];
+        } else {
+            head[which] = next[frame];
+        }
+        if (next[frame] != NONE) {
+            prev[next[frame]] = prev[frame];
+        } else {
+            tail[which] = prev[frame];
+        }
+        list[frame] = FREE;
+        prev[frame] = NONE;
+        next[frame] = NONE;
+    }
+}
@@ -58,4 +58,19 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that describes a change to this
+     * page (the pageLSN), or 0 if no log record has described it since it
+     * was read from disk.  Before the page is written back, the log must be
+     * durable up to this LSN (see LogFile#flushTo).
+     */
+    public long getLSN();
+
+    /**
+     * Raise the pageLSN of this page to lsn; the BufferPool calls this after
+     * it has logged the page.  A smaller LSN leaves the pageLSN unchanged,
+     * since threads holding shared latches may log the same page concurrently.
+     */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,422 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreePageId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 页面修改日志记录：记录落在一个页面上（物理），页面内按槽位或字节区间描述修改（逻辑） <br/>
+ * 每种记录都有重做（redo）和撤销（undo）处理： <br/>
+ * 1. {@link PageImage}：整页的前后镜像。检查点之后第一次为一个页面写日志时，先写一条前后镜像都是页面写日志前内容的记录，
+ *    作为恢复时重做这个页面的起点，页面上的修改仍用下面的记录描述，每条记录都能归到修改它的事务。 <br/>
+ * 2. {@link InsertSlot} / {@link DeleteSlot}：堆文件页面上插入、删除一个槽位的元组，只记录这一个元组。 <br/>
+ * 3. {@link UpdateRange}：一段连续字节修改前后的内容，用于堆文件槽位内的修改和 B+ 树页面的修改。 <br/>
+ * 记录由 {@link #diff(Page, Page)} 比较页面写日志前后的内容得到，在日志中的格式见 {@link LogFile}。
+ */
+public abstract class PageChange {
+
+    /**
+     * 两处修改之间相同的字节少于这个数时合并为一条 UpdateRange 记录，单独成记录的开销比这些字节多
+     */
+    static final int MERGE_GAP = 16;
+
+    final PageId pid;
+
+    PageChange(PageId pid) {
+        this.pid = pid;
+    }
+
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return 日志记录类型
+     */
+    abstract int type();
+
+    /**
+     * @return 修改所在的堆文件槽位，不在一个槽位内时为 -1；只在写日志时可用，从日志读出的记录为 -1
+     */
+    int slot() {
+        return -1;
+    }
+
+    /**
+     * 在页面内容上重做这条记录
+     */
+    abstract void redo(byte[] data);
+
+    /**
+     * 在页面内容上撤销这条记录
+     */
+    abstract void undo(byte[] data);
+
+    /**
+     * 写出页面 ID 之后的记录内容
+     */
+    abstract void writeBody(DataOutput out) throws IOException;
+
+    /**
+     * 重做这条记录
+     * @param page      修改前的页面
+     * @return 修改后的新页面，page 不变
+     * @throws IOException
+     */
+    public Page redo(Page page) throws IOException {
+        byte[] data = page.getPageData().clone();
+        redo(data);
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).newPage(pid, data);
+    }
+
+    /**
+     * 撤销这条记录
+     * @param page      修改后的页面
+     * @return 修改前的新页面，page 不变
+     * @throws IOException
+     */
+    public Page undo(Page page) throws IOException {
+        byte[] data = page.getPageData().clone();
+        undo(data);
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).newPage(pid, data);
+    }
+
+    /**
+     * 写出记录内容：页面 ID（整数个数和 {@link PageId#serialize()} 的各个整数），之后是各类记录自己的内容
+     */
+    void write(DataOutput out) throws IOException {
+        writePageId(pid, out);
+        writeBody(out);
+    }
+
+    /**
+     * 写出页面 ID：整数个数和 {@link PageId#serialize()} 的各个整数，由 {@link #readPageId(DataInput)} 读出
+     */
+    static void writePageId(PageId pid, DataOutput out) throws IOException {
+        int[] id = pid.serialize();
+        out.writeInt(id.length);
+        for (int i : id) {
+            out.writeInt(i);
+        }
+    }
+
+    /**
+     * 读出 {@link #write(DataOutput)} 写出的记录内容，不使用反射
+     * @param type      日志记录类型
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static PageChange read(int type, DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        switch (type) {
+            case LogFile.UPDATE_RECORD: {
+                int length = in.readInt();
+                return new PageImage(pid, readBytes(in, length), readBytes(in, length));
+            }
+            case LogFile.INSERT_SLOT_RECORD: {
+                int slot = in.readInt();
+                return new InsertSlot(pid, slot, readBytes(in, in.readInt()));
+            }
+            case LogFile.DELETE_SLOT_RECORD: {
+                int slot = in.readInt();
+                return new DeleteSlot(pid, slot, readBytes(in, in.readInt()));
+            }
+            case LogFile.UPDATE_RANGE_RECORD: {
+                int offset = in.readInt();
+                int length = in.readInt();
+                return new UpdateRange(pid, -1, offset, readBytes(in, length), readBytes(in, length));
+            }
+            default:
+                throw new IOException("not a page record: " + type);
+        }
+    }
+
+    /**
+     * 读出 {@link #writePageId(PageId, DataOutput)} 写出的页面 ID
+     */
+    static PageId readPageId(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] id = new int[n];
+        for (int i = 0; i < n; i++) {
+            id[i] = in.readInt();
+        }
+        return n == 2 ? new HeapPageId(id[0], id[1]) : new BTreePageId(id[0], id[1], id[2]);
+    }
+
+    /**
+     * 跳过页面 ID 之后的记录内容，只需要页面 ID 时使用（如恢复的分析阶段）
+     * @param type      日志记录类型
+     * @param in
+     * @throws IOException
+     */
+    static void skipBody(int type, DataInput in) throws IOException {
+        switch (type) {
+            case LogFile.UPDATE_RECORD:
+                skip(in, 2L * in.readInt());
+                break;
+            case LogFile.INSERT_SLOT_RECORD:
+            case LogFile.DELETE_SLOT_RECORD:
+                in.readInt();
+                skip(in, in.readInt());
+                break;
+            case LogFile.UPDATE_RANGE_RECORD:
+                in.readInt();
+                skip(in, 2L * in.readInt());
+                break;
+            default:
+                throw new IOException("not a page record: " + type);
+        }
+    }
+
+    private static void skip(DataInput in, long n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    private static byte[] readBytes(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * 比较页面的两个版本，得到把 before 变成 after 的记录 <br/>
+     * 1. 堆文件页面：按槽位比较，槽位由空变为占用记为 InsertSlot，由占用变为空记为 DeleteSlot，都占用时记录槽位内不同的字节。 <br/>
+     * 2. 其他页面：记录不同的字节区间。
+     * @param before    修改前的页面
+     * @param after     修改后的页面
+     * @return 没有修改时为空
+     */
+    public static List<PageChange> diff(Page before, Page after) {
+        PageId pid = after.getId();
+        byte[] old = before.getPageData();
+        byte[] now = after.getPageData();
+        List<PageChange> changes = new ArrayList<>();
+        if (after instanceof HeapPage) {
+            HeapPage page = (HeapPage) after;
+            int size = page.td.getSize();
+            for (int slot = 0; slot < page.numSlots; slot++) {
+                boolean wasUsed = isSlotUsed(old, slot);
+                boolean used = isSlotUsed(now, slot);
+                int offset = page.headerSize + slot * size;
+                if (!wasUsed && used) {
+                    changes.add(new InsertSlot(pid, slot, Arrays.copyOfRange(now, offset, offset + size)));
+                } else if (wasUsed && !used) {
+                    changes.add(new DeleteSlot(pid, slot, Arrays.copyOfRange(old, offset, offset + size)));
+                } else if (used) {
+                    diffRange(pid, slot, old, now, offset, offset + size, changes);
+                }
+            }
+        } else {
+            diffRange(pid, -1, old, now, 0, now.length, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * 把 [from, to) 中不同的字节记为 UpdateRange 记录，相隔不到 MERGE_GAP 个字节的修改合并为一条
+     */
+    private static void diffRange(PageId pid, int slot, byte[] old, byte[] now, int from, int to, List<PageChange> changes) {
+        int i = from;
+        while (i < to) {
+            if (old[i] == now[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < to && j - end < MERGE_GAP; j++) {
+                if (old[j] != now[j]) {
+                    end = j + 1;
+                }
+            }
+            changes.add(new UpdateRange(pid, slot, start, Arrays.copyOfRange(old, start, end), Arrays.copyOfRange(now, start, end)));
+            i = end;
+        }
+    }
+
+    private static boolean isSlotUsed(byte[] data, int slot) {
+        return (data[slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static void markSlotUsed(byte[] data, int slot, boolean used) {
+        if (used) {
+            data[slot / 8] |= (1 << (slot % 8));
+        } else {
+            data[slot / 8] &= ~(1 << (slot % 8));
+        }
+    }
+
+    /**
+     * @return 堆文件页面上槽位的起始位置
+     */
+    private static int slotOffset(PageId pid, int slot) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        return HeapPage.headerSize(td) + slot * td.getSize();
+    }
+
+    /**
+     * 整页的前后镜像（UPDATE 记录）
+     */
+    static class PageImage extends PageChange {
+        final byte[] before;
+        final byte[] after;
+
+        PageImage(PageId pid, byte[] before, byte[] after) {
+            super(pid);
+            this.before = before;
+            this.after = after;
+        }
+
+        int type() {
+            return LogFile.UPDATE_RECORD;
+        }
+
+        void redo(byte[] data) {
+            System.arraycopy(after, 0, data, 0, after.length);
+        }
+
+        void undo(byte[] data) {
+            System.arraycopy(before, 0, data, 0, before.length);
+        }
+
+        void writeBody(DataOutput out) throws IOException {
+            out.writeInt(after.length);
+            out.write(before);
+            out.write(after);
+        }
+    }
+
+    /**
+     * 堆文件页面上插入一个元组：槽位和元组的内容
+     */
+    static class InsertSlot extends PageChange {
+        final int slot;
+        final byte[] tuple;
+
+        InsertSlot(PageId pid, int slot, byte[] tuple) {
+            super(pid);
+            this.slot = slot;
+            this.tuple = tuple;
+        }
+
+        int type() {
+            return LogFile.INSERT_SLOT_RECORD;
+        }
+
+        int slot() {
+            return slot;
+        }
+
+        void redo(byte[] data) {
+            System.arraycopy(tuple, 0, data, slotOffset(pid, slot), tuple.length);
+            markSlotUsed(data, slot, true);
+        }
+
+        void undo(byte[] data) {
+            // 空槽位全为 0
+            int offset = slotOffset(pid, slot);
+            Arrays.fill(data, offset, offset + tuple.length, (byte) 0);
+            markSlotUsed(data, slot, false);
+        }
+
+        void writeBody(DataOutput out) throws IOException {
+            out.writeInt(slot);
+            out.writeInt(tuple.length);
+            out.write(tuple);
+        }
+    }
+
+    /**
+     * 堆文件页面上删除一个元组：槽位和被删除元组的内容
+     */
+    static class DeleteSlot extends PageChange {
+        final int slot;
+        final byte[] tuple;
+
+        DeleteSlot(PageId pid, int slot, byte[] tuple) {
+            super(pid);
+            this.slot = slot;
+            this.tuple = tuple;
+        }
+
+        int type() {
+            return LogFile.DELETE_SLOT_RECORD;
+        }
+
+        int slot() {
+            return slot;
+        }
+
+        void redo(byte[] data) {
+            int offset = slotOffset(pid, slot);
+            Arrays.fill(data, offset, offset + tuple.length, (byte) 0);
+            markSlotUsed(data, slot, false);
+        }
+
+        void undo(byte[] data) {
+            System.arraycopy(tuple, 0, data, slotOffset(pid, slot), tuple.length);
+            markSlotUsed(data, slot, true);
+        }
+
+        void writeBody(DataOutput out) throws IOException {
+            out.writeInt(slot);
+            out.writeInt(tuple.length);
+            out.write(tuple);
+        }
+    }
+
+    /**
+     * 页面上一段连续字节修改前后的内容
+     */
+    static class UpdateRange extends PageChange {
+        /**
+         * 修改所在的堆文件槽位，不写入日志
+         */
+        final int slot;
+        final int offset;
+        final byte[] before;
+        final byte[] after;
+
+        UpdateRange(PageId pid, int slot, int offset, byte[] before, byte[] after) {
+            super(pid);
+            this.slot = slot;
+            this.offset = offset;
+            this.before = before;
+            this.after = after;
+        }
+
+        int type() {
+            return LogFile.UPDATE_RANGE_RECORD;
+        }
+
+        int slot() {
+            return slot;
+        }
+
+        void redo(byte[] data) {
+            System.arraycopy(after, 0, data, offset, after.length);
+        }
+
+        void undo(byte[] data) {
+            System.arraycopy(before, 0, data, offset, before.length);
+        }
+
+        void writeBody(DataOutput out) throws IOException {
+            out.writeInt(offset);
+            out.writeInt(after.length);
+            out.write(before);
+            out.write(after);
+        }
+    }
+}
@@ -36,5 +36,34 @@ public interface PageId {
     public boolean equals(Object o);
 
     public int getPageNumber();
+
+    /**
+     * @return the kind of page this id refers to, in [0, 8). Page ids of
+     *   different kinds in the same table must report different categories.
+     *   Heap pages use 4 so they never collide with the B+ tree categories.
+     */
+    default int getCategory() {
+        return 4;
+    }
+
+    /**
+     * @return a compact key for this page, unique across all pages of all
+     *   tables: the table id in the upper 32 bits, then the page number
+     *   (29 bits) and the page category (3 bits). Used by the BufferPool
+     *   page table so that lookups need no boxing and cannot collide.
+     */
+    default long pageKey() {
+        return pageKey(getTableId(), getPageNumber(), getCategory());
+    }
+
+    /**
+     * Packs a table id, page number and page category into a page key.
+     * Page numbers must be in [0, 2^29), i.e. files of up to 2 TB with 4K
+     * pages.
+     * @see #pageKey()
+     */
+    static long pageKey(int tableId, int pgNo, int category) {
+        return ((long) tableId << 32) | ((long) (pgNo & 0x1FFFFFFF) << 3) | (category & 7);
+    }
 }
 
@@ -0,0 +1,93 @@
+package simpledb.storage;
+
+import simpledb.common.LongIntHashMap;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 缓冲池页表：页面键到页框编号的映射 <br/>
+ * 1. 按页面键分成若干段（stripe），每段一个 {@link LongIntHashMap} 和一把 {@link StampedLock}。 <br/>
+ * 2. 查找先用乐观读，不加锁也不写共享内存，校验失败时才退化为读锁。 <br/>
+ * 3. 插入、删除只锁住页面所在的段，不同段之间互不阻塞。
+ */
+class PageTable {
+
+    private static final int STRIPES = 64;
+
+    private final StampedLock[] locks = new StampedLock[STRIPES];
+    private final LongIntHashMap[] maps = new LongIntHashMap[STRIPES];
+
+    /**
+     * @param capacity  缓冲池页框数
+     */
+    PageTable(int capacity) {
+        int perStripe = Math.max(capacity / STRIPES * 2, 8);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new StampedLock();
+            maps[i] = new LongIntHashMap(perStripe);
+        }
+    }
+
+    /**
+     * @param key   页面键
+     * @return 页框编号，不存在时返回 {@link LongIntHashMap#NO_VALUE}
+     */
+    int get(long key) {
+        int stripe = stripe(key);
+        StampedLock lock = locks[stripe];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int frame = maps[stripe].get(key);
+                if (lock.validate(stamp)) {
+                    return frame;
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // 与扩容并发，读到了不一致的数组，下面加读锁重试
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return maps[stripe].get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 键不存在时插入
+     * @return 已有的页框编号，不存在时插入并返回 {@link LongIntHashMap#NO_VALUE}
+     */
+    int putIfAbsent(long key, int frame) {
+        int stripe = stripe(key);
+        long stamp = locks[stripe].writeLock();
+        try {
+            return maps[stripe].putIfAbsent(key, frame);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 仅当页面键仍映射到指定页框时删除
+     * @return 是否删除
+     */
+    boolean remove(long key, int frame) {
+        int stripe = stripe(key);
+        long stamp = locks[stripe].writeLock();
+        try {
+            if (maps[stripe].get(key) != frame) {
+                return false;
+            }
+            maps[stripe].remove(key);
+            return true;
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    private static int stripe(long key) {
+        long h = key * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h >>> 58) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,231 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 数据文件的 I/O 层 <br/>
+ * 每个 DbFile 持有一个 PagedFile，PagedFile 保持一个打开的 FileChannel，按位置读写（pread/pwrite），
+ * 不需要每读一页打开、seek、关闭一次文件，多个线程可以同时读写同一个文件。<br/>
+ * 1. 文件长度缓存在内存中，经由本对象的写入会更新缓存；其他途径追加的页面通过 {@link #refreshLength()} 看到。 <br/>
+ * 2. 同时打开的文件数有上限，超过时关闭最久未使用的文件，下次读写时再重新打开。 <br/>
+ * 3. 读写线程被中断时 FileChannel 会被关闭，这里重新打开并重试，保持和 RandomAccessFile 一样不响应中断。
+ */
+public class PagedFile {
+
+    /**
+     * 同时打开的文件数上限
+     */
+    static final int MAX_OPEN_FILES = 256;
+
+    private static final Set<PagedFile> openFiles = ConcurrentHashMap.newKeySet();
+
+    private final File file;
+
+    /**
+     * 读写持有读锁，打开和关闭 channel 持有写锁
+     */
+    private final ReentrantReadWriteLock channelLock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+
+    /**
+     * 缓存的文件长度，-1 表示还未读取
+     */
+    private final AtomicLong length = new AtomicLong(-1);
+
+    private volatile long lastUsed;
+
+    public PagedFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 缓存的文件长度
+     */
+    public long length() throws IOException {
+        long len = length.get();
+        return len >= 0 ? len : refreshLength();
+    }
+
+    /**
+     * 重新读取文件长度，用于看到其他途径追加到文件末尾的数据
+     */
+    public long refreshLength() throws IOException {
+        long size = io(FileChannel::size);
+        length.accumulateAndGet(size, Math::max);
+        return size;
+    }
+
+    /**
+     * 从 position 处读满 buf
+     * @throws EOFException 读到文件末尾仍未读满
+     */
+    public void read(long position, byte[] buf) throws IOException {
+        io(ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, position + bb.position()) < 0) {
+                    throw new EOFException(String.format("read %d bytes at %d past end of %s",
+                            buf.length, position, file));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把 data 写到 position 处，必要时扩展文件
+     */
+    public void write(long position, byte[] data) throws IOException {
+        io(ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                ch.write(bb, position + bb.position());
+            }
+            return null;
+        });
+        length.accumulateAndGet(position + data.length, Math::max);
+    }
+
+    /**
+     * 把 data 追加到文件末尾
+     * @return 写入的位置
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = refreshLength();
+        write(position, data);
+        return position;
+    }
+
+    /**
+     * 把写入的数据刷到磁盘
+     */
+    public void force() throws IOException {
+        io(ch -> {
+            ch.force(false);
+            return null;
+        });
+    }
+
+    /**
+     * 只读映射文件的 [position, position + size) 区间。映射在 channel 关闭后仍然有效，
+     * 经由本对象写入的内容对映射可见。
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        return io(ch -> ch.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+
+    /**
+     * 关闭 channel，之后的读写会重新打开文件
+     */
+    public void close() throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            openFiles.remove(this);
+            if (channel != null) {
+                FileChannel ch = channel;
+                channel = null;
+                ch.close();
+            }
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    private interface ChannelOp<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    private <T> T io(ChannelOp<T> op) throws IOException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                FileChannel ch = acquire();
+                try {
+                    return op.apply(ch);
+                } catch (ClosedByInterruptException e) {
+                    // 清掉中断标志后重试，返回前再恢复
+                    interrupted |= Thread.interrupted();
+                } catch (ClosedChannelException e) {
+                    // 被其他线程的中断或者打开文件数上限关闭，重新打开
+                } finally {
+                    channelLock.readLock().unlock();
+                }
+                reopen(ch);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 返回打开的 channel，返回时持有读锁
+     */
+    private FileChannel acquire() throws IOException {
+        lastUsed = System.nanoTime();
+        for (;;) {
+            channelLock.readLock().lock();
+            if (channel != null) {
+                return channel;
+            }
+            channelLock.readLock().unlock();
+            reopen(null);
+        }
+    }
+
+    /**
+     * channel 仍是 stale 时关闭并重新打开
+     */
+    private void reopen(FileChannel stale) throws IOException {
+        channelLock.writeLock().lock();
+        try {
+            if (channel != stale) {
+                return;
+            }
+            if (stale != null) {
+                stale.close();
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            openFiles.add(this);
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+        // 不持有本文件的锁时再关闭其他文件，避免两个文件互相等待
+        closeIdleFiles();
+    }
+
+    private void closeIdleFiles() throws IOException {
+        while (openFiles.size() > MAX_OPEN_FILES) {
+            PagedFile victim = null;
+            for (PagedFile f : openFiles) {
+                if (f != this && (victim == null || f.lastUsed < victim.lastUsed)) {
+                    victim = f;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            if (openFiles.remove(victim)) {
+                victim.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 顺序预读 <br/>
+ * 顺序扫描的迭代器各自持有一个 ReadAhead，每访问一个页面调用一次 {@link #accessed(PageId, Page)}。<br/>
+ * 1. 访问的页面是上一个页面的后继（堆文件的下一页、B+ 树叶子页的右兄弟）时认为是顺序访问，
+ *    连续 SEQUENTIAL_THRESHOLD 次顺序访问后开始预读。 <br/>
+ * 2. 预读在后台线程中沿后继链把后面 window 个页面读入缓冲池（{@link BufferPool#prefetchPage(PageId)}），
+ *    当前页面之后已预读的页面不足半个窗口时继续预读。 <br/>
+ * 3. 窗口大小随缓冲池压力调整：上一批预读之后没有预读页面被浪费（没被访问就被逐出）时窗口翻倍，直到 MAX_WINDOW；
+ *    出现浪费时窗口减半。窗口不超过缓冲池的 1/4，缓冲池太小时不预读。 <br/>
+ * 预读的命中和浪费次数见 {@link BufferPool#getPrefetchHits()}、{@link BufferPool#getPrefetchWasted()}。
+ */
+public class ReadAhead {
+
+    /**
+     * 顺序访问时页面的后继
+     */
+    public interface Successor {
+        /**
+         * @param pid   页面 ID
+         * @param page  页面内容
+         * @return pid 之后顺序访问的页面，没有时返回 null
+         */
+        PageId next(PageId pid, Page page);
+    }
+
+    /**
+     * 连续多少次顺序访问后开始预读
+     */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+    static final int MIN_WINDOW = 4;
+    static final int MAX_WINDOW = 64;
+
+    /**
+     * 所有迭代器共用的预读线程，空闲时退出
+     */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "BufferPool-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Successor successor;
+
+    /**
+     * 下一个顺序访问的页面
+     */
+    private PageId expected;
+    /**
+     * 连续顺序访问的次数
+     */
+    private int run;
+    private int window = MIN_WINDOW;
+    /**
+     * 当前页面之后已预读的页面数
+     */
+    private int ahead;
+    /**
+     * 预读链的下一个页面，为 null 时从当前页面的后继开始
+     */
+    private PageId chainNext;
+    /**
+     * 预读链已经到达最后一个页面
+     */
+    private boolean exhausted;
+    /**
+     * 每次打断顺序访问时加一，之前发出的预读任务不再更新状态
+     */
+    private int generation;
+    private boolean running;
+    private boolean closed;
+
+    private BufferPool pool;
+    private long lastWasted;
+
+    public ReadAhead(Successor successor) {
+        this.successor = successor;
+    }
+
+    /**
+     * 迭代器访问了页面 pid
+     */
+    public synchronized void accessed(PageId pid, Page page) {
+        if (pid.equals(expected)) {
+            run++;
+        } else {
+            run = 0;
+            resetChain();
+        }
+        expected = successor.next(pid, page);
+        if (ahead > 0) {
+            ahead--;
+        }
+        if (ahead == 0 && chainNext != null) {
+            // 扫描追上了预读
+            resetChain();
+        }
+        if (run < SEQUENTIAL_THRESHOLD || expected == null || running || exhausted || ahead > window / 2) {
+            return;
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        adaptWindow(bufferPool);
+        int count = window - ahead;
+        if (window < MIN_WINDOW || count <= 0) {
+            return;
+        }
+        PageId start = chainNext != null ? chainNext : expected;
+        int gen = generation;
+        running = true;
+        executor.execute(() -> prefetch(bufferPool, start, count, gen));
+    }
+
+    /**
+     * 停止预读，迭代器关闭时调用
+     */
+    public synchronized void close() {
+        closed = true;
+        resetChain();
+    }
+
+    private void resetChain() {
+        generation++;
+        ahead = 0;
+        chainNext = null;
+        exhausted = false;
+        running = false;
+    }
+
+    private void adaptWindow(BufferPool bufferPool) {
+        long wasted = bufferPool.getPrefetchWasted();
+        if (bufferPool != pool) {
+            pool = bufferPool;
+            lastWasted = wasted;
+        }
+        if (wasted > lastWasted) {
+            window = Math.max(MIN_WINDOW, window / 2);
+        } else {
+            window = Math.min(MAX_WINDOW, window * 2);
+        }
+        lastWasted = wasted;
+        window = Math.min(window, bufferPool.getNumPages() / 4);
+    }
+
+    private void prefetch(BufferPool bufferPool, PageId start, int count, int gen) {
+        PageId pid = start;
+        for (int i = 0; i < count && pid != null; i++) {
+            synchronized (this) {
+                if (closed || gen != generation) {
+                    return;
+                }
+            }
+            Page page = bufferPool.prefetchPage(pid);
+            if (page == null) {
+                break;
+            }
+            PageId next = successor.next(pid, page);
+            synchronized (this) {
+                if (gen != generation) {
+                    return;
+                }
+                ahead++;
+                chainNext = next;
+                exhausted = next == null;
+            }
+            pid = next;
+        }
+        synchronized (this) {
+            if (gen == generation) {
+                running = false;
+            }
+        }
+    }
+}
@@ -73,8 +73,8 @@ public class RecordId implements Serializable {
      */
     @Override
     public int hashCode() {
-        String s = pageId.hashCode()+"#"+tupleNumber;
-        return s.hashCode();
+        // no string building: record locks hash RecordIds on every lock and release
+        return 31 * pageId.hashCode() + tupleNumber;
     }
 
 }
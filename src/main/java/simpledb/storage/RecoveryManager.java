@@ -0,0 +1,532 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 崩溃恢复，分析、重做、撤销三个阶段（ARIES），由 {@link LogFile#recover()} 调用 <br/>
+ * 1. 分析：从最近的检查点读到日志末尾，建立事务表和脏页表。事务表记录未结束的事务和它的第一条日志记录的位置，
+ *    初始内容是检查点记录中的活跃事务，遇到 COMMIT / ABORT 记录时移除，结束时剩下的是失败事务。
+ *    脏页表记录日志中可能比磁盘上新的页面和重做它的起点（recLSN），初始内容是检查点记录中缓冲池的脏页表，
+ *    再加上检查点之后第一次出现的页面。 <br/>
+ * 2. 重做：从脏页表中最早的 recLSN 开始按日志顺序重做页面记录（重复历史），失败事务的记录也重做；
+ *    不在脏页表中的页面和页面 recLSN 之前的记录已在磁盘上，跳过。
+ *    记录按页面 ID 分给多个重做线程，同一页面的记录由同一个线程按日志顺序重做。
+ *    页面记录都是按位置写入字节，在已含有其中一部分修改的磁盘页面上重做也得到同样的结果；
+ *    检查点之后每个页面的第一条记录是整页镜像，从它开始重做时不从磁盘读页面。 <br/>
+ * 3. 撤销：按日志的逆序撤销失败事务的页面记录，清空失败事务追加的页面。撤销的结果作为补偿记录写入日志，
+ *    再为每个失败事务写 ABORT 记录。在这之前崩溃时，下次恢复会重复同样的过程。 <br/>
+ * 最后把重做和撤销后的页面写回数据文件，由调用方写一个检查点。 <br/>
+ * 日志按大块顺序读，记录直接解析，不使用反射。分析只读最近的检查点之后的日志，
+ * 重做和撤销从检查点中最早的 recLSN 和失败事务的第一条记录读起。
+ */
+class RecoveryManager {
+
+    /**
+     * 读日志的缓冲区大小
+     */
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    /**
+     * 一次交给重做线程的记录条数
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private final LogSegments log;
+    /**
+     * 重做线程数，1 表示在读日志的线程中重做
+     */
+    private final int threads;
+    /**
+     * 事务表：未结束的事务 → 第一条日志记录的位置，分析结束后只剩失败事务
+     */
+    private final Map<Long, Long> transactions = new HashMap<>();
+    /**
+     * 脏页表：可能需要重做的页面 → 从这个位置开始重做它（recLSN）
+     */
+    private final Map<PageId, Long> dirtyPages = new HashMap<>();
+    /**
+     * 最后一条完整记录之后的位置
+     */
+    private long end;
+    /**
+     * 失败事务的页面记录，按日志顺序
+     */
+    private final List<LoserChange> loserChanges = new ArrayList<>();
+    /**
+     * 失败事务通过 BULK_APPEND 追加的页面
+     */
+    private final List<HeapPageId> loserPages = new ArrayList<>();
+    /**
+     * 重做和撤销后的页面内容
+     */
+    private final Map<PageId, byte[]> pages = new HashMap<>();
+
+    /**
+     * @param log       日志，只按位置读
+     * @param threads   重做线程数
+     */
+    RecoveryManager(LogSegments log, int threads) {
+        this.log = log;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * 失败事务的一条页面记录
+     */
+    private static class LoserChange {
+        final long tid;
+        final PageChange change;
+
+        LoserChange(long tid, PageChange change) {
+            this.tid = tid;
+            this.change = change;
+        }
+    }
+
+    /**
+     * 分析阶段
+     * @return 最后一条完整记录之后的位置，之后的内容是崩溃时没写完的记录
+     * @throws IOException
+     */
+    long analyze() throws IOException {
+        long checkpoint = log.readCheckpoint();
+        // 没有检查点，或检查点不在保留的日志中（如旧格式的日志）时从头读
+        end = checkpoint < log.start() || checkpoint >= log.end() ? log.start() : checkpoint;
+        LogInput in = new LogInput(log, end);
+        try {
+            for (;;) {
+                long offset = in.position();
+                int type = in.readInt();
+                long tid = in.readLong();
+                switch (type) {
+                    case LogFile.BEGIN_RECORD:
+                        transactions.putIfAbsent(tid, offset);
+                        break;
+                    case LogFile.COMMIT_RECORD:
+                    case LogFile.ABORT_RECORD:
+                        transactions.remove(tid);
+                        break;
+                    case LogFile.UPDATE_RECORD:
+                    case LogFile.INSERT_SLOT_RECORD:
+                    case LogFile.DELETE_SLOT_RECORD:
+                    case LogFile.UPDATE_RANGE_RECORD:
+                        PageId pid = PageChange.readPageId(in);
+                        PageChange.skipBody(type, in);
+                        transactions.putIfAbsent(tid, offset);
+                        dirtyPages.putIfAbsent(pid, offset);
+                        break;
+                    case LogFile.CHECKPOINT_RECORD:
+                        int active = in.readInt();
+                        for (int i = 0; i < active; i++) {
+                            long activeTid = in.readLong();
+                            transactions.putIfAbsent(activeTid, in.readLong());
+                        }
+                        int dirty = in.readInt();
+                        for (int i = 0; i < dirty; i++) {
+                            PageId dirtyPage = PageChange.readPageId(in);
+                            dirtyPages.putIfAbsent(dirtyPage, in.readLong());
+                        }
+                        break;
+                    case LogFile.BULK_APPEND_RECORD:
+                        in.skipBytes(3 * LogFile.INT_SIZE);
+                        transactions.putIfAbsent(tid, offset);
+                        break;
+                    default:
+                        return end;
+                }
+                // a record that does not end with its own offset was not
+                // completely written
+                if (in.readLong() != offset) {
+                    return end;
+                }
+                end = in.position();
+            }
+        } catch (EOFException e) {
+            return end;
+        }
+    }
+
+    /**
+     * 重做阶段，同时收集失败事务的记录
+     * @throws IOException
+     */
+    void redo() throws IOException {
+        long redoStart = end;
+        for (long recLSN : dirtyPages.values()) {
+            redoStart = Math.min(redoStart, recLSN);
+        }
+        long start = redoStart;
+        for (long first : transactions.values()) {
+            start = Math.min(start, first);
+        }
+
+        RedoWorker[] workers = new RedoWorker[threads > 1 ? threads : 0];
+        List<List<PageChange>> batches = new ArrayList<>();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker();
+            workers[i].start();
+            batches.add(new ArrayList<>(BATCH_SIZE));
+        }
+
+        LogInput in = new LogInput(log, start);
+        try {
+            while (in.position() < end) {
+                long offset = in.position();
+                int type = in.readInt();
+                long tid = in.readLong();
+                boolean loser = transactions.containsKey(tid);
+                switch (type) {
+                    case LogFile.UPDATE_RECORD:
+                    case LogFile.INSERT_SLOT_RECORD:
+                    case LogFile.DELETE_SLOT_RECORD:
+                    case LogFile.UPDATE_RANGE_RECORD:
+                        PageChange change = PageChange.read(type, in);
+                        Long recLSN = dirtyPages.get(change.getPageId());
+                        if (recLSN != null && offset >= recLSN) {
+                            if (workers.length == 0) {
+                                redo(pages, change);
+                            } else {
+                                int w = Math.floorMod(change.getPageId().hashCode(), workers.length);
+                                List<PageChange> batch = batches.get(w);
+                                batch.add(change);
+                                if (batch.size() == BATCH_SIZE) {
+                                    workers[w].submit(batch);
+                                    batches.set(w, new ArrayList<>(BATCH_SIZE));
+                                }
+                            }
+                        }
+                        // an UPDATE record is the page before a change, so
+                        // there is nothing to undo
+                        if (loser && type != LogFile.UPDATE_RECORD) {
+                            loserChanges.add(new LoserChange(tid, change));
+                        }
+                        break;
+                    case LogFile.CHECKPOINT_RECORD:
+                        LogFile.skipCheckpoint(in);
+                        break;
+                    case LogFile.BULK_APPEND_RECORD:
+                        int tableId = in.readInt();
+                        int firstPage = in.readInt();
+                        int numPages = in.readInt();
+                        if (loser) {
+                            for (int i = 0; i < numPages; i++) {
+                                loserPages.add(new HeapPageId(tableId, firstPage + i));
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                in.readLong();
+            }
+        } finally {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i].submit(batches.get(i));
+                workers[i].submit(Collections.emptyList());
+            }
+        }
+
+        for (RedoWorker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for redo");
+            }
+            if (worker.failure != null) {
+                throw new IOException("redo failed", worker.failure);
+            }
+            pages.putAll(worker.pages);
+        }
+    }
+
+    /**
+     * 在 pages 中重做一条记录，页面重做的第一条记录不是整页镜像时从磁盘读入页面
+     */
+    private static void redo(Map<PageId, byte[]> pages, PageChange change) throws IOException {
+        byte[] data = pages.get(change.getPageId());
+        if (data == null) {
+            data = change instanceof PageChange.PageImage
+                    ? new byte[((PageChange.PageImage) change).after.length]
+                    : readPage(change.getPageId());
+            pages.put(change.getPageId(), data);
+        }
+        change.redo(data);
+    }
+
+    private static byte[] readPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
+
+    /**
+     * 重做线程：按提交的顺序重做分给它的页面的记录，空的一批表示结束 <br/>
+     * 出错后继续取走提交的记录但不再重做，读日志的线程不会因队列满而阻塞
+     */
+    private static class RedoWorker extends Thread {
+        private final BlockingQueue<List<PageChange>> queue = new ArrayBlockingQueue<>(64);
+        final Map<PageId, byte[]> pages = new HashMap<>();
+        volatile Throwable failure;
+
+        RedoWorker() {
+            super("RecoveryManager-redo");
+            setDaemon(true);
+        }
+
+        void submit(List<PageChange> batch) throws InterruptedIOException {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                List<PageChange> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    failure = e;
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    for (PageChange change : batch) {
+                        redo(pages, change);
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+        }
+    }
+
+    /**
+     * 撤销阶段：按日志的逆序撤销失败事务的记录，把撤销的结果作为补偿记录写入日志，为失败事务写 ABORT 记录并刷日志 <br/>
+     * 一个页面的补偿记录归到最后修改它的失败事务
+     * @param logFile   日志，调用方持有它的监视器
+     * @throws IOException
+     */
+    void undo(LogFile logFile) throws IOException {
+        Map<PageId, byte[]> redone = new HashMap<>();
+        Map<PageId, Long> lastLoser = new HashMap<>();
+        for (int i = loserChanges.size() - 1; i >= 0; i--) {
+            LoserChange undo = loserChanges.get(i);
+            PageId pid = undo.change.getPageId();
+            byte[] data = pages.get(pid);
+            if (data == null) {
+                data = readPage(pid);
+                pages.put(pid, data);
+            }
+            if (!redone.containsKey(pid)) {
+                redone.put(pid, data.clone());
+                lastLoser.put(pid, undo.tid);
+            }
+            undo.change.undo(data);
+        }
+
+        for (Map.Entry<PageId, byte[]> e : redone.entrySet()) {
+            PageId pid = e.getKey();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            logFile.logWrite(lastLoser.get(pid), file.newPage(pid, e.getValue()), file.newPage(pid, pages.get(pid)), null);
+        }
+        for (long tid : transactions.keySet()) {
+            logFile.logRecoveredAbort(tid);
+        }
+        if (!transactions.isEmpty()) {
+            logFile.force();
+        }
+
+        // the pages did not exist before the bulk load
+        for (HeapPageId pid : loserPages) {
+            pages.put(pid, HeapPage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * 把重做和撤销后的页面写回数据文件，调用方已把日志刷到磁盘
+     * @throws IOException
+     */
+    void writePages() throws IOException {
+        Map<Integer, List<Page>> byTable = new HashMap<>();
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            PageId pid = e.getKey();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            byTable.computeIfAbsent(pid.getTableId(), k -> new ArrayList<>()).add(file.newPage(pid, e.getValue()));
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        for (Map.Entry<Integer, List<Page>> e : byTable.entrySet()) {
+            List<Page> tablePages = e.getValue();
+            tablePages.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(tablePages);
+            for (Page page : tablePages) {
+                bufferPool.discardPage(page.getId());
+            }
+        }
+    }
+
+    /**
+     * @return 失败事务数
+     */
+    int getLoserCount() {
+        return transactions.size();
+    }
+
+    /**
+     * @return 重做和撤销的页面数
+     */
+    int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * 从日志的指定位置开始顺序读，一次按位置读入一大块，整数直接从缓冲区取 <br/>
+     * 只实现解析日志记录用到的方法
+     */
+    private static class LogInput implements DataInput {
+        private final LogSegments log;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /**
+         * 缓冲区开头在日志中的位置
+         */
+        private long bufferStart;
+
+        LogInput(LogSegments log, long position) {
+            this.log = log;
+            seek(position);
+        }
+
+        void seek(long position) {
+            bufferStart = position;
+            buffer.clear();
+            buffer.flip();
+        }
+
+        long position() {
+            return bufferStart + buffer.position();
+        }
+
+        /**
+         * 保证缓冲区中至少有 n 个字节，n 不超过缓冲区大小
+         * @throws EOFException 日志中剩下的字节不够
+         */
+        private void require(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            bufferStart += buffer.position();
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (log.read(buffer, bufferStart + buffer.position()) < 0) {
+                    buffer.flip();
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                require(1);
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) throws IOException {
+            if (n <= buffer.remaining()) {
+                buffer.position(buffer.position() + Math.max(n, 0));
+                return Math.max(n, 0);
+            }
+            long skipped = Math.min(n, Math.max(0, log.end() - position()));
+            seek(position() + skipped);
+            return (int) skipped;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            require(2);
+            return buffer.getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            require(2);
+            return buffer.getChar();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        @Override
+        public String readLine() {
+            throw new UnsupportedOperationException("the log has no lines");
+        }
+
+        @Override
+        public String readUTF() {
+            throw new UnsupportedOperationException("the log has no strings");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * 缓冲池页面置换策略接口 <br/>
+ * BufferPool 把页面放在编号为 0 ~ capacity-1 的页框（frame）中，置换策略只跟踪页框编号：<br/>
+ * 1. 页面载入页框、命中页框、移出页框时由 BufferPool 通知策略。 <br/>
+ * 2. 缓冲池已满时由策略挑选一个被淘汰的页框。 <br/>
+ * 顺序扫描读取的页面可以标记为 "use once"，策略应当优先淘汰这类页面，避免一次大扫描把热点页面挤出缓冲池。<br/>
+ * 实现类需要自行保证线程安全，且每次淘汰的均摊开销为 O(1)。
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * 页面被载入页框
+     * @param frame     页框编号
+     * @param useOnce   是否为只使用一次的页面（如顺序扫描）
+     */
+    void loaded(int frame, boolean useOnce);
+
+    /**
+     * 页框中的页面被命中
+     * @param frame     页框编号
+     * @param useOnce   本次访问是否为只使用一次的访问（如顺序扫描）
+     */
+    void accessed(int frame, boolean useOnce);
+
+    /**
+     * 页框中的页面被移出缓冲池，页框变为空闲
+     * @param frame     页框编号
+     */
+    void removed(int frame);
+
+    /**
+     * 挑选一个被淘汰的页框，页框仍由策略跟踪，直到 BufferPool 调用 {@link #removed(int)}
+     * @param evictable     判断页框当前能否被淘汰
+     * @return 被淘汰的页框编号，没有可淘汰的页框时返回 -1
+     */
+    int victim(IntPredicate evictable);
+
+    /**
+     * 按策略淘汰页框的先后顺序遍历页框，不改变策略状态。后台刷盘线程用它找出即将被淘汰的脏页
+     * @param visitor   访问页框，返回 false 时停止遍历
+     */
+    void scanCandidates(IntPredicate visitor);
+
+    /**
+     * 创建 CLOCK 置换策略
+     * @param capacity  页框数
+     * @return
+     */
+    static ReplacementPolicy clock(int capacity) {
+        return new ClockReplacementPolicy(capacity);
+    }
+
+    /**
+     * 创建 LRU-2 置换策略
+     * @param capacity  页框数
+     * @return
+     */
+    static ReplacementPolicy lru2(int capacity) {
+        return new Lru2ReplacementPolicy(capacity);
+    }
+}
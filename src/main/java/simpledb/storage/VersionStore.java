@@ -0,0 +1,401 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 堆文件的多版本存储（MVCC） <br/>
+ * 1. 写事务修改记录（插入或删除）前，在这里记下该槽位修改前的内容，用写事务的 TransactionId 标记。
+ *    同一槽位的修改按时间连成链，新的在前。事务提交时在同一个提交序号下发布它的所有修改，中止时标记为永远不可见。 <br/>
+ * 2. 只读事务开始时取最近的提交序号作为快照，扫描时不加事务锁：对页面上有版本链的槽位，
+ *    从最新的修改往前跳过快照看不到的修改（未提交、已中止或在快照之后提交），
+ *    用最早被跳过的那次修改记下的内容代替页面上的当前内容。 <br/>
+ * 3. 批量导入直接追加的新页面整页记在导入事务名下，快照看不到导入事务时这些页面是空的；
+ *    导入事务中止时页面已经被清空（见 {@link HeapFile.BulkLoader}），标记随之去掉。 <br/>
+ * 4. 写事务中止时先用 {@link #undo} 把页面上的记录恢复成修改前的内容，它的修改随之从版本链上摘掉。 <br/>
+ * 5. 垃圾回收：一次修改在所有活跃快照开始前就已提交时，所有读者都能看到它，它和链上更早的修改都不再需要。
+ *    写事务结束时清理它改过的页面，最老的快照结束时清理整个存储。 <br/>
+ * 6. 版本链与页面内容的一致性靠页框闩保证：修改在持有排他闩时记录，读者在持有共享闩时读页面和版本链。
+ */
+class VersionStore {
+
+    /**
+     * 还没提交的事务的提交序号
+     */
+    private static final long RUNNING = 0;
+    /**
+     * 中止的事务的提交序号，任何快照都看不到
+     */
+    private static final long ABORTED = Long.MAX_VALUE;
+
+    /**
+     * 一个写事务，它的所有修改共享这个对象，提交时一次改变它们的可见性
+     */
+    private static class Writer {
+        final TransactionId tid;
+        volatile long commit = RUNNING;
+        /**
+         * 修改过的页面，结束时只清理这些页面；只由事务自己的线程访问
+         */
+        final Set<PageId> pages = new HashSet<>();
+
+        Writer(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        boolean visibleTo(long snapshot) {
+            long c = commit;
+            return c != RUNNING && c <= snapshot;
+        }
+    }
+
+    /**
+     * 槽位上的一次修改
+     */
+    private static class Version {
+        final Writer writer;
+        /**
+         * 修改前槽位中的元组，null 表示槽位是空的
+         */
+        final Tuple before;
+        Version older;
+
+        Version(Writer writer, Tuple before, Version older) {
+            this.writer = writer;
+            this.before = before;
+            this.older = older;
+        }
+    }
+
+    /**
+     * 一个页面上的版本链，在自身的监视器内访问
+     */
+    private static class PageVersions {
+        /**
+         * 槽位 → 最新的修改
+         */
+        final TreeMap<Integer, Version> slots = new TreeMap<>();
+        /**
+         * 批量导入时追加这个页面的事务，null 表示不是
+         */
+        Writer creator;
+
+        boolean isEmpty() {
+            return slots.isEmpty() && creator == null;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageVersions> pages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, Writer> writers = new ConcurrentHashMap<>();
+    /**
+     * 活跃的只读事务 → 快照的提交序号
+     */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /**
+     * 分配提交序号、开始快照和计算回收界限在这个监视器上串行
+     */
+    private final Object commitLock = new Object();
+    /**
+     * 最近发布的提交序号
+     */
+    private volatile long committed;
+
+    /**
+     * 开始一个只读事务，快照包含此前已提交的所有修改
+     */
+    void beginSnapshot(TransactionId tid) {
+        synchronized (commitLock) {
+            snapshots.put(tid, committed);
+        }
+    }
+
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * 记录 tid 对槽位 rid 的修改，调用方持有页面的排他闩
+     * @param before    修改前槽位中的元组，插入空槽位时为 null
+     */
+    void recordWrite(TransactionId tid, RecordId rid, Tuple before) {
+        Writer writer = writer(tid);
+        PageId pid = rid.getPageId();
+        writer.pages.add(pid);
+        pages.compute(pid, (k, pv) -> {
+            if (pv == null) {
+                pv = new PageVersions();
+            }
+            synchronized (pv) {
+                pv.slots.put(rid.getTupleNumber(), new Version(writer, before, pv.slots.get(rid.getTupleNumber())));
+            }
+            return pv;
+        });
+    }
+
+    /**
+     * 记录 tid 通过批量导入追加的页面，页面在 tid 提交前对快照不可见
+     */
+    void recordNewPage(TransactionId tid, PageId pid) {
+        Writer writer = writer(tid);
+        writer.pages.add(pid);
+        pages.compute(pid, (k, pv) -> {
+            if (pv == null) {
+                pv = new PageVersions();
+            }
+            synchronized (pv) {
+                pv.creator = writer;
+            }
+            return pv;
+        });
+    }
+
+    /**
+     * 撤销 tid 在页面上的修改：每个槽位从最新的修改往前恢复成修改前的内容，并把这些修改从版本链上摘掉 <br/>
+     * tid 持有这些记录的锁，它的修改一定在链的最前面。调用方持有页面的排他闩
+     * @return 页面上是否有 tid 的修改
+     */
+    boolean undo(TransactionId tid, HeapPage page) throws DbException {
+        Writer writer = writers.get(tid);
+        PageVersions pv = pages.get(page.getId());
+        if (writer == null || pv == null || !writer.pages.contains(page.getId())) {
+            return false;
+        }
+        boolean undone = false;
+        synchronized (pv) {
+            Iterator<Map.Entry<Integer, Version>> it = pv.slots.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Version> e = it.next();
+                Version v = e.getValue();
+                for (; v != null && v.writer == writer; v = v.older) {
+                    Tuple current = page.getTuple(e.getKey());
+                    if (current != null) {
+                        page.deleteTuple(current);
+                    }
+                    if (v.before != null) {
+                        page.insertTuple(v.before, e.getKey());
+                    }
+                    undone = true;
+                }
+                if (v == null) {
+                    it.remove();
+                } else {
+                    e.setValue(v);
+                }
+            }
+        }
+        return undone;
+    }
+
+    private Writer writer(TransactionId tid) {
+        return writers.computeIfAbsent(tid, Writer::new);
+    }
+
+    /**
+     * 返回最后修改槽位且还没有结束的写事务，写日志时用它标记这个槽位上的修改属于哪个事务
+     * @return 槽位上没有未结束事务的修改时为 null
+     */
+    TransactionId runningWriter(PageId pid, int slot) {
+        PageVersions pv = pages.get(pid);
+        if (pv == null) {
+            return null;
+        }
+        synchronized (pv) {
+            Version v = pv.slots.get(slot);
+            return v == null || v.writer.commit != RUNNING ? null : v.writer.tid;
+        }
+    }
+
+    /**
+     * 返回页面上 tid 的快照能看到的元组，按槽位顺序；调用方持有页面的共享闩
+     */
+    Iterator<Tuple> visibleTuples(TransactionId tid, HeapPage page) {
+        Long snapshot = snapshots.get(tid);
+        PageVersions pv = pages.get(page.getId());
+        if (snapshot == null || pv == null) {
+            return page.iterator();
+        }
+        // 只在闩内算出被替换的槽位，其余元组由 page.iterator() 从页面内容的快照中按需解码
+        TreeMap<Integer, Tuple> replaced = new TreeMap<>();
+        synchronized (pv) {
+            if (pv.creator != null && !pv.creator.visibleTo(snapshot)) {
+                return Collections.emptyIterator();
+            }
+            for (Map.Entry<Integer, Version> e : pv.slots.entrySet()) {
+                Version newest = e.getValue();
+                if (!newest.writer.visibleTo(snapshot)) {
+                    replaced.put(e.getKey(), visible(newest, snapshot, null));
+                }
+            }
+        }
+        if (replaced.isEmpty()) {
+            return page.iterator();
+        }
+        return new MergedIterator(page.iterator(), replaced);
+    }
+
+    /**
+     * 按槽位顺序合并页面上的元组和被替换的槽位，替换为 null 的槽位被跳过
+     */
+    private static class MergedIterator implements Iterator<Tuple> {
+        private final Iterator<Tuple> current;
+        private final Iterator<Map.Entry<Integer, Tuple>> replaced;
+        private Tuple pendingCurrent;
+        private Map.Entry<Integer, Tuple> pendingReplaced;
+        private Tuple next;
+
+        MergedIterator(Iterator<Tuple> current, TreeMap<Integer, Tuple> replaced) {
+            this.current = current;
+            this.replaced = replaced.entrySet().iterator();
+            this.pendingCurrent = current.hasNext() ? current.next() : null;
+            this.pendingReplaced = this.replaced.hasNext() ? this.replaced.next() : null;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && (pendingCurrent != null || pendingReplaced != null)) {
+                int slot = pendingCurrent == null ? Integer.MAX_VALUE : pendingCurrent.getRecordId().getTupleNumber();
+                if (pendingReplaced != null && pendingReplaced.getKey() <= slot) {
+                    next = pendingReplaced.getValue();
+                    if (pendingReplaced.getKey() == slot) {
+                        pendingCurrent = current.hasNext() ? current.next() : null;
+                    }
+                    pendingReplaced = replaced.hasNext() ? replaced.next() : null;
+                } else {
+                    next = pendingCurrent;
+                    pendingCurrent = current.hasNext() ? current.next() : null;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Tuple next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = next;
+            advance();
+            return t;
+        }
+    }
+
+    /**
+     * 从最新的修改往前，跳过快照看不到的修改
+     * @param current   槽位当前的元组，最新的修改可见时返回它
+     */
+    private static Tuple visible(Version newest, long snapshot, Tuple current) {
+        Tuple t = current;
+        for (Version v = newest; v != null && !v.writer.visibleTo(snapshot); v = v.older) {
+            t = v.before;
+        }
+        return t;
+    }
+
+    /**
+     * 事务结束：只读事务结束快照，写事务发布或撤销它的修改 <br/>
+     * 写事务必须在释放锁之前调用，同一槽位上修改的提交顺序才和版本链的顺序一致
+     */
+    void complete(TransactionId tid, boolean commit) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot != null) {
+            // 只有最老的快照结束时才有版本可以回收
+            if (horizon() > snapshot) {
+                collect(pages.keySet());
+            }
+            return;
+        }
+        Writer writer = writers.remove(tid);
+        if (writer == null) {
+            return;
+        }
+        if (commit) {
+            synchronized (commitLock) {
+                // 先给修改标上序号再发布，看到新序号的快照一定也看到这些修改
+                writer.commit = committed + 1;
+                committed = writer.commit;
+            }
+        } else {
+            writer.commit = ABORTED;
+        }
+        collect(writer.pages);
+    }
+
+    /**
+     * 丢弃给定页面上所有快照都不再需要的版本
+     */
+    private void collect(Iterable<PageId> pids) {
+        long horizon = horizon();
+        for (PageId pid : pids) {
+            pages.computeIfPresent(pid, (k, pv) -> {
+                synchronized (pv) {
+                    if (pv.creator != null && (pv.creator.visibleTo(horizon) || pv.creator.commit == ABORTED)) {
+                        pv.creator = null;
+                    }
+                    pv.slots.entrySet().removeIf(e -> prune(e.getValue(), horizon));
+                    return pv.isEmpty() ? null : pv;
+                }
+            });
+        }
+    }
+
+    /**
+     * 截掉链上第一个所有快照都能看到的修改及更早的修改
+     * @return 整条链是否都可以丢弃
+     */
+    private static boolean prune(Version newest, long horizon) {
+        if (newest.writer.visibleTo(horizon)) {
+            return true;
+        }
+        for (Version v = newest; v.older != null; v = v.older) {
+            if (v.older.writer.visibleTo(horizon)) {
+                v.older = null;
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 最老的活跃快照；没有快照时是最近的提交序号，之后开始的快照不会更老
+     */
+    private long horizon() {
+        synchronized (commitLock) {
+            long horizon = committed;
+            for (long snapshot : snapshots.values()) {
+                horizon = Math.min(horizon, snapshot);
+            }
+            return horizon;
+        }
+    }
+
+    /**
+     * @return 存储中的版本数
+     */
+    int size() {
+        int size = 0;
+        for (PageVersions pv : pages.values()) {
+            synchronized (pv) {
+                for (Version v : pv.slots.values()) {
+                    for (; v != null; v = v.older) {
+                        size++;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}
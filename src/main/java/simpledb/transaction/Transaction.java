@@ -11,15 +11,30 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the data
+     *                 committed when it starts, without taking locks, and
+     *                 may not modify anything
+     * @see simpledb.storage.BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,6 +46,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -45,17 +64,10 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
+            // writes the commit / abort record (rolling back on abort)
+            // and releases locks; dirty pages stay in the buffer pool
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                Database.getBufferPool().transactionComplete(tid, !abort);
             } catch (IOException e) {
                 e.printStackTrace();
             }
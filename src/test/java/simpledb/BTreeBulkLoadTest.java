@@ -0,0 +1,175 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+	private File file;
+	private BTreeFile bf;
+
+	/**
+	 * An empty two column B+ tree keyed on the first column.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("bulk", ".dat");
+		file.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Tuples with repeated keys, sorted in many runs and merged in more than one pass,
+	 * come out as a valid tree with every page at least half full.
+	 */
+	@Test
+	public void buildFromManyRuns() throws Exception {
+		List<Tuple> tuples = randomTuples(50000, 5000);
+		TransactionId tid = new TransactionId();
+		BTreeBulkLoader loader = bf.bulkLoader(tid, 0.9, 32 * 1024);
+		for(Tuple t : tuples) {
+			loader.add(t);
+		}
+		assertTrue(loader.getRunFiles() > 10);
+		assertEquals(50000, loader.finish());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		List<Integer> expected = new ArrayList<Integer>();
+		for(Tuple t : tuples) {
+			expected.add(((IntField) t.getField(0)).getValue());
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys(bf.iterator(tid)));
+
+		int key = expected.get(12345);
+		int matches = Collections.frequency(expected, key);
+		assertEquals(matches, keys(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)))).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The fill factor sets how full the leaf pages are, and inserts after the build
+	 * keep the tree valid.
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		List<Tuple> tuples = randomTuples(20000, Integer.MAX_VALUE);
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, source(tuples));
+		Database.getBufferPool().transactionComplete(tid);
+		int defaultPages = bf.numPages();
+
+		File full = File.createTempFile("bulk", ".dat");
+		full.deleteOnExit();
+		BTreeFile fullFile = BTreeUtility.createEmptyBTreeFile(full.getAbsolutePath(), 2, 0);
+		tid = new TransactionId();
+		BTreeBulkLoader loader = fullFile.bulkLoader(tid, 1.0, BTreeBulkLoader.DEFAULT_SORT_MEMORY);
+		for(Tuple t : tuples) {
+			loader.add(t);
+		}
+		loader.finish();
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(fullFile.numPages() < defaultPages);
+
+		tid = new TransactionId();
+		for(Tuple t : randomTuples(2000, Integer.MAX_VALUE)) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(22000, keys(bf.iterator(tid)).size());
+		Database.getBufferPool().transactionComplete(tid);
+		full.delete();
+	}
+
+	/**
+	 * An aborted build leaves the tree empty, and it can be built again.
+	 */
+	@Test
+	public void abortLeavesTreeEmpty() throws Exception {
+		List<Tuple> tuples = randomTuples(5000, Integer.MAX_VALUE);
+		TransactionId tid = new TransactionId();
+		bf.bulkLoad(tid, source(tuples));
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertTrue(keys(bf.iterator(tid)).isEmpty());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		bf.bulkLoad(tid, source(tuples));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		assertEquals(5000, keys(bf.iterator(tid)).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A tree that has a root page cannot be bulk loaded.
+	 */
+	@Test(expected = DbException.class)
+	public void treeMustBeEmpty() throws Exception {
+		TransactionId tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+		Database.getBufferPool().transactionComplete(tid);
+		bf.bulkLoader(new TransactionId(), 0.9, BTreeBulkLoader.DEFAULT_SORT_MEMORY);
+	}
+
+	private static List<Tuple> randomTuples(int n, int maxKey) {
+		Random random = new Random(n);
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < n; i++) {
+			tuples.add(Utility.getHeapTuple(new int[]{random.nextInt(maxKey), i}));
+		}
+		return tuples;
+	}
+
+	private static TupleIterator source(List<Tuple> tuples) {
+		TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), tuples);
+		it.open();
+		return it;
+	}
+
+	private static List<Integer> keys(DbFileIterator it) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+
+	private static final int THREADS = 4;
+	private static final int INSERTS_PER_THREAD = 1500;
+
+	/**
+	 * An index search locks the leaf pages it reads but not the root pointer
+	 * page, so it does not keep page splits out until it commits.
+	 */
+	@Test
+	public void searchReleasesRootPointer() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(1000)));
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+		}
+		it.close();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		assertFalse(bp.holdsLock(reader, rootPtrId));
+		TransactionId writer = new TransactionId();
+		assertTrue(bp.tryLockPage(writer, rootPtrId, Permissions.READ_WRITE));
+		bp.transactionComplete(writer);
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * A split holds the structure latch only while it runs, so the transaction that split
+	 * a page does not keep searches on other leaf pages out until it commits.
+	 */
+	@Test
+	public void splitDoesNotBlockSearches() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		TransactionId writer = new TransactionId();
+		int pages = bf.numPages();
+		for(int i = 0; bf.numPages() == pages; i++) {
+			bp.insertTuple(writer, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] {BTreeUtility.MAX_RAND_VALUE + i, i}));
+		}
+
+		TransactionId reader = new TransactionId();
+		AtomicReference<Boolean> found = new AtomicReference<>();
+		AtomicReference<Exception> error = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(-1)));
+				it.open();
+				found.set(it.hasNext());
+				it.close();
+			}
+			catch(Exception e) {
+				error.set(e);
+			}
+		});
+		thread.start();
+		thread.join(10000);
+		boolean finished = !thread.isAlive();
+		bp.transactionComplete(writer);
+		thread.join();
+		assertNull(error.get());
+		assertTrue(finished);
+		assertFalse(found.get());
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * A search that waits for a leaf page and finds, after the wait, that its key moved to
+	 * another leaf page does not keep the lock it took on the first one.
+	 */
+	@Test
+	public void searchReleasesLeafItWaitedFor() throws Exception {
+		File file = File.createTempFile("retry", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+		BufferPool bp = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 100; i++) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {i, i}));
+		}
+		bp.transactionComplete(tid);
+
+		// the tree is a single leaf page; the writer locks it and then splits it
+		TransactionId writer = new TransactionId();
+		BTreePageId leafId = ((BTreeRootPtrPage) bp.getPage(writer, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.LEAF, leafId.pgcateg());
+		bp.getPage(writer, leafId, Permissions.READ_WRITE);
+
+		TransactionId reader = new TransactionId();
+		AtomicReference<Exception> error = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(5000)));
+				it.open();
+				assertFalse(it.hasNext());
+				it.close();
+			}
+			catch(Exception e) {
+				error.set(e);
+			}
+		});
+		thread.start();
+		Thread.sleep(200);
+		for(int i = 0; i < BTreeUtility.getNumTuplesPerPage(2); i++) {
+			bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {1000 + i, i}));
+		}
+		bp.transactionComplete(writer);
+		thread.join();
+		assertNull(error.get());
+
+		assertFalse(bp.holdsLock(reader, leafId));
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * Threads inserting at the same time split leaf and internal pages, and
+	 * the tree keeps all of their tuples and stays valid.
+	 */
+	@Test
+	public void concurrentInsertsSplitPages() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		AtomicReference<Exception> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < THREADS; i++) {
+			Random random = new Random(i);
+			Thread thread = new Thread(() -> {
+				try {
+					for(int n = 0; n < INSERTS_PER_THREAD; n++) {
+						int[] values = {random.nextInt(BTreeUtility.MAX_RAND_VALUE), n};
+						while(true) {
+							TransactionId tid = new TransactionId();
+							try {
+								bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(values));
+								bp.transactionComplete(tid);
+								break;
+							}
+							catch(TransactionAbortedException e) {
+								bp.transactionComplete(tid, false);
+							}
+						}
+					}
+				}
+				catch(Exception e) {
+					error.set(e);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		assertEquals(1000 + THREADS * INSERTS_PER_THREAD, count);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+	}
+}
@@ -8,6 +8,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.excution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -174,6 +175,39 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() with empty slots between the
+	 * used ones, which must return the same entries as iterator() in reverse
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+
+		entries.clear();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry expected = entries.get(row);
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -321,6 +355,57 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild() and findLastChild(), which must agree with
+	 * a walk over the entries before and after entries are deleted
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(null));
+		assertEquals(page.reverseIterator().next().getRightChild(), page.findLastChild(null));
+		checkFindChild(page);
+
+		// delete every third entry, leaving empty slots between the used ones
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 0; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+		checkFindChild(page);
+	}
+
+	private static void checkFindChild(BTreeInternalPage page) {
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; key++) {
+				IntField f = new IntField(key);
+				BTreePageId expected = null;
+				Iterator<BTreeEntry> it = page.iterator();
+				while (it.hasNext()) {
+					BTreeEntry e = it.next();
+					expected = e.getRightChild();
+					if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+						expected = e.getLeftChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findChild(f));
+
+				expected = null;
+				it = page.reverseIterator();
+				while (it.hasNext()) {
+					BTreeEntry e = it.next();
+					expected = e.getLeftChild();
+					if (e.getKey().compare(Op.LESS_THAN_OR_EQ, f)) {
+						expected = e.getRightChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findLastChild(f));
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -7,6 +7,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.excution.Predicate.Op;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -348,6 +349,60 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field, boolean) and reverseIterator(Field, boolean)
+	 * with repeated keys, before and after tuples are deleted
+	 */
+	@Test public void iteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 1 }));
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{ 22064, 2 }));
+		checkIteratorFromKey(page);
+
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 0; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+		checkIteratorFromKey(page);
+	}
+
+	private static void checkIteratorFromKey(BTreeLeafPage page) {
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int key = tuple[0] - 1; key <= tuple[0] + 1; key++) {
+				IntField f = new IntField(key);
+				for (boolean inclusive : new boolean[]{ true, false }) {
+					ArrayList<Tuple> expected = new ArrayList<Tuple>();
+					Iterator<Tuple> it = page.iterator();
+					while (it.hasNext()) {
+						Tuple t = it.next();
+						if (t.getField(0).compare(inclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, f))
+							expected.add(t);
+					}
+					ArrayList<Tuple> actual = new ArrayList<Tuple>();
+					it = page.iterator(f, inclusive);
+					while (it.hasNext())
+						actual.add(it.next());
+					assertEquals(expected, actual);
+
+					expected.clear();
+					it = page.reverseIterator();
+					while (it.hasNext()) {
+						Tuple t = it.next();
+						if (t.getField(0).compare(inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, f))
+							expected.add(t);
+					}
+					actual.clear();
+					it = page.reverseIterator(f, inclusive);
+					while (it.hasNext())
+						actual.add(it.next());
+					assertEquals(expected, actual);
+				}
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.excution.Insert;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class BulkLoadTest extends SimpleDbTestBase {
+
+    /**
+     * Bulk loaded tuples go to new, locked pages after the existing ones,
+     * which keep their free space for ordinary inserts.
+     */
+    @Test public void appendsPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        assertEquals(3000, f.bulkInsert(tid, source(3000, tuples)));
+        assertEquals(1 + (3000 + 503) / 504, f.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(f.getId(), 1)));
+        SystemTestUtil.matchTuples(f, tid, tuples);
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A load larger than one extent is appended in several writes.
+     */
+    @Test public void severalExtents() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, tuples);
+        int n = HeapFile.EXTENT_PAGES * 504 * 2 + 7;
+        int before = f.numPages();
+        TransactionId tid = new TransactionId();
+        assertEquals(n, f.bulkInsert(tid, source(n, tuples)));
+        assertEquals(before + (n + 503) / 504, f.numPages());
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aborting the transaction empties the appended pages again.
+     */
+    @Test public void abortEmptiesPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        f.bulkInsert(t.getId(), source(2000, new ArrayList<>()));
+        t.abort();
+
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), f.numPages() - 1), Permissions.READ_ONLY);
+        assertEquals(504, last.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Insert bulk loads a large input and inserts a small one tuple by tuple.
+     */
+    @Test public void insertOperator() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        TransactionId tid = new TransactionId();
+        Insert small = new Insert(tid, source(10, tuples), f.getId(), true);
+        small.open();
+        assertEquals(10, ((IntField) small.next().getField(0)).getValue());
+        small.close();
+        assertEquals(1, f.numPages());
+
+        int n = Insert.BULK_THRESHOLD + 1;
+        Insert large = new Insert(tid, source(n, tuples), f.getId(), true);
+        large.open();
+        assertEquals(n, ((IntField) large.next().getField(0)).getValue());
+        large.close();
+        assertEquals(1 + (n + 503) / 504, f.numPages());
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * n two-int tuples; their values are also added to expected.
+     */
+    private static TupleIterator source(int n, List<ArrayList<Integer>> expected) {
+        List<Tuple> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = Utility.getHeapTuple(new int[]{i, -i});
+            list.add(t);
+            ArrayList<Integer> values = new ArrayList<>();
+            values.add(i);
+            values.add(-i);
+            expected.add(values);
+        }
+        TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), list);
+        it.open();
+        return it;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoadTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.FreeSpaceMap;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * An insert into a file of full pages appends a page instead of trying
+     * every existing one, and space freed by a delete is used next.
+     */
+    @Test public void findsPageWithRoom() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, f.getId(), t);
+        assertEquals(10, t.getRecordId().getPageId().getPageNumber());
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 4);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        t = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid, f.getId(), t);
+        assertEquals(pid, t.getRecordId().getPageId());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent inserting transactions are given different pages, and each
+     * keeps inserting into its own page.
+     */
+    @Test public void spreadsInserters() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        Tuple a = Utility.getHeapTuple(1, 2);
+        Tuple b = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid1, f.getId(), a);
+        bp.insertTuple(tid2, f.getId(), b);
+        assertNotEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+
+        Tuple c = Utility.getHeapTuple(3, 2);
+        bp.insertTuple(tid2, f.getId(), c);
+        assertEquals(b.getRecordId().getPageId(), c.getRecordId().getPageId());
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+    }
+
+    /**
+     * Written pages record their fill level in the side file, once per batch
+     * of writes, and a new HeapFile over the same file reads it back.
+     */
+    @Test public void persistsLevels() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 + 100, null, null);
+        f.getFreeSpaceMap().setPersistent(true);
+        File side = f.getFreeSpaceMap().getFile();
+        side.deleteOnExit();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+        // a page written on its own only records its level in memory
+        bp.flushAllPages();
+        assertFalse(side.exists());
+        tid = new TransactionId();
+        f.writePages(Collections.singletonList(bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY)));
+        bp.transactionComplete(tid);
+        assertTrue(side.exists());
+
+        HeapFile reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        FreeSpaceMap fsm = reopened.getFreeSpaceMap();
+        fsm.setPersistent(true);
+        fsm.findPage(new TransactionId(), reopened.numPages(), (owner, pgNo) -> false);
+        assertEquals(-1, fsm.getLevel(2));
+        assertEquals(FreeSpaceMap.level(504 - 101, 504), fsm.getLevel(1));
+        // page 0 was never written through the HeapFile, so its level is unknown
+        assertEquals(255, fsm.getLevel(0));
+    }
+
+    /**
+     * The side file is ignored when the data file was recreated with fewer
+     * pages than it records, and is removed instead of rewritten once the
+     * data file is gone. Without persistence no side file is written.
+     */
+    @Test public void sideFileFollowsDataFile() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2 * 504, null, null);
+        File side = f.getFreeSpaceMap().getFile();
+        side.deleteOnExit();
+        f.getFreeSpaceMap().persist(0, new byte[]{0, 0});
+        f.getFreeSpaceMap().flush(2);
+        assertFalse(side.exists());
+
+        f.getFreeSpaceMap().setPersistent(true);
+        f.getFreeSpaceMap().persist(0, new byte[]{0, 0});
+        f.getFreeSpaceMap().flush(2);
+        assertTrue(side.exists());
+        HeapFile shorter = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        Files.copy(shorter.getFile().toPath(), f.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FreeSpaceMap fsm = new HeapFile(f.getFile(), f.getTupleDesc()).getFreeSpaceMap();
+        fsm.setPersistent(true);
+        fsm.findPage(new TransactionId(), 1, (owner, pgNo) -> false);
+        assertEquals(255, fsm.getLevel(0));
+
+        f.getFile().delete();
+        f.getFreeSpaceMap().persist(1, new byte[]{0});
+        f.getFreeSpaceMap().flush(2);
+        assertFalse(side.exists());
+    }
+
+    @Test public void levels() {
+        assertEquals(0, FreeSpaceMap.level(0, 504));
+        assertEquals(1, FreeSpaceMap.level(1, 504));
+        assertEquals(255, FreeSpaceMap.level(504, 504));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int TIMEOUT = 10000;
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    /**
+     * Commits that wait at the same time are made durable by one force.
+     */
+    @Test(timeout = TIMEOUT) public void concurrentCommitsShareForces() throws Exception {
+        log.setGroupCommitWindow(50000);
+        AtomicInteger committed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                    assertFalse(log.isActive(tid));
+                    committed.incrementAndGet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(8, committed.get());
+        assertTrue(log.getCommitForces() < 8);
+    }
+
+    /**
+     * Commits keep working after a checkpoint replaces the log file.
+     */
+    @Test(timeout = TIMEOUT) public void commitAfterCheckpoint() throws Exception {
+        TransactionId t1 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logCommit(t1);
+        log.logCheckpoint();
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t2);
+        log.logCommit(t2);
+        assertEquals(2, log.getCommitForces());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
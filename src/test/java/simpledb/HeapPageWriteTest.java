@@ -1,6 +1,8 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -133,6 +135,42 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The page shares the array it was built from, the before-image and the
+     * arrays returned by getPageData, and copies before it is modified, so none
+     * of them change.
+     */
+    @Test public void copyOnWrite() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        assertArrayEquals(original, before);
+
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+
+        assertArrayEquals(original, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(original, before);
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+        assertNotSame(before, page.getPageData());
+        // an iterator opened before the changes still sees the old contents
+        assertTrue(TestUtil.compareTuples(first, it.next()));
+
+        // the new contents survive a round trip through getPageData
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> a = page.iterator();
+        Iterator<Tuple> b = copy.iterator();
+        while (a.hasNext())
+            assertTrue(TestUtil.compareTuples(a.next(), b.next()));
+        assertTrue(!b.hasNext());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
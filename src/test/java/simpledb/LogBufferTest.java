@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private HeapPageId p0;
+    private BufferPool bp;
+    private LogFile log;
+
+    /**
+     * Three pages of a two column table.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        p0 = new HeapPageId(f.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        log = Database.getLogFile();
+    }
+
+    /**
+     * Records get increasing LSNs and stay in the log buffer until the log
+     * is flushed up to them.
+     */
+    @Test public void recordsAreBufferedUntilFlushed() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(it.next());
+        long first = log.logWrite(tid, page.getBeforeImage(), page);
+        page.setBeforeImage();
+        page.deleteTuple(it.next());
+        long second = log.logWrite(tid, page.getBeforeImage(), page);
+        assertTrue(second > first);
+        assertTrue(log.getEndLSN() > second);
+        assertTrue(log.getFlushedLSN() <= first);
+
+        log.flushTo(first);
+        assertTrue(log.getFlushedLSN() > second);
+        long flushed = log.getFlushedLSN();
+        log.flushTo(second);
+        assertEquals(flushed, log.getFlushedLSN());
+        bp.discardPage(p0);
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A page with uncommitted changes gets the LSN of its log record, and the
+     * log is durable past it before the page is evicted.
+     */
+    @Test public void evictionFlushesLogToPageLSN() throws Exception {
+        bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        bp.deleteTuple(tid, it.next());
+        assertEquals(0, page.getLSN());
+        for (int i = 1; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        assertTrue(page.getLSN() > 0);
+        assertTrue(log.getFlushedLSN() > page.getLSN());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * Commit stamps the pages it logs, and writing them back afterwards does
+     * not force the log again.
+     */
+    @Test public void committedPagesNeedNoFlush() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        bp.deleteTuple(tid, it.next());
+        bp.transactionComplete(tid, true);
+        assertTrue(page.getLSN() > 0);
+        long flushed = log.getFlushedLSN();
+        assertTrue(flushed > page.getLSN());
+
+        bp.flushAllPages();
+        assertEquals(flushed, log.getFlushedLSN());
+        assertEquals(1, ((HeapPage) f.readPage(p0)).getNumEmptySlots());
+    }
+
+    /**
+     * Truncating the log keeps the LSNs of the records it keeps.
+     */
+    @Test public void truncationKeepsLSNs() throws Exception {
+        TransactionId t1 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logCommit(t1);
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t2);
+        log.logCheckpoint();
+        long end = log.getEndLSN();
+        log.logTruncate();
+        assertEquals(end, log.getEndLSN());
+        assertEquals(end, log.getFlushedLSN());
+
+        log.logCommit(t2);
+        assertTrue(log.getFlushedLSN() > end);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
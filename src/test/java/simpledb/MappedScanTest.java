@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class MappedScanTest extends SimpleDbTestBase {
+
+    /**
+     * A memory-mapped scan returns every tuple without reading pages into the buffer pool,
+     * and still takes the page locks.
+     */
+    @Test public void scanMatchesTuples() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, null, tuples);
+        f.setMemoryMappedScan(true);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(f, tid, tuples);
+        assertEquals(0, bp.getMissCount());
+        assertTrue(bp.holdsLock(tid, new HeapPageId(f.getId(), f.numPages() - 1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page that is dirty in the buffer pool is read from the pool, not from the file.
+     */
+    @Test public void dirtyPageFromPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, null);
+        f.setMemoryMappedScan(true);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 1);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+
+        assertEquals(3 * 504 - 1, count(f, tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * String fields are decoded from the mapping, and pages added after the file was first
+     * mapped are picked up by the next scan.
+     */
+    @Test public void stringsAndGrowth() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        File file = File.createTempFile("mapped", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, td);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        f.setMemoryMappedScan(true);
+
+        int inserted = 0;
+        for (int round = 0; round < 2; round++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 100; i++, inserted++) {
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(inserted));
+                t.setField(1, new StringField("row" + inserted, Type.STRING_LEN));
+                Database.getBufferPool().insertTuple(tid, f.getId(), t);
+            }
+            Database.getBufferPool().flushAllPages();
+            Database.getBufferPool().transactionComplete(tid);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            tid = new TransactionId();
+            DbFileIterator it = f.iterator(tid);
+            it.open();
+            int n = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int value = ((IntField) t.getField(0)).getValue();
+                assertEquals("row" + value, ((StringField) t.getField(1)).getValue());
+                n++;
+            }
+            it.close();
+            assertEquals(inserted, n);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertTrue(f.numPages() > 1);
+    }
+
+    private static int count(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedScanTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.PageChange;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PageChangeTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private BufferPool bp;
+    private LogFile log;
+
+    /**
+     * Three pages: two full pages of 504 tuples and 92 tuples on the third.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        log = Database.getLogFile();
+    }
+
+    /**
+     * A delete, an update in place and an insert on a heap page give one
+     * record each, which redo and undo the change.
+     */
+    @Test public void heapRecordsRedoAndUndo() throws Exception {
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 2));
+        Page before = page.getBeforeImage();
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        page.deleteTuple(first);
+        page.deleteTuple(second);
+        page.insertTuple(Utility.getHeapTuple(new int[]{-1, -2}), second.getRecordId().getTupleNumber());
+        page.insertTuple(Utility.getHeapTuple(new int[]{-3, -4}), 100);
+
+        List<PageChange> changes = PageChange.diff(before, page);
+        assertEquals(3, changes.size());
+        assertRoundTrip(before, page, changes);
+    }
+
+    /**
+     * A change to a B+ tree leaf is logged as byte ranges.
+     */
+    @Test public void btreeRecordsRedoAndUndo() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20, null, null, 0);
+        BTreeLeafPage page = (BTreeLeafPage) bf.readPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF));
+        Page before = page.getBeforeImage();
+        page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{-1, -1}));
+
+        List<PageChange> changes = PageChange.diff(before, page);
+        assertTrue(changes.size() > 0);
+        assertRoundTrip(before, page, changes);
+    }
+
+    /**
+     * The first change to a page after a checkpoint logs full images, later
+     * changes log only the changed tuple.
+     */
+    @Test public void fullImagesOnlyAfterCheckpoint() throws Exception {
+        Iterator<Tuple> tuples = ((HeapPage) f.readPage(new HeapPageId(f.getId(), 0))).iterator();
+        long first = commitDelete(tuples.next());
+        long second = commitDelete(tuples.next());
+        assertTrue(first > 2 * BufferPool.getPageSize());
+        assertTrue(second < 100);
+
+        log.logCheckpoint();
+        assertTrue(commitDelete(tuples.next()) > 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * Abort undoes a page's logged records in reverse order and its changes
+     * that were never logged.
+     */
+    @Test public void abortUndoesRecordsInReverse() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20, null, null, 0);
+        BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+        // creating the file replaced the buffer pool
+        bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        byte[] original = page.getPageData();
+        for (int i = 0; i < 3; i++) {
+            page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{i, i}));
+            page.markDirty(true, tid);
+            if (i < 2) {
+                // a full image, then a compact record; the last insert is not logged
+                log.logWrite(tid, page.getBeforeImage(), page);
+                page.setBeforeImage();
+            }
+        }
+
+        bp.transactionComplete(tid, false);
+        Page restored = bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertArrayEquals(original, restored.getPageData());
+    }
+
+    private long commitDelete(Tuple t) throws Exception {
+        TransactionId tid = new TransactionId();
+        long start = log.getEndLSN();
+        bp.deleteTuple(tid, t);
+        bp.transactionComplete(tid, true);
+        // without the COMMIT record
+        return log.getEndLSN() - start - 20;
+    }
+
+    private static void assertRoundTrip(Page before, Page after, List<PageChange> changes) throws Exception {
+        Page redone = before;
+        for (PageChange change : changes) {
+            redone = change.redo(redone);
+        }
+        assertArrayEquals(after.getPageData(), redone.getPageData());
+        Page undone = after;
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            undone = changes.get(i).undo(undone);
+        }
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChangeTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 20;
+
+    private HeapFile f;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 40 * 504, null, null);
+        tid = new TransactionId();
+    }
+
+    /**
+     * writePages with adjacent and non-adjacent pages in any order writes every page
+     * to the right place.
+     */
+    @Test public void writePagesCoalesced() throws Exception {
+        List<Page> pages = new ArrayList<>();
+        for (int pgNo : new int[]{7, 3, 4, 5, 12, 11}) {
+            HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), pgNo));
+            page.deleteTuple(page.iterator().next());
+            pages.add(page);
+        }
+        f.writePages(pages);
+        for (Page page : pages) {
+            Page onDisk = f.readPage(page.getId());
+            assertArrayEquals(page.getPageData(), onDisk.getPageData());
+        }
+        // untouched neighbours keep all their tuples
+        HeapPage page6 = (HeapPage) f.readPage(new HeapPageId(f.getId(), 6));
+        assertEquals(0, page6.getNumEmptySlots());
+    }
+
+    /**
+     * With every frame dirty the first miss pays for a write, after which the cleaner keeps
+     * enough clean frames ahead of eviction that later misses do not.
+     */
+    @Test public void cleanerAvoidsForegroundWrites() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setCleanTarget(0.5);
+        for (int i = 0; i < POOL_PAGES; i++) {
+            Page page = bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            page.markDirty(true, tid);
+        }
+        bp.getPage(tid, new HeapPageId(f.getId(), POOL_PAGES), Permissions.READ_ONLY);
+        assertEquals(1, bp.getForegroundWrites());
+
+        waitForCleaner(bp, POOL_PAGES / 2 - 1);
+        assertTrue(bp.getCleanerWrites() < bp.getCleanerPagesWritten());
+
+        for (int i = POOL_PAGES + 1; i < POOL_PAGES + 5; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertEquals(1, bp.getForegroundWrites());
+    }
+
+    /**
+     * The cleaner writes the current page contents and marks the pages clean.
+     */
+    @Test public void cleanedPagesReachDisk() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setCleanTarget(1.0);
+        List<HeapPage> dirtied = new ArrayList<>();
+        for (int i = 0; i < POOL_PAGES; i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            page.deleteTuple(page.iterator().next());
+            page.markDirty(true, tid);
+            dirtied.add(page);
+        }
+        bp.getPage(tid, new HeapPageId(f.getId(), POOL_PAGES), Permissions.READ_ONLY);
+        waitForCleaner(bp, POOL_PAGES - 1);
+        // one page was written by the evicting miss, the cleaner wrote the rest
+        for (HeapPage page : dirtied) {
+            assertNull(page.isDirty());
+            assertArrayEquals(page.getPageData(), f.readPage(page.getId()).getPageData());
+        }
+    }
+
+    private static void waitForCleaner(BufferPool bp, long pages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getCleanerPagesWritten() < pages && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue("cleaner wrote " + bp.getCleanerPagesWritten() + " pages",
+                bp.getCleanerPagesWritten() >= pages);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
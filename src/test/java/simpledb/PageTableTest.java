@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.LongIntHashMap;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreePageId;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    @After public void resetPageSize() {
+        BufferPool.resetPageSize();
+    }
+
+    /**
+     * Random puts, overwrites and removes on a small key range, checked against HashMap.
+     */
+    @Test public void randomOperations() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            long key = r.nextInt(5000) * 0x100000000L + r.nextInt(8);
+            int value = r.nextInt(Integer.MAX_VALUE);
+            switch (r.nextInt(3)) {
+                case 0:
+                    assertEquals((int) expected.getOrDefault(key, -1), map.put(key, value));
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    assertEquals((int) expected.getOrDefault(key, -1), map.remove(key));
+                    expected.remove(key);
+                    break;
+                default:
+                    assertEquals((int) expected.getOrDefault(key, -1), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> e : expected.entrySet())
+            assertEquals((int) e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * Page keys of heap and B+ tree pages of the same table never collide.
+     */
+    @Test public void pageKeysAreUnique() {
+        Set<Long> keys = new HashSet<>();
+        for (int table = -2; table <= 2; table++) {
+            for (int pgNo = 0; pgNo < 100; pgNo++) {
+                keys.add(new HeapPageId(table, pgNo).pageKey());
+                for (int categ = BTreePageId.ROOT_PTR; categ <= BTreePageId.HEADER; categ++)
+                    keys.add(new BTreePageId(table, pgNo, categ).pageKey());
+            }
+        }
+        assertEquals(5 * 100 * 5, keys.size());
+    }
+
+    /**
+     * Two different pages whose hashCode() is the same both stay in the pool.
+     */
+    @Test public void collidingHashCodes() throws Exception {
+        HeapFile f0 = openWithId(0);
+        HeapFile f8 = openWithId(8);
+        PageId p0 = new HeapPageId(0, 1);
+        PageId p8 = new HeapPageId(8, 0);
+        assertEquals(p0.hashCode(), p8.hashCode());
+
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId tid = new TransactionId();
+        Page page0 = bp.getPage(tid, p0, Permissions.READ_ONLY);
+        Page page8 = bp.getPage(tid, p8, Permissions.READ_ONLY);
+        assertNotSame(page0, page8);
+        assertEquals(p0, bp.getPage(tid, p0, Permissions.READ_ONLY).getId());
+        assertEquals(p8, bp.getPage(tid, p8, Permissions.READ_ONLY).getId());
+        assertEquals(2, bp.getMissCount());
+        assertNotEquals(f0.getId(), f8.getId());
+    }
+
+    /**
+     * Tens of thousands of resident pages, read twice: the second pass is all hits and
+     * every lookup returns the requested page.
+     */
+    @Test public void manyResidentPages() throws Exception {
+        // 7 two-int tuples per 64 byte page keeps the file small
+        BufferPool.setPageSize(64);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000 * 7, null, null);
+        int numPages = f.numPages();
+        assertEquals(40000, numPages);
+
+        BufferPool bp = Database.resetBufferPool(50000);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < numPages; i++) {
+                HeapPageId pid = new HeapPageId(f.getId(), i);
+                assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+            }
+        }
+        assertEquals(numPages, bp.getMissCount());
+        assertEquals(numPages, bp.getHitCount());
+
+        for (int i = 0; i < numPages; i += 2)
+            bp.discardPage(new HeapPageId(f.getId(), i));
+        for (int i = 1; i < numPages; i += 2) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+        assertEquals(numPages, bp.getMissCount());
+    }
+
+    /**
+     * Several threads look up random pages of a table twice the size of the pool, so hits,
+     * misses and evictions race with each other. Every lookup must return the requested page.
+     */
+    @Test public void concurrentLookupsAndEvictions() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 64 * 504, null, null);
+        int numPages = f.numPages();
+        BufferPool bp = Database.resetBufferPool(numPages / 2);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                Random r = new Random();
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        HeapPageId pid = new HeapPageId(f.getId(), r.nextInt(numPages));
+                        Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        if (!pid.equals(page.getId()))
+                            throw new AssertionError("expected " + pid.getPageNumber() + " got " + page.getId().getPageNumber());
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertEquals(threads.length * 2000, bp.getHitCount() + bp.getMissCount());
+    }
+
+    private static HeapFile openWithId(int id) throws Exception {
+        File file = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 100, null, null);
+        HeapFile hf = new HeapFile(file, Utility.getTupleDesc(2)) {
+            @Override
+            public int getId() {
+                return id;
+            }
+        };
+        Database.getCatalog().addTable(hf, "table" + id);
+        return hf;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PagedFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PagedFileTest extends SimpleDbTestBase {
+
+    /**
+     * Positional writes extend the file and the cached length; reads see what was written.
+     */
+    @Test public void readWriteAndLength() throws Exception {
+        File file = File.createTempFile("paged", ".dat");
+        file.deleteOnExit();
+        PagedFile pf = new PagedFile(file);
+        assertEquals(0, pf.length());
+
+        byte[] a = filled(100, (byte) 1);
+        byte[] b = filled(50, (byte) 2);
+        pf.write(200, a);
+        assertEquals(300, pf.length());
+        assertEquals(300, pf.append(b));
+        assertEquals(350, pf.length());
+
+        byte[] buf = new byte[100];
+        pf.read(200, buf);
+        assertArrayEquals(a, buf);
+        buf = new byte[50];
+        pf.read(300, buf);
+        assertArrayEquals(b, buf);
+        try {
+            pf.read(320, new byte[50]);
+            throw new AssertionError("expected EOFException");
+        } catch (EOFException expected) {
+        }
+        pf.close();
+        assertEquals(350, file.length());
+    }
+
+    /**
+     * Data appended to the file by another writer shows up after refreshLength().
+     */
+    @Test public void externalAppend() throws Exception {
+        File file = File.createTempFile("paged", ".dat");
+        file.deleteOnExit();
+        PagedFile pf = new PagedFile(file);
+        pf.write(0, filled(10, (byte) 1));
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(filled(10, (byte) 2));
+        }
+        assertEquals(10, pf.length());
+        assertEquals(20, pf.refreshLength());
+        assertEquals(20, pf.length());
+        pf.close();
+    }
+
+    /**
+     * An interrupt closes a FileChannel; the file is reopened and the interrupt is kept.
+     */
+    @Test public void interruptedRead() throws Exception {
+        File file = File.createTempFile("paged", ".dat");
+        file.deleteOnExit();
+        PagedFile pf = new PagedFile(file);
+        byte[] data = filled(64, (byte) 7);
+        pf.write(0, data);
+
+        Thread.currentThread().interrupt();
+        byte[] buf = new byte[64];
+        try {
+            pf.read(0, buf);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertArrayEquals(data, buf);
+        pf.read(0, buf);
+        assertArrayEquals(data, buf);
+        pf.close();
+    }
+
+    /**
+     * More heap files than can be open at once all stay readable.
+     */
+    @Test public void manyFiles() throws Exception {
+        List<HeapFile> files = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            files.add(SystemTestUtil.createRandomHeapFile(1, 10, null, null));
+        for (int round = 0; round < 2; round++) {
+            for (HeapFile hf : files) {
+                HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+                assertEquals(hf.getId(), page.getId().getTableId());
+            }
+        }
+    }
+
+    /**
+     * A scan sees pages appended to the file after it was opened.
+     */
+    @Test public void scanSeesAppendedPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(hf.getFile(), true))) {
+            out.write(page.getPageData());
+        }
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(505, count);
+        assertEquals(2, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static byte[] filled(int n, byte b) {
+        byte[] data = new byte[n];
+        Arrays.fill(data, b);
+        return data;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagedFileTest.class);
+    }
+}
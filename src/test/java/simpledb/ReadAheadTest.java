@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.ReadAhead;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /**
+     * A heap file scan prefetches the pages ahead of it; most pages are then hits.
+     */
+    @Test public void heapScan() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200 * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(100);
+        assertEquals(200 * 504, slowScan(f, 504));
+        assertTrue("prefetched " + bp.getPrefetchCount(), bp.getPrefetchCount() > 0);
+        assertTrue("prefetch hits " + bp.getPrefetchHits(), bp.getPrefetchHits() > 0);
+        assertTrue(bp.getMissCount() + bp.getPrefetchCount() >= 200);
+        assertTrue(bp.getMissCount() < 200);
+    }
+
+    /**
+     * A B+ tree scan prefetches by following the right sibling pointers of the leaves.
+     */
+    @Test public void btreeScan() throws Exception {
+        BTreeFile f = BTreeUtility.createBTreeFile(2, 60 * 502, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(100);
+        assertEquals(60 * 502, slowScan(f, 502));
+        assertTrue("prefetch hits " + bp.getPrefetchHits(), bp.getPrefetchHits() > 0);
+    }
+
+    /**
+     * Random access is not sequential and prefetches nothing.
+     */
+    @Test public void randomAccess() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100 * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(100);
+        TransactionId tid = new TransactionId();
+        ReadAhead readAhead = new ReadAhead((pid, page) -> new HeapPageId(pid.getTableId(), pid.getPageNumber() + 1));
+        Random r = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), r.nextInt(50) * 2);
+            readAhead.accessed(pid, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        }
+        readAhead.close();
+        assertEquals(0, bp.getPrefetchCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A pool too small to hold a window does not prefetch, and the scan still sees every tuple.
+     */
+    @Test public void smallPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 50 * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        assertEquals(50 * 504, slowScan(f, 504));
+        assertEquals(0, bp.getPrefetchCount());
+    }
+
+    /**
+     * Scans the file, pausing at each page boundary so the prefetch thread gets to run.
+     */
+    private static int slowScan(DbFile f, int tuplesPerPage) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            if (++count % tuplesPerPage == 0)
+                Thread.sleep(1);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,266 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    /**
+     * An empty two column table.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = new File("recovery.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    /**
+     * A transaction that did not finish is undone tuple by tuple on a page
+     * where a committed transaction deleted another tuple.
+     */
+    @Test public void losersAreUndoneBesideWinners() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId load = new TransactionId();
+        for (int i = 1; i <= 3; i++) {
+            insert(load, i);
+        }
+        bp.transactionComplete(load, true);
+        List<Tuple> tuples = tuples();
+
+        TransactionId loser = new TransactionId();
+        bp.deleteTuple(loser, tuples.get(0));
+        TransactionId winner = new TransactionId();
+        bp.deleteTuple(winner, tuples.get(1));
+        // logs the page with both deletes
+        bp.transactionComplete(winner, true);
+
+        crash(1);
+        assertEquals(values(1, 3), scan());
+    }
+
+    /**
+     * Redo on several threads installs the changes of every committed
+     * transaction.
+     */
+    @Test public void parallelRedo() throws Exception {
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            TransactionId tid = new TransactionId();
+            insert(tid, i);
+            expected.add(i);
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+
+        crash(4);
+        assertEquals(expected, scan());
+    }
+
+    /**
+     * A record cut short by the crash is dropped, and the recovered log
+     * can be appended to and recovered again.
+     */
+    @Test public void tornRecordIsDropped() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 1);
+        Database.getBufferPool().transactionComplete(tid, true);
+        List<File> segments = Database.getLogFile().getSegmentFiles();
+        try (RandomAccessFile log = new RandomAccessFile(segments.get(segments.size() - 1), "rw")) {
+            log.seek(log.length());
+            log.writeInt(2);
+            log.writeInt(7);
+        }
+
+        crash(1);
+        tid = new TransactionId();
+        insert(tid, 2);
+        Database.getBufferPool().transactionComplete(tid, true);
+        crash(1);
+        assertEquals(values(1, 2), scan());
+    }
+
+    /**
+     * Recovery redoes from the last checkpoint and undoes a transaction
+     * that was active at the checkpoint from its first record, which the
+     * checkpoint kept in the log.
+     */
+    @Test public void undoReachesBeforeCheckpoint() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId loser = new TransactionId();
+        insert(loser, 1);
+        bp.flushAllPages();
+        TransactionId winner = new TransactionId();
+        insert(winner, 2);
+        bp.transactionComplete(winner, true);
+        Database.getLogFile().logCheckpoint();
+        winner = new TransactionId();
+        insert(winner, 3);
+        bp.transactionComplete(winner, true);
+
+        crash(2);
+        assertEquals(values(2, 3), scan());
+    }
+
+    /**
+     * Recovering twice gives the same tables: the rolled back transactions
+     * are logged as aborted.
+     */
+    @Test public void recoveryIsRepeatable() throws Exception {
+        TransactionId winner = new TransactionId();
+        insert(winner, 1);
+        Database.getBufferPool().transactionComplete(winner, true);
+        TransactionId loser = new TransactionId();
+        insert(loser, 2);
+        Database.getBufferPool().flushAllPages();
+
+        crash(2);
+        crash(2);
+        assertEquals(values(1), scan());
+    }
+
+    /**
+     * A checkpoint writes no pages: a committed insert is still only in
+     * the log, and recovery redoes it from the recLSN the checkpoint
+     * recorded for its page.
+     */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 1);
+        Database.getBufferPool().transactionComplete(tid, true);
+        Database.getLogFile().logCheckpoint();
+        assertFalse(((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator().hasNext());
+
+        crash(1);
+        assertEquals(values(1), scan());
+    }
+
+    /**
+     * Truncation deletes the segments before the oldest record the last
+     * checkpoint needs, and recovery reads the segments that are left.
+     */
+    @Test public void truncationDeletesSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(4096);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            TransactionId tid = new TransactionId();
+            insert(tid, i);
+            expected.add(i);
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+        int segments = log.getSegmentFiles().size();
+        assertTrue(segments > 2);
+        Database.getBufferPool().flushAllPages();
+        log.logCheckpoint();
+        assertTrue(log.getSegmentFiles().size() < segments);
+        assertEquals(log.getSegmentFiles().size(), log.getSegmentFiles().stream().filter(File::exists).count());
+
+        crash(1);
+        assertEquals(expected, scan());
+    }
+
+    /**
+     * The page cleaner takes checkpoints in the background as the log
+     * grows, writing a page that stays in the buffer pool so the log
+     * before it can be deleted.
+     */
+    @Test public void cleanerAdvancesRedoPoint() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(4096);
+        log.setCheckpointInterval(16384);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 1000 && log.getFirstLSN() < 32768; i++) {
+            TransactionId tid = new TransactionId();
+            insert(tid, i);
+            expected.add(i);
+            Database.getBufferPool().transactionComplete(tid, true);
+            if (i % 100 == 99) {
+                // let the cleaner catch up
+                Thread.sleep(50);
+            }
+        }
+        assertTrue(log.getFirstLSN() >= 32768);
+        assertTrue(Database.getBufferPool().getCheckpointPagesWritten() > 0);
+
+        crash(1);
+        assertEquals(expected, scan());
+    }
+
+    private void insert(TransactionId tid, int value) throws Exception {
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{value, value}));
+    }
+
+    /**
+     * Drops the buffer pool and the log buffer, then recovers the table.
+     */
+    private void crash(int threads) throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    private List<Tuple> tuples() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    private Set<Integer> scan() throws Exception {
+        Set<Integer> values = new HashSet<>();
+        for (Tuple t : tuples()) {
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        return values;
+    }
+
+    private static Set<Integer> values(int... values) {
+        Set<Integer> set = new HashSet<>();
+        for (int v : values) {
+            set.add(v);
+        }
+        return set;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.excution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Lru2ReplacementPolicy;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    /**
+     * CLOCK skips frames whose reference bit is set and clears it on the way.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.loaded(i, false);
+        policy.accessed(0, false);
+        // first sweep clears every bit, second sweep picks frame 0
+        assertEquals(0, policy.victim(f -> true));
+        policy.removed(0);
+        policy.loaded(0, false);
+        policy.accessed(2, false);
+        assertEquals(1, policy.victim(f -> true));
+    }
+
+    /**
+     * CLOCK prefers use-once frames and never returns a frame the pool cannot evict.
+     */
+    @Test public void clockUseOnce() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(4);
+        policy.loaded(0, false);
+        policy.loaded(1, true);
+        policy.loaded(2, false);
+        policy.loaded(3, true);
+        assertEquals(1, policy.victim(f -> true));
+        assertEquals(3, policy.victim(f -> f != 1));
+        // a regular access turns a use-once frame into a regular one
+        policy.accessed(1, false);
+        policy.accessed(3, false);
+        assertEquals(-1, policy.victim(f -> false));
+    }
+
+    /**
+     * LRU-2 evicts once-referenced pages in FIFO order before pages referenced twice, which
+     * are evicted in LRU order.
+     */
+    @Test public void lru2Order() {
+        ReplacementPolicy policy = new Lru2ReplacementPolicy(4);
+        for (int i = 0; i < 4; i++)
+            policy.loaded(i, false);
+        policy.accessed(0, false);
+        policy.accessed(1, false);
+        policy.accessed(0, false);
+        assertEquals(2, policy.victim(f -> true));
+        assertEquals(3, policy.victim(f -> f != 2));
+        policy.removed(2);
+        policy.removed(3);
+        assertEquals(1, policy.victim(f -> true));
+        policy.removed(1);
+        assertEquals(0, policy.victim(f -> true));
+        policy.removed(0);
+        assertEquals(-1, policy.victim(f -> true));
+    }
+
+    /**
+     * LRU-2 puts use-once pages at the eviction end and scan hits never promote them.
+     */
+    @Test public void lru2UseOnce() {
+        ReplacementPolicy policy = new Lru2ReplacementPolicy(3);
+        policy.loaded(0, false);
+        policy.loaded(1, true);
+        policy.accessed(1, true);
+        policy.loaded(2, false);
+        assertEquals(1, policy.victim(f -> true));
+        policy.removed(1);
+        assertEquals(0, policy.victim(f -> true));
+    }
+
+    /**
+     * A sequential scan over a table larger than the pool must not push out pages
+     * that are being looked up repeatedly.
+     */
+    @Test public void hotPagesSurviveScan() throws Exception {
+        checkHotPagesSurviveScan(new ClockReplacementPolicy(10));
+        checkHotPagesSurviveScan(new Lru2ReplacementPolicy(10));
+    }
+
+    private void checkHotPagesSurviveScan(ReplacementPolicy policy) throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 2500, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 30000, null, null);
+        int hotPages = hot.numPages();
+        assertNotEquals(0, hotPages);
+        BufferPool bp = Database.resetBufferPool(10, policy);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 2; round++)
+            for (int i = 0; i < hotPages; i++)
+                bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+
+        long misses = bp.getMissCount();
+        for (int i = 0; i < hotPages; i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
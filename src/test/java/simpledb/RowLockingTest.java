@@ -0,0 +1,194 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.LockGrabber;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class RowLockingTest extends SimpleDbTestBase {
+    private static final int TIMEOUT = 5000;
+
+    private HeapFile f;
+    private HeapPageId p0;
+    private BufferPool bp;
+    private List<Tuple> tuples;
+
+    /**
+     * One full page of 504 tuples.
+     */
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        p0 = new HeapPageId(f.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        tuples = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Two transactions delete different tuples of the same page without
+     * waiting for each other.
+     */
+    @Test(timeout = TIMEOUT) public void differentRowsSamePage() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, tuples.get(0));
+        bp.deleteTuple(t2, tuples.get(1));
+        assertTrue(bp.holdsLock(t1, p0));
+        assertTrue(bp.holdsLock(t2, p0));
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+        assertEquals(2, ((HeapPage) bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY)).getNumEmptySlots());
+    }
+
+    /**
+     * A transaction reading the whole page waits for one that has changed a
+     * row on it.
+     */
+    @Test public void pageReaderWaitsForRowWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(0));
+        LockGrabber reader = new LockGrabber(new TransactionId(), p0, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(100);
+        assertFalse(reader.acquired());
+        bp.transactionComplete(writer);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired());
+    }
+
+    /**
+     * The slot freed by an uncommitted delete is not reused by another
+     * transaction's insert, which goes to a new page instead.
+     */
+    @Test(timeout = TIMEOUT) public void deletedSlotStaysLocked() throws Exception {
+        TransactionId deleter = new TransactionId();
+        bp.deleteTuple(deleter, tuples.get(5));
+        TransactionId inserter = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(inserter, f.getId(), t);
+        assertNotEquals(p0, t.getRecordId().getPageId());
+        bp.transactionComplete(deleter);
+        bp.transactionComplete(inserter);
+    }
+
+    /**
+     * Holding more than ESCALATION_THRESHOLD row locks on one page replaces
+     * them with a page lock, after which other writers of the page wait.
+     */
+    @Test public void escalatesToPageLock() throws Exception {
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 65; i++) {
+            bp.deleteTuple(t1, tuples.get(i));
+        }
+        assertEquals(1, bp.getLockEscalationCount());
+        LockGrabber other = new LockGrabber(new TransactionId(), p0, Permissions.READ_ONLY);
+        other.start();
+        Thread.sleep(100);
+        assertFalse(other.acquired());
+        bp.transactionComplete(t1);
+        other.join(TIMEOUT);
+        assertTrue(other.acquired());
+    }
+
+    /**
+     * Escalation does not wait: with another transaction working on the
+     * page, the row locks are kept.
+     */
+    @Test(timeout = TIMEOUT) public void noEscalationUnderContention() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t2, tuples.get(100));
+        for (int i = 0; i < 65; i++) {
+            bp.deleteTuple(t1, tuples.get(i));
+        }
+        assertEquals(0, bp.getLockEscalationCount());
+        bp.deleteTuple(t2, tuples.get(101));
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * A table lock waits for a transaction that has changed a row of the
+     * table, whose intention lock on the table did not go through the
+     * table's lock entry.
+     */
+    @Test public void tableLockWaitsForRowWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(0));
+        AtomicBoolean locked = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            try {
+                bp.lockTable(new TransactionId(), f.getId(), Permissions.READ_WRITE);
+                locked.set(true);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        Thread.sleep(100);
+        assertFalse(locked.get());
+        bp.transactionComplete(writer);
+        t.join(TIMEOUT);
+        assertTrue(locked.get());
+    }
+
+    /**
+     * While a transaction holds a shared lock on the table, other
+     * transactions cannot lock its pages for writing; once it completes,
+     * they can again.
+     */
+    @Test public void pageWriterWaitsForTableReader() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.lockTable(reader, f.getId(), Permissions.READ_ONLY);
+        TransactionId pageWriter = new TransactionId();
+        LockGrabber writer = new LockGrabber(pageWriter, p0, Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(100);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(reader);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+        bp.transactionComplete(pageWriter);
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, tuples.get(1));
+        bp.deleteTuple(t2, tuples.get(2));
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+    private static final int TIMEOUT = 5000;
+
+    private HeapFile f;
+    private BufferPool bp;
+    private List<Tuple> tuples;
+
+    /**
+     * Two pages: one full page of 504 tuples and 96 tuples on the second.
+     */
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        tuples = scan(tid);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A snapshot reader neither waits for a writer holding an exclusive page
+     * lock nor sees its uncommitted changes.
+     */
+    @Test(timeout = TIMEOUT) public void readerIgnoresUncommittedWrites() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(0));
+        bp.insertTuple(writer, f.getId(), Utility.getHeapTuple(1, 2));
+        bp.getPage(writer, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+
+        TransactionId reader = snapshot();
+        assertEquals(600, scan(reader).size());
+        assertEquals(tuples.get(0).toString(), scan(reader).get(0).toString());
+        bp.transactionComplete(reader);
+        bp.transactionComplete(writer);
+    }
+
+    /**
+     * A writer does not wait for a snapshot reader, and the reader keeps
+     * seeing the data as of its start after the writer commits.
+     */
+    @Test(timeout = TIMEOUT) public void writerDoesNotDisturbSnapshot() throws Exception {
+        TransactionId reader = snapshot();
+        assertEquals(600, scan(reader).size());
+
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            bp.deleteTuple(writer, tuples.get(i));
+        }
+        bp.insertTuple(writer, f.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(writer);
+
+        assertEquals(600, scan(reader).size());
+        bp.transactionComplete(reader);
+        TransactionId later = snapshot();
+        assertEquals(591, scan(later).size());
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * Versions are kept only while a snapshot that may need them is open.
+     */
+    @Test public void collectsOldVersions() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(0));
+        assertEquals(1, bp.getVersionCount());
+        bp.transactionComplete(writer);
+        assertEquals(0, bp.getVersionCount());
+
+        TransactionId reader = snapshot();
+        writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(1));
+        bp.deleteTuple(writer, tuples.get(2));
+        bp.transactionComplete(writer);
+        assertEquals(2, bp.getVersionCount());
+        assertEquals(599, scan(reader).size());
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getVersionCount());
+    }
+
+    /**
+     * Pages appended by a bulk load stay invisible to snapshots until the
+     * loading transaction commits.
+     */
+    @Test(timeout = TIMEOUT) public void bulkLoadHiddenUntilCommit() throws Exception {
+        Transaction load = new Transaction();
+        load.start();
+        List<Tuple> loaded = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            loaded.add(Utility.getHeapTuple(i, 2));
+        }
+        TupleIterator source = new TupleIterator(Utility.getTupleDesc(2), loaded);
+        source.open();
+        f.bulkInsert(load.getId(), source);
+
+        Transaction before = new Transaction(true);
+        before.start();
+        assertEquals(600, scan(before.getId()).size());
+        load.commit();
+        assertEquals(600, scan(before.getId()).size());
+        before.commit();
+
+        Transaction after = new Transaction(true);
+        after.start();
+        assertEquals(1600, scan(after.getId()).size());
+        after.commit();
+    }
+
+    /**
+     * A read-only transaction cannot modify the database.
+     */
+    @Test public void readOnlyCannotWrite() throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        assertTrue(t.isReadOnly());
+        try {
+            bp.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+        t.commit();
+        assertFalse(bp.isSnapshot(t.getId()));
+    }
+
+    private TransactionId snapshot() {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        return tid;
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        it.close();
+        return result;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
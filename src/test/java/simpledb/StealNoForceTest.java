@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class StealNoForceTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private HeapPageId p0;
+    private BufferPool bp;
+    private LogFile log;
+    private List<Tuple> tuples;
+
+    /**
+     * Three pages: two full pages of 504 tuples and 92 tuples on the third.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        p0 = new HeapPageId(f.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        tuples = scan(tid);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Commit writes the transaction's pages to the log, not to the table.
+     */
+    @Test public void commitForcesLogNotPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.deleteTuple(tid, tuples.get(0));
+        int records = log.getTotalRecords();
+        bp.transactionComplete(tid, true);
+
+        // one UPDATE record for page 0 and the COMMIT record
+        assertEquals(records + 2, log.getTotalRecords());
+        assertFalse(log.isActive(tid));
+        assertEquals(0, onDisk(p0).getNumEmptySlots());
+        assertEquals(1099, scan(new TransactionId()).size());
+
+        bp.flushAllPages();
+        assertEquals(1, onDisk(p0).getNumEmptySlots());
+    }
+
+    /**
+     * Abort restores the rows the transaction changed and keeps the
+     * committed changes of another transaction on the same page.
+     */
+    @Test public void abortRestoresOnlyOwnRows() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, tuples.get(0));
+        bp.insertTuple(t1, f.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+        bp.deleteTuple(t2, tuples.get(1));
+        bp.transactionComplete(t2, true);
+        bp.transactionComplete(t1, false);
+
+        List<Tuple> after = scan(new TransactionId());
+        assertEquals(1099, after.size());
+        assertEquals(tuples.get(0).toString(), after.get(0).toString());
+        for (Tuple t : after) {
+            assertFalse(t.toString().equals(tuples.get(1).toString()));
+            assertFalse(t.toString().equals(Utility.getHeapTuple(new int[]{-1, -1}).toString()));
+        }
+    }
+
+    /**
+     * A page with uncommitted changes may be evicted once its images are in
+     * the log, and the changes are undone when the transaction aborts.
+     */
+    @Test public void evictedPageIsLoggedAndUndone() throws Exception {
+        bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        bp.deleteTuple(tid, tuples.get(0));
+        int records = log.getTotalRecords();
+        for (int i = 1; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        assertTrue(log.getTotalRecords() > records);
+        assertTrue(log.isActive(tid));
+        assertEquals(1, onDisk(p0).getNumEmptySlots());
+
+        bp.transactionComplete(tid, false);
+        assertFalse(log.isActive(tid));
+        assertEquals(tuples.get(0).toString(), scan(new TransactionId()).get(0).toString());
+        bp.flushAllPages();
+        assertEquals(0, onDisk(p0).getNumEmptySlots());
+    }
+
+    /**
+     * flushPages writes the pages one transaction changed.
+     */
+    @Test public void flushPagesWritesTransactionPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, tuples.get(0));
+        bp.deleteTuple(t2, tuples.get(600));
+        bp.flushPages(t1);
+        assertEquals(1, onDisk(p0).getNumEmptySlots());
+        assertEquals(0, onDisk(new HeapPageId(f.getId(), 1)).getNumEmptySlots());
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, false);
+    }
+
+    /**
+     * Transactions that change nothing write no log records.
+     */
+    @Test public void readersDoNotLog() throws Exception {
+        int records = log.getTotalRecords();
+        TransactionId tid = new TransactionId();
+        scan(tid);
+        bp.transactionComplete(tid, true);
+        assertEquals(records, log.getTotalRecords());
+    }
+
+    private HeapPage onDisk(HeapPageId pid) {
+        return (HeapPage) f.readPage(pid);
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        it.close();
+        return result;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}
@@ -72,18 +72,18 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
    * that abort reverts pages to their previous on-disk state.
    */
   public void testTransactionComplete(boolean commit) throws Exception {
-    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
-
+    // insert through the buffer pool, so that commit logs the change and
+    // abort undoes it; p2 is the only page with empty slots
     Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
-    t.setRecordId(new RecordId(p2, 1));
-
-    p.insertTuple(t);
-    p.markDirty(true, tid1);
+    bp.insertTuple(tid1, empty.getId(), t);
+    assertEquals(p2, t.getRecordId().getPageId());
     bp.transactionComplete(tid1, commit);
 
-    // now, flush the buffer pool and access the page again from disk.
+    // now, drop the buffer pool and access the page again from disk. Commit
+    // does not force the page to disk, so flush it before dropping the pool.
+    bp.flushAllPages();
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-    p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
     Iterator<Tuple> it = p.iterator();
 
     boolean found = false;
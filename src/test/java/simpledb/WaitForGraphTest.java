@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.LockGrabber;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class WaitForGraphTest extends TestUtil.CreateHeapFile {
+    private static final int TIMEOUT = 5000;
+
+    private PageId p0, p1, p2;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        p2 = new HeapPageId(empty.getId(), 2);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Of two transactions waiting for each other, the younger one is aborted
+     * and the older one gets its lock once the younger one completes.
+     */
+    @Test public void abortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        bp.getPage(older, p0, Permissions.READ_ONLY);
+        bp.getPage(younger, p1, Permissions.READ_ONLY);
+        LockGrabber a = grab(older, p1, Permissions.READ_WRITE);
+        waitBlocked(a);
+        LockGrabber b = grab(younger, p0, Permissions.READ_WRITE);
+
+        waitDone(a);
+        waitDone(b);
+        assertTrue(a.acquired());
+        assertNull(a.getError());
+        assertFalse(b.acquired());
+        assertTrue(b.getError() instanceof TransactionAbortedException);
+        assertEquals(1, bp.getDeadlockCount());
+        bp.transactionComplete(older);
+    }
+
+    /**
+     * A cycle through three transactions is found and broken by aborting
+     * only its youngest member; the other two then finish in turn.
+     */
+    @Test public void threeWayCycle() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        bp.getPage(t1, p0, Permissions.READ_WRITE);
+        bp.getPage(t2, p1, Permissions.READ_WRITE);
+        bp.getPage(t3, p2, Permissions.READ_WRITE);
+        LockGrabber g1 = grab(t1, p1, Permissions.READ_WRITE);
+        LockGrabber g2 = grab(t2, p2, Permissions.READ_WRITE);
+        waitBlocked(g1);
+        waitBlocked(g2);
+        LockGrabber g3 = grab(t3, p0, Permissions.READ_ONLY);
+
+        waitDone(g3);
+        assertTrue(g3.getError() instanceof TransactionAbortedException);
+        waitDone(g2);
+        assertTrue(g2.acquired());
+        Thread.sleep(100);
+        assertFalse(g1.acquired());
+        bp.transactionComplete(t2);
+        waitDone(g1);
+        assertTrue(g1.acquired());
+        assertEquals(1, bp.getDeadlockCount());
+        bp.transactionComplete(t1);
+    }
+
+    /**
+     * A shared request queues behind a waiting exclusive request instead of
+     * joining the current shared holders, so writers are not starved.
+     */
+    @Test public void grantsInArrivalOrder() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId late = new TransactionId();
+        bp.getPage(reader, p0, Permissions.READ_ONLY);
+        LockGrabber w = grab(writer, p0, Permissions.READ_WRITE);
+        waitBlocked(w);
+        LockGrabber r = grab(late, p0, Permissions.READ_ONLY);
+        Thread.sleep(100);
+        assertFalse(r.acquired());
+
+        bp.transactionComplete(reader);
+        waitDone(w);
+        assertTrue(w.acquired());
+        Thread.sleep(100);
+        assertFalse(r.acquired());
+        bp.transactionComplete(writer);
+        waitDone(r);
+        assertTrue(r.acquired());
+        assertEquals(0, bp.getDeadlockCount());
+        bp.transactionComplete(late);
+    }
+
+    private static LockGrabber grab(TransactionId tid, PageId pid, Permissions perm) {
+        LockGrabber lg = new LockGrabber(tid, pid, perm);
+        lg.start();
+        return lg;
+    }
+
+    /**
+     * Gives the grabber time to queue its request, and checks it had to.
+     */
+    private static void waitBlocked(LockGrabber lg) throws InterruptedException {
+        Thread.sleep(100);
+        assertFalse(lg.acquired());
+        assertNull(lg.getError());
+    }
+
+    private static void waitDone(LockGrabber lg) throws InterruptedException {
+        lg.join(TIMEOUT);
+        assertFalse("lock request did not finish", lg.isAlive());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
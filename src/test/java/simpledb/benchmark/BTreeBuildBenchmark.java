@@ -0,0 +1,89 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Builds a B+ tree index on the first column of a heap table of random keys twice: once by
+ * inserting the tuples one at a time, committing every COMMIT_EVERY inserts, and once with
+ * BTreeFile.bulkLoader, which sorts within sortMB megabytes and writes the pages bottom-up.
+ * Reports the time and the number of pages of each build.
+ *
+ * Usage: BTreeBuildBenchmark [keys] [sortMB] [fillFactor]
+ */
+public class BTreeBuildBenchmark {
+
+    private static final int BUFFER_PAGES = 10000;
+    private static final int COMMIT_EVERY = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        long sortMB = args.length > 1 ? Long.parseLong(args[1]) : 16;
+        double fillFactor = args.length > 2 ? Double.parseDouble(args[2]) : BTreeBulkLoader.DEFAULT_FILL_FACTOR;
+
+        File heapFile = File.createTempFile("build", ".dat");
+        heapFile.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(heapFile.getAbsolutePath(), 2);
+        TransactionId load = new TransactionId();
+        HeapFile.BulkLoader loader = table.bulkLoader(load);
+        Random random = new Random(0);
+        for (int i = 0; i < keys; i++) {
+            loader.add(Utility.getHeapTuple(new int[]{random.nextInt(), i}));
+        }
+        loader.finish();
+        Database.getBufferPool().transactionComplete(load);
+
+        for (boolean bulk : new boolean[]{false, true}) {
+            File indexFile = File.createTempFile("build", ".idx");
+            indexFile.deleteOnExit();
+            BTreeFile index = BTreeUtility.createEmptyBTreeFile(indexFile.getAbsolutePath(), 2, 0);
+            BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+
+            long start = System.nanoTime();
+            if (bulk) {
+                TransactionId tid = new TransactionId();
+                BTreeBulkLoader builder = index.bulkLoader(tid, fillFactor, sortMB << 20);
+                DbFileIterator it = table.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    builder.add(it.next());
+                }
+                it.close();
+                int runs = builder.getRunFiles();
+                builder.finish();
+                bp.transactionComplete(tid);
+                System.out.printf("%d sorted runs written%n", runs);
+            } else {
+                TransactionId scan = new TransactionId();
+                DbFileIterator it = table.iterator(scan);
+                it.open();
+                TransactionId tid = new TransactionId();
+                for (int n = 1; it.hasNext(); n++) {
+                    bp.insertTuple(tid, index.getId(), it.next());
+                    if (n % COMMIT_EVERY == 0) {
+                        bp.transactionComplete(tid);
+                        tid = new TransactionId();
+                    }
+                }
+                it.close();
+                bp.transactionComplete(tid);
+                bp.transactionComplete(scan);
+            }
+            bp.flushAllPages();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-7s: %d keys, %d pages in %.1f s, %.0f keys/s%n", bulk ? "bulk" : "inserts",
+                    keys, index.numPages(), elapsed / 1e9, keys * 1e9 / elapsed);
+            indexFile.delete();
+        }
+    }
+}
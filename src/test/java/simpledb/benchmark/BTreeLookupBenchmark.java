@@ -0,0 +1,88 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Point lookup latency of a B+ tree at 4 KB, 16 KB and 64 KB pages. For each page size,
+ * bulk loads a tree of the given number of random keys into a buffer pool that holds all
+ * of its pages, warms it up with one round of lookups, and then times the given number of
+ * equality lookups of keys in the tree, committing every BATCH lookups.
+ *
+ * Usage: BTreeLookupBenchmark [tuples] [lookups]
+ */
+public class BTreeLookupBenchmark {
+
+    private static final int[] PAGE_SIZES = {4096, 16384, 65536};
+    private static final int BATCH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Random random = new Random(0);
+        int[] keys = new int[tuples];
+        List<Tuple> data = new ArrayList<>(tuples);
+        for (int i = 0; i < tuples; i++) {
+            keys[i] = random.nextInt();
+            data.add(Utility.getHeapTuple(new int[]{keys[i], i}));
+        }
+
+        for (int pageSize : PAGE_SIZES) {
+            BufferPool.setPageSize(pageSize);
+            File file = File.createTempFile("lookup", ".dat");
+            file.deleteOnExit();
+            BTreeFile index = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+            BufferPool bp = Database.resetBufferPool(tuples / 100 + 1000);
+            TransactionId load = new TransactionId();
+            TupleIterator source = new TupleIterator(Utility.getTupleDesc(2), data);
+            source.open();
+            index.bulkLoad(load, source);
+            bp.transactionComplete(load);
+
+            lookup(index, bp, keys, Math.min(lookups, tuples), new Random(1));
+            long start = System.nanoTime();
+            lookup(index, bp, keys, lookups, new Random(2));
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%2d KB pages: %d pages, %d lookups, %.2f us/lookup%n", pageSize / 1024,
+                    index.numPages(), lookups, elapsed / 1e3 / lookups);
+            file.delete();
+        }
+        BufferPool.resetPageSize();
+    }
+
+    private static void lookup(BTreeFile index, BufferPool bp, int[] keys, int lookups, Random random)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= lookups; i++) {
+            int key = keys[random.nextInt(keys.length)];
+            DbFileIterator it = index.indexIterator(tid,
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            it.open();
+            if (!it.hasNext() || ((IntField) it.next().getField(0)).getValue() != key) {
+                throw new IllegalStateException("key " + key + " not found");
+            }
+            it.close();
+            if (i % BATCH == 0) {
+                bp.transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        bp.transactionComplete(tid);
+    }
+}
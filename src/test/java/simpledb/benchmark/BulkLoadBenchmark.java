@@ -0,0 +1,54 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.excution.Insert;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the same tuples into an empty heap table twice through the Insert operator, once
+ * one tuple at a time through the BufferPool and once with HeapFile.bulkInsert, and
+ * reports the load rate of each. Each load is one committed transaction.
+ *
+ * Usage: BulkLoadBenchmark [tuples]
+ */
+public class BulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        List<Tuple> input = new ArrayList<>(tuples);
+        for (int i = 0; i < tuples; i++) {
+            input.add(Utility.getHeapTuple(new int[]{i, tuples - i}));
+        }
+        for (boolean bulk : new boolean[]{false, true}) {
+            File file = File.createTempFile("bulk", ".dat");
+            file.deleteOnExit();
+            HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(table, "bulk" + bulk);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            long start = System.nanoTime();
+            Transaction t = new Transaction();
+            t.start();
+            TupleIterator source = new TupleIterator(Utility.getTupleDesc(2), input);
+            Insert insert = new Insert(t.getId(), source, table.getId(), bulk);
+            insert.open();
+            insert.next();
+            insert.close();
+            t.commit();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-9s: %d tuples, %d pages in %d ms, %.0f tuples/s%n",
+                    bulk ? "bulk" : "per-tuple", tuples, table.numPages(), elapsed / 1000000,
+                    tuples * 1e9 / elapsed);
+            file.delete();
+        }
+    }
+}
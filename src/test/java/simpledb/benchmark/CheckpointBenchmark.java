@@ -0,0 +1,162 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checkpoint stall. Dirties every page of a heap table in the buffer pool with committed deletes,
+ * and writes logMB megabytes of log behind a transaction that stays active, so the checkpoint
+ * cannot drop that log. Then takes a checkpoint while threads keep committing single-delete
+ * transactions, and reports how long it took, the commits that finished meanwhile and the
+ * slowest commit of the run.
+ *
+ * Usage: CheckpointBenchmark [pages] [logMB] [threads]
+ */
+public class CheckpointBenchmark {
+
+    /** heap pages updated to write the log */
+    private static final int LOG_PAGES = 64;
+    /** tuples updated between two logWrite calls on a page */
+    private static final int UPDATES_PER_WRITE = 32;
+    /** how long the threads commit before and after the checkpoint */
+    private static final long STEADY_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long logMB = args.length > 1 ? Long.parseLong(args[1]) : 64;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, pages * 504, null, null);
+        HeapFile logTable = SystemTestUtil.createRandomHeapFile(2, LOG_PAGES * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(pages + 100);
+        LogFile log = Database.getLogFile();
+        // the log before the long running transaction can be dropped
+        writeLog(log, logTable, 1 << 20);
+        TransactionId longRunning = new TransactionId();
+        log.logXactionBegin(longRunning);
+        writeLog(log, logTable, logMB << 20);
+
+        // one delete on every page, then one list of tuples per thread
+        List<List<Tuple>> tuples = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            tuples.add(new ArrayList<>());
+        }
+        TransactionId load = new TransactionId();
+        DbFileIterator it = table.iterator(load);
+        it.open();
+        int n = 0;
+        int lastPage = -1;
+        List<Tuple> first = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() != lastPage) {
+                lastPage = t.getRecordId().getPageId().getPageNumber();
+                first.add(t);
+            } else {
+                tuples.get(n++ % threads).add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : first) {
+            bp.deleteTuple(load, t);
+        }
+        bp.transactionComplete(load, true);
+        for (List<Tuple> list : tuples) {
+            Collections.shuffle(list, new Random(list.size()));
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong commits = new AtomicLong();
+        AtomicLong slowest = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Iterator<Tuple> mine = tuples.get(i).iterator();
+            Thread worker = new Thread(() -> {
+                try {
+                    while (!stop.get() && mine.hasNext()) {
+                        long start = System.nanoTime();
+                        TransactionId tid = new TransactionId();
+                        bp.deleteTuple(tid, mine.next());
+                        bp.transactionComplete(tid, true);
+                        slowest.accumulateAndGet(System.nanoTime() - start, Math::max);
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        Thread.sleep(STEADY_MILLIS);
+        long before = commits.get();
+        long start = System.nanoTime();
+        log.logCheckpoint();
+        long nanos = System.nanoTime() - start;
+        long during = commits.get() - before;
+        Thread.sleep(STEADY_MILLIS);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long total = commits.get();
+        double steadyRate = (total - during) / (2 * STEADY_MILLIS / 1e3);
+        System.out.printf("checkpoint with %d dirty pages and %d MB of log to keep: %.3f s%n",
+                pages, logMB, nanos / 1e9);
+        System.out.printf("%d commits during the checkpoint (%.0f/s), %.0f commits/s otherwise, slowest commit %.1f ms%n",
+                during, during / (nanos / 1e9), steadyRate, slowest.get() / 1e6);
+        log.logCommit(longRunning);
+    }
+
+    /**
+     * Writes about the given number of bytes of committed tuple updates to the log, with the
+     * pages of a table that is not in the buffer pool.
+     */
+    private static void writeLog(LogFile log, HeapFile logTable, long bytes) throws Exception {
+        HeapPage[] pages = new HeapPage[LOG_PAGES];
+        Tuple[][] tuples = new Tuple[LOG_PAGES][];
+        for (int i = 0; i < LOG_PAGES; i++) {
+            pages[i] = (HeapPage) logTable.readPage(new HeapPageId(logTable.getId(), i));
+            List<Tuple> onPage = new ArrayList<>();
+            pages[i].iterator().forEachRemaining(onPage::add);
+            tuples[i] = onPage.toArray(new Tuple[0]);
+        }
+        Random random = new Random(0);
+        long end = log.getEndLSN() + bytes;
+        while (log.getEndLSN() < end) {
+            TransactionId tid = new TransactionId();
+            for (int w = 0; w < 256; w++) {
+                int p = random.nextInt(LOG_PAGES);
+                HeapPage page = pages[p];
+                for (int i = 0; i < UPDATES_PER_WRITE; i++) {
+                    int t = random.nextInt(tuples[p].length);
+                    int slot = tuples[p][t].getRecordId().getTupleNumber();
+                    page.deleteTuple(tuples[p][t]);
+                    tuples[p][t] = Utility.getHeapTuple(new int[]{random.nextInt(), random.nextInt()});
+                    page.insertTuple(tuples[p][t], slot);
+                }
+                log.logWrite(tid, page.getBeforeImage(), page);
+                page.setBeforeImage();
+            }
+            log.logCommit(tid);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Commit latency against the number of pages a transaction dirtied. Each transaction replaces
+ * one tuple on each of its pages (deletes it and inserts a copy) and commits. With "force" the
+ * transaction's pages are written to the table before the commit, as a FORCE policy would; each
+ * page still has uncommitted changes, so its log record is forced before it is written. Without
+ * it the commit only appends the pages' images and the commit record to the log and forces the
+ * log once. Reports the mean time of the commit for each page count.
+ *
+ * Usage: CommitLatencyBenchmark [transactions] [pagesPerTx...]
+ */
+public class CommitLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int[] pageCounts = {1, 4, 16, 32};
+        if (args.length > 1) {
+            pageCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                pageCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        int maxPages = 0;
+        for (int n : pageCounts) {
+            maxPages = Math.max(maxPages, n);
+        }
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, maxPages * 504, null, null);
+        BufferPool bp = Database.resetBufferPool(maxPages * 2 + BufferPool.DEFAULT_PAGES);
+        // the first tuple of each page
+        Tuple[] rows = new Tuple[maxPages];
+        TransactionId load = new TransactionId();
+        for (int p = 0; p < maxPages; p++) {
+            HeapPage page = (HeapPage) bp.getPage(load, new HeapPageId(table.getId(), p), Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            rows[p] = it.next();
+        }
+        bp.transactionComplete(load);
+
+        for (int n : pageCounts) {
+            for (boolean force : new boolean[]{true, false}) {
+                run(bp, table, rows, n, transactions / 10, force);
+                long nanos = run(bp, table, rows, n, transactions, force);
+                System.out.printf("%2d pages/tx, %-8s: %.0f us/commit%n", n, force ? "force" : "no-force",
+                        nanos / 1000.0 / transactions);
+            }
+        }
+    }
+
+    /**
+     * @return the total time spent committing
+     */
+    private static long run(BufferPool bp, HeapFile table, Tuple[] rows, int pages, int transactions, boolean force)
+            throws Exception {
+        long total = 0;
+        for (int i = 0; i < transactions; i++) {
+            TransactionId tid = new TransactionId();
+            List<Tuple> replacements = new ArrayList<>(pages);
+            for (int p = 0; p < pages; p++) {
+                bp.deleteTuple(tid, rows[p]);
+                Tuple copy = Utility.getHeapTuple(new int[]{p, i});
+                bp.insertTuple(tid, table.getId(), copy);
+                replacements.add(copy);
+            }
+            long start = System.nanoTime();
+            if (force) {
+                bp.flushPages(tid);
+            }
+            bp.transactionComplete(tid, true);
+            total += System.nanoTime() - start;
+            for (int p = 0; p < pages; p++) {
+                rows[p] = replacements.get(p);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent B+ tree inserts and lookups. Builds a tree of the given number of tuples, then runs
+ * threads that each commit one insert for every four point lookups, for the given number of
+ * seconds, and reports the operations per second and the aborted transactions.
+ *
+ * Usage: ConcurrentBTreeBenchmark [tuples] [threads] [seconds]
+ */
+public class ConcurrentBTreeBenchmark {
+
+    /** point lookups per insert */
+    private static final int LOOKUPS_PER_INSERT = 4;
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, tuples, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(tuples / 100 + 1000);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong inserts = new AtomicLong();
+        AtomicLong lookups = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(i);
+            Thread worker = new Thread(() -> {
+                try {
+                    for (long n = 0; !stop.get(); n++) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (n % (LOOKUPS_PER_INSERT + 1) == 0) {
+                                int[] values = {random.nextInt(BTreeUtility.MAX_RAND_VALUE), (int) n};
+                                bp.insertTuple(tid, index.getId(), BTreeUtility.getBTreeTuple(values));
+                                bp.transactionComplete(tid);
+                                inserts.incrementAndGet();
+                            } else {
+                                IntField key = new IntField(random.nextInt(BTreeUtility.MAX_RAND_VALUE));
+                                DbFileIterator it = index.indexIterator(tid,
+                                        new IndexPredicate(Predicate.Op.EQUALS, key));
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                                bp.transactionComplete(tid);
+                                lookups.incrementAndGet();
+                            }
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("%d threads on %d tuples: %.0f inserts/s, %.0f lookups/s, %d aborts%n",
+                threads, tuples, inserts.get() / (double) seconds, lookups.get() / (double) seconds, aborts.get());
+    }
+}
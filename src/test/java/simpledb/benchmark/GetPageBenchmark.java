@@ -0,0 +1,94 @@
+package simpledb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of BufferPool.getPage with 1 to 32 threads doing READ_ONLY lookups of random
+ * pages of one table. With poolPages larger than the table every lookup is a hit; with a
+ * smaller pool the threads also contend on misses and evictions.
+ *
+ * Run with: java -cp target/test-classes:... simpledb.benchmark.GetPageBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetPageBenchmark {
+
+    private static final int TUPLES_PER_PAGE = 504;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1000"})
+        int tablePages;
+
+        @Param({"2048", "256"})
+        int poolPages;
+
+        HeapFile table;
+        BufferPool bufferPool;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Database.reset();
+            table = SystemTestUtil.createRandomHeapFile(2, tablePages * TUPLES_PER_PAGE, null, null);
+            bufferPool = Database.resetBufferPool(poolPages);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < Math.min(tablePages, poolPages); i++) {
+                bufferPool.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        TransactionId tid;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            tid = new TransactionId();
+        }
+    }
+
+    @Benchmark
+    public Page getPage(Pool pool, Reader reader) throws Exception {
+        int pgNo = ThreadLocalRandom.current().nextInt(pool.tablePages);
+        return pool.bufferPool.getPage(reader.tid, new HeapPageId(pool.table.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            Options options = new OptionsBuilder()
+                    .include(GetPageBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Commit throughput against the number of concurrent clients. Each client runs transactions
+ * that insert one tuple into a shared heap table and commit, so every commit has to wait for
+ * the log to be forced. Reports commits per second and how many commits each force of the
+ * log made durable, for 1 to 64 clients.
+ *
+ * Usage: GroupCommitBenchmark [seconds] [windowMicros] [maxClients]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long windowMicros = args.length > 1 ? Long.parseLong(args[1]) : LogFile.DEFAULT_GROUP_COMMIT_WINDOW_MICROS;
+        int maxClients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            run(clients, seconds, windowMicros);
+        }
+    }
+
+    private static void run(int clients, int seconds, long windowMicros) throws Exception {
+        Database.reset();
+        File file = File.createTempFile("commit", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "commit");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitWindow(windowMicros);
+
+        LongAdder commits = new LongAdder();
+        long forces = log.getCommitForces();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            new Thread(() -> {
+                try {
+                    for (int n = 0; System.nanoTime() < deadline; n++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                Utility.getHeapTuple(new int[]{client, n}));
+                        t.commit();
+                        commits.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        forces = log.getCommitForces() - forces;
+        System.out.printf("%2d clients, %dus window: %.0f commits/s, %.1f commits/force%n", clients, windowMicros,
+                commits.sum() / (double) seconds, commits.sum() / (double) Math.max(1, forces));
+        Database.getCatalog().clear();
+        file.delete();
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+/**
+ * Inserts into an initially empty heap table through the buffer pool, committing every
+ * batch, and reports the insert throughput of each tenth of the run as the table grows.
+ * Without a free space map every insert searched the file from page 0, so throughput fell
+ * with the number of pages; with it the rate should stay flat.
+ *
+ * Usage: InsertBenchmark [tuples] [batch]
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        File file = File.createTempFile("insert", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "insert");
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        int step = Math.max(batch, tuples / 10);
+        long start = System.nanoTime();
+        long stepStart = start;
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= tuples; i++) {
+            bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(i, 2));
+            if (i % batch == 0 || i == tuples) {
+                bp.transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            if (i % step == 0 || i == tuples) {
+                long now = System.nanoTime();
+                int inStep = i % step == 0 ? step : i % step;
+                System.out.printf("%8d tuples, %5d pages: %.0f tuples/s%n",
+                        i, table.numPages(), inStep * 1e9 / (now - stepStart));
+                stepStart = now;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("total: %d tuples in %d ms, %.0f tuples/s%n",
+                tuples, elapsed / 1000000, tuples * 1e9 / elapsed);
+        file.delete();
+    }
+}
@@ -0,0 +1,70 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs concurrent transactions against the lock manager alone: each one locks a few random
+ * pages out of a small set, a fraction of them exclusively, and then commits. A transaction
+ * chosen as a deadlock victim is aborted and counted. Reports committed transactions and
+ * lock acquisitions per second, and how many deadlocks were broken.
+ *
+ * Usage: LockBenchmark [threads] [seconds] [pages] [locksPerTx] [writePercent]
+ */
+public class LockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int locksPerTx = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int writePercent = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        LongAdder locks = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        boolean commit = true;
+                        try {
+                            for (int j = 0; j < locksPerTx; j++) {
+                                Permissions perm = random.nextInt(100) < writePercent
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                bp.lockPage(tid, new HeapPageId(0, random.nextInt(pages)), perm);
+                                locks.increment();
+                            }
+                        } catch (TransactionAbortedException e) {
+                            commit = false;
+                        }
+                        bp.transactionComplete(tid, commit);
+                        (commit ? commits : aborts).increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        System.out.printf("%d threads, %d pages, %d locks/tx, %d%% writes: %.0f tx/s, %.0f locks/s, "
+                        + "%d aborted, %d deadlocks%n",
+                threads, pages, locksPerTx, writePercent, commits.sum() / (double) seconds,
+                locks.sum() / (double) seconds, aborts.sum(), bp.getDeadlockCount());
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Log record throughput. Appends small BEGIN records (one per transaction) and UPDATE records
+ * carrying the before and after image of a heap page, from 1 to maxThreads threads, and forces
+ * the log once at the end. Reports records per second and megabytes of log per second.
+ *
+ * Usage: LogThroughputBenchmark [records] [maxThreads]
+ */
+public class LogThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId load = new TransactionId();
+        Page page = bp.getPage(load, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        bp.transactionComplete(load);
+
+        // warm up
+        run("BEGIN", records / 10, 1, null, false);
+        run("UPDATE", records / 200, 1, page, false);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run("BEGIN", records, threads, null, true);
+            run("UPDATE", records / 20, threads, page, true);
+        }
+    }
+
+    /**
+     * Appends records from the given number of threads: BEGIN records if page is null, UPDATE
+     * records of page otherwise.
+     */
+    private static void run(String type, int records, int threads, Page page, boolean report) throws Exception {
+        LogFile log = Database.getLogFile();
+        log.force();
+        long bytes = log.getEndLSN();
+        Page before = page == null ? null : page.getBeforeImage();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    TransactionId writer = new TransactionId();
+                    for (int n = 0; n < records / threads; n++) {
+                        if (page == null) {
+                            log.logXactionBegin(new TransactionId());
+                        } else {
+                            log.logWrite(writer, before, page);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        log.force();
+        long nanos = System.nanoTime() - start;
+        bytes = log.getEndLSN() - bytes;
+        if (report) {
+            System.out.printf("%-6s %d threads: %.0f records/s, %.1f MB/s%n", type, threads,
+                    records / (nanos / 1e9), bytes / (nanos / 1e3));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Log volume per transaction. Runs small transactions against a heap table and a B+ tree after
+ * a checkpoint, and reports the bytes of log each transaction wrote on average, with and without
+ * the COMMIT record. The B+ tree inserts random keys into its single leaf, fewer than fit in it.
+ *
+ * Usage: LogVolumeBenchmark [transactions]
+ */
+public class LogVolumeBenchmark {
+
+    /** bytes of a COMMIT record */
+    private static final int COMMIT_BYTES = 20;
+    /** inserts that fit in one leaf of a two column B+ tree */
+    private static final int BTREE_INSERTS = 400;
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, 1, null, null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 20);
+
+        run("heap insert 10/tx", heap, transactions, 10, null);
+        List<Tuple> inserted = new ArrayList<>();
+        run("heap insert 1/tx", heap, transactions, 1, inserted);
+        run("heap delete 1/tx", heap, transactions, 1, inserted);
+        run("btree insert 1/tx", tree, Math.min(transactions, BTREE_INSERTS), 1, null);
+    }
+
+    /**
+     * Runs transactions that each insert rows tuples, or delete rows of the given tuples if there
+     * are any. Inserted tuples are added to tuples if it is not null.
+     */
+    private static void run(String name, DbFile file, int transactions, int rows, List<Tuple> tuples)
+            throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        LogFile log = Database.getLogFile();
+        boolean delete = tuples != null && !tuples.isEmpty();
+        List<Tuple> inserted = tuples == null || delete ? null : tuples;
+        log.logCheckpoint();
+        long start = log.getEndLSN();
+        Random random = new Random(0);
+        int n = 0;
+        for (int i = 0; i < transactions; i++) {
+            TransactionId tid = new TransactionId();
+            for (int r = 0; r < rows; r++, n++) {
+                if (delete) {
+                    bp.deleteTuple(tid, tuples.get(n));
+                } else {
+                    Tuple t = file instanceof BTreeFile
+                            ? BTreeUtility.getBTreeTuple(new int[]{random.nextInt(), i})
+                            : Utility.getHeapTuple(new int[]{n, i});
+                    bp.insertTuple(tid, file.getId(), t);
+                    if (inserted != null) {
+                        inserted.add(t);
+                    }
+                }
+            }
+            bp.transactionComplete(tid, true);
+        }
+        double perTx = (log.getEndLSN() - start) / (double) transactions;
+        System.out.printf("%-18s %8.0f bytes/tx, %8.0f without COMMIT%n", name, perTx, perTx - COMMIT_BYTES);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Report queries running next to short updates on the same table. Writer threads each own some
+ * rows and run transactions that update one of them (delete and reinsert) and commit; reader
+ * threads repeatedly scan the whole table in one transaction. The workload runs twice: once with
+ * readers as ordinary transactions that take shared page locks, and once with readers as
+ * read-only snapshot transactions that take no locks. Reports update transactions, scans and
+ * deadlock aborts per second for each.
+ *
+ * Usage: MixedWorkloadBenchmark [writers] [readers] [seconds] [rows] [thinkMicros]
+ */
+public class MixedWorkloadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int rows = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        int thinkMicros = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+        run(false, writers, readers, seconds, rows, thinkMicros);
+        run(true, writers, readers, seconds, rows, thinkMicros);
+    }
+
+    private static void run(boolean snapshot, int writers, int readers, int seconds, int rows, int thinkMicros)
+            throws Exception {
+        File file = File.createTempFile("mixed", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "mixed");
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        List<List<Tuple>> owned = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            owned.add(new ArrayList<>());
+        }
+        TransactionId load = new TransactionId();
+        for (int r = 0; r < rows; r++) {
+            Tuple t = Utility.getHeapTuple(new int[]{r % writers, r});
+            bp.insertTuple(load, table.getId(), t);
+            owned.get(r % writers).add(t);
+        }
+        bp.transactionComplete(load);
+
+        LongAdder updates = new LongAdder();
+        LongAdder scans = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(writers + readers);
+        for (int i = 0; i < writers; i++) {
+            List<Tuple> own = owned.get(i);
+            start(done, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    TransactionId tid = new TransactionId();
+                    boolean commit = true;
+                    int index = random.nextInt(own.size());
+                    Tuple old = own.get(index);
+                    Tuple replacement = Utility.getHeapTuple(new int[]{
+                            ((IntField) old.getField(0)).getValue(),
+                            ((IntField) old.getField(1)).getValue() + 1});
+                    try {
+                        bp.deleteTuple(tid, old);
+                        bp.insertTuple(tid, table.getId(), replacement);
+                        if (thinkMicros > 0) {
+                            LockSupport.parkNanos(thinkMicros * 1000L);
+                        }
+                    } catch (TransactionAbortedException e) {
+                        commit = false;
+                    }
+                    bp.transactionComplete(tid, commit);
+                    if (commit) {
+                        // an abort restores the old tuple
+                        own.set(index, replacement);
+                    }
+                    (commit ? updates : aborts).increment();
+                }
+            });
+        }
+        for (int i = 0; i < readers; i++) {
+            start(done, () -> {
+                while (System.nanoTime() < deadline) {
+                    TransactionId tid = new TransactionId();
+                    if (snapshot) {
+                        bp.beginSnapshot(tid);
+                    }
+                    boolean commit = true;
+                    try {
+                        DbFileIterator it = table.iterator(tid);
+                        it.open();
+                        while (it.hasNext()) {
+                            it.next();
+                        }
+                        it.close();
+                    } catch (TransactionAbortedException e) {
+                        commit = false;
+                    }
+                    bp.transactionComplete(tid, commit);
+                    (commit ? scans : aborts).increment();
+                }
+            });
+        }
+        done.await();
+        System.out.printf("%s readers, %d writers, %d readers, %d rows: %.0f updates/s, %.1f scans/s, %.0f aborts/s, %d versions left%n",
+                snapshot ? "snapshot" : "locking", writers, readers, rows, updates.sum() / (double) seconds,
+                scans.sum() / (double) seconds, aborts.sum() / (double) seconds, bp.getVersionCount());
+        Database.getCatalog().clear();
+        file.delete();
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static void start(CountDownLatch done, Body body) {
+        new Thread(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                done.countDown();
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,166 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Recovery time. Writes a log of logMB megabytes of committed tuple updates to a heap table,
+ * with a checkpoint sinceCheckpointMB megabytes before its end (none if that is not less than
+ * logMB), then crashes and recovers a copy of it with 1 to maxThreads redo threads. A transaction
+ * that begins first and commits after the checkpoint keeps the whole log in its segments.
+ *
+ * Usage: RecoveryBenchmark [logMB] [sinceCheckpointMB] [maxThreads]
+ */
+public class RecoveryBenchmark {
+
+    /** the log file Database opens */
+    private static final String LOG_FILE = "log";
+    /** where the log and the table are kept between recoveries */
+    private static final String COPY_DIR = "recovery.bench";
+    private static final int PAGES = 256;
+    /** tuples updated between two logWrite calls on a page */
+    private static final int UPDATES_PER_WRITE = 32;
+    /** logWrite calls per transaction */
+    private static final int WRITES_PER_TRANSACTION = 256;
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        long sinceMB = args.length > 1 ? Long.parseLong(args[1]) : 64;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, PAGES * 504, null, null);
+        File tableFile = table.getFile();
+        HeapPage[] pages = new HeapPage[PAGES];
+        Tuple[][] tuples = new Tuple[PAGES][];
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = (HeapPage) table.readPage(new HeapPageId(table.getId(), i));
+            List<Tuple> onPage = new ArrayList<>();
+            pages[i].iterator().forEachRemaining(onPage::add);
+            tuples[i] = onPage.toArray(new Tuple[0]);
+        }
+
+        LogFile log = Database.getLogFile();
+        TransactionId longRunning = new TransactionId();
+        log.logXactionBegin(longRunning);
+        long start = System.nanoTime();
+        Random random = new Random(0);
+        long checkpointAt = sinceMB < logMB ? (logMB - sinceMB) << 20 : -1;
+        long checkpoint = -1;
+        while (log.getEndLSN() < logMB << 20) {
+            TransactionId tid = new TransactionId();
+            for (int w = 0; w < WRITES_PER_TRANSACTION; w++) {
+                int p = random.nextInt(PAGES);
+                HeapPage page = pages[p];
+                update(page, tuples[p], random);
+                log.logWrite(tid, page.getBeforeImage(), page);
+                page.setBeforeImage();
+            }
+            log.logCommit(tid);
+            if (checkpointAt >= 0 && checkpoint < 0 && log.getEndLSN() >= checkpointAt) {
+                // the pages are not in the buffer pool, so write them as
+                // its page cleaner would before the checkpoint
+                for (HeapPage page : pages) {
+                    table.writePage(page);
+                }
+                log.logCheckpoint();
+                log.logCommit(longRunning);
+                checkpoint = log.getEndLSN();
+            }
+        }
+        long logBytes = log.getEndLSN() - log.getFirstLSN();
+        long replayed = checkpoint < 0 ? logBytes : log.getEndLSN() - checkpoint;
+        System.out.printf("log %d MB written in %.1f s, %d MB after the checkpoint%n", logBytes >> 20,
+                (System.nanoTime() - start) / 1e9, replayed >> 20);
+
+        // crash: keep copies of the log and the table to recover from each time
+        File copies = new File(COPY_DIR);
+        copies.mkdir();
+        List<File> logFiles = new ArrayList<>(log.getSegmentFiles());
+        logFiles.add(new File(LOG_FILE));
+        for (File f : logFiles) {
+            Files.copy(f.toPath(), new File(copies, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        File tableCopy = new File(copies, tableFile.getName());
+        Files.copy(tableFile.toPath(), tableCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try {
+            // warm up
+            recover(copies, tableFile, 1);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double seconds = recover(copies, tableFile, threads);
+                HeapFile recovered = (HeapFile) Database.getCatalog().getDatabaseFile(table.getId());
+                for (int i = 0; i < PAGES; i++) {
+                    byte[] data = recovered.readPage(new HeapPageId(table.getId(), i)).getPageData();
+                    if (!Arrays.equals(pages[i].getPageData(), data)) {
+                        throw new IllegalStateException("page " + i + " was not recovered");
+                    }
+                }
+                System.out.printf("%d redo threads: recovered in %.2f s, %.0f MB/s of log replayed%n",
+                        threads, seconds, (replayed >> 20) / seconds);
+            }
+        } finally {
+            for (File f : copies.listFiles()) {
+                f.delete();
+            }
+            copies.delete();
+        }
+    }
+
+    /**
+     * Restores the log and the table from their copies and recovers them.
+     * @return the seconds recovery took
+     */
+    private static double recover(File copies, File tableFile, int threads) throws Exception {
+        for (File f : Database.getLogFile().getSegmentFiles()) {
+            f.delete();
+        }
+        List<File> restored = new ArrayList<>();
+        for (File copy : copies.listFiles()) {
+            File f = copy.getName().equals(tableFile.getName()) ? tableFile : new File(copy.getName());
+            Files.copy(copy.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            restored.add(f);
+        }
+        // keep the copies out of the forces recovery does
+        for (File f : restored) {
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        Database.reset();
+        Utility.openHeapFile(2, tableFile);
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        log.recover();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Replaces some tuples of the page with tuples holding new values.
+     */
+    private static void update(HeapPage page, Tuple[] tuples, Random random) throws Exception {
+        for (int i = 0; i < UPDATES_PER_WRITE; i++) {
+            int n = random.nextInt(tuples.length);
+            int slot = tuples[n].getRecordId().getTupleNumber();
+            page.deleteTuple(tuples[n]);
+            tuples[n] = Utility.getHeapTuple(new int[]{random.nextInt(), random.nextInt()});
+            page.insertTuple(tuples[n], slot);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Lru2ReplacementPolicy;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Mixed workload for the buffer pool replacement policies: point lookups on a small hot
+ * table interleaved with a sequential scan of a table much larger than the pool. Prints the
+ * hit ratio of the point lookups for each policy, with and without the use-once hint on the
+ * scan pages.
+ *
+ * Usage: ReplacementPolicyBenchmark [hotPages] [scanPages] [poolPages] [lookupsPerScanPage]
+ */
+public class ReplacementPolicyBenchmark {
+
+    /** two int columns per tuple: 504 tuples fit on a 4K page */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int hotPages = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int scanPages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : BufferPool.DEFAULT_PAGES;
+        int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, hotPages * TUPLES_PER_PAGE, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, scanPages * TUPLES_PER_PAGE, null, null);
+        System.out.printf("hot table %d pages, scanned table %d pages, buffer pool %d pages%n",
+                hot.numPages(), big.numPages(), poolPages);
+
+        run("CLOCK", ClockReplacementPolicy::new, false, hot, big, poolPages, lookups);
+        run("CLOCK", ClockReplacementPolicy::new, true, hot, big, poolPages, lookups);
+        run("LRU-2", Lru2ReplacementPolicy::new, false, hot, big, poolPages, lookups);
+        run("LRU-2", Lru2ReplacementPolicy::new, true, hot, big, poolPages, lookups);
+    }
+
+    private static void run(String name, IntFunction<ReplacementPolicy> policy, boolean useOnce,
+                            HeapFile hot, HeapFile big, int poolPages, int lookups) throws Exception {
+        BufferPool bp = Database.resetBufferPool(poolPages, policy.apply(poolPages));
+        TransactionId tid = new TransactionId();
+        Random random = new Random(42);
+        int hotPages = hot.numPages();
+
+        // warm the pool with the hot table
+        for (int i = 0; i < hotPages; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+
+        long lookupMisses = 0;
+        long lookupCount = 0;
+        long start = System.nanoTime();
+        for (int pgNo = 0; pgNo < big.numPages(); pgNo++) {
+            bp.getPage(tid, new HeapPageId(big.getId(), pgNo), Permissions.READ_ONLY, useOnce);
+            for (int j = 0; j < lookups; j++) {
+                long misses = bp.getMissCount();
+                bp.getPage(tid, new HeapPageId(hot.getId(), random.nextInt(hotPages)), Permissions.READ_ONLY);
+                lookupMisses += bp.getMissCount() - misses;
+                lookupCount++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%-6s use-once=%-5b point lookup hit ratio %6.2f%%, overall hit ratio %6.2f%%, %d ms%n",
+                name, useOnce,
+                100.0 * (lookupCount - lookupMisses) / lookupCount,
+                100.0 * bp.getHitCount() / (bp.getHitCount() + bp.getMissCount()),
+                elapsed / 1000000);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.excution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Sequential scan of a large heap table through SeqScan and the buffer pool. The table is
+ * much larger than the pool, so every page is read from the file; the file itself is usually
+ * in the OS page cache after it is written, so the numbers mostly show the per-page I/O
+ * overhead of HeapFile rather than the disk. Each scan runs once reading pages into the
+ * buffer pool and once decoding them from a memory mapping of the file. A third pass calls
+ * HeapFile.readPage directly and reports the bytes allocated per page read and per page
+ * whose tuples are then iterated.
+ *
+ * Usage: ScanBenchmark [tableMB] [rounds]
+ */
+public class ScanBenchmark {
+
+    /** two int columns per tuple: 504 tuples fit on a 4K page */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    /** distinct page images the table is built from */
+    private static final int TEMPLATE_PAGES = 64;
+
+    public static void main(String[] args) throws Exception {
+        int tableMB = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        int numPages = (int) ((long) tableMB * 1024 * 1024 / BufferPool.getPageSize());
+        File file = File.createTempFile("scan", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "scan");
+        writeTable(table, numPages);
+        System.out.printf("table %d pages (%d MB), buffer pool %d pages%n",
+                table.numPages(), tableMB, BufferPool.DEFAULT_PAGES);
+
+        for (int round = 0; round < rounds; round++) {
+            for (boolean mapped : new boolean[]{false, true}) {
+                table.setMemoryMappedScan(mapped);
+                scan(table, round, mapped ? "mmap" : "buffered", tableMB);
+            }
+            readPages(table, round, tableMB);
+        }
+        file.delete();
+    }
+
+    private static void scan(HeapFile table, int round, String mode, int tableMB) throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SeqScan scan = new SeqScan(new TransactionId(), table.getId(), "t");
+        long start = System.nanoTime();
+        long tuples = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            tuples++;
+        }
+        scan.close();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("round %d %-8s: %d tuples in %d ms, %.1f MB/s, %d misses, %d prefetched (%d hit, %d wasted)%n",
+                round, mode, tuples, elapsed / 1000000, tableMB * 1e9 / elapsed, bp.getMissCount(),
+                bp.getPrefetchCount(), bp.getPrefetchHits(), bp.getPrefetchWasted());
+    }
+
+    private static void readPages(HeapFile table, int round, int tableMB) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int numPages = table.numPages();
+        long readBytes = 0;
+        long iterateBytes = 0;
+        long tuples = 0;
+        long start = System.nanoTime();
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            Page page = table.readPage(new HeapPageId(table.getId(), pgNo));
+            long read = threads.getThreadAllocatedBytes(threadId);
+            Iterator<Tuple> it = ((HeapPage) page).iterator();
+            while (it.hasNext()) {
+                it.next();
+                tuples++;
+            }
+            iterateBytes += threads.getThreadAllocatedBytes(threadId) - read;
+            readBytes += read - before;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("round %d %-8s: %d tuples in %d ms, %.1f MB/s, allocated per page: %d bytes to read, %d bytes to iterate%n",
+                round, "readPage", tuples, elapsed / 1000000, tableMB * 1e9 / elapsed,
+                readBytes / numPages, iterateBytes / numPages);
+    }
+
+    /**
+     * Writes full pages of random two-int tuples. Pages are copies of a few templates so that
+     * building a table of several GB does not take longer than scanning it.
+     */
+    private static void writeTable(HeapFile table, int numPages) throws Exception {
+        Random random = new Random(42);
+        byte[][] templates = new byte[TEMPLATE_PAGES][];
+        for (int i = 0; i < TEMPLATE_PAGES; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(table.getId(), i), HeapPage.createEmptyPageData());
+            for (int j = 0; j < TUPLES_PER_PAGE; j++) {
+                page.insertTuple(Utility.getHeapTuple(new int[]{random.nextInt(), random.nextInt()}));
+            }
+            templates[i] = page.getPageData();
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(table.getFile()), 1 << 20)) {
+            for (int i = 0; i < numPages; i++) {
+                out.write(templates[i % TEMPLATE_PAGES]);
+            }
+        }
+    }
+}
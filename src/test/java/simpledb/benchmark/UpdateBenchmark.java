@@ -0,0 +1,113 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Many updaters on a small heap table: each thread owns some rows, all of which start out on
+ * the same few pages, and runs transactions that update a few of its rows (delete the tuple
+ * and insert its replacement) and commit. After each update the transaction pauses for
+ * thinkMicros, standing in for the round trip to the client that issued it, while still holding
+ * its locks. The threads never touch the same row, so with page locks they only conflict because
+ * their rows share pages. Reports committed transactions per second and how many transactions
+ * were aborted as deadlock victims.
+ *
+ * Usage: UpdateBenchmark [threads] [seconds] [rowsPerThread] [updatesPerTx] [thinkMicros]
+ */
+public class UpdateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rowsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int updatesPerTx = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int thinkMicros = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+        File file = File.createTempFile("update", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "update");
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // rows of all threads are interleaved on the table's first pages
+        List<List<Tuple>> rows = new ArrayList<>();
+        TransactionId load = new TransactionId();
+        for (int i = 0; i < threads; i++) {
+            rows.add(new ArrayList<>());
+        }
+        for (int r = 0; r < rowsPerThread; r++) {
+            for (int i = 0; i < threads; i++) {
+                Tuple t = Utility.getHeapTuple(new int[]{i, r});
+                bp.insertTuple(load, table.getId(), t);
+                rows.get(i).add(t);
+            }
+        }
+        bp.transactionComplete(load);
+
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            List<Tuple> own = rows.get(i);
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        boolean commit = true;
+                        // rows this transaction replaced; aborts restore the old tuples
+                        Map<Integer, Tuple> replaced = new HashMap<>();
+                        for (int u = 0; u < updatesPerTx && commit; u++) {
+                            int index = random.nextInt(own.size());
+                            Tuple old = replaced.getOrDefault(index, own.get(index));
+                            try {
+                                bp.deleteTuple(tid, old);
+                                Tuple replacement = Utility.getHeapTuple(new int[]{
+                                        ((IntField) old.getField(0)).getValue(),
+                                        ((IntField) old.getField(1)).getValue() + 1});
+                                bp.insertTuple(tid, table.getId(), replacement);
+                                replaced.put(index, replacement);
+                                if (thinkMicros > 0) {
+                                    LockSupport.parkNanos(thinkMicros * 1000L);
+                                }
+                            } catch (TransactionAbortedException e) {
+                                commit = false;
+                            }
+                        }
+                        bp.transactionComplete(tid, commit);
+                        if (commit) {
+                            replaced.forEach(own::set);
+                        }
+                        (commit ? commits : aborts).increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        System.out.printf("%d threads, %d rows/thread, %d updates/tx, %dus think: %.0f tx/s, %d aborted, %d pages%n",
+                threads, rowsPerThread, updatesPerTx, thinkMicros, commits.sum() / (double) seconds, aborts.sum(),
+                table.numPages());
+        file.delete();
+    }
+}
@@ -289,6 +289,107 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test range scans with each kind of bound, in both directions, over keys with many duplicates. */
+    @Test public void testRange() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = r.nextInt(2);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, 100, null, tuples, keyField);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 20; i++) {
+            int low = r.nextInt(100);
+            int high = low + r.nextInt(100 - low);
+            for (int bounds = 0; bounds < 4; bounds++) {
+                IndexPredicate lower = new IndexPredicate((bounds & 1) == 0 ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN,
+                        new IntField(low));
+                IndexPredicate upper = new IndexPredicate((bounds & 2) == 0 ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN,
+                        new IntField(high));
+                if (i == 0) {
+                    lower = null;
+                }
+                else if (i == 1) {
+                    upper = null;
+                }
+                ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+                for (ArrayList<Integer> tup : tuples) {
+                    if ((lower == null || new IntField(tup.get(keyField)).compare(lower.getOp(), lower.getField()))
+                            && (upper == null || new IntField(tup.get(keyField)).compare(upper.getOp(), upper.getField()))) {
+                        expected.add(tup);
+                    }
+                }
+
+                for (boolean descending : new boolean[]{false, true}) {
+                    BTreeScan scan = new BTreeScan(tid, f.getId(), "table", lower, upper, descending);
+                    scan.open();
+                    ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+                    while (scan.hasNext()) {
+                        actual.add(SystemTestUtil.tupleToList(scan.next()));
+                    }
+                    scan.close();
+                    for (int j = 1; j < actual.size(); j++) {
+                        int cmp = new TupleComparator(keyField).compare(actual.get(j - 1), actual.get(j));
+                        assertTrue(descending ? cmp >= 0 : cmp <= 0);
+                    }
+                    Collections.sort(actual, new TupleComparator(keyField).thenComparing(Object::toString));
+                    Collections.sort(expected, new TupleComparator(keyField).thenComparing(Object::toString));
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a descending scan stopped after a few tuples reads only the last leaf page */
+    @Test public void testDescendingReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        Collections.sort(tuples, new TupleComparator(keyField));
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, table.getId(), "table", null, null, true);
+        scan.open();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scan.hasNext());
+            assertEquals(tuples.get(tuples.size() - 1 - i).get(keyField),
+                    SystemTestUtil.tupleToList(scan.next()).get(keyField));
+        }
+        scan.close();
+        // root pointer page + root + last leaf page
+        assertEquals(3, table.readCount);
+
+        // a descending scan below an upper bound reads the pages from the bound down
+        int high = r.nextInt(LEAF_PAGES*502);
+        ArrayList<ArrayList<Integer>> tuplesFiltered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(keyField) < high) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        Collections.reverse(tuplesFiltered);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        scan = new BTreeScan(tid, table.getId(), "table", null,
+                new IndexPredicate(Op.LESS_THAN, new IntField(high)), true);
+        scan.open();
+        for (ArrayList<Integer> tup : tuplesFiltered) {
+            assertTrue(scan.hasNext());
+            assertEquals(tup.get(keyField), SystemTestUtil.tupleToList(scan.next()).get(keyField));
+        }
+        assertFalse(scan.hasNext());
+        scan.close();
+        // root pointer page + root + leaf pages
+        assertTrue(table.readCount <= tuplesFiltered.size()/502 + 1 + 2);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
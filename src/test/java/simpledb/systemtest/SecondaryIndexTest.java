@@ -0,0 +1,307 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.excution.IndexPredicate;
+import simpledb.excution.OpIterator;
+import simpledb.excution.Operator;
+import simpledb.excution.Predicate;
+import simpledb.excution.SeqScan;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Secondary B+ tree indexes on heap tables: building them, keeping them in sync with
+ * inserts and deletes, and the optimizer's choice between an index scan and a
+ * sequential scan.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+    private static final int MAX_VALUE = 1000;
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private SecondaryIndex index;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        Database.getCatalog().addTable(table, "t");
+        index = Database.getCatalog().createIndex("t_c0", "t", "c0");
+    }
+
+    @After public void tearDown() {
+        index.getFile().getFile().delete();
+    }
+
+    /**
+     * @return the tuples with c0 op value
+     */
+    private ArrayList<ArrayList<Integer>> matching(Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> res = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(value))) {
+                res.add(t);
+            }
+        }
+        return res;
+    }
+
+    private void checkLookups(TransactionId tid)
+            throws DbException, TransactionAbortedException, IOException {
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+        for (Predicate.Op op : ops) {
+            for (int value : new int[] { -1, 0, 17, MAX_VALUE / 2, MAX_VALUE - 1, MAX_VALUE }) {
+                IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(op, new IntField(value)));
+                SystemTestUtil.matchTuples(scan, matching(op, value));
+            }
+        }
+    }
+
+    @Test public void testBuild() throws Exception {
+        assertEquals(1, Database.getCatalog().getIndexes(table.getId()).size());
+        TransactionId tid = new TransactionId();
+        checkLookups(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testKeysInOrder() throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)));
+        scan.open();
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+            count++;
+        }
+        scan.close();
+        assertEquals(ROWS, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInsertDelete() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 500; i++) {
+            ArrayList<Integer> values = new ArrayList<Integer>();
+            values.add(i % 50);
+            values.add(i);
+            Tuple t = new Tuple(table.getTupleDesc());
+            t.setField(0, new IntField(values.get(0)));
+            t.setField(1, new IntField(values.get(1)));
+            bp.insertTuple(tid, table.getId(), t);
+            tuples.add(values);
+        }
+        // delete every tuple with an even c1
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (((IntField) t.getField(1)).getValue() % 2 == 0) {
+                deleted.add(t);
+            }
+        }
+        scan.close();
+        for (Tuple t : deleted) {
+            bp.deleteTuple(tid, t);
+            assertTrue(tuples.remove(SystemTestUtil.tupleToList(t)));
+        }
+        checkLookups(tid);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        checkLookups(tid);
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void testAbort() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(7));
+        t.setField(1, new IntField(-7));
+        bp.insertTuple(tid, table.getId(), t);
+        IndexScan scan = new IndexScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)));
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        bp.deleteTuple(tid, first);
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        checkLookups(tid);
+        bp.transactionComplete(tid);
+    }
+
+    @Test(expected = DbException.class)
+    public void testDuplicateName() throws Exception {
+        Database.getCatalog().createIndex("t_c0", "t", "c1");
+    }
+
+    /**
+     * The tree of an index is not a table: it cannot be queried, modified or
+     * analyzed by name.
+     */
+    @Test public void testIndexIsNotATable() throws Exception {
+        try {
+            Database.getCatalog().getTableId("t_c0");
+            fail("the index should not be a table");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext()) {
+            assertNotEquals(index.getFile().getId(), (int) it.next());
+        }
+        // the buffer pool still resolves the pages of the tree
+        assertEquals(index.getFile(), Database.getCatalog().getDatabaseFile(index.getFile().getId()));
+    }
+
+    /**
+     * A build that fails leaves no index, file or reserved name behind.
+     */
+    @Test public void testFailedBuild() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, MAX_VALUE, null, null);
+        HeapFile broken = new HeapFile(f, table.getTupleDesc()) {
+            @Override
+            public DbFileIterator iterator(TransactionId tid) {
+                DbFileIterator it = super.iterator(tid);
+                return new DbFileIterator() {
+                    private int read = 0;
+
+                    public void open() throws DbException, TransactionAbortedException {
+                        it.open();
+                    }
+
+                    public boolean hasNext() throws DbException, TransactionAbortedException {
+                        if (read == 500) {
+                            throw new DbException("read error");
+                        }
+                        return it.hasNext();
+                    }
+
+                    public Tuple next() throws DbException, TransactionAbortedException {
+                        read++;
+                        return it.next();
+                    }
+
+                    public void rewind() throws DbException, TransactionAbortedException {
+                        it.rewind();
+                    }
+
+                    public void close() {
+                        it.close();
+                    }
+                };
+            }
+        };
+        Database.getCatalog().addTable(broken, "u");
+        try {
+            Database.getCatalog().createIndex("u_c0", "u", "c0");
+            fail("the build should fail");
+        } catch (DbException e) {
+            // expected
+        }
+        assertTrue(Database.getCatalog().getIndexes(broken.getId()).isEmpty());
+        assertFalse(new File(f.getParentFile(), "u_c0.idx").exists());
+
+        // the name is free again, and the table can still be modified
+        SecondaryIndex other = Database.getCatalog().createIndex("u_c0", "t", "c1");
+        assertEquals(2, Database.getCatalog().getIndexes(table.getId()).size());
+        other.getFile().getFile().delete();
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(broken.getTupleDesc());
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(2));
+        Database.getBufferPool().insertTuple(tid, broken.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testCreateIndexStatement() throws Exception {
+        new Parser().processNextStatement("CREATE INDEX t_c1 ON t (c1);");
+        assertEquals(2, Database.getCatalog().getIndexes(table.getId()).size());
+        SecondaryIndex c1 = Database.getCatalog().getIndexes(table.getId()).get(1);
+        assertEquals(1, c1.getKeyField());
+        c1.getFile().getFile().delete();
+    }
+
+    /**
+     * @return the access method at the bottom of a plan over one table
+     */
+    private OpIterator accessMethod(String query) throws ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        while (plan instanceof Operator) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan;
+    }
+
+    @Test public void testPlanner() throws Exception {
+        OpIterator selective = accessMethod("SELECT * FROM t WHERE t.c0 = 17;");
+        assertTrue(selective instanceof IndexScan);
+        assertEquals(index, ((IndexScan) selective).getIndex());
+        assertTrue(accessMethod("SELECT * FROM t WHERE t.c0 < 1;") instanceof IndexScan);
+
+        // most tuples match, so reading each through the index costs more than a scan
+        assertTrue(accessMethod("SELECT * FROM t WHERE t.c0 > 10;") instanceof SeqScan);
+        // no index on c1
+        assertTrue(accessMethod("SELECT * FROM t WHERE t.c1 = 17;") instanceof SeqScan);
+    }
+
+    @Test public void testIndexPlanResults() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(table.getId(), 1000));
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM t WHERE t.c0 = 17 AND t.c1 > 100;").physicalPlan(tid, stats, false);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : matching(Predicate.Op.EQUALS, 17)) {
+            if (t.get(1) > 100) {
+                expected.add(t);
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -234,7 +234,7 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
-    @Test public void testAllDirtyFails()
+    @Test public void testAllDirtyStolen()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -247,11 +247,9 @@ public class TransactionTest extends SimpleDbTestBase {
         // Insert a new row
         EvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            EvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException e) {}
+        // Under STEAL the scan evicts the uncommitted dirty page to make room,
+        // logging it first, and still sees the new row when it reads it back
+        assertTrue(EvictionTest.findMagicTuple(f, t));
         t.commit();
     }
 